@@ -0,0 +1,320 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The read-only part of an inverted index: looking up words, paths and
+ * positions, searching, and writing the index out. The mutable
+ * {@link InvertedIndex} and the immutable {@link FrozenInvertedIndex} both
+ * extend it, so code that only reads an index takes this type and works with
+ * either.
+ *
+ * A search adds up the matches of every document in a {@link ScoreAccumulator}
+ * first, see {@link #exactScores(Collection)} and
+ * {@link #partialScores(Collection)}, and only then creates the results.
+ */
+public abstract class AbstractInvertedIndex {
+
+	/**
+	 * generation of the contents, incremented by every change
+	 */
+	private final AtomicLong generation;
+
+	/**
+	 * expansions of the prefixes of partial searches, or null to expand every
+	 * prefix again
+	 */
+	private volatile PrefixCache prefixCache;
+
+	/**
+	 * Initializes the generation and leaves the prefix cache unset
+	 */
+	protected AbstractInvertedIndex() {
+		this.generation = new AtomicLong();
+		this.prefixCache = null;
+	}
+
+	/**
+	 * Return the generation of the contents, which changes with every word or
+	 * index added, so anything computed from one generation is known to be stale
+	 * in the next one
+	 *
+	 * @return the generation
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Starts a new generation of the contents, after they were changed. A search
+	 * that read the generation before the change is then never taken as one of the
+	 * new generation, even if it saw only part of the change.
+	 *
+	 * @see #getGeneration()
+	 */
+	protected void changed() {
+		generation.incrementAndGet();
+	}
+
+	/**
+	 * Set the cache of the prefix expansions of partial searches
+	 *
+	 * @param prefixCache the cache, which may be shared with other indexes, or
+	 *                    null to expand every prefix again
+	 */
+	public void setPrefixCache(PrefixCache prefixCache) {
+		this.prefixCache = prefixCache;
+	}
+
+	/**
+	 * Return the cache of the prefix expansions of partial searches
+	 *
+	 * @return the cache, or null if none is set
+	 */
+	public PrefixCache getPrefixCache() {
+		return prefixCache;
+	}
+
+	/**
+	 * Return the total number of words for given path
+	 *
+	 * @param path key
+	 * @return total number of words
+	 */
+	public abstract int getTotalWords(String path);
+
+	/**
+	 * Output the location map
+	 *
+	 * @param path output file location
+	 * @throws IOException
+	 *
+	 */
+	public abstract void toLocationsJSON(Path path) throws IOException;
+
+	/**
+	 * Outputs the inverted index as pretty JSON to file
+	 *
+	 * @param path output file location
+	 * @throws IOException
+	 *
+	 */
+	public abstract void toIndexJSON(Path path) throws IOException;
+
+	/**
+	 * Return an immutable, read-optimized copy of this index
+	 *
+	 * @return frozen copy of this index, or the index itself if already frozen
+	 *
+	 * @see FrozenInvertedIndex
+	 */
+	public abstract FrozenInvertedIndex freeze();
+
+	/**
+	 * Return a set view of all word
+	 *
+	 * @return Set<String>
+	 */
+	public abstract Set<String> getWordSet();
+
+	/**
+	 * Return set view of all path key
+	 *
+	 * @param word key
+	 * @return Set<String>, or null if the word is not in the index
+	 */
+	public abstract Set<String> getPathSet(String word);
+
+	/**
+	 * Return the set of given key at given position
+	 *
+	 * @param word key
+	 * @param path key
+	 * @return value of the given word at given position, or null if not found
+	 */
+	public abstract SortedSet<Integer> getPositionSet(String word, String path);
+
+	/**
+	 * Return true if the data structure is empty
+	 *
+	 * @return true if the data structure is empty, false otherwise
+	 */
+	public abstract boolean isEmpty();
+
+	/**
+	 * Return whether the map contains a word
+	 *
+	 * @param word key
+	 * @return true if the map contains a key, false otherwise
+	 */
+	public abstract boolean containsWord(String word);
+
+	/**
+	 * Check in the given word, is there a given path exist
+	 *
+	 * @param word word in the file
+	 * @param path the path of the file
+	 * @return true if the path in the given word already exist, false otherwise
+	 */
+	public abstract boolean containsPath(String word, String path);
+
+	/**
+	 * Check in the given word, given path, is there a given position
+	 *
+	 * @param word     word in the file
+	 * @param path     the path of the file
+	 * @param position the position of the word in the file
+	 * @return true if the word in the given file and given position already exist,
+	 *         false otherwise
+	 */
+	public abstract boolean containsPosition(String word, String path, int position);
+
+	/**
+	 * Search method
+	 *
+	 * @param queries words to search
+	 * @param exact   exact or partial search
+	 * @return the search result
+	 */
+	public ArrayList<SearchResult> search(Collection<String> queries, boolean exact) {
+
+		return exact ? exactSearch(queries) : partialSearch(queries);
+	}
+
+	/**
+	 * Search method returning one page of the results, selected from the matches
+	 * of every document with a heap of at most offset + k documents, so only the
+	 * results of the page are created and sorted
+	 *
+	 * @param queries words to search
+	 * @param exact   exact or partial search
+	 * @param k       maximum number of results
+	 * @param offset  number of best results to skip
+	 * @return the results from offset to offset + k, in the same order as
+	 *         {@link #search(Collection, boolean)}
+	 */
+	public ArrayList<SearchResult> search(Collection<String> queries, boolean exact, int k, int offset) {
+		return page(exact ? exactScores(queries) : partialScores(queries), k, offset);
+	}
+
+	/**
+	 * Perform a partial search to the inverted index data structure
+	 *
+	 * @param oneLineQuery a line of the query file
+	 * @return a sorted array list
+	 */
+	public ArrayList<SearchResult> partialSearch(Collection<String> oneLineQuery) {
+		return sorted(partialMatches(oneLineQuery));
+	}
+
+	/**
+	 * Perform a exact search to the inverted index data structure
+	 *
+	 * @param oneLineQuery one line of query file
+	 * @return a sorted array list
+	 */
+	public ArrayList<SearchResult> exactSearch(Collection<String> oneLineQuery) {
+		return sorted(exactMatches(oneLineQuery));
+	}
+
+	/**
+	 * Return the results of a partial search, not sorted yet
+	 *
+	 * @param oneLineQuery a line of the query file
+	 * @return the results in the order they were found
+	 */
+	protected ArrayList<SearchResult> partialMatches(Collection<String> oneLineQuery) {
+		return results(partialScores(oneLineQuery));
+	}
+
+	/**
+	 * Return the results of an exact search, not sorted yet
+	 *
+	 * @param oneLineQuery one line of query file
+	 * @return the results in the order they were found
+	 */
+	protected ArrayList<SearchResult> exactMatches(Collection<String> oneLineQuery) {
+		return results(exactScores(oneLineQuery));
+	}
+
+	/**
+	 * Return the matches of every document for a partial search
+	 *
+	 * @param oneLineQuery a line of the query file
+	 * @return the accumulator of the current thread
+	 */
+	protected abstract ScoreAccumulator partialScores(Collection<String> oneLineQuery);
+
+	/**
+	 * Adds the matches of every word starting with a prefix to the accumulator
+	 *
+	 * @param scores the matches of every document so far
+	 * @param prefix one query word
+	 */
+	protected abstract void expand(ScoreAccumulator scores, String prefix);
+
+	/**
+	 * Return the matches of every document for an exact search
+	 *
+	 * @param oneLineQuery one line of query file
+	 * @return the accumulator of the current thread
+	 */
+	protected abstract ScoreAccumulator exactScores(Collection<String> oneLineQuery);
+
+	/**
+	 * Return a search result for every document matched
+	 *
+	 * @param scores the matches of every document, cleared afterwards
+	 * @return the results in the order they were found
+	 */
+	protected abstract ArrayList<SearchResult> results(ScoreAccumulator scores);
+
+	/**
+	 * Return a search result for the documents of one page only
+	 *
+	 * @param scores the matches of every document, cleared afterwards
+	 * @param k      maximum number of results
+	 * @param offset number of best results to skip
+	 * @return the results from offset to offset + k, best first
+	 */
+	protected abstract ArrayList<SearchResult> page(ScoreAccumulator scores, int k, int offset);
+
+	/**
+	 * Sorts the results, best first
+	 *
+	 * @param results the results
+	 * @return the same list, sorted
+	 */
+	protected static ArrayList<SearchResult> sorted(ArrayList<SearchResult> results) {
+		Collections.sort(results);
+		return results;
+	}
+
+	/**
+	 * Return one page of the results in sorted order. Only the best offset + k
+	 * results are kept in a heap while the others are skipped, and only those are
+	 * sorted. Results that compare equal keep the order they were found in, as
+	 * with {@link Collections#sort(java.util.List)}.
+	 *
+	 * @param results the results, not sorted
+	 * @param k       maximum number of results
+	 * @param offset  number of best results to skip
+	 * @return the results from offset to offset + k
+	 */
+	public static ArrayList<SearchResult> top(List<SearchResult> results, int k, int offset) {
+		int[] best = ScoreAccumulator.select(results.size(),
+				(int) Math.min(Integer.MAX_VALUE, Math.max(0, (long) k) + Math.max(0, offset)),
+				(a, b) -> results.get(a).compareTo(results.get(b)));
+		ArrayList<SearchResult> page = new ArrayList<SearchResult>();
+		for (int i = Math.max(0, offset); i < best.length; i++) {
+			page.add(results.get(best[i]));
+		}
+		return page;
+	}
+}
@@ -0,0 +1,115 @@
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What every work queue has in common: counting the pending work so
+ * {@link #finish()} can wait for it, shutting down, and running work that
+ * returns a result. Subclasses decide where the work waits and which threads
+ * run it, and call {@link #incrementPending()} before a work request is added
+ * and {@link #decrementPending()} once it is done or dropped.
+ *
+ * @see WorkQueue
+ * @see WorkStealingQueue
+ * @see VirtualThreadQueue
+ */
+public abstract class AbstractWorkQueue {
+
+	/** The default number of threads to use when not specified. */
+	public static final int DEFAULT = 5;
+
+	/**
+	 * work pending
+	 */
+	private final AtomicInteger pending;
+
+	/** Used to signal the queue should be shutdown. */
+	private volatile boolean shutdown;
+
+	/**
+	 * Initializes the queue with no work pending
+	 */
+	protected AbstractWorkQueue() {
+		this.pending = new AtomicInteger();
+		this.shutdown = false;
+	}
+
+	/**
+	 * Adds a work request to the queue. A thread will process this request when
+	 * available.
+	 *
+	 * @param r work request (in the form of a {@link Runnable} object)
+	 */
+	public abstract void execute(Runnable r);
+
+	/**
+	 * Returns the number of worker threads being used by the work queue.
+	 *
+	 * @return number of worker threads
+	 */
+	public abstract int size();
+
+	/**
+	 * Adds a work request that returns a result to the queue.
+	 *
+	 * @param <T>  type of the result
+	 * @param task work request that returns a result
+	 * @return future holding the result once the work is done
+	 */
+	public <T> Future<T> submit(Callable<T> task) {
+		FutureTask<T> future = new FutureTask<T>(task);
+		execute(future);
+		return future;
+	}
+
+	/**
+	 * Increment pending variable, before the work is queued
+	 */
+	protected void incrementPending() {
+		pending.incrementAndGet();
+	}
+
+	/**
+	 * Decrement pending variable, after the work is done
+	 */
+	protected void decrementPending() {
+		if (pending.decrementAndGet() == 0) {
+			synchronized (this) {
+				this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits for all pending work to be finished.
+	 */
+	public synchronized void finish() {
+		try {
+			while (pending.get() > 0) {
+				this.wait();
+			}
+		} catch (InterruptedException e) {
+			System.err.println("interrunpted exception catched!");
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns whether {@link #shutdown()} has been called.
+	 *
+	 * @return true if the queue is shutting down
+	 */
+	protected boolean isShutdown() {
+		return shutdown;
+	}
+
+	/**
+	 * Asks the queue to shutdown. Any unprocessed work will not be finished, but
+	 * threads in-progress will not be interrupted.
+	 */
+	public void shutdown() {
+		// safe to do unsynchronized due to volatile keyword
+		shutdown = true;
+	}
+}
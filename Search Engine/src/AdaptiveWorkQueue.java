@@ -0,0 +1,283 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A work queue that grows and shrinks its pool of worker threads between a
+ * minimum and a maximum size.
+ *
+ * Every work request is timed: how long it waited in the queue, and how much of
+ * its running time was spent on the CPU rather than blocked (for example on a
+ * socket read). A monitor thread looks at these numbers, the age of the oldest
+ * waiting work and the process CPU load every sampling period. The pool grows
+ * while work waits in the queue and there is CPU left, even if no work finished
+ * because every worker is blocked, up to the number of threads that would keep the cores busy
+ * given how much time the work spends blocked. It shrinks while the workers
+ * are mostly idle, or while the CPU is saturated by more threads than needed.
+ */
+public class AdaptiveWorkQueue extends WorkQueue {
+
+	/** The default time between two sizing decisions, in milliseconds. */
+	public static final long DEFAULT_PERIOD = 250;
+
+	/**
+	 * grow when work waited longer than this, in nanoseconds
+	 */
+	private static final long LATENCY_TARGET = 5_000_000L;
+
+	/**
+	 * minimum number of worker threads
+	 */
+	private final int min;
+
+	/**
+	 * maximum number of worker threads
+	 */
+	private final int max;
+
+	/**
+	 * number of available processors
+	 */
+	private final int cores;
+
+	/**
+	 * time between two sizing decisions, in milliseconds
+	 */
+	private final long period;
+
+	/**
+	 * thread cpu time, if supported
+	 */
+	private final ThreadMXBean threadBean;
+
+	/**
+	 * work finished since the last sample
+	 */
+	private final LongAdder finished;
+
+	/**
+	 * nanoseconds work waited in the queue since the last sample
+	 */
+	private final LongAdder waited;
+
+	/**
+	 * nanoseconds work ran since the last sample
+	 */
+	private final LongAdder running;
+
+	/**
+	 * nanoseconds of cpu time work used since the last sample
+	 */
+	private final LongAdder cpu;
+
+	/**
+	 * thread making the sizing decisions
+	 */
+	private final Thread monitor;
+
+	/**
+	 * Starts an unbounded adaptive work queue with the minimum number of threads
+	 *
+	 * @param min minimum number of worker threads
+	 * @param max maximum number of worker threads
+	 */
+	public AdaptiveWorkQueue(int min, int max) {
+		this(min, min, max, 0, Policy.BLOCK, DEFAULT_PERIOD);
+	}
+
+	/**
+	 * Starts an adaptive work queue
+	 *
+	 * @param threads  initial number of worker threads
+	 * @param min      minimum number of worker threads
+	 * @param max      maximum number of worker threads
+	 * @param capacity maximum number of waiting work requests, 0 or less for an
+	 *                 unbounded queue
+	 * @param policy   what to do with new work when the queue is full
+	 * @param period   time between two sizing decisions, in milliseconds
+	 */
+	public AdaptiveWorkQueue(int threads, int min, int max, int capacity, Policy policy, long period) {
+		super(clamp(threads, Math.max(1, min), Math.max(1, Math.max(min, max))), capacity, policy);
+		this.min = Math.max(1, min);
+		this.max = Math.max(this.min, max);
+		this.cores = Runtime.getRuntime().availableProcessors();
+		this.period = Math.max(10, period);
+
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		this.threadBean = bean.isCurrentThreadCpuTimeSupported() ? bean : null;
+		if (threadBean != null && !threadBean.isThreadCpuTimeEnabled()) {
+			threadBean.setThreadCpuTimeEnabled(true);
+		}
+
+		this.finished = new LongAdder();
+		this.waited = new LongAdder();
+		this.running = new LongAdder();
+		this.cpu = new LongAdder();
+
+		this.monitor = new Thread(this::monitor, "AdaptiveWorkQueue-monitor");
+		this.monitor.setDaemon(true);
+		this.monitor.start();
+	}
+
+	/**
+	 * Return the value limited to the range
+	 *
+	 * @param value the value
+	 * @param low   lowest value
+	 * @param high  highest value
+	 * @return value in [low, high]
+	 */
+	private static int clamp(int value, int low, int high) {
+		return Math.max(low, Math.min(high, value));
+	}
+
+	@Override
+	public void execute(Runnable r) {
+		super.execute(new TimedTask(r));
+	}
+
+	@Override
+	public void shutdown() {
+		super.shutdown();
+		monitor.interrupt();
+	}
+
+	/**
+	 * Makes a sizing decision every period until the queue shuts down
+	 */
+	private void monitor() {
+		while (!isShutdown()) {
+			try {
+				Thread.sleep(period);
+			} catch (InterruptedException e) {
+				return;
+			}
+			resize();
+		}
+	}
+
+	/**
+	 * Grows or shrinks the pool from the numbers collected since the last call
+	 */
+	private void resize() {
+		long tasks = finished.sumThenReset();
+		long waitNanos = waited.sumThenReset();
+		long runNanos = running.sumThenReset();
+		long cpuNanos = cpu.sumThenReset();
+		int size = size();
+		int depth = getQueueDepth();
+		double load = processCpuLoad();
+		boolean saturated = load >= 0.95;
+
+		// fraction of running time spent blocked, e.g. waiting for the network
+		double blocked = 0;
+		if (threadBean != null && runNanos > 0) {
+			blocked = Math.max(0, Math.min(0.95, 1 - (double) cpuNanos / runNanos));
+		} else if (tasks == 0 && depth > 0) {
+			// nothing finished to measure, so judge the busy workers by the cpu they use
+			blocked = Math.max(0, Math.min(0.95, 1 - load * cores / size));
+		}
+		// threads needed to keep every core busy given the blocked time
+		int ideal = clamp((int) Math.ceil(cores / (1 - blocked)), min, max);
+		// fraction of the period the workers spent running work
+		double busy = (double) runNanos / (size * period * 1_000_000L);
+		// work still queued counts too, since long work may keep every worker busy
+		boolean waiting = (tasks > 0 && waitNanos / tasks > LATENCY_TARGET) || oldestWait() > LATENCY_TARGET;
+
+		if (depth > 0 && waiting && size < ideal && !saturated) {
+			int grow = Math.min(ideal - size, Math.max(1, size / 2));
+			for (int i = 0; i < grow; i++) {
+				addWorker();
+			}
+		} else if (size > min && ((depth == 0 && busy < 0.5) || (saturated && size > ideal))) {
+			removeWorker();
+		}
+	}
+
+	/**
+	 * Return how long the oldest work in the queue has waited so far
+	 *
+	 * @return nanoseconds waited, or 0 if the queue is empty
+	 */
+	private long oldestWait() {
+		Runnable oldest = peekQueued();
+		if (oldest instanceof TimedTask) {
+			return System.nanoTime() - ((TimedTask) oldest).queued;
+		}
+		return 0;
+	}
+
+	/**
+	 * Return the recent cpu load of the whole process
+	 *
+	 * @return load between 0 and 1, or 0 if unknown
+	 */
+	private static double processCpuLoad() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			double load = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+			return load < 0 ? 0 : load;
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the minimum number of worker threads.
+	 *
+	 * @return minimum number of worker threads
+	 */
+	public int getMinThreads() {
+		return min;
+	}
+
+	/**
+	 * Returns the maximum number of worker threads.
+	 *
+	 * @return maximum number of worker threads
+	 */
+	public int getMaxThreads() {
+		return max;
+	}
+
+	/**
+	 * Work request that records its queue latency, running time and cpu time
+	 */
+	private class TimedTask implements Runnable {
+
+		/**
+		 * the work request
+		 */
+		private final Runnable task;
+
+		/**
+		 * when the work was added, in nanoseconds
+		 */
+		private final long queued;
+
+		/**
+		 * @param task the work request
+		 */
+		public TimedTask(Runnable task) {
+			this.task = task;
+			this.queued = System.nanoTime();
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			long cpuStart = threadBean != null ? threadBean.getCurrentThreadCpuTime() : 0;
+			try {
+				task.run();
+			} finally {
+				long end = System.nanoTime();
+				if (threadBean != null) {
+					cpu.add(threadBean.getCurrentThreadCpuTime() - cpuStart);
+				}
+				waited.add(start - queued);
+				running.add(end - start);
+				finished.increment();
+			}
+		}
+	}
+}
@@ -0,0 +1,1097 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * Fetches many pages at once on a single thread with non-blocking sockets. A
+ * selector thread connects, writes the requests and reads the responses of
+ * every page in flight, using an {@link SSLEngine} for HTTPS. Completed pages
+ * are handed to the caller through futures.
+ *
+ * {@link #fetchPage(URL, int)} follows the same rules as
+ * {@link HtmlFetcher#fetchPage(URL, int)}: redirects are followed up to the
+ * given number of times, and only HTML with a 2xx status is returned, with the
+ * url it was found at.
+ *
+ * Nothing that blocks runs on the selector thread: host names are looked up
+ * and the delegated tasks of TLS handshakes are run by a small pool of task
+ * threads, and futures are completed by a callback thread of their own. A page
+ * counts as in flight until the callbacks attached to its future have run, so
+ * a slow consumer holds the fetcher back instead of letting pages pile up.
+ * Callbacks should not wait for other pages of the same fetcher.
+ *
+ * Responses are parsed as they arrive. Bodies longer than the maximum page size
+ * are cut off, like {@link HtmlFetcher#fetchHTML(URL, int, long,
+ * java.util.function.Function)} does.
+ *
+ * A page fails with a {@link SocketTimeoutException} if connecting, waiting for
+ * the next bytes or the whole request takes too long, and at once if the
+ * {@link HostMonitor} of {@link HttpsFetcher} backs off its host.
+ */
+public class AsyncFetcher implements AutoCloseable {
+
+	/** The default maximum number of pages fetched at once. */
+	public static final int DEFAULT_IN_FLIGHT = 256;
+
+	/**
+	 * bytes read from a socket at once
+	 */
+	private static final int READ_BUFFER = 1 << 14;
+
+	/**
+	 * time between looking for requests past their timeouts, in milliseconds
+	 */
+	private static final long SWEEP = 100;
+
+	/**
+	 * maximum length of the status line and header fields, and of a chunk size
+	 * line or the trailer
+	 */
+	private static final int MAX_HEADER = 1 << 16;
+
+	/**
+	 * number of threads looking up hosts and running TLS tasks
+	 */
+	private static final int TASK_THREADS = 8;
+
+	/**
+	 * maximum number of pages fetched at once
+	 */
+	private final int inFlight;
+
+	/**
+	 * time to wait for a connection to open, in milliseconds, or 0 to wait
+	 * forever
+	 */
+	private final long connectTimeout;
+
+	/**
+	 * time to wait for the next bytes of a response, in milliseconds, or 0 to
+	 * wait forever
+	 */
+	private final long readTimeout;
+
+	/**
+	 * time a whole request may take, in milliseconds, or 0 for no limit
+	 */
+	private final long requestTimeout;
+
+	/**
+	 * maximum size of a body, larger bodies are cut off
+	 */
+	private final long maxBytes;
+
+	/**
+	 * the selector of all sockets
+	 */
+	private final Selector selector;
+
+	/**
+	 * thread running the selector
+	 */
+	private final Thread loop;
+
+	/**
+	 * requests added by other threads, not yet registered with the selector
+	 */
+	private final ConcurrentLinkedQueue<Exchange> added;
+
+	/**
+	 * requests waiting for fewer pages in flight, only used by the selector
+	 * thread
+	 */
+	private final ArrayDeque<Exchange> waiting;
+
+	/**
+	 * work handed back to the selector thread by the task threads
+	 */
+	private final ConcurrentLinkedQueue<Runnable> resumed;
+
+	/**
+	 * number of pages in flight, until the callbacks of their futures have run
+	 */
+	private final AtomicInteger active;
+
+	/**
+	 * looks up hosts and runs the delegated tasks of TLS engines
+	 */
+	private final ThreadPoolExecutor tasks;
+
+	/**
+	 * completes the futures
+	 */
+	private final ThreadPoolExecutor callbacks;
+
+	/**
+	 * creates the engines of HTTPS requests
+	 */
+	private final SSLContext sslContext;
+
+	/**
+	 * true once closed
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Starts a fetcher with the default number of pages in flight
+	 *
+	 * @throws IOException if unable to open a selector
+	 */
+	public AsyncFetcher() throws IOException {
+		this(DEFAULT_IN_FLIGHT);
+	}
+
+	/**
+	 * Starts a fetcher with the default timeouts
+	 *
+	 * @param inFlight maximum number of pages fetched at once
+	 * @throws IOException if unable to open a selector
+	 */
+	public AsyncFetcher(int inFlight) throws IOException {
+		this(inFlight, ConnectionPool.DEFAULT_CONNECT_TIMEOUT, ConnectionPool.DEFAULT_READ_TIMEOUT,
+				HttpsFetcher.DEFAULT_REQUEST_TIMEOUT, HtmlFetcher.DEFAULT_MAX_PAGE_SIZE);
+	}
+
+	/**
+	 * Starts a fetcher
+	 *
+	 * @param inFlight       maximum number of pages fetched at once
+	 * @param connectTimeout time to wait for a connection to open, in
+	 *                       milliseconds, or 0 to wait forever
+	 * @param readTimeout    time to wait for the next bytes of a response, in
+	 *                       milliseconds, or 0 to wait forever
+	 * @param requestTimeout time a whole request may take, in milliseconds, or 0
+	 *                       for no limit
+	 * @param maxBytes       maximum size of a body, larger bodies are cut off
+	 * @throws IOException if unable to open a selector
+	 */
+	public AsyncFetcher(int inFlight, long connectTimeout, long readTimeout, long requestTimeout, long maxBytes)
+			throws IOException {
+		this.inFlight = Math.max(1, inFlight);
+		this.connectTimeout = Math.max(0, connectTimeout);
+		this.readTimeout = Math.max(0, readTimeout);
+		this.requestTimeout = Math.max(0, requestTimeout);
+		this.maxBytes = Math.max(0, maxBytes);
+		this.selector = Selector.open();
+		this.added = new ConcurrentLinkedQueue<Exchange>();
+		this.waiting = new ArrayDeque<Exchange>();
+		this.resumed = new ConcurrentLinkedQueue<Runnable>();
+		this.active = new AtomicInteger();
+		this.closed = false;
+		this.tasks = new ThreadPoolExecutor(TASK_THREADS, TASK_THREADS, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), runnable -> {
+					Thread thread = new Thread(runnable, "AsyncFetcher tasks");
+					thread.setDaemon(true);
+					return thread;
+				});
+		this.tasks.allowCoreThreadTimeOut(true);
+		this.callbacks = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				runnable -> {
+					Thread thread = new Thread(runnable, "AsyncFetcher callbacks");
+					thread.setDaemon(true);
+					return thread;
+				});
+		this.callbacks.allowCoreThreadTimeOut(true);
+
+		SSLContext context;
+		try {
+			context = SSLContext.getInstance("TLS");
+			context.init(null, null, null);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Unable to initialize TLS", e);
+		}
+		this.sslContext = context;
+
+		this.loop = new Thread(this::run, "AsyncFetcher");
+		this.loop.setDaemon(true);
+		this.loop.start();
+	}
+
+	/**
+	 * Fetches the headers and content of the url, in the same form as
+	 * {@link HttpsFetcher#fetchURL(URL)}
+	 *
+	 * @param url the url to fetch
+	 * @return future of the headers, with the lines of the content under the
+	 *         "Content" key
+	 */
+	public CompletableFuture<Map<String, List<String>>> fetchURL(URL url) {
+		CompletableFuture<Map<String, List<String>>> future = new CompletableFuture<>();
+		if (closed) {
+			future.completeExceptionally(new IOException("Fetcher closed"));
+			return future;
+		}
+		try {
+			HttpsFetcher.getHostMonitor().acquire(url.getHost());
+		} catch (HostMonitor.BackoffException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+		added.add(new Exchange(url, future));
+		selector.wakeup();
+		return future;
+	}
+
+	/**
+	 * Fetches the resource at the url. If the status code is 2xx and the content
+	 * type is HTML, completes with the HTML as a single string and the url it was
+	 * found at. Follows redirects if the number of redirects is greater than 0.
+	 * Otherwise completes with {@code null}.
+	 *
+	 * @param url       the url to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @return future of the page, or of {@code null} if the resource is not html
+	 *
+	 * @see HtmlFetcher#fetchPage(URL, int)
+	 */
+	public CompletableFuture<HtmlFetcher.Page> fetchPage(URL url, int redirects) {
+		return fetchURL(url).thenCompose(headers -> {
+			int statusCode = HtmlFetcher.getStatusCode(headers);
+			if (HtmlFetcher.isHTML(headers) && statusCode >= 200 && statusCode < 300) {
+				return CompletableFuture
+						.completedFuture(new HtmlFetcher.Page(url, String.join("\n", headers.get("Content"))));
+			} else if (HtmlFetcher.isRedirect(headers) && redirects > 0) {
+				URL location = HtmlFetcher.getRedirect(url, headers);
+				if (location != null) {
+					return fetchPage(location, redirects - 1);
+				}
+			}
+			return CompletableFuture.completedFuture(null);
+		});
+	}
+
+	/**
+	 * Stops the selector thread. Pages still in flight fail.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		selector.wakeup();
+		try {
+			loop.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		tasks.shutdownNow();
+		// the futures failed by the selector thread are still completed
+		callbacks.shutdown();
+	}
+
+	/**
+	 * Returns the maximum number of pages fetched at once.
+	 *
+	 * @return maximum number of pages in flight
+	 */
+	public int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * The selector loop
+	 */
+	private void run() {
+		long sweep = System.currentTimeMillis();
+		try {
+			while (!closed) {
+				Exchange exchange;
+				while ((exchange = added.poll()) != null) {
+					waiting.add(exchange);
+				}
+				while (active.get() < inFlight && !waiting.isEmpty()) {
+					start(waiting.poll());
+				}
+				Runnable resume;
+				while ((resume = resumed.poll()) != null) {
+					resume.run();
+				}
+
+				selector.select(SWEEP);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					Exchange selected = (Exchange) key.attachment();
+					try {
+						selected.ready(key);
+					} catch (IOException | RuntimeException e) {
+						selected.fail(e);
+					}
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - sweep >= SWEEP) {
+					sweep = now;
+					for (SelectionKey key : selector.keys()) {
+						if (key.isValid()) {
+							((Exchange) key.attachment()).checkTimeouts(now);
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Async fetcher stopped: " + e.getMessage());
+		} finally {
+			IOException closing = new IOException("Fetcher closed");
+			for (SelectionKey key : selector.keys()) {
+				((Exchange) key.attachment()).fail(closing);
+			}
+			for (Exchange exchange : waiting) {
+				HttpsFetcher.getHostMonitor().release(exchange.url.getHost());
+				callbacks.execute(() -> exchange.future.completeExceptionally(closing));
+			}
+			Exchange exchange;
+			while ((exchange = added.poll()) != null) {
+				HttpsFetcher.getHostMonitor().release(exchange.url.getHost());
+				CompletableFuture<Map<String, List<String>>> future = exchange.future;
+				callbacks.execute(() -> future.completeExceptionally(closing));
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// nothing left to release
+			}
+		}
+	}
+
+	/**
+	 * Opens the socket of a request and registers it with the selector
+	 *
+	 * @param exchange the request
+	 */
+	private void start(Exchange exchange) {
+		active.incrementAndGet();
+		try {
+			exchange.open();
+		} catch (IOException | RuntimeException e) {
+			exchange.fail(e);
+		}
+	}
+
+	/**
+	 * Runs blocking work on a task thread, then hands its result back to the
+	 * selector thread
+	 *
+	 * @param exchange the request the work is for, failed if the work cannot
+	 *                 start
+	 * @param work     the blocking work, returning what the selector thread runs
+	 *                 next
+	 */
+	private void offload(Exchange exchange, Supplier<Runnable> work) {
+		try {
+			tasks.execute(() -> {
+				resumed.add(work.get());
+				selector.wakeup();
+			});
+		} catch (RejectedExecutionException e) {
+			exchange.fail(new IOException("Fetcher closed"));
+		}
+	}
+
+	/**
+	 * One request and its response
+	 */
+	private class Exchange {
+
+		/**
+		 * the url to fetch
+		 */
+		private final URL url;
+
+		/**
+		 * completed with the response
+		 */
+		private final CompletableFuture<Map<String, List<String>>> future;
+
+		/**
+		 * the request bytes still to send
+		 */
+		private final ByteBuffer request;
+
+		/**
+		 * the status line and header fields read so far
+		 */
+		private final ByteArrayOutputStream head;
+
+		/**
+		 * the header fields, null until all were read
+		 */
+		private Map<String, List<String>> headers;
+
+		/**
+		 * the body read so far
+		 */
+		private final ByteArrayOutputStream body;
+
+		/**
+		 * the part of the response being read
+		 */
+		private State state;
+
+		/**
+		 * the chunk size line or trailer line read so far
+		 */
+		private final StringBuilder line;
+
+		/**
+		 * length of the current header line, without its line end
+		 */
+		private int lineLength;
+
+		/**
+		 * bytes left in the current chunk or the Content-Length of the body
+		 */
+		private long remaining;
+
+		/**
+		 * the socket
+		 */
+		private SocketChannel channel;
+
+		/**
+		 * the selection key of the socket
+		 */
+		private SelectionKey key;
+
+		/**
+		 * TLS engine, or null for HTTP
+		 */
+		private SSLEngine engine;
+
+		/**
+		 * encrypted bytes to send, ready to be read
+		 */
+		private ByteBuffer netOut;
+
+		/**
+		 * encrypted bytes received, ready to be written
+		 */
+		private ByteBuffer netIn;
+
+		/**
+		 * decrypted or plain bytes received, ready to be written
+		 */
+		private ByteBuffer appIn;
+
+		/**
+		 * true once the future is completed
+		 */
+		private boolean done;
+
+		/**
+		 * when the socket was opened, in milliseconds
+		 */
+		private long started;
+
+		/**
+		 * when bytes were last moved, in milliseconds
+		 */
+		private long lastActivity;
+
+		/**
+		 * true until the connection is open
+		 */
+		private boolean connecting;
+
+		/**
+		 * true while the delegated tasks of the TLS engine run
+		 */
+		private boolean tasking;
+
+		/**
+		 * @param url    the url to fetch
+		 * @param future completed with the response
+		 */
+		private Exchange(URL url, CompletableFuture<Map<String, List<String>>> future) {
+			this.url = url;
+			this.future = future;
+			this.request = ByteBuffer.wrap(HttpsFetcher.getRequest(url, false).getBytes(StandardCharsets.ISO_8859_1));
+			this.head = new ByteArrayOutputStream();
+			this.headers = null;
+			this.body = new ByteArrayOutputStream();
+			this.state = State.HEADERS;
+			this.line = new StringBuilder();
+			this.lineLength = 0;
+			this.remaining = 0;
+			this.done = false;
+		}
+
+		/**
+		 * Starts looking up the host, then connecting
+		 *
+		 * @throws IOException if unable to open a socket
+		 */
+		private void open() throws IOException {
+			String protocol = url.getProtocol();
+			boolean https = protocol != null && protocol.equalsIgnoreCase("https");
+			int port = url.getPort() < 0 ? (https ? 443 : 80) : url.getPort();
+
+			started = System.currentTimeMillis();
+			lastActivity = started;
+			connecting = true;
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			key = channel.register(selector, 0, this);
+
+			if (https) {
+				engine = sslContext.createSSLEngine(url.getHost(), port);
+				engine.setUseClientMode(true);
+				SSLParameters parameters = engine.getSSLParameters();
+				parameters.setEndpointIdentificationAlgorithm("HTTPS");
+				engine.setSSLParameters(parameters);
+				netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+				netOut.flip();
+				netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+				appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+			} else {
+				appIn = ByteBuffer.allocate(READ_BUFFER);
+			}
+
+			String host = url.getHost();
+			offload(this, () -> {
+				InetSocketAddress address = new InetSocketAddress(host, port);
+				return () -> connect(address);
+			});
+		}
+
+		/**
+		 * Starts connecting once the host was looked up
+		 *
+		 * @param address the address of the host, unresolved if not found
+		 */
+		private void connect(InetSocketAddress address) {
+			if (done) {
+				return;
+			}
+			try {
+				if (address.isUnresolved()) {
+					throw new UnknownHostException(url.getHost());
+				}
+				if (channel.connect(address)) {
+					connected();
+				} else {
+					key.interestOps(SelectionKey.OP_CONNECT);
+				}
+			} catch (IOException | RuntimeException e) {
+				fail(e);
+			}
+		}
+
+		/**
+		 * Continues the exchange once the socket is ready
+		 *
+		 * @param key the selection key
+		 * @throws IOException if the exchange fails
+		 */
+		private void ready(SelectionKey key) throws IOException {
+			lastActivity = System.currentTimeMillis();
+			if (key.isConnectable()) {
+				if (!channel.finishConnect()) {
+					return;
+				}
+				connected();
+			} else {
+				pump();
+			}
+		}
+
+		/**
+		 * Starts the TLS handshake if needed and sends the request
+		 *
+		 * @throws IOException if the exchange fails
+		 */
+		private void connected() throws IOException {
+			connecting = false;
+			if (engine != null) {
+				engine.beginHandshake();
+			}
+			pump();
+		}
+
+		/**
+		 * Moves as many bytes as possible without blocking, then waits for the
+		 * socket again
+		 *
+		 * @throws IOException if the exchange fails
+		 */
+		private void pump() throws IOException {
+			if (engine == null) {
+				pumpPlain();
+			} else {
+				pumpTls();
+			}
+		}
+
+		/**
+		 * Moves the bytes of an HTTP exchange
+		 *
+		 * @throws IOException if the exchange fails
+		 */
+		private void pumpPlain() throws IOException {
+			if (request.hasRemaining()) {
+				channel.write(request);
+				if (request.hasRemaining()) {
+					key.interestOps(SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+
+			int read;
+			while ((read = channel.read(appIn)) > 0) {
+				if (receive()) {
+					return;
+				}
+			}
+			if (read < 0) {
+				complete(true);
+			} else {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		/**
+		 * Moves the bytes of an HTTPS exchange through the TLS engine
+		 *
+		 * @throws IOException if the exchange fails
+		 */
+		private void pumpTls() throws IOException {
+			while (!done) {
+				if (!flush()) {
+					key.interestOps(SelectionKey.OP_WRITE);
+					return;
+				}
+
+				SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+				if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+					runTasks();
+					return;
+				} else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+					wrap(ByteBuffer.allocate(0));
+				} else if (status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP
+						|| status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP_AGAIN) {
+					if (!unwrap()) {
+						return;
+					}
+				} else if (request.hasRemaining()) {
+					wrap(request);
+				} else if (!unwrap()) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Runs the delegated tasks of the engine on a task thread, pausing the
+		 * exchange until they are done
+		 */
+		private void runTasks() {
+			tasking = true;
+			key.interestOps(0);
+			offload(this, () -> {
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+				return () -> {
+					tasking = false;
+					if (!done) {
+						try {
+							pump();
+						} catch (IOException | RuntimeException e) {
+							fail(e);
+						}
+					}
+				};
+			});
+		}
+
+		/**
+		 * Sends the pending encrypted bytes
+		 *
+		 * @return true if every pending byte was sent
+		 * @throws IOException if unable to write
+		 */
+		private boolean flush() throws IOException {
+			if (netOut.hasRemaining()) {
+				channel.write(netOut);
+			}
+			return !netOut.hasRemaining();
+		}
+
+		/**
+		 * Encrypts the bytes into the pending encrypted bytes
+		 *
+		 * @param source the bytes to encrypt
+		 * @throws SSLException if the engine fails
+		 */
+		private void wrap(ByteBuffer source) throws SSLException {
+			netOut.compact();
+			SSLEngineResult result = engine.wrap(source, netOut);
+			netOut.flip();
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				netOut = grow(netOut, engine.getSession().getPacketBufferSize(), true);
+			} else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				throw new SSLException("TLS connection closed while sending to " + url.getHost());
+			}
+		}
+
+		/**
+		 * Decrypts received bytes, reading from the socket if more are needed
+		 *
+		 * @return false if waiting for the socket or the exchange is done
+		 * @throws IOException if the exchange fails
+		 */
+		private boolean unwrap() throws IOException {
+			netIn.flip();
+			SSLEngineResult result = engine.unwrap(netIn, appIn);
+			netIn.compact();
+
+			switch (result.getStatus()) {
+			case OK:
+				if (appIn.position() > 0 && receive()) {
+					return false;
+				}
+				return true;
+			case BUFFER_OVERFLOW:
+				appIn = grow(appIn, engine.getSession().getApplicationBufferSize(), false);
+				return true;
+			case BUFFER_UNDERFLOW:
+				if (netIn.remaining() < engine.getSession().getPacketBufferSize()) {
+					netIn = grow(netIn, engine.getSession().getPacketBufferSize(), false);
+				}
+				int read = channel.read(netIn);
+				if (read < 0) {
+					complete(true);
+					return false;
+				}
+				if (read == 0) {
+					key.interestOps(SelectionKey.OP_READ);
+					return false;
+				}
+				return true;
+			case CLOSED:
+			default:
+				complete(true);
+				return false;
+			}
+		}
+
+		/**
+		 * Return a larger buffer with the same content
+		 *
+		 * @param buffer   the buffer, in write mode unless readMode
+		 * @param minimum  extra room needed
+		 * @param readMode true if the buffer is ready to be read
+		 * @return the larger buffer, in the same mode
+		 */
+		private ByteBuffer grow(ByteBuffer buffer, int minimum, boolean readMode) {
+			ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() + minimum);
+			if (!readMode) {
+				buffer.flip();
+			}
+			larger.put(buffer);
+			if (readMode) {
+				larger.flip();
+			}
+			return larger;
+		}
+
+		/**
+		 * Parses the received bytes
+		 *
+		 * @return true if the exchange is done
+		 * @throws IOException if the response is not valid
+		 */
+		private boolean receive() throws IOException {
+			appIn.flip();
+			try {
+				while (appIn.hasRemaining() && state != State.DONE) {
+					switch (state) {
+					case HEADERS:
+						readHead();
+						break;
+					case SIZE:
+					case TRAILER:
+						readLine();
+						break;
+					case CHUNK:
+					case LENGTH:
+					case UNTIL_CLOSE:
+						readBody();
+						break;
+					default:
+						break;
+					}
+				}
+			} finally {
+				appIn.clear();
+			}
+			if (state == State.DONE) {
+				complete(false);
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Reads the status line and header fields up to the empty line ending them,
+		 * then decides how the end of the body is marked
+		 *
+		 * @throws IOException if the header fields are too long
+		 */
+		private void readHead() throws IOException {
+			while (appIn.hasRemaining()) {
+				byte b = appIn.get();
+				head.write(b);
+				if (head.size() > MAX_HEADER) {
+					throw new IOException("Header fields of " + url.getHost() + " too long");
+				}
+				if (b == '\n') {
+					if (lineLength == 0 && head.size() > 2) {
+						startBody();
+						return;
+					}
+					lineLength = 0;
+				} else if (b != '\r') {
+					lineLength++;
+				}
+			}
+		}
+
+		/**
+		 * Parses the header fields and moves on to the body, following the same
+		 * rules as the blocking fetcher
+		 *
+		 * @throws IOException if the status line is missing
+		 */
+		private void startBody() throws IOException {
+			InputStream in = new ByteArrayInputStream(head.toByteArray());
+			String status = HttpsFetcher.readLine(in);
+			if (status == null || status.isBlank()) {
+				throw new IOException("Missing status line from " + url.getHost());
+			}
+			headers = HttpsFetcher.readHeaderFields(in, status);
+
+			int code = HtmlFetcher.getStatusCode(headers);
+			String encoding = HttpsFetcher.getHeader(headers, "Transfer-Encoding");
+			String length = HttpsFetcher.getHeader(headers, "Content-Length");
+			state = State.UNTIL_CLOSE;
+			if (code == 204 || code == 304 || (code >= 100 && code < 200)) {
+				state = State.DONE;
+			} else if (encoding != null && encoding.toLowerCase().contains("chunked")) {
+				state = State.SIZE;
+			} else if (length != null) {
+				try {
+					remaining = Long.parseLong(length.trim());
+					state = remaining > 0 ? State.LENGTH : State.DONE;
+				} catch (NumberFormatException e) {
+					// read until the server closes the connection
+				}
+			}
+		}
+
+		/**
+		 * Reads a chunk size line, or a line of the trailer after the last chunk
+		 *
+		 * @throws IOException if the line is too long or the size is not valid
+		 */
+		private void readLine() throws IOException {
+			while (appIn.hasRemaining()) {
+				char c = (char) (appIn.get() & 0xff);
+				if (c != '\n') {
+					line.append(c);
+					if (line.length() > MAX_HEADER) {
+						throw new IOException("Chunked body of " + url.getHost() + " not valid");
+					}
+					continue;
+				}
+				int end = line.length();
+				if (end > 0 && line.charAt(end - 1) == '\r') {
+					end--;
+				}
+				String text = line.substring(0, end);
+				line.setLength(0);
+				if (state == State.TRAILER) {
+					if (text.isEmpty()) {
+						state = State.DONE;
+					}
+				} else if (!text.isEmpty()) {
+					// empty lines are the line ends of the previous chunks
+					remaining = ChunkedInputStream.parseSize(text);
+					state = remaining == 0 ? State.TRAILER : State.CHUNK;
+				}
+				return;
+			}
+		}
+
+		/**
+		 * Copies bytes of the body, up to the end of the chunk or body, and cuts the
+		 * body off at the maximum size
+		 */
+		private void readBody() {
+			int length = appIn.remaining();
+			if (state != State.UNTIL_CLOSE) {
+				length = (int) Math.min(length, remaining);
+			}
+			int kept = (int) Math.max(0, Math.min(length, maxBytes - body.size()));
+			body.write(appIn.array(), appIn.arrayOffset() + appIn.position(), kept);
+			appIn.position(appIn.position() + length);
+			remaining -= length;
+
+			if (body.size() >= maxBytes) {
+				state = State.DONE;
+			} else if (state == State.CHUNK && remaining == 0) {
+				state = State.SIZE;
+			} else if (state == State.LENGTH && remaining == 0) {
+				state = State.DONE;
+			}
+		}
+
+		/**
+		 * Completes the exchange with the response read
+		 *
+		 * @param eof true if the server closed the connection
+		 * @throws IOException if the response is truncated at the end of the stream
+		 */
+		private void complete(boolean eof) throws IOException {
+			if (eof && state != State.DONE && state != State.UNTIL_CLOSE) {
+				if (head.size() == 0) {
+					throw new EOFException("Connection closed by " + url.getHost());
+				}
+				throw new EOFException("Truncated response from " + url.getHost());
+			}
+			headers.put("Content", HttpsFetcher.getContent(body.toByteArray()));
+			finish(true);
+			deliver(headers, null);
+		}
+
+		/**
+		 * Fails the exchange
+		 *
+		 * @param e the reason
+		 */
+		private void fail(Exception e) {
+			if (!done) {
+				finish(false);
+				deliver(null, e);
+			}
+		}
+
+		/**
+		 * Fails the exchange if it is past one of its timeouts
+		 *
+		 * @param now the time, in milliseconds
+		 */
+		private void checkTimeouts(long now) {
+			if (connecting && connectTimeout > 0 && now - started > connectTimeout) {
+				fail(new SocketTimeoutException("Connecting to " + url.getHost() + " timed out"));
+			} else if (!connecting && !tasking && readTimeout > 0 && now - lastActivity > readTimeout) {
+				fail(new SocketTimeoutException("Reading from " + url.getHost() + " timed out"));
+			} else if (requestTimeout > 0 && now - started > requestTimeout) {
+				fail(new SocketTimeoutException(
+						"Request to " + url.getHost() + " took longer than " + requestTimeout + " ms"));
+			}
+		}
+
+		/**
+		 * Closes the socket, records the request with the host monitor, or gives it
+		 * back if it was never sent, and lets the next waiting request start
+		 *
+		 * @param success false if the request failed
+		 */
+		private void finish(boolean success) {
+			done = true;
+			if (started > 0) {
+				HttpsFetcher.getHostMonitor().record(url.getHost(), System.currentTimeMillis() - started, success);
+			} else {
+				HttpsFetcher.getHostMonitor().release(url.getHost());
+			}
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+			} catch (IOException e) {
+				// already unusable
+			}
+		}
+
+		/**
+		 * Completes the future on the callback thread, then lets the next waiting
+		 * request start
+		 *
+		 * @param response the response, or null if failed
+		 * @param error    the reason the request failed, or null
+		 */
+		private void deliver(Map<String, List<String>> response, Exception error) {
+			Runnable delivery = () -> {
+				try {
+					if (error != null) {
+						future.completeExceptionally(error);
+					} else {
+						future.complete(response);
+					}
+				} finally {
+					active.decrementAndGet();
+					selector.wakeup();
+				}
+			};
+			try {
+				callbacks.execute(delivery);
+			} catch (RejectedExecutionException e) {
+				delivery.run();
+			}
+		}
+	}
+
+	/**
+	 * The part of a response being read
+	 */
+	private enum State {
+		/** the status line and header fields */
+		HEADERS,
+		/** the size line of the next chunk */
+		SIZE,
+		/** the bytes of a chunk */
+		CHUNK,
+		/** the trailer after the last chunk */
+		TRAILER,
+		/** a body with a Content-Length */
+		LENGTH,
+		/** a body ending when the server closes the connection */
+		UNTIL_CLOSE,
+		/** the whole response */
+		DONE
+	}
+}
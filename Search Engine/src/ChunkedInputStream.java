@@ -0,0 +1,133 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes an HTTP/1.1 chunked body as it is read. Every chunk is its size in
+ * hexadecimal on a line of its own, followed by that many bytes and a line end;
+ * a chunk of size 0 and an optional trailer end the body. Closing this stream
+ * does not close the other stream, so the connection under it can be reused.
+ */
+public class ChunkedInputStream extends InputStream {
+
+	/**
+	 * the stream to read from
+	 */
+	private final InputStream in;
+
+	/**
+	 * bytes left in the current chunk
+	 */
+	private int remaining;
+
+	/**
+	 * true once the last chunk and the trailer were read
+	 */
+	private boolean finished;
+
+	/**
+	 * @param in the stream to read from, positioned at the first chunk size
+	 */
+	public ChunkedInputStream(InputStream in) {
+		this.in = in;
+		this.remaining = 0;
+		this.finished = false;
+	}
+
+	/**
+	 * Reads the size of the next chunk, and the trailer after the last one
+	 *
+	 * @return false if the body is finished
+	 * @throws IOException if the stream ends or the size is not valid
+	 */
+	private boolean nextChunk() throws IOException {
+		if (finished) {
+			return false;
+		}
+		while (remaining == 0) {
+			String line = HttpsFetcher.readLine(in);
+			if (line == null) {
+				throw new EOFException("Truncated chunked body");
+			}
+			if (line.isEmpty()) {
+				// line end of the previous chunk
+				continue;
+			}
+			remaining = parseSize(line);
+			if (remaining == 0) {
+				// skip the trailer
+				String trailer;
+				while ((trailer = HttpsFetcher.readLine(in)) != null && !trailer.isEmpty()) {
+					continue;
+				}
+				finished = true;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return the size of a chunk from its size line, ignoring any chunk extension
+	 *
+	 * @param line the size line, without its line end
+	 * @return the size of the chunk
+	 * @throws IOException if the size is not valid
+	 */
+	static int parseSize(String line) throws IOException {
+		int semicolon = line.indexOf(';');
+		int size;
+		try {
+			size = Integer.parseInt((semicolon < 0 ? line : line.substring(0, semicolon)).trim(), 16);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid chunk size: " + line);
+		}
+		if (size < 0) {
+			throw new IOException("Invalid chunk size: " + line);
+		}
+		return size;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!nextChunk()) {
+			return -1;
+		}
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException("Truncated chunk");
+		}
+		remaining--;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!nextChunk()) {
+			return -1;
+		}
+		int read = in.read(b, off, Math.min(len, remaining));
+		if (read < 0) {
+			throw new EOFException("Truncated chunk");
+		}
+		remaining -= read;
+		return read;
+	}
+
+	/**
+	 * Returns whether the whole body was read.
+	 *
+	 * @return true once the last chunk was read
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	@Override
+	public void close() {
+		// leave the other stream open
+	}
+}
@@ -0,0 +1,465 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Keeps HTTP/1.1 connections open between requests so pages of the same host
+ * can be fetched without a new TCP connection and TLS handshake every time.
+ *
+ * Connections are kept per scheme, host and port. At most a fixed number of
+ * connections are open to one host at the same time; asking for another one
+ * waits until a connection is given back. Idle connections are closed after a
+ * timeout. HTTPS connections share one TLS session cache, so even a new
+ * connection to a known host resumes its session instead of a full handshake.
+ *
+ * Every host has a lock of its own, so threads fetching from different hosts
+ * never wait for each other, and a connection given back only wakes a thread
+ * waiting for the same host. Sockets are closed after the lock is released.
+ */
+public class ConnectionPool {
+
+	/** The default maximum number of connections to one host. */
+	public static final int DEFAULT_MAX_PER_HOST = 6;
+
+	/** The default time an idle connection is kept open, in milliseconds. */
+	public static final long DEFAULT_IDLE_TIMEOUT = 15_000;
+
+	/** The default time to wait for a connection to open, in milliseconds. */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10_000;
+
+	/** The default time to wait for the next bytes of a response, in milliseconds. */
+	public static final int DEFAULT_READ_TIMEOUT = 10_000;
+
+	/**
+	 * maximum number of connections to one host
+	 */
+	private final int maxPerHost;
+
+	/**
+	 * time an idle connection is kept open, in milliseconds
+	 */
+	private final long idleTimeout;
+
+	/**
+	 * time to wait for a connection to open, in milliseconds, or 0 to wait
+	 * forever
+	 */
+	private final int connectTimeout;
+
+	/**
+	 * time to wait for the next bytes of a response, in milliseconds, or 0 to
+	 * wait forever
+	 */
+	private final int readTimeout;
+
+	/**
+	 * connections of every host, each guarded by the lock of its host
+	 */
+	private final ConcurrentHashMap<String, Host> hosts;
+
+	/**
+	 * creates the TLS sockets, sharing one session cache
+	 */
+	private final SSLSocketFactory sslFactory;
+
+	/**
+	 * Initializes a pool with the default limits
+	 */
+	public ConnectionPool() {
+		this(DEFAULT_MAX_PER_HOST, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * Initializes a pool with the default timeouts
+	 *
+	 * @param maxPerHost  maximum number of connections to one host
+	 * @param idleTimeout time an idle connection is kept open, in milliseconds
+	 */
+	public ConnectionPool(int maxPerHost, long idleTimeout) {
+		this(maxPerHost, idleTimeout, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+	}
+
+	/**
+	 * Initializes a pool
+	 *
+	 * @param maxPerHost     maximum number of connections to one host
+	 * @param idleTimeout    time an idle connection is kept open, in milliseconds
+	 * @param connectTimeout time to wait for a connection to open, in
+	 *                       milliseconds, or 0 to wait forever
+	 * @param readTimeout    time to wait for the next bytes of a response, in
+	 *                       milliseconds, or 0 to wait forever
+	 */
+	public ConnectionPool(int maxPerHost, long idleTimeout, int connectTimeout, int readTimeout) {
+		this.maxPerHost = Math.max(1, maxPerHost);
+		this.idleTimeout = idleTimeout;
+		this.connectTimeout = Math.max(0, connectTimeout);
+		this.readTimeout = Math.max(0, readTimeout);
+		this.hosts = new ConcurrentHashMap<String, Host>();
+
+		SSLSocketFactory factory;
+		try {
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, null, null);
+			factory = context.getSocketFactory();
+		} catch (GeneralSecurityException e) {
+			factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+		}
+		this.sslFactory = factory;
+	}
+
+	/**
+	 * Return the key of the host of the url
+	 *
+	 * @param url the url
+	 * @return scheme, host and port
+	 */
+	private static String key(URL url) {
+		String protocol = url.getProtocol() == null ? "http" : url.getProtocol().toLowerCase();
+		int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+		return protocol + "://" + url.getHost().toLowerCase() + ":" + port;
+	}
+
+	/**
+	 * Return an open connection to the host of the url, reusing an idle one if
+	 * possible. Waits while the host already has the maximum number of
+	 * connections in use.
+	 *
+	 * @param url the url to connect
+	 * @return a connection to give back with {@link #release(Connection)} or
+	 *         {@link #discard(Connection)}
+	 * @throws IOException if unable to connect
+	 */
+	public Connection acquire(URL url) throws IOException {
+		String key = key(url);
+		Host host = hosts.computeIfAbsent(key, k -> new Host());
+		List<Connection> expired = new ArrayList<Connection>();
+		host.lock.lock();
+		try {
+			while (true) {
+				Connection idle = host.takeIdle(idleTimeout, expired);
+				if (idle != null) {
+					return idle;
+				}
+				if (host.open < maxPerHost) {
+					host.open++;
+					break;
+				}
+				host.available.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a connection to " + key);
+		} finally {
+			if (!expired.isEmpty()) {
+				// the connections removed may let others in
+				host.available.signalAll();
+			}
+			host.lock.unlock();
+			for (Connection connection : expired) {
+				connection.close();
+			}
+		}
+
+		try {
+			return new Connection(key, openSocket(url), false);
+		} catch (IOException | RuntimeException e) {
+			closed(key);
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a socket to the host of the url, within the connect timeout. Reads of
+	 * the socket fail after the read timeout.
+	 *
+	 * @param url the url to connect
+	 * @return the socket
+	 * @throws IOException if unable to connect
+	 */
+	protected Socket openSocket(URL url) throws IOException {
+		String protocol = url.getProtocol();
+		boolean https = protocol != null && protocol.equalsIgnoreCase("https");
+		int port = url.getPort() < 0 ? (https ? 443 : 80) : url.getPort();
+
+		Socket socket = SocketFactory.getDefault().createSocket();
+		try {
+			socket.connect(new InetSocketAddress(url.getHost(), port), connectTimeout);
+			socket.setSoTimeout(readTimeout);
+			return https ? sslFactory.createSocket(socket, url.getHost(), port, true) : socket;
+		} catch (IOException | RuntimeException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives back a connection whose response was read completely, so it can be
+	 * used for the next request to the same host
+	 *
+	 * @param connection the connection
+	 */
+	public void release(Connection connection) {
+		Host host = hosts.get(connection.key);
+		host.lock.lock();
+		try {
+			connection.lastUsed = System.currentTimeMillis();
+			connection.reused = true;
+			host.idle.addFirst(connection);
+			host.available.signal();
+		} finally {
+			host.lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes a connection that cannot be used again
+	 *
+	 * @param connection the connection
+	 */
+	public void discard(Connection connection) {
+		connection.close();
+		closed(connection.key);
+	}
+
+	/**
+	 * Counts a connection of the host as closed
+	 *
+	 * @param key the host
+	 */
+	private void closed(String key) {
+		Host host = hosts.get(key);
+		host.lock.lock();
+		try {
+			host.open--;
+			host.available.signal();
+		} finally {
+			host.lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes every idle connection
+	 */
+	public void close() {
+		List<Connection> idle = new ArrayList<Connection>();
+		for (Host host : hosts.values()) {
+			host.lock.lock();
+			try {
+				idle.addAll(host.idle);
+				host.open -= host.idle.size();
+				host.idle.clear();
+				host.available.signalAll();
+			} finally {
+				host.lock.unlock();
+			}
+		}
+		for (Connection connection : idle) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Returns the maximum number of connections to one host.
+	 *
+	 * @return maximum number of connections to one host
+	 */
+	public int getMaxPerHost() {
+		return maxPerHost;
+	}
+
+	/**
+	 * Returns the time to wait for a connection to open.
+	 *
+	 * @return the connect timeout, in milliseconds, or 0 to wait forever
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Returns the time to wait for the next bytes of a response.
+	 *
+	 * @return the read timeout, in milliseconds, or 0 to wait forever
+	 */
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * Open and idle connections of one host, guarded by its lock
+	 */
+	private static class Host {
+
+		/**
+		 * guards the connections of the host
+		 */
+		private final ReentrantLock lock = new ReentrantLock();
+
+		/**
+		 * signalled when a connection of the host is given back or closed
+		 */
+		private final Condition available = lock.newCondition();
+
+		/**
+		 * idle connections, most recently used first
+		 */
+		private final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+
+		/**
+		 * number of open connections, idle or in use
+		 */
+		private int open = 0;
+
+		/**
+		 * Return the most recently used idle connection, removing the ones idle for
+		 * too long. Must be called with the lock held.
+		 *
+		 * @param idleTimeout time an idle connection is kept open, in milliseconds
+		 * @param expired     gets the connections removed, to close once the lock
+		 *                    is released
+		 * @return a connection, or null if none is idle
+		 */
+		private Connection takeIdle(long idleTimeout, List<Connection> expired) {
+			long now = System.currentTimeMillis();
+			Iterator<Connection> iterator = idle.descendingIterator();
+			while (iterator.hasNext()) {
+				Connection connection = iterator.next();
+				if (now - connection.lastUsed > idleTimeout || connection.socket.isClosed()) {
+					expired.add(connection);
+					iterator.remove();
+					open--;
+				}
+			}
+			return idle.pollFirst();
+		}
+	}
+
+	/**
+	 * An open connection with buffered streams
+	 */
+	public static class Connection {
+
+		/**
+		 * the host of the connection
+		 */
+		private final String key;
+
+		/**
+		 * the socket
+		 */
+		private final Socket socket;
+
+		/**
+		 * buffered input of the socket
+		 */
+		private final InputStream input;
+
+		/**
+		 * buffered output of the socket
+		 */
+		private final OutputStream output;
+
+		/**
+		 * when the connection was given back, in milliseconds
+		 */
+		private long lastUsed;
+
+		/**
+		 * true if the connection was used for an earlier request
+		 */
+		private boolean reused;
+
+		/**
+		 * true if closed by {@link #abort()}
+		 */
+		private volatile boolean aborted;
+
+		/**
+		 * @param key    the host of the connection
+		 * @param socket the socket
+		 * @param reused true if the connection was used for an earlier request
+		 * @throws IOException if unable to get the streams of the socket
+		 */
+		private Connection(String key, Socket socket, boolean reused) throws IOException {
+			this.key = key;
+			this.socket = socket;
+			this.input = new BufferedInputStream(socket.getInputStream(), 1 << 14);
+			this.output = new BufferedOutputStream(socket.getOutputStream(), 1 << 10);
+			this.reused = reused;
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return buffered input of the socket
+		 */
+		public InputStream getInputStream() {
+			return input;
+		}
+
+		/**
+		 * @return buffered output of the socket
+		 */
+		public OutputStream getOutputStream() {
+			return output;
+		}
+
+		/**
+		 * @return the socket
+		 */
+		public Socket getSocket() {
+			return socket;
+		}
+
+		/**
+		 * @return true if the connection was used for an earlier request, so the
+		 *         server may have closed it meanwhile
+		 */
+		public boolean isReused() {
+			return reused;
+		}
+
+		/**
+		 * Closes the socket from another thread, so a request taking too long
+		 * fails
+		 */
+		public void abort() {
+			aborted = true;
+			close();
+		}
+
+		/**
+		 * @return true if the connection was closed by {@link #abort()}
+		 */
+		public boolean isAborted() {
+			return aborted;
+		}
+
+		/**
+		 * Closes the socket, ignoring errors
+		 */
+		private void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already unusable
+			}
+		}
+	}
+}
@@ -0,0 +1,579 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Saves the state of a crawl while it runs, so a crawl that dies can continue
+ * where it stopped without fetching the pages it finished again.
+ *
+ * The state is a snapshot plus a log. The snapshot has the frontier, the urls
+ * admitted and not finished, the pages of the {@link DuplicateDetector} if
+ * there is one, and the index as an {@link IndexSegment}. The log is appended
+ * to after the snapshot: every url admitted, every page finished with its
+ * stemmed words and fingerprint, and every url dropped. Now and then a new snapshot is
+ * taken and the log starts over. The snapshot and log of a generation are only
+ * used once the CURRENT file names that generation, so a crash while taking a
+ * snapshot leaves the one before.
+ *
+ * Taking a snapshot waits until no page is being finished; finishing a page
+ * (adding its links, adding it to the index and logging it) is done in
+ * {@link #finish(URL, List, DuplicateDetector.Fingerprint, Runnable)}. Pages only wait while the state is
+ * copied: the frontier is copied to memory, the index frozen and the log
+ * switched, and the copies are written after pages may be finished again. The
+ * lock is fair, so a snapshot waiting for it is not passed by later pages. The
+ * files of a snapshot are forced to disk before CURRENT names them.
+ */
+public class CrawlCheckpoint {
+
+	/** The default time between two snapshots, in milliseconds. */
+	public static final long DEFAULT_INTERVAL = 60_000;
+
+	/**
+	 * log record of a url admitted to the crawl
+	 */
+	private static final byte SEEN = 1;
+
+	/**
+	 * log record of a page finished, with its words and, if it was kept by the
+	 * duplicate detector, its fingerprint
+	 */
+	private static final byte DONE = 2;
+
+	/**
+	 * log record of a url admitted and then dropped, giving back its budget
+	 */
+	private static final byte DROPPED = 3;
+
+	/**
+	 * directory of the snapshots and logs
+	 */
+	private final Path directory;
+
+	/**
+	 * time between two snapshots, in milliseconds
+	 */
+	private final long interval;
+
+	/**
+	 * taken for reading to finish a page, and for writing to take a snapshot; a
+	 * page finished may take it again to log its links
+	 */
+	private final ReentrantReadWriteLock lock;
+
+	/**
+	 * held while taking a snapshot, so only one is taken at a time
+	 */
+	private final Object snapshotLock;
+
+	/**
+	 * urls admitted and not finished, by normalized url, guarded by this
+	 * checkpoint
+	 */
+	private final LinkedHashMap<String, URL> pending;
+
+	/**
+	 * takes the snapshots
+	 */
+	private final ScheduledThreadPoolExecutor timer;
+
+	/**
+	 * the frontier of the crawl
+	 */
+	private volatile UrlFrontier frontier;
+
+	/**
+	 * the index of the crawl
+	 */
+	private volatile ThreadSafeInvertedIndex index;
+
+	/**
+	 * the duplicate detector of the crawl, or null
+	 */
+	private volatile DuplicateDetector duplicates;
+
+	/**
+	 * the generation of the snapshot and log in use
+	 */
+	private int generation;
+
+	/**
+	 * the generation CURRENT names, older than the one in use while a snapshot is
+	 * written or after writing one failed; only used while taking a snapshot
+	 */
+	private int saved;
+
+	/**
+	 * the log of the generation in use, or null before the crawl starts, guarded
+	 * by this checkpoint
+	 */
+	private DataOutputStream log;
+
+	/**
+	 * Initializes a checkpoint in the directory, creating it if needed
+	 *
+	 * @param directory directory of the snapshots and logs
+	 * @param interval  time between two snapshots, in milliseconds
+	 * @throws IOException if unable to create the directory
+	 */
+	public CrawlCheckpoint(Path directory, long interval) throws IOException {
+		Files.createDirectories(directory);
+		this.directory = directory;
+		this.interval = Math.max(1, interval);
+		this.lock = new ReentrantReadWriteLock(true);
+		this.snapshotLock = new Object();
+		this.pending = new LinkedHashMap<String, URL>();
+		this.timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "CrawlCheckpoint");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.generation = 0;
+		this.saved = 0;
+		this.log = null;
+	}
+
+	/**
+	 * Reads the last snapshot and replays its log, adding the pages finished to
+	 * the index and the pages kept to the duplicate detector
+	 *
+	 * @param target   the index to add the pages finished to
+	 * @param detector the duplicate detector to add the pages kept to, or null
+	 * @return the frontier of the crawl, or null if there is no checkpoint
+	 * @throws IOException if unable to read the snapshot
+	 */
+	public UrlFrontier restore(ThreadSafeInvertedIndex target, DuplicateDetector detector) throws IOException {
+		int current;
+		try {
+			current = Integer.parseInt(Files.readString(directory.resolve("CURRENT"), StandardCharsets.UTF_8).trim());
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (NumberFormatException e) {
+			throw new IOException("Broken checkpoint: " + directory.resolve("CURRENT"));
+		}
+
+		UrlFrontier restored;
+		synchronized (this) {
+			pending.clear();
+			try (DataInputStream in = open(snapshotFile(current))) {
+				restored = UrlFrontier.read(in);
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					URL url = new URL(in.readUTF());
+					pending.put(UrlFrontier.normalize(url), url);
+				}
+				// a crawl saved without a detector has no pages for it
+				if (in.readBoolean() && detector != null) {
+					detector.read(in);
+				}
+			}
+		}
+
+		// the index of the snapshot, then the pages finished after it
+		InvertedIndex pages = new InvertedIndex();
+		IndexSegment segment = IndexSegment.open(segmentFile(current));
+		for (String word : segment.getWordSet()) {
+			for (String location : segment.getPathSet(word)) {
+				for (int position : segment.getPositionSet(word, location)) {
+					pages.add(word, location, position);
+				}
+			}
+		}
+		int replayed = replay(logFile(current), restored, pages, detector);
+		target.addAll(pages);
+
+		synchronized (this) {
+			System.out.println("Resuming crawl: " + restored.size() + " urls seen, " + pending.size()
+					+ " to fetch, " + replayed + " log records replayed");
+			generation = current;
+		}
+		synchronized (snapshotLock) {
+			saved = current;
+		}
+		return restored;
+	}
+
+	/**
+	 * Replays a log on top of its snapshot. A record cut off by a crash ends the
+	 * log.
+	 *
+	 * @param file     the log
+	 * @param restored the frontier of the snapshot
+	 * @param pages    the index to add the pages finished to
+	 * @param detector the duplicate detector to add the pages kept to, or null
+	 * @return the number of records replayed
+	 * @throws IOException if unable to read the log
+	 */
+	private synchronized int replay(Path file, UrlFrontier restored, InvertedIndex pages, DuplicateDetector detector)
+			throws IOException {
+		int records = 0;
+		try (DataInputStream in = open(file)) {
+			while (true) {
+				int type;
+				URL url;
+				String[] words = null;
+				boolean kept = false;
+				long exactHash = 0;
+				long simHash = 0;
+				try {
+					type = in.read();
+					if (type < 0) {
+						break;
+					}
+					url = new URL(in.readUTF());
+					if (type == DONE) {
+						words = new String[in.readInt()];
+						for (int i = 0; i < words.length; i++) {
+							words[i] = in.readUTF();
+						}
+						kept = in.readBoolean();
+						if (kept) {
+							exactHash = in.readLong();
+							simHash = in.readLong();
+						}
+					}
+				} catch (IOException e) {
+					// a record cut off by the crash
+					break;
+				}
+
+				String key = UrlFrontier.normalize(url);
+				if (type == SEEN) {
+					restored.offer(url);
+					pending.put(key, url);
+				} else if (type == DONE) {
+					pending.remove(key);
+					String location = url.toString();
+					for (int i = 0; i < words.length; i++) {
+						pages.add(words[i], location, i + 1);
+					}
+					if (kept && detector != null) {
+						detector.keep(location, exactHash, simHash);
+					}
+				} else if (type == DROPPED) {
+					pending.remove(key);
+					restored.refund();
+				} else {
+					break;
+				}
+				records++;
+			}
+		} catch (NoSuchFileException e) {
+			// the crawl died before the log was created
+		}
+		return records;
+	}
+
+	/**
+	 * Starts saving the crawl: takes a snapshot at once and then every interval
+	 *
+	 * @param crawlFrontier the frontier of the crawl
+	 * @param crawlIndex    the index of the crawl
+	 * @param detector      the duplicate detector of the crawl, or null
+	 * @throws IOException if unable to take the snapshot
+	 */
+	public void start(UrlFrontier crawlFrontier, ThreadSafeInvertedIndex crawlIndex, DuplicateDetector detector)
+			throws IOException {
+		this.frontier = crawlFrontier;
+		this.index = crawlIndex;
+		this.duplicates = detector;
+		snapshot();
+		timer.scheduleWithFixedDelay(() -> {
+			try {
+				snapshot();
+			} catch (IOException e) {
+				System.err.println("Unable to save the crawl: " + e.getMessage());
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Return the urls admitted and not finished when the checkpoint was restored
+	 *
+	 * @return the urls, oldest first
+	 */
+	public synchronized List<URL> getPending() {
+		return new ArrayList<URL>(pending.values());
+	}
+
+	/**
+	 * Logs a url admitted to the crawl, right after the frontier admitted it
+	 *
+	 * @param url the url
+	 */
+	public void seen(URL url) {
+		// the read lock is reentrant, so this may run while finishing a page
+		lock.readLock().lock();
+		try {
+			synchronized (this) {
+				pending.put(UrlFrontier.normalize(url), url);
+				append(SEEN, url, null, null);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Finishes a page: applies its changes to the crawl, adding its links and
+	 * adding it to the index, then logs it, with no snapshot in between
+	 *
+	 * @param url         the url of the page
+	 * @param words       the stemmed words of the page in order, the first at
+	 *                    position 1, or empty if the page failed
+	 * @param fingerprint the fingerprint of the page if the duplicate detector
+	 *                    kept it, or null
+	 * @param changes     adds the links of the page and adds it to the index
+	 */
+	public void finish(URL url, List<String> words, DuplicateDetector.Fingerprint fingerprint, Runnable changes) {
+		record(DONE, url, words, fingerprint == null || fingerprint.isEmpty() ? null : fingerprint, changes);
+	}
+
+	/**
+	 * Drops a url admitted: applies the change to the crawl, giving back its
+	 * budget, then logs it, with no snapshot in between
+	 *
+	 * @param url     the url
+	 * @param changes gives back the budget of the url
+	 */
+	public void drop(URL url, Runnable changes) {
+		record(DROPPED, url, null, null, changes);
+	}
+
+	/**
+	 * Applies the changes of a url that is no longer pending and logs it
+	 *
+	 * @param type    the record type
+	 * @param url     the url
+	 * @param words       the words of a page finished, or null
+	 * @param fingerprint the fingerprint of a page finished and kept, or null
+	 * @param changes     the changes to the crawl
+	 */
+	private void record(byte type, URL url, List<String> words, DuplicateDetector.Fingerprint fingerprint,
+			Runnable changes) {
+		lock.readLock().lock();
+		try {
+			changes.run();
+			synchronized (this) {
+				pending.remove(UrlFrontier.normalize(url));
+				append(type, url, words, fingerprint);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends a record to the log, and hands it to the operating system so it
+	 * survives the crawl dying
+	 *
+	 * @param type        the record type
+	 * @param url         the url
+	 * @param words       the words of a page finished, or null
+	 * @param fingerprint the fingerprint of a page finished and kept, or null
+	 */
+	private void append(byte type, URL url, List<String> words, DuplicateDetector.Fingerprint fingerprint) {
+		if (log == null) {
+			return;
+		}
+		try {
+			log.writeByte(type);
+			log.writeUTF(url.toString());
+			if (words != null) {
+				log.writeInt(words.size());
+				for (String word : words) {
+					log.writeUTF(word);
+				}
+				log.writeBoolean(fingerprint != null);
+				if (fingerprint != null) {
+					log.writeLong(fingerprint.exactHash());
+					log.writeLong(fingerprint.simHash());
+				}
+			}
+			log.flush();
+		} catch (IOException e) {
+			System.err.println("Unable to log the crawl: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Takes a snapshot of the crawl and starts a new log, waiting until no page is
+	 * being finished
+	 *
+	 * @throws IOException if unable to write the snapshot
+	 */
+	public void snapshot() throws IOException {
+		synchronized (snapshotLock) {
+			int next;
+			ByteArrayOutputStream state = new ByteArrayOutputStream();
+			FrozenInvertedIndex frozen;
+
+			// copy the crawl and switch the log while no page is being finished
+			lock.writeLock().lock();
+			try {
+				synchronized (this) {
+					next = generation + 1;
+					try (DataOutputStream out = new DataOutputStream(state)) {
+						frontier.write(out);
+						out.writeInt(pending.size());
+						for (URL url : pending.values()) {
+							out.writeUTF(url.toString());
+						}
+						// pages checked and not finished yet are kept too; when they are fetched
+						// again the detector finds they are the same pages
+						DuplicateDetector detector = duplicates;
+						out.writeBoolean(detector != null);
+						if (detector != null) {
+							detector.write(out);
+						}
+					}
+					frozen = index.freeze();
+					DataOutputStream nextLog = create(logFile(next));
+					if (log != null) {
+						log.close();
+					}
+					log = nextLog;
+					generation = next;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+
+			// a crash before CURRENT names the new generation resumes from the previous
+			// one, as if it happened when the log was switched
+			Files.write(snapshotFile(next), state.toByteArray());
+			IndexSegment.write(frozen, segmentFile(next));
+			sync(snapshotFile(next));
+			sync(segmentFile(next));
+			sync(logFile(next));
+
+			Path temp = directory.resolve("CURRENT.tmp");
+			Files.writeString(temp, String.valueOf(next), StandardCharsets.UTF_8);
+			sync(temp);
+			Files.move(temp, directory.resolve("CURRENT"), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			sync(directory);
+
+			// and the files of snapshots that failed after the one CURRENT named
+			for (int previous = saved; previous < next; previous++) {
+				Files.deleteIfExists(snapshotFile(previous));
+				Files.deleteIfExists(segmentFile(previous));
+				Files.deleteIfExists(logFile(previous));
+			}
+			saved = next;
+		}
+	}
+
+	/**
+	 * Stops taking snapshots and takes a last one, so resuming a finished crawl
+	 * only reads it
+	 *
+	 * @throws IOException if unable to take the snapshot
+	 */
+	public void close() throws IOException {
+		timer.shutdownNow();
+		try {
+			timer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (frontier != null) {
+			snapshot();
+		}
+		synchronized (this) {
+			if (log != null) {
+				log.close();
+				log = null;
+			}
+		}
+	}
+
+	/**
+	 * Return the snapshot of the frontier of a generation
+	 *
+	 * @param number the generation
+	 * @return the file
+	 */
+	private Path snapshotFile(int number) {
+		return directory.resolve("frontier-" + number + ".dat");
+	}
+
+	/**
+	 * Return the snapshot of the index of a generation
+	 *
+	 * @param number the generation
+	 * @return the file
+	 */
+	private Path segmentFile(int number) {
+		return directory.resolve("index-" + number + ".seg");
+	}
+
+	/**
+	 * Return the log of a generation
+	 *
+	 * @param number the generation
+	 * @return the file
+	 */
+	private Path logFile(int number) {
+		return directory.resolve("crawl-" + number + ".log");
+	}
+
+	/**
+	 * Forces a file, or the entries of a directory, to disk. Directories that
+	 * cannot be opened for that, as on Windows, are left to the operating
+	 * system.
+	 *
+	 * @param file the file or directory
+	 * @throws IOException if unable to force a file
+	 */
+	private static void sync(Path file) throws IOException {
+		boolean isDirectory = Files.isDirectory(file);
+		try (FileChannel channel = FileChannel.open(file,
+				isDirectory ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+			channel.force(true);
+		} catch (IOException e) {
+			if (!isDirectory) {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Opens a file for reading
+	 *
+	 * @param file the file
+	 * @return the stream
+	 * @throws IOException if unable to open the file
+	 */
+	private static DataInputStream open(Path file) throws IOException {
+		return new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+	}
+
+	/**
+	 * Creates a file for writing, replacing any file left by a crash
+	 *
+	 * @param file the file
+	 * @return the stream
+	 * @throws IOException if unable to create the file
+	 */
+	private static DataOutputStream create(Path file) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), 1 << 16));
+	}
+}
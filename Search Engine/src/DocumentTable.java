@@ -0,0 +1,154 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * Dictionary of the locations stored in an inverted index. Each location is
+ * given an int document id the first time it is seen, so the postings only
+ * store that id instead of repeating the location string, and the total word
+ * count of each document is kept in an int array indexed by the same id.
+ *
+ * Warning: This class is not thread-safe.
+ */
+public class DocumentTable {
+
+	/**
+	 * location of every document, indexed by document id
+	 */
+	private final ArrayList<String> locations;
+
+	/**
+	 * document id of every location
+	 */
+	private final HashMap<String, Integer> ids;
+
+	/**
+	 * total number of words of every document, indexed by document id
+	 */
+	private int[] counts;
+
+	/**
+	 * Initializes an empty document table.
+	 */
+	public DocumentTable() {
+		this.locations = new ArrayList<String>();
+		this.ids = new HashMap<String, Integer>();
+		this.counts = new int[16];
+	}
+
+	/**
+	 * Return the document id of the location, adding the location to the table if
+	 * it has not been seen before
+	 *
+	 * @param location location of the file
+	 * @return document id of the location
+	 */
+	public int add(String location) {
+		Integer id = ids.get(location);
+		if (id != null) {
+			return id;
+		}
+		int next = locations.size();
+		locations.add(location);
+		ids.put(location, next);
+		if (next == counts.length) {
+			counts = Arrays.copyOf(counts, next * 2);
+		}
+		return next;
+	}
+
+	/**
+	 * Return the document id of the location
+	 *
+	 * @param location location of the file
+	 * @return document id, or -1 if the location is not in the table
+	 */
+	public int getId(String location) {
+		Integer id = ids.get(location);
+		return id != null ? id : -1;
+	}
+
+	/**
+	 * Return the location of the document id
+	 *
+	 * @param id document id
+	 * @return location of the document
+	 */
+	public String getLocation(int id) {
+		return locations.get(id);
+	}
+
+	/**
+	 * Return the total number of words of the document id
+	 *
+	 * @param id document id
+	 * @return total number of words
+	 */
+	public int getCount(int id) {
+		return counts[id];
+	}
+
+	/**
+	 * Set the total number of words of the document id
+	 *
+	 * @param id    document id
+	 * @param count total number of words
+	 */
+	public void setCount(int id, int count) {
+		counts[id] = count;
+	}
+
+	/**
+	 * Increase the total number of words of the document id by one
+	 *
+	 * @param id document id
+	 */
+	public void incrementCount(int id) {
+		counts[id]++;
+	}
+
+	/**
+	 * Return the number of documents in the table
+	 *
+	 * @return number of documents
+	 */
+	public int size() {
+		return locations.size();
+	}
+
+	/**
+	 * Return the document ids ordered by their location
+	 *
+	 * @return document ids sorted by location
+	 */
+	public int[] sortedIds() {
+		Integer[] order = new Integer[locations.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> locations.get(a).compareTo(locations.get(b)));
+
+		int[] result = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			result[i] = order[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Return the location and total word count of every document that has at least
+	 * one word
+	 *
+	 * @return map of location to total number of words
+	 */
+	public TreeMap<String, Integer> toCountMap() {
+		TreeMap<String, Integer> result = new TreeMap<String, Integer>();
+		for (int id = 0; id < locations.size(); id++) {
+			if (counts[id] > 0) {
+				result.put(locations.get(id), counts[id]);
+			}
+		}
+		return result;
+	}
+}
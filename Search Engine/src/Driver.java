@@ -46,6 +46,137 @@ public class Driver {
 	 * thread flag
 	 */
 	private static final String THREAD_FLAG = "-threads";
+	/**
+	 * flag for saving the index as a binary segment
+	 */
+	private static final String SAVE_OUTPUT = "-save";
+	/**
+	 * flag for loading the index from a binary segment
+	 */
+	private static final String LOAD_INPUT = "-load";
+	/**
+	 * flag for the directory of an incrementally built, segmented index
+	 */
+	private static final String SEGMENTS_FLAG = "-segments";
+	/**
+	 * flag for the number of lock stripes of the multithreaded index
+	 */
+	private static final String STRIPES_FLAG = "-stripes";
+	/**
+	 * flag to use a work stealing queue for the worker threads
+	 */
+	private static final String STEALING_FLAG = "-stealing";
+	/**
+	 * flag for the maximum number of waiting work requests of the work queue
+	 */
+	private static final String QUEUE_FLAG = "-queue";
+	/**
+	 * flag for what to do when the work queue is full, block or caller
+	 */
+	private static final String POLICY_FLAG = "-policy";
+	/**
+	 * flag to grow and shrink the worker threads with the workload
+	 */
+	private static final String ADAPTIVE_FLAG = "-adaptive";
+	/**
+	 * flag for the minimum number of worker threads of the adaptive work queue
+	 */
+	private static final String MIN_THREADS_FLAG = "-minthreads";
+	/**
+	 * flag for the maximum number of worker threads of the adaptive work queue
+	 */
+	private static final String MAX_THREADS_FLAG = "-maxthreads";
+	/**
+	 * flag to fetch pages on virtual threads, with the maximum number of fetches
+	 * at once
+	 */
+	private static final String VIRTUAL_FLAG = "-virtual";
+	/**
+	 * flag for the maximum number of keep-alive connections to one host
+	 */
+	private static final String CONNECTIONS_FLAG = "-connections";
+	/**
+	 * flag to fetch pages with non-blocking sockets, with the maximum number of
+	 * fetches at once
+	 */
+	private static final String ASYNC_FLAG = "-async";
+	/**
+	 * flag to stream pages into the index while they arrive, with the maximum
+	 * size of a page in bytes, which also applies to pages fetched with -async
+	 */
+	private static final String STREAM_FLAG = "-stream";
+	/**
+	 * flag for the time to wait for a connection to open, in milliseconds
+	 */
+	private static final String CONNECT_TIMEOUT_FLAG = "-connecttimeout";
+	/**
+	 * flag for the time to wait for the next bytes of a response, in milliseconds
+	 */
+	private static final String READ_TIMEOUT_FLAG = "-readtimeout";
+	/**
+	 * flag for the time a whole request may take, in milliseconds
+	 */
+	private static final String DEADLINE_FLAG = "-deadline";
+	/**
+	 * flag for the average latency in milliseconds above which a host is backed
+	 * off
+	 */
+	private static final String SLOW_HOST_FLAG = "-slowhost";
+	/**
+	 * flag for how the crawl keeps the seen urls, exact or compact
+	 */
+	private static final String FRONTIER_FLAG = "-frontier";
+	/**
+	 * flag to respect robots.txt, with the minimum time between two requests to
+	 * one host in milliseconds
+	 */
+	private static final String POLITE_FLAG = "-polite";
+	/**
+	 * flag for the directory of the pages kept between crawls
+	 */
+	private static final String CACHE_FLAG = "-cache";
+	/**
+	 * flag for the maximum size of the pages kept between crawls, in megabytes
+	 */
+	private static final String CACHE_SIZE_FLAG = "-cachesize";
+	/**
+	 * flag for the directory the crawl is saved to while it runs
+	 */
+	private static final String CHECKPOINT_FLAG = "-checkpoint";
+	/**
+	 * flag for the time between two saves of the crawl, in milliseconds
+	 */
+	private static final String CHECKPOINT_INTERVAL_FLAG = "-checkpointinterval";
+	/**
+	 * flag to continue the crawl saved to the checkpoint directory
+	 */
+	private static final String RESUME_FLAG = "-resume";
+	/**
+	 * flag to skip duplicate pages, with the maximum number of bits the SimHashes
+	 * of near duplicates differ in
+	 */
+	private static final String DEDUP_FLAG = "-dedup";
+	/**
+	 * flag to not follow the links of duplicate pages
+	 */
+	private static final String SKIP_DUPLICATE_LINKS_FLAG = "-skipduplicatelinks";
+	/**
+	 * flag for the number of words the stem cache of every thread remembers
+	 */
+	private static final String STEM_CACHE_FLAG = "-stemcache";
+	/**
+	 * flag to share one stem cache between all threads
+	 */
+	private static final String SHARED_STEMS_FLAG = "-sharedstems";
+	/**
+	 * flag for the maximum number of results written for every query
+	 */
+	private static final String TOP_FLAG = "-top";
+	/**
+	 * flag for the number of document counts the prefix cache of partial
+	 * searches holds
+	 */
+	private static final String PREFIX_CACHE_FLAG = "-prefixcache";
 
 	/**
 	 * Initializes the classes necessary based on the provided command-line
@@ -59,24 +190,37 @@ public class Driver {
 		// store initial start time
 		Instant start = Instant.now();
 		InvertedIndex invertedIndex = null;
+		// the index searched and written out, frozen once built or loaded
+		AbstractInvertedIndex searched = null;
 		ArgumentMap mapForPath = new ArgumentMap(args);
 		QueryParserInterface queryParser = null;
 
 		ThreadSafeInvertedIndex threadSafe = null;
-		WorkQueue worker = null;
+		AbstractWorkQueue worker = null;
 		WebCrawler crawler = null;
 		int threads = 1;
 		boolean urlFlag = mapForPath.hasFlag("-url");
 		boolean threadFlag = mapForPath.hasFlag(THREAD_FLAG);
 
+		// -stemcache, -sharedstems
+		boolean stemStats = mapForPath.hasFlag(STEM_CACHE_FLAG) || mapForPath.hasFlag(SHARED_STEMS_FLAG);
+		if (mapForPath.hasFlag(STEM_CACHE_FLAG)) {
+			try {
+				StemCache.setCapacity(Integer.parseInt(
+						mapForPath.getString(STEM_CACHE_FLAG, String.valueOf(StemCache.DEFAULT_CAPACITY))));
+			} catch (NumberFormatException e) {
+				System.out.println("Number format exception.");
+			}
+		}
+		StemCache.setShared(mapForPath.hasFlag(SHARED_STEMS_FLAG));
+
 		if (urlFlag) {
 			threadFlag = true;
 			System.out.println(threadFlag);
 		}
 
-		if (!mapForPath.hasFlag(THREAD_FLAG)) {
+		if (!threadFlag) {
 			invertedIndex = new InvertedIndex();
-			queryParser = new QueryParser(invertedIndex);
 		} else {
 			try {
 				threads = Integer.parseInt(mapForPath.getString(THREAD_FLAG, "5"));
@@ -86,17 +230,205 @@ public class Driver {
 			if (threads < 1) {
 				threads = 5;
 			}
-			worker = new WorkQueue(threads);
-			threadSafe = new ThreadSafeInvertedIndex();
+			int capacity = 0;
+			if (mapForPath.hasFlag(QUEUE_FLAG)) {
+				try {
+					capacity = Integer.parseInt(mapForPath.getString(QUEUE_FLAG, "1000"));
+				} catch (NumberFormatException e) {
+					System.out.println("Number format exception.");
+				}
+			}
+			WorkQueue.Policy policy = WorkQueue.Policy.BLOCK;
+			if ("caller".equalsIgnoreCase(mapForPath.getString(POLICY_FLAG, "block"))) {
+				policy = WorkQueue.Policy.CALLER_RUNS;
+			}
+
+			if (mapForPath.hasFlag(STEALING_FLAG)) {
+				worker = new WorkStealingQueue(threads);
+			} else if (mapForPath.hasFlag(ADAPTIVE_FLAG)) {
+				int minThreads = 1;
+				int maxThreads = 4 * Runtime.getRuntime().availableProcessors();
+				try {
+					minThreads = Integer.parseInt(mapForPath.getString(MIN_THREADS_FLAG, "1"));
+					maxThreads = Integer.parseInt(mapForPath.getString(MAX_THREADS_FLAG, String.valueOf(maxThreads)));
+				} catch (NumberFormatException e) {
+					System.out.println("Number format exception.");
+				}
+				worker = new AdaptiveWorkQueue(threads, minThreads, maxThreads, capacity, policy,
+						AdaptiveWorkQueue.DEFAULT_PERIOD);
+			} else {
+				worker = new WorkQueue(threads, capacity, policy);
+			}
+			if (mapForPath.hasFlag(STRIPES_FLAG)) {
+				int stripes = StripedInvertedIndex.DEFAULT_STRIPES;
+				try {
+					stripes = Integer.parseInt(mapForPath.getString(STRIPES_FLAG, "16"));
+				} catch (NumberFormatException e) {
+					System.out.println("Number format exception.");
+				}
+				threadSafe = new StripedInvertedIndex(stripes);
+			} else {
+				threadSafe = new ThreadSafeInvertedIndex();
+			}
 			invertedIndex = threadSafe;
+		}
 
-			queryParser = new MultiThreadQueryParser(worker, threadSafe);
+		// -segments
+		SegmentedInvertedIndex segmented = null;
+		if (mapForPath.hasFlag(SEGMENTS_FLAG)) {
+			Path segmentsPath = mapForPath.getPath(SEGMENTS_FLAG, Paths.get("segments"));
+			try {
+				segmented = new SegmentedInvertedIndex(segmentsPath, SegmentedInvertedIndex.DEFAULT_MERGE_FACTOR);
+				invertedIndex = segmented;
+				threadSafe = segmented;
+			} catch (IOException e) {
+				System.err.println("Unable to open the segment directory: " + segmentsPath.toString()
+						+ "\n\tplease check your argument");
+			}
 		}
 
+		// -load
 		// -path
 		// -url
-		if (urlFlag) {
-			crawler = new WebCrawler(worker, threadSafe);
+		if (mapForPath.hasFlag(LOAD_INPUT)) {
+			Path loadPath = mapForPath.getPath(LOAD_INPUT, Paths.get("index.seg"));
+			try {
+				searched = IndexSegment.open(loadPath);
+			} catch (IOException e) {
+				System.err.println("Unable to load the index segment: " + loadPath.toString()
+						+ "\n\tplease check your argument");
+			}
+		}
+
+		else if (urlFlag) {
+			// -virtual: fetch on virtual threads, stem and index on the worker threads
+			AbstractWorkQueue fetcher = worker;
+			if (mapForPath.hasFlag(VIRTUAL_FLAG)) {
+				int inFlight = VirtualThreadQueue.DEFAULT_IN_FLIGHT;
+				try {
+					inFlight = Integer.parseInt(
+							mapForPath.getString(VIRTUAL_FLAG, String.valueOf(VirtualThreadQueue.DEFAULT_IN_FLIGHT)));
+				} catch (NumberFormatException e) {
+					System.out.println("Number format exception.");
+				}
+				fetcher = new VirtualThreadQueue(inFlight);
+			}
+			// -connections, -connecttimeout, -readtimeout
+			int connectTimeout = ConnectionPool.DEFAULT_CONNECT_TIMEOUT;
+			int readTimeout = ConnectionPool.DEFAULT_READ_TIMEOUT;
+			if (mapForPath.hasFlag(CONNECTIONS_FLAG) || mapForPath.hasFlag(CONNECT_TIMEOUT_FLAG)
+					|| mapForPath.hasFlag(READ_TIMEOUT_FLAG)) {
+				try {
+					int perHost = Integer.parseInt(mapForPath.getString(CONNECTIONS_FLAG,
+							String.valueOf(ConnectionPool.DEFAULT_MAX_PER_HOST)));
+					connectTimeout = Integer.parseInt(
+							mapForPath.getString(CONNECT_TIMEOUT_FLAG, String.valueOf(connectTimeout)));
+					readTimeout = Integer
+							.parseInt(mapForPath.getString(READ_TIMEOUT_FLAG, String.valueOf(readTimeout)));
+					HttpsFetcher.setConnectionPool(new ConnectionPool(perHost, ConnectionPool.DEFAULT_IDLE_TIMEOUT,
+							connectTimeout, readTimeout));
+				} catch (NumberFormatException e) {
+					System.out.println("Number format exception.");
+				}
+			}
+			// -deadline
+			if (mapForPath.hasFlag(DEADLINE_FLAG)) {
+				try {
+					HttpsFetcher.setRequestTimeout(Long.parseLong(mapForPath.getString(DEADLINE_FLAG,
+							String.valueOf(HttpsFetcher.DEFAULT_REQUEST_TIMEOUT))));
+				} catch (NumberFormatException e) {
+					System.out.println("Number format exception.");
+				}
+			}
+			// -slowhost
+			if (mapForPath.hasFlag(SLOW_HOST_FLAG)) {
+				try {
+					HttpsFetcher.setHostMonitor(new HostMonitor(
+							Long.parseLong(mapForPath.getString(SLOW_HOST_FLAG,
+									String.valueOf(HostMonitor.DEFAULT_SLOW_LATENCY))),
+							HostMonitor.DEFAULT_ERROR_RATE, HostMonitor.DEFAULT_BACKOFF));
+				} catch (NumberFormatException e) {
+					System.out.println("Number format exception.");
+				}
+			}
+			// -cache, -cachesize
+			if (mapForPath.hasFlag(CACHE_FLAG)) {
+				Path cacheDir = mapForPath.getPath(CACHE_FLAG, Paths.get("cache"));
+				try {
+					long megabytes = Long.parseLong(mapForPath.getString(CACHE_SIZE_FLAG,
+							String.valueOf(HttpCache.DEFAULT_MAX_SIZE >> 20)));
+					HtmlFetcher.setCache(new HttpCache(cacheDir, megabytes << 20));
+				} catch (NumberFormatException e) {
+					System.out.println("Number format exception.");
+				} catch (IOException e) {
+					System.err.println("Unable to open the cache " + cacheDir + ": " + e.getMessage());
+				}
+			}
+			// -async: fetch with non-blocking sockets on one thread
+			AsyncFetcher async = null;
+			if (mapForPath.hasFlag(ASYNC_FLAG)) {
+				try {
+					async = new AsyncFetcher(
+							Integer.parseInt(
+									mapForPath.getString(ASYNC_FLAG, String.valueOf(AsyncFetcher.DEFAULT_IN_FLIGHT))),
+							connectTimeout, readTimeout, HttpsFetcher.getRequestTimeout(),
+							Long.parseLong(mapForPath.getString(STREAM_FLAG,
+									String.valueOf(HtmlFetcher.DEFAULT_MAX_PAGE_SIZE))));
+				} catch (NumberFormatException e) {
+					System.out.println("Number format exception.");
+				} catch (IOException e) {
+					System.err.println("Unable to start the non-blocking fetcher: " + e.getMessage());
+				}
+			}
+			if (async != null) {
+				crawler = new WebCrawler(worker, async, threadSafe);
+			} else {
+				crawler = new WebCrawler(worker, fetcher, threadSafe);
+				// -stream
+				if (mapForPath.hasFlag(STREAM_FLAG)) {
+					try {
+						crawler.setStreaming(Long.parseLong(mapForPath.getString(STREAM_FLAG,
+								String.valueOf(HtmlFetcher.DEFAULT_MAX_PAGE_SIZE))));
+					} catch (NumberFormatException e) {
+						System.out.println("Number format exception.");
+					}
+				}
+			}
+			// -frontier compact
+			crawler.setCompactFrontier(mapForPath.getString(FRONTIER_FLAG, "exact").equalsIgnoreCase("compact"));
+			// -checkpoint, -checkpointinterval, -resume
+			if (mapForPath.hasFlag(CHECKPOINT_FLAG) || mapForPath.hasFlag(RESUME_FLAG)) {
+				Path checkpointDir = mapForPath.getPath(CHECKPOINT_FLAG, Paths.get("checkpoint"));
+				try {
+					long interval = Long.parseLong(mapForPath.getString(CHECKPOINT_INTERVAL_FLAG,
+							String.valueOf(CrawlCheckpoint.DEFAULT_INTERVAL)));
+					crawler.setCheckpoint(new CrawlCheckpoint(checkpointDir, interval),
+							mapForPath.hasFlag(RESUME_FLAG));
+				} catch (NumberFormatException e) {
+					System.out.println("Number format exception.");
+				} catch (IOException e) {
+					System.err.println("Unable to open the checkpoint " + checkpointDir + ": " + e.getMessage());
+				}
+			}
+			// -dedup, -skipduplicatelinks
+			DuplicateDetector duplicates = null;
+			if (mapForPath.hasFlag(DEDUP_FLAG)) {
+				try {
+					duplicates = new DuplicateDetector(Integer.parseInt(
+							mapForPath.getString(DEDUP_FLAG, String.valueOf(DuplicateDetector.DEFAULT_MAX_DISTANCE))));
+					crawler.setDuplicateDetector(duplicates, !mapForPath.hasFlag(SKIP_DUPLICATE_LINKS_FLAG));
+				} catch (NumberFormatException e) {
+					System.out.println("Number format exception.");
+				}
+			}
+			// -polite
+			if (mapForPath.hasFlag(POLITE_FLAG)) {
+				try {
+					crawler.setPolite(Long.parseLong(mapForPath.getString(POLITE_FLAG, "0")));
+				} catch (NumberFormatException e) {
+					System.out.println("Number format exception.");
+				}
+			}
 			String seedStr = mapForPath.getString("-url");
 			URL seed;
 			int limit;
@@ -112,6 +444,20 @@ public class Driver {
 			}
 
 			crawler.craw(seed, limit);
+			if (fetcher != worker) {
+				fetcher.shutdown();
+			}
+			if (async != null) {
+				async.close();
+			}
+			HttpsFetcher.getConnectionPool().close();
+			System.out.print(HttpsFetcher.getHostMonitor().report());
+			if (HtmlFetcher.getCache() != null) {
+				System.out.print(HtmlFetcher.getCache().report());
+			}
+			if (duplicates != null) {
+				System.out.print(duplicates.report());
+			}
 		}
 
 		else if (mapForPath.hasFlag(PATH_INPUT)) {
@@ -141,11 +487,59 @@ public class Driver {
 			System.err.println("Missing flag for -path");
 		}
 
+		// the index is not modified after this point, so searches and output run
+		// against the frozen copy (or the immutable segments) without locking
+		if (segmented != null) {
+			try {
+				segmented.flush();
+			} catch (IOException e) {
+				System.err.println("Unable to write the new index segment: " + e.getMessage());
+			}
+		}
+		if (searched == null) {
+			searched = segmented != null ? segmented : invertedIndex.freeze();
+		}
+		if (worker == null) {
+			queryParser = new QueryParser(searched);
+		} else {
+			queryParser = new MultiThreadQueryParser(worker, searched);
+		}
+		// -top
+		if (mapForPath.hasFlag(TOP_FLAG)) {
+			try {
+				queryParser.setTop(Integer.parseInt(mapForPath.getString(TOP_FLAG, "10")));
+			} catch (NumberFormatException e) {
+				System.out.println("Number format exception.");
+			}
+		}
+		// -prefixcache
+		PrefixCache prefixCache = null;
+		if (mapForPath.hasFlag(PREFIX_CACHE_FLAG)) {
+			try {
+				prefixCache = new PrefixCache(Integer.parseInt(
+						mapForPath.getString(PREFIX_CACHE_FLAG, String.valueOf(PrefixCache.DEFAULT_CAPACITY))));
+				queryParser.setPrefixCache(prefixCache);
+			} catch (NumberFormatException e) {
+				System.out.println("Number format exception.");
+			}
+		}
+
+		// -save
+		if (mapForPath.hasFlag(SAVE_OUTPUT)) {
+			Path savePath = mapForPath.getPath(SAVE_OUTPUT, Paths.get("index.seg"));
+			try {
+				IndexSegment.write(searched.freeze(), savePath);
+			} catch (IOException e) {
+				System.err.println(
+						"Unable to save the index segment: " + savePath.toString() + "\n\tPlease check your argument.");
+			}
+		}
+
 		// -index
 		if (mapForPath.hasFlag(INDEX_OUTPUT)) {
 			Path indexPath = mapForPath.getPath(INDEX_OUTPUT, Paths.get("index.json"));
 			try {
-				invertedIndex.toIndexJSON(indexPath);
+				searched.toIndexJSON(indexPath);
 			} catch (IOException e) {
 				System.err.println(
 						"Unable to print out to file: " + indexPath.toString() + "\n\tPlease check your argument.");
@@ -156,7 +550,7 @@ public class Driver {
 		if (mapForPath.hasFlag(LOCATIONS_OUTPUT)) {
 			Path locationsPath = mapForPath.getPath(LOCATIONS_OUTPUT, Paths.get("locations.json"));
 			try {
-				invertedIndex.toLocationsJSON(locationsPath);
+				searched.toLocationsJSON(locationsPath);
 			} catch (IOException e) {
 				System.err.println(
 						"Unable to print out to file: " + locationsPath.toString() + "\n\tPlease check your argument.");
@@ -197,8 +591,22 @@ public class Driver {
 		}
 
 		if (worker != null) {
+			if (worker instanceof WorkQueue && ((WorkQueue) worker).getCapacity() > 0) {
+				WorkQueue bounded = (WorkQueue) worker;
+				System.out.printf("Work queue: max depth %d of %d, full %d times%n", bounded.getMaxQueueDepth(),
+						bounded.getCapacity(), bounded.getRejectedCount());
+			}
 			worker.shutdown();
 		}
+		if (segmented != null) {
+			segmented.close();
+		}
+		if (stemStats) {
+			System.out.print(StemCache.report());
+		}
+		if (prefixCache != null) {
+			System.out.print(prefixCache.report());
+		}
 
 		// calculate time elapsed and output
 		Duration elapsed = Duration.between(start, Instant.now());
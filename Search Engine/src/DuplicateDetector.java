@@ -0,0 +1,420 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Finds pages of a crawl whose text is the same as, or nearly the same as, a
+ * page already indexed: mirrors, pagination variants, and urls that only differ
+ * by tracking parameters.
+ *
+ * Every page gets two fingerprints of its cleaned words: a 64-bit hash of all
+ * words in order, for pages with exactly the same text, and a 64-bit SimHash of
+ * its shingles of three words, for pages with nearly the same text. The SimHash
+ * of two pages differs in few bits when most of their shingles are the same.
+ * Pages are near duplicates when their SimHashes differ in at most the maximum
+ * distance of bits. To find them without comparing every pair, the SimHash is
+ * cut into one more block than the maximum distance: two SimHashes that close
+ * have at least one block in common, so only pages with a block in common are
+ * compared.
+ *
+ * The pages indexed can be written out and read back with the rest of a
+ * crawl, see {@link CrawlCheckpoint}, so a crawl that continues still finds
+ * the duplicates of the pages indexed before it stopped.
+ */
+public class DuplicateDetector {
+
+	/**
+	 * The default maximum number of bits the SimHashes of near duplicates differ
+	 * in. Pages with a word changed in every hundred are about this close, and
+	 * unrelated pages about 32 bits apart. A larger distance cuts the SimHash
+	 * into smaller blocks, so more pages are compared.
+	 */
+	public static final int DEFAULT_MAX_DISTANCE = 6;
+
+	/**
+	 * number of words of a shingle
+	 */
+	private static final int SHINGLE = 3;
+
+	/**
+	 * maximum number of bits the SimHashes of near duplicates differ in, or 0 to
+	 * only find exact duplicates
+	 */
+	private final int maxDistance;
+
+	/**
+	 * the first bit of every block of the SimHash, and 64 at the end
+	 */
+	private final int[] blockStarts;
+
+	/**
+	 * location of every page indexed, by hash of its words, guarded by this
+	 * detector
+	 */
+	private final HashMap<Long, String> exact;
+
+	/**
+	 * pages indexed, by the bits of one block of their SimHash, a map for every
+	 * block, guarded by this detector
+	 */
+	private final ArrayList<HashMap<Long, ArrayList<Page>>> blocks;
+
+	/**
+	 * pages indexed, in the order they were kept, guarded by this detector; only
+	 * kept when near duplicates are found
+	 */
+	private final ArrayList<Page> pages;
+
+	/**
+	 * number of pages checked
+	 */
+	private int checked;
+
+	/**
+	 * number of exact duplicates
+	 */
+	private int exactDuplicates;
+
+	/**
+	 * number of near duplicates
+	 */
+	private int nearDuplicates;
+
+	/**
+	 * Initializes a detector
+	 *
+	 * @param maxDistance maximum number of bits the SimHashes of near duplicates
+	 *                    differ in, or 0 to only find exact duplicates
+	 */
+	public DuplicateDetector(int maxDistance) {
+		this.maxDistance = Math.max(0, Math.min(Long.SIZE / 4, maxDistance));
+		this.exact = new HashMap<Long, String>();
+		this.pages = new ArrayList<Page>();
+		this.blocks = new ArrayList<HashMap<Long, ArrayList<Page>>>();
+		int count = this.maxDistance == 0 ? 0 : this.maxDistance + 1;
+		this.blockStarts = new int[count + 1];
+		for (int i = 0; i <= count; i++) {
+			blockStarts[i] = count == 0 ? 0 : i * Long.SIZE / count;
+		}
+		for (int i = 0; i < count; i++) {
+			blocks.add(new HashMap<Long, ArrayList<Page>>());
+		}
+	}
+
+	/**
+	 * Checks whether the page duplicates a page already indexed. If not, the page
+	 * is kept, as the one to be indexed.
+	 *
+	 * @param location    the location of the page
+	 * @param fingerprint the fingerprint of its words
+	 * @return the location of the page it duplicates, or null if it is to be
+	 *         indexed
+	 */
+	public synchronized String check(String location, Fingerprint fingerprint) {
+		checked++;
+		if (fingerprint.words == 0) {
+			// nothing to index either way
+			return null;
+		}
+
+		String original = exact.putIfAbsent(fingerprint.exactHash(), location);
+		if (original != null) {
+			if (original.equals(location)) {
+				// kept before the crawl was saved, and fetched again after resuming it
+				return null;
+			}
+			exactDuplicates++;
+			return original;
+		}
+		if (blocks.isEmpty()) {
+			return null;
+		}
+
+		long simHash = fingerprint.simHash();
+		for (int i = 0; i < blocks.size(); i++) {
+			ArrayList<Page> candidates = blocks.get(i).get(block(simHash, i));
+			if (candidates == null) {
+				continue;
+			}
+			for (Page page : candidates) {
+				if (Long.bitCount(page.simHash ^ simHash) <= maxDistance && !page.location.equals(location)) {
+					nearDuplicates++;
+					// not the exact text, so another copy of this one is still found
+					return page.location;
+				}
+			}
+		}
+
+		add(new Page(location, simHash));
+		return null;
+	}
+
+	/**
+	 * Keeps a page indexed, as {@link #check(String, Fingerprint)} does for a page
+	 * that is not a duplicate. Used to add the pages of a crawl saved before.
+	 *
+	 * @param location  the location of the page
+	 * @param exactHash the hash of all words of the page, see
+	 *                  {@link Fingerprint#exactHash()}
+	 * @param simHash   the SimHash of the page, see {@link Fingerprint#simHash()}
+	 */
+	public synchronized void keep(String location, long exactHash, long simHash) {
+		if (exact.putIfAbsent(exactHash, location) == null && !blocks.isEmpty()) {
+			add(new Page(location, simHash));
+		}
+	}
+
+	/**
+	 * Adds a page indexed to the pages compared for near duplicates
+	 *
+	 * @param page the page
+	 */
+	private void add(Page page) {
+		pages.add(page);
+		for (int i = 0; i < blocks.size(); i++) {
+			blocks.get(i).computeIfAbsent(block(page.simHash, i), k -> new ArrayList<Page>()).add(page);
+		}
+	}
+
+	/**
+	 * Writes the pages indexed
+	 *
+	 * @param out the stream
+	 * @throws IOException if unable to write
+	 * @see #read(DataInputStream)
+	 */
+	public synchronized void write(DataOutputStream out) throws IOException {
+		out.writeInt(exact.size());
+		for (Map.Entry<Long, String> entry : exact.entrySet()) {
+			out.writeLong(entry.getKey());
+			out.writeUTF(entry.getValue());
+		}
+		out.writeInt(pages.size());
+		for (Page page : pages) {
+			out.writeUTF(page.location);
+			out.writeLong(page.simHash);
+		}
+	}
+
+	/**
+	 * Adds the pages indexed written by {@link #write(DataOutputStream)}. Pages
+	 * are only compared for near duplicates if this detector finds them.
+	 *
+	 * @param in the stream
+	 * @throws IOException if unable to read
+	 */
+	public synchronized void read(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			long hash = in.readLong();
+			exact.putIfAbsent(hash, in.readUTF());
+		}
+		count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			Page page = new Page(in.readUTF(), in.readLong());
+			if (!blocks.isEmpty()) {
+				add(page);
+			}
+		}
+	}
+
+	/**
+	 * Return the bits of one block of the SimHash
+	 *
+	 * @param simHash the SimHash
+	 * @param i       the block
+	 * @return the bits of the block, shifted down
+	 */
+	private long block(long simHash, int i) {
+		int width = blockStarts[i + 1] - blockStarts[i];
+		return (simHash >>> blockStarts[i]) & ((1L << width) - 1);
+	}
+
+	/**
+	 * Return a summary of the duplicates found by this detector; pages added with
+	 * {@link #keep(String, long, long)} or {@link #read(DataInputStream)} are not
+	 * counted as checked
+	 *
+	 * @return the report
+	 */
+	public synchronized String report() {
+		int duplicates = exactDuplicates + nearDuplicates;
+		return String.format(Locale.ROOT, "duplicates: %d of %d pages (%.1f%%), %d exact, %d near%n", duplicates,
+				checked, checked == 0 ? 0.0 : 100.0 * duplicates / checked, exactDuplicates, nearDuplicates);
+	}
+
+	/**
+	 * Return a 64-bit hash of the string
+	 *
+	 * @param word the string
+	 * @return the hash
+	 */
+	private static long hash(String word) {
+		// FNV-1a over the bytes, then mixed so every bit depends on every byte
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : word.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+
+	/**
+	 * Return the bits of the value mixed
+	 *
+	 * @param hash the value
+	 * @return the mixed value
+	 */
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * Builds the fingerprints of a page from its cleaned words, one word at a
+	 * time, so the words need not be kept
+	 */
+	public static class Fingerprint {
+
+		/**
+		 * hash of the words so far, in order
+		 */
+		private long exactHash;
+
+		/**
+		 * for every bit, the number of shingles with the bit set minus the number
+		 * without
+		 */
+		private final int[] weights;
+
+		/**
+		 * hashes of the last words, for the next shingle
+		 */
+		private final long[] recent;
+
+		/**
+		 * number of words so far
+		 */
+		private int words;
+
+		/**
+		 * Initializes the fingerprint of an empty page
+		 */
+		public Fingerprint() {
+			this.exactHash = 0;
+			this.weights = new int[Long.SIZE];
+			this.recent = new long[SHINGLE];
+			this.words = 0;
+		}
+
+		/**
+		 * Adds the next word of the page
+		 *
+		 * @param word the cleaned word; empty words are ignored
+		 */
+		public void add(String word) {
+			if (word.isEmpty()) {
+				return;
+			}
+			long hash = hash(word);
+			exactHash = mix(exactHash * 31 + hash);
+			recent[words % SHINGLE] = hash;
+			words++;
+			if (words >= SHINGLE) {
+				addShingle(words - SHINGLE);
+			}
+		}
+
+		/**
+		 * Adds the shingle of the recent words starting at a word to the weights
+		 *
+		 * @param first the number of the first word of the shingle
+		 */
+		private void addShingle(int first) {
+			long shingle = 0;
+			for (int i = 0; i < SHINGLE; i++) {
+				shingle = mix(shingle * 31 + recent[(first + i) % SHINGLE]);
+			}
+			for (int bit = 0; bit < Long.SIZE; bit++) {
+				weights[bit] += ((shingle >>> bit) & 1) != 0 ? 1 : -1;
+			}
+		}
+
+		/**
+		 * Return whether the page has no words, so it is never a duplicate
+		 *
+		 * @return true if no word was added
+		 */
+		public boolean isEmpty() {
+			return words == 0;
+		}
+
+		/**
+		 * Return the hash of all words in order
+		 *
+		 * @return the hash
+		 */
+		public long exactHash() {
+			return mix(exactHash ^ words);
+		}
+
+		/**
+		 * Return the SimHash of the shingles, or of the words of a page shorter than
+		 * a shingle
+		 *
+		 * @return the SimHash
+		 */
+		public long simHash() {
+			int[] sums = weights;
+			if (words < SHINGLE) {
+				sums = new int[Long.SIZE];
+				for (int i = 0; i < words; i++) {
+					for (int bit = 0; bit < Long.SIZE; bit++) {
+						sums[bit] += ((recent[i] >>> bit) & 1) != 0 ? 1 : -1;
+					}
+				}
+			}
+			long simHash = 0;
+			for (int bit = 0; bit < Long.SIZE; bit++) {
+				if (sums[bit] > 0) {
+					simHash |= 1L << bit;
+				}
+			}
+			return simHash;
+		}
+	}
+
+	/**
+	 * A page indexed
+	 */
+	private static class Page {
+
+		/**
+		 * the location of the page
+		 */
+		private final String location;
+
+		/**
+		 * the SimHash of the page
+		 */
+		private final long simHash;
+
+		/**
+		 * @param location the location of the page
+		 * @param simHash  the SimHash of the page
+		 */
+		private Page(String location, long simHash) {
+			this.location = location;
+			this.simHash = simHash;
+		}
+	}
+}
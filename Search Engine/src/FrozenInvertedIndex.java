@@ -0,0 +1,590 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Immutable, read-optimized version of the inverted index, created by
+ * {@link InvertedIndex#freeze()} once the index is fully built.
+ *
+ * The words are kept in a sorted array. The postings of word {@code t} are the
+ * range {@code termOffsets[t]} to {@code termOffsets[t + 1]} of the packed
+ * document and frequency arrays, and the positions of posting {@code p} are the
+ * range {@code positionOffsets[p]} to {@code positionOffsets[p + 1]} of the
+ * packed positions array. Document ids are assigned in location order, so the
+ * postings of every word are sorted by path.
+ *
+ * The postings are only read through {@link #block(int)}, the postings of one
+ * word, so a subclass can keep them somewhere else and decode the postings of a
+ * word only when needed.
+ *
+ * Nothing is modified after construction, so searches need no locking and this
+ * index can be shared by any number of threads.
+ */
+public class FrozenInvertedIndex extends AbstractInvertedIndex {
+
+	/**
+	 * all words, sorted
+	 */
+	protected final String[] terms;
+
+	/**
+	 * ordinal ranges of the words by prefix
+	 */
+	protected final TermDictionary dictionary;
+
+	/**
+	 * offset of the first posting of every word, plus the total number of
+	 * postings, or null if the postings are kept elsewhere
+	 */
+	private final int[] termOffsets;
+
+	/**
+	 * document id of every posting
+	 */
+	private final int[] documents;
+
+	/**
+	 * number of positions of every posting
+	 */
+	private final int[] frequencies;
+
+	/**
+	 * offset of the first position of every posting, plus the total number of
+	 * positions
+	 */
+	private final int[] positionOffsets;
+
+	/**
+	 * positions of all postings
+	 */
+	private final int[] positions;
+
+	/**
+	 * location of every document, sorted
+	 */
+	protected final String[] locations;
+
+	/**
+	 * total number of words of every document
+	 */
+	protected final int[] count;
+
+	/**
+	 * Initializes the frozen index from its packed arrays. The arrays are not
+	 * copied and must not be modified afterwards.
+	 *
+	 * @param terms           all words, sorted
+	 * @param termOffsets     offset of the first posting of every word
+	 * @param documents       document id of every posting
+	 * @param frequencies     number of positions of every posting
+	 * @param positionOffsets offset of the first position of every posting
+	 * @param positions       positions of all postings
+	 * @param locations       location of every document, sorted
+	 * @param count           total number of words of every document
+	 */
+	protected FrozenInvertedIndex(String[] terms, int[] termOffsets, int[] documents, int[] frequencies,
+			int[] positionOffsets, int[] positions, String[] locations, int[] count) {
+		this.terms = terms;
+		this.dictionary = new TermDictionary(terms);
+		this.termOffsets = termOffsets;
+		this.documents = documents;
+		this.frequencies = frequencies;
+		this.positionOffsets = positionOffsets;
+		this.positions = positions;
+		this.locations = locations;
+		this.count = count;
+	}
+
+	/**
+	 * Initializes a frozen index whose postings are kept elsewhere. The subclass
+	 * provides them by overriding {@link #block(int)}, {@link #postingCount()} and
+	 * {@link #positionCount()}.
+	 *
+	 * @param terms     all words, sorted
+	 * @param locations location of every document, sorted
+	 * @param count     total number of words of every document
+	 */
+	protected FrozenInvertedIndex(String[] terms, String[] locations, int[] count) {
+		this(terms, null, null, null, null, null, locations, count);
+	}
+
+	/**
+	 * Merges several frozen indexes into one. The indexes are ordered from oldest
+	 * to newest; a location found in more than one index is taken from the newest
+	 * one only, so a re-indexed document replaces its older version. Otherwise the
+	 * result is the same as freezing one index built from all the documents.
+	 *
+	 * @param segments the indexes to merge, oldest first
+	 * @return the merged index
+	 */
+	public static FrozenInvertedIndex merge(List<? extends FrozenInvertedIndex> segments) {
+		int n = segments.size();
+		if (n > 32) {
+			// the sort keys below have room for 32 segments
+			ArrayList<FrozenInvertedIndex> reduced = new ArrayList<FrozenInvertedIndex>();
+			reduced.add(merge(segments.subList(0, 32)));
+			reduced.addAll(segments.subList(32, n));
+			return merge(reduced);
+		}
+		FrozenInvertedIndex[] source = segments.toArray(new FrozenInvertedIndex[n]);
+
+		// location -> {segment, document} of the newest segment containing it
+		TreeMap<String, int[]> owners = new TreeMap<String, int[]>();
+		int[][] remap = new int[n][];
+		int maxTerms = 0;
+		int maxPostings = 0;
+		int maxPositions = 0;
+		for (int s = 0; s < n; s++) {
+			FrozenInvertedIndex segment = source[s];
+			remap[s] = new int[segment.locations.length];
+			Arrays.fill(remap[s], -1);
+			for (int d = 0; d < segment.locations.length; d++) {
+				owners.put(segment.locations[d], new int[] { s, d });
+			}
+			maxTerms += segment.terms.length;
+			maxPostings += segment.postingCount();
+			maxPositions += segment.positionCount();
+		}
+
+		String[] locations = new String[owners.size()];
+		int[] count = new int[owners.size()];
+		int next = 0;
+		for (Map.Entry<String, int[]> entry : owners.entrySet()) {
+			int[] owner = entry.getValue();
+			locations[next] = entry.getKey();
+			count[next] = source[owner[0]].count[owner[1]];
+			remap[owner[0]][owner[1]] = next++;
+		}
+
+		String[] terms = new String[maxTerms];
+		int[] termOffsets = new int[maxTerms + 1];
+		int[] documents = new int[maxPostings];
+		int[] frequencies = new int[maxPostings];
+		int[] positionOffsets = new int[maxPostings + 1];
+		int[] positions = new int[maxPositions];
+		int term = 0;
+		int posting = 0;
+		int position = 0;
+
+		// k-way merge of the sorted word arrays
+		int[] cursors = new int[n];
+		Block[] blocks = new Block[n];
+		long[] keys = new long[16];
+		while (true) {
+			String word = null;
+			for (int s = 0; s < n; s++) {
+				if (cursors[s] < source[s].terms.length
+						&& (word == null || source[s].terms[cursors[s]].compareTo(word) < 0)) {
+					word = source[s].terms[cursors[s]];
+				}
+			}
+			if (word == null) {
+				break;
+			}
+
+			// postings of the word from every segment, ordered by merged document id
+			int size = 0;
+			for (int s = 0; s < n; s++) {
+				FrozenInvertedIndex segment = source[s];
+				if (cursors[s] < segment.terms.length && segment.terms[cursors[s]].equals(word)) {
+					Block block = segment.block(cursors[s]++);
+					blocks[s] = block;
+					for (int p = block.start; p < block.end; p++) {
+						int document = remap[s][block.documents[p]];
+						if (document >= 0) {
+							if (size == keys.length) {
+								keys = Arrays.copyOf(keys, size * 2);
+							}
+							keys[size++] = ((long) document << 32) | ((long) s << 27) | (p - block.start);
+						}
+					}
+				}
+			}
+			if (size == 0) {
+				continue;
+			}
+			Arrays.sort(keys, 0, size);
+
+			terms[term] = word;
+			termOffsets[term++] = posting;
+			for (int k = 0; k < size; k++) {
+				int s = (int) (keys[k] >>> 27) & 0x1F;
+				Block block = blocks[s];
+				int p = block.start + (int) (keys[k] & 0x7FFFFFF);
+				int from = block.positionOffsets[p];
+				int frequency = block.positionOffsets[p + 1] - from;
+				documents[posting] = (int) (keys[k] >>> 32);
+				frequencies[posting] = frequency;
+				positionOffsets[posting++] = position;
+				System.arraycopy(block.positions, from, positions, position, frequency);
+				position += frequency;
+			}
+		}
+		termOffsets[term] = posting;
+		positionOffsets[posting] = position;
+
+		return new FrozenInvertedIndex(Arrays.copyOf(terms, term), Arrays.copyOf(termOffsets, term + 1),
+				Arrays.copyOf(documents, posting), Arrays.copyOf(frequencies, posting),
+				Arrays.copyOf(positionOffsets, posting + 1), Arrays.copyOf(positions, position), locations, count);
+	}
+
+	/**
+	 * Return the postings of the word
+	 *
+	 * @param term ordinal of the word
+	 * @return the postings, a range of the packed arrays
+	 */
+	protected Block block(int term) {
+		return new Block(documents, frequencies, positionOffsets, positions, termOffsets[term], termOffsets[term + 1]);
+	}
+
+	/**
+	 * Return the postings of the word
+	 *
+	 * @param word word to find
+	 * @return the postings, or null if the word is not in the index
+	 */
+	private Block block(String word) {
+		int term = ordinal(word);
+		return term >= 0 ? block(term) : null;
+	}
+
+	/**
+	 * Return the total number of postings
+	 *
+	 * @return number of postings of all words
+	 */
+	protected int postingCount() {
+		return termOffsets[terms.length];
+	}
+
+	/**
+	 * Return the total number of positions
+	 *
+	 * @return number of positions of all postings
+	 */
+	protected int positionCount() {
+		return positionOffsets[termOffsets[terms.length]];
+	}
+
+	/**
+	 * Return the ordinal of the word
+	 *
+	 * @param word word to find
+	 * @return ordinal of the word, or a negative number if not found
+	 */
+	protected int ordinal(String word) {
+		return dictionary.ordinal(word);
+	}
+
+	/**
+	 * Return the posting of the path in the postings of a word
+	 *
+	 * @param block the postings of the word, or null
+	 * @param path  the path of the file
+	 * @return offset of the posting in the block, or -1 if not found
+	 */
+	private int posting(Block block, String path) {
+		int document = Arrays.binarySearch(locations, path);
+		if (block == null || document < 0) {
+			return -1;
+		}
+		int found = Arrays.binarySearch(block.documents, block.start, block.end, document);
+		return found >= 0 ? found : -1;
+	}
+
+	@Override
+	public int getTotalWords(String path) {
+		int document = Arrays.binarySearch(locations, path);
+		return document >= 0 ? count[document] : 0;
+	}
+
+	@Override
+	public void toLocationsJSON(Path path) throws IOException {
+		TreeMap<String, Integer> result = new TreeMap<String, Integer>();
+		for (int i = 0; i < locations.length; i++) {
+			if (count[i] > 0) {
+				result.put(locations[i], count[i]);
+			}
+		}
+		PrettyJSONWriter.asObject(result, path);
+	}
+
+	@Override
+	public void toIndexJSON(Path path) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+			toIndexJSON(writer);
+		}
+	}
+
+	/**
+	 * Writes the inverted index as pretty JSON
+	 *
+	 * @param writer the writer to use
+	 * @throws IOException
+	 */
+	private void toIndexJSON(Writer writer) throws IOException {
+		writer.write("{");
+		writer.write("\n");
+		for (int term = 0; term < terms.length; term++) {
+			PrettyJSONWriter.indent(writer, 1);
+			writer.write("\"" + terms[term] + "\": ");
+			writer.write("{");
+			writer.write("\n");
+			Block block = block(term);
+			for (int p = block.start; p < block.end; p++) {
+				PrettyJSONWriter.quote(locations[block.documents[p]], writer, 2);
+				writer.write(": ");
+				PrettyJSONWriter.asArray(block.positions, block.positionOffsets[p], block.positionOffsets[p + 1], writer,
+						2);
+				if (p < block.end - 1) {
+					writer.write(",");
+				}
+				writer.write("\n");
+			}
+			PrettyJSONWriter.indent(writer, 1);
+			writer.write("}");
+
+			if (term < terms.length - 1) {
+				writer.write(",");
+			}
+			writer.write(System.lineSeparator());
+		}
+		writer.write("}");
+	}
+
+	/**
+	 * The frozen index is already frozen
+	 *
+	 * @return this index
+	 */
+	@Override
+	public FrozenInvertedIndex freeze() {
+		return this;
+	}
+
+	@Override
+	public Set<String> getWordSet() {
+		return new AbstractSet<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				return Collections.unmodifiableList(Arrays.asList(terms)).iterator();
+			}
+
+			@Override
+			public int size() {
+				return terms.length;
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return o instanceof String && ordinal((String) o) >= 0;
+			}
+		};
+	}
+
+	@Override
+	public Set<String> getPathSet(String word) {
+		Block block = block(word);
+		if (block == null) {
+			return null;
+		}
+		TreeSet<String> result = new TreeSet<String>();
+		for (int p = block.start; p < block.end; p++) {
+			result.add(locations[block.documents[p]]);
+		}
+		return Collections.unmodifiableSet(result);
+	}
+
+	@Override
+	public SortedSet<Integer> getPositionSet(String word, String path) {
+		Block block = block(word);
+		int p = posting(block, path);
+		if (p < 0) {
+			return null;
+		}
+		TreeSet<Integer> result = new TreeSet<Integer>();
+		for (int i = block.positionOffsets[p]; i < block.positionOffsets[p + 1]; i++) {
+			result.add(block.positions[i]);
+		}
+		return Collections.unmodifiableSortedSet(result);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return terms.length == 0;
+	}
+
+	@Override
+	public boolean containsWord(String word) {
+		return ordinal(word) >= 0;
+	}
+
+	@Override
+	public boolean containsPath(String word, String path) {
+		return posting(block(word), path) >= 0;
+	}
+
+	@Override
+	public boolean containsPosition(String word, String path, int position) {
+		Block block = block(word);
+		int p = posting(block, path);
+		return p >= 0 && Arrays.binarySearch(block.positions, block.positionOffsets[p], block.positionOffsets[p + 1],
+				position) >= 0;
+	}
+
+	@Override
+	protected ScoreAccumulator partialScores(Collection<String> oneLineQuery) {
+		PrefixCache cache = getPrefixCache();
+		if (cache != null) {
+			return cache.search(this, getGeneration(), locations.length, oneLineQuery, this::expand, null);
+		}
+		ScoreAccumulator scores = ScoreAccumulator.get(locations.length);
+		for (String oneQuery : oneLineQuery) {
+			expand(scores, oneQuery);
+		}
+		return scores;
+	}
+
+	@Override
+	protected void expand(ScoreAccumulator scores, String prefix) {
+		int end = dictionary.prefixEnd(prefix);
+		for (int term = dictionary.prefixStart(prefix); term < end; term++) {
+			searchHelper(scores, term);
+		}
+	}
+
+	@Override
+	protected ScoreAccumulator exactScores(Collection<String> oneLineQuery) {
+		ScoreAccumulator scores = ScoreAccumulator.get(locations.length);
+		for (String oneQuery : oneLineQuery) {
+			int term = ordinal(oneQuery);
+			if (term >= 0) {
+				searchHelper(scores, term);
+			}
+		}
+		return scores;
+	}
+
+	/**
+	 * Search helper method, adding the matches of a word to the accumulator
+	 *
+	 * @param scores the matches of every document so far
+	 * @param term   ordinal of the word
+	 */
+	private void searchHelper(ScoreAccumulator scores, int term) {
+		Block block = block(term);
+		for (int p = block.start; p < block.end; p++) {
+			scores.add(block.documents[p], block.frequencies[p]);
+		}
+	}
+
+	@Override
+	protected ArrayList<SearchResult> results(ScoreAccumulator scores) {
+		return results(scores, new ArrayList<SearchResult>());
+	}
+
+	/**
+	 * Adds a search result for every document matched to the list
+	 *
+	 * @param scores the matches of every document, cleared afterwards
+	 * @param list   the list to add the results to
+	 * @return the list
+	 */
+	protected ArrayList<SearchResult> results(ScoreAccumulator scores, ArrayList<SearchResult> list) {
+		return scores.drain(list, document -> locations[document], document -> count[document]);
+	}
+
+	@Override
+	protected ArrayList<SearchResult> page(ScoreAccumulator scores, int k, int offset) {
+		return page(scores, k, offset, new ArrayList<SearchResult>());
+	}
+
+	/**
+	 * Adds a search result for the documents of one page only to the list
+	 *
+	 * @param scores the matches of every document, cleared afterwards
+	 * @param k      maximum number of results
+	 * @param offset number of best results to skip
+	 * @param list   the list to add the results to
+	 * @return the list
+	 */
+	protected ArrayList<SearchResult> page(ScoreAccumulator scores, int k, int offset, ArrayList<SearchResult> list) {
+		return scores.drainTop(list, document -> locations[document], document -> count[document], k, offset);
+	}
+
+	/**
+	 * The postings of one word: the range {@code start} to {@code end} of the
+	 * document and frequency arrays, with the positions of posting {@code p} in the
+	 * range {@code positionOffsets[p]} to {@code positionOffsets[p + 1]} of the
+	 * positions array. The arrays must not be modified.
+	 */
+	protected static class Block {
+
+		/**
+		 * document id of every posting
+		 */
+		protected final int[] documents;
+
+		/**
+		 * number of positions of every posting
+		 */
+		protected final int[] frequencies;
+
+		/**
+		 * offset of the first position of every posting, plus one past the last
+		 * position of the last posting
+		 */
+		protected final int[] positionOffsets;
+
+		/**
+		 * positions of the postings
+		 */
+		protected final int[] positions;
+
+		/**
+		 * offset of the first posting of the word
+		 */
+		protected final int start;
+
+		/**
+		 * offset after the last posting of the word
+		 */
+		protected final int end;
+
+		/**
+		 * Initializes the postings of a word from arrays that are not copied
+		 *
+		 * @param documents       document id of every posting
+		 * @param frequencies     number of positions of every posting
+		 * @param positionOffsets offset of the first position of every posting
+		 * @param positions       positions of the postings
+		 * @param start           offset of the first posting of the word
+		 * @param end             offset after the last posting of the word
+		 */
+		protected Block(int[] documents, int[] frequencies, int[] positionOffsets, int[] positions, int start,
+				int end) {
+			this.documents = documents;
+			this.frequencies = frequencies;
+			this.positionOffsets = positionOffsets;
+			this.positions = positions;
+			this.start = start;
+			this.end = end;
+		}
+	}
+}
@@ -0,0 +1,349 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Keeps the latency and errors of the recent requests to every host, and backs
+ * off hosts that are too slow or fail too often, so a handful of slow hosts
+ * cannot hold the workers of a crawl.
+ *
+ * A host is backed off when the average latency of its recent requests is above
+ * the slow threshold, or when too many of its recent requests failed. While
+ * backed off, requests to it fail at once with a {@link BackoffException}. After
+ * the back off time one request is let through as a trial: if it succeeds the
+ * host is used again, if not the back off time doubles, up to a maximum.
+ */
+public class HostMonitor {
+
+	/** The default average latency above which a host is backed off, in milliseconds. */
+	public static final long DEFAULT_SLOW_LATENCY = 10_000;
+
+	/** The default share of failed requests above which a host is backed off. */
+	public static final double DEFAULT_ERROR_RATE = 0.5;
+
+	/** The default first back off time, in milliseconds. */
+	public static final long DEFAULT_BACKOFF = 5_000;
+
+	/** The maximum back off time, in milliseconds. */
+	public static final long MAX_BACKOFF = 300_000;
+
+	/**
+	 * number of recent requests of a host the thresholds look at
+	 */
+	private static final int WINDOW = 20;
+
+	/**
+	 * number of recent requests needed before a host can be backed off
+	 */
+	private static final int MIN_REQUESTS = 5;
+
+	/**
+	 * average latency above which a host is backed off, in milliseconds
+	 */
+	private final long slowLatency;
+
+	/**
+	 * share of failed requests above which a host is backed off
+	 */
+	private final double errorRate;
+
+	/**
+	 * first back off time, in milliseconds
+	 */
+	private final long backoff;
+
+	/**
+	 * statistics of every host, guarded by this monitor
+	 */
+	private final HashMap<String, Host> hosts;
+
+	/**
+	 * Initializes a monitor with the default thresholds
+	 */
+	public HostMonitor() {
+		this(DEFAULT_SLOW_LATENCY, DEFAULT_ERROR_RATE, DEFAULT_BACKOFF);
+	}
+
+	/**
+	 * Initializes a monitor
+	 *
+	 * @param slowLatency average latency above which a host is backed off, in
+	 *                    milliseconds
+	 * @param errorRate   share of failed requests above which a host is backed off
+	 * @param backoff     first back off time, in milliseconds
+	 */
+	public HostMonitor(long slowLatency, double errorRate, long backoff) {
+		this.slowLatency = slowLatency;
+		this.errorRate = errorRate;
+		this.backoff = Math.max(1, backoff);
+		this.hosts = new HashMap<String, Host>();
+	}
+
+	/**
+	 * Checks that a request to the host may be sent
+	 *
+	 * @param host the host
+	 * @throws BackoffException if the host is backed off
+	 */
+	public synchronized void acquire(String host) throws BackoffException {
+		Host stats = hosts.computeIfAbsent(host.toLowerCase(), k -> new Host());
+		if (stats.openUntil == 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (now < stats.openUntil || stats.trial) {
+			stats.rejected++;
+			throw new BackoffException(host, Math.max(0, stats.openUntil - now));
+		}
+		// let one request through to find out whether the host recovered
+		stats.trial = true;
+	}
+
+	/**
+	 * Records a finished request
+	 *
+	 * @param host    the host
+	 * @param latency time the request took, in milliseconds
+	 * @param success false if the request failed
+	 */
+	public synchronized void record(String host, long latency, boolean success) {
+		Host stats = hosts.computeIfAbsent(host.toLowerCase(), k -> new Host());
+		stats.add(latency, success);
+
+		if (stats.trial) {
+			stats.trial = false;
+			if (success && latency <= slowLatency) {
+				stats.close();
+			} else {
+				stats.open(Math.min(MAX_BACKOFF, stats.backoff * 2));
+			}
+		} else if (stats.openUntil == 0 && stats.recent >= MIN_REQUESTS
+				&& (stats.recentLatency() > slowLatency || stats.recentErrorRate() > errorRate)) {
+			stats.open(backoff);
+		}
+	}
+
+	/**
+	 * Gives back a request that was let through but never sent, so a trial after a
+	 * back off can be sent by the next request instead
+	 *
+	 * @param host the host
+	 */
+	public synchronized void release(String host) {
+		Host stats = hosts.get(host.toLowerCase());
+		if (stats != null) {
+			stats.trial = false;
+		}
+	}
+
+	/**
+	 * Return whether the host is backed off at the moment
+	 *
+	 * @param host the host
+	 * @return true if requests to the host fail at once
+	 */
+	public synchronized boolean isBackedOff(String host) {
+		Host stats = hosts.get(host.toLowerCase());
+		return stats != null && stats.openUntil > System.currentTimeMillis();
+	}
+
+	/**
+	 * Return a table of the latency of every host, slowest first
+	 *
+	 * @return the report, one line per host
+	 */
+	public synchronized String report() {
+		ArrayList<String> names = new ArrayList<String>(hosts.keySet());
+		names.sort((a, b) -> Long.compare(hosts.get(b).percentile(0.95), hosts.get(a).percentile(0.95)));
+
+		StringBuilder report = new StringBuilder();
+		report.append(String.format(Locale.ROOT, "%-30s %8s %7s %8s %8s %8s %8s %8s%n", "host", "requests", "errors",
+				"mean ms", "p50 ms", "p95 ms", "max ms", "skipped"));
+		for (String name : names) {
+			Host stats = hosts.get(name);
+			report.append(String.format(Locale.ROOT, "%-30s %8d %7d %8d %8d %8d %8d %8d%s%n", name, stats.count,
+					stats.errors, stats.count == 0 ? 0 : stats.total / stats.count, stats.percentile(0.5),
+					stats.percentile(0.95), stats.max, stats.rejected, stats.openUntil == 0 ? "" : " backed off"));
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Latency and errors of one host
+	 */
+	private static class Host {
+
+		/**
+		 * latency of the recent requests, a ring
+		 */
+		private final long[] latencies = new long[WINDOW];
+
+		/**
+		 * whether each recent request failed
+		 */
+		private final boolean[] failures = new boolean[WINDOW];
+
+		/**
+		 * number of recent requests in the ring
+		 */
+		private int recent = 0;
+
+		/**
+		 * index of the next request in the ring
+		 */
+		private int next = 0;
+
+		/**
+		 * number of requests with a latency below each power of 2 milliseconds
+		 */
+		private final long[] histogram = new long[Long.SIZE];
+
+		/**
+		 * number of requests
+		 */
+		private long count = 0;
+
+		/**
+		 * number of failed requests
+		 */
+		private long errors = 0;
+
+		/**
+		 * number of requests refused while backed off
+		 */
+		private long rejected = 0;
+
+		/**
+		 * total latency, in milliseconds
+		 */
+		private long total = 0;
+
+		/**
+		 * maximum latency, in milliseconds
+		 */
+		private long max = 0;
+
+		/**
+		 * when the host is used again, or 0 if it is not backed off
+		 */
+		private long openUntil = 0;
+
+		/**
+		 * the current back off time, in milliseconds
+		 */
+		private long backoff = 0;
+
+		/**
+		 * true while the trial request after a back off is sent
+		 */
+		private boolean trial = false;
+
+		/**
+		 * Adds a finished request
+		 *
+		 * @param latency time the request took, in milliseconds
+		 * @param success false if the request failed
+		 */
+		private void add(long latency, boolean success) {
+			latency = Math.max(0, latency);
+			latencies[next] = latency;
+			failures[next] = !success;
+			next = (next + 1) % WINDOW;
+			recent = Math.min(WINDOW, recent + 1);
+
+			histogram[Long.SIZE - Long.numberOfLeadingZeros(latency)]++;
+			count++;
+			errors += success ? 0 : 1;
+			total += latency;
+			max = Math.max(max, latency);
+		}
+
+		/**
+		 * Return the average latency of the recent requests
+		 *
+		 * @return average latency, in milliseconds
+		 */
+		private long recentLatency() {
+			long sum = 0;
+			for (int i = 0; i < recent; i++) {
+				sum += latencies[i];
+			}
+			return recent == 0 ? 0 : sum / recent;
+		}
+
+		/**
+		 * Return the share of the recent requests that failed
+		 *
+		 * @return share of failed requests
+		 */
+		private double recentErrorRate() {
+			int failed = 0;
+			for (int i = 0; i < recent; i++) {
+				failed += failures[i] ? 1 : 0;
+			}
+			return recent == 0 ? 0 : (double) failed / recent;
+		}
+
+		/**
+		 * Return the latency below which the share of requests are, rounded up to
+		 * a power of 2
+		 *
+		 * @param share the share of requests, between 0 and 1
+		 * @return latency, in milliseconds
+		 */
+		private long percentile(double share) {
+			long wanted = (long) Math.ceil(count * share);
+			long seen = 0;
+			for (int i = 0; i < histogram.length; i++) {
+				seen += histogram[i];
+				if (seen >= wanted && seen > 0) {
+					return Math.min(max, i == 0 ? 0 : (1L << i) - 1);
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * Backs off the host
+		 *
+		 * @param time the back off time, in milliseconds
+		 */
+		private void open(long time) {
+			backoff = time;
+			openUntil = System.currentTimeMillis() + time;
+			// judge the host by the requests after the back off only
+			recent = 0;
+			next = 0;
+		}
+
+		/**
+		 * Uses the host again
+		 */
+		private void close() {
+			backoff = 0;
+			openUntil = 0;
+			recent = 0;
+			next = 0;
+		}
+	}
+
+	/**
+	 * Thrown instead of sending a request to a host that is backed off
+	 */
+	public static class BackoffException extends IOException {
+
+		/**
+		 * unused
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * @param host the host
+		 * @param wait time left to back off, in milliseconds
+		 */
+		public BackoffException(String host, long wait) {
+			super("Backing off " + host + " for " + wait + " ms");
+		}
+	}
+}
@@ -0,0 +1,369 @@
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Decides when each url of a crawl is fetched, so no host takes all the workers
+ * and every host is treated politely. Every host has its own queue of urls,
+ * oldest first. Hosts take turns: each turn hands out one url of every host that
+ * may be fetched now, so many hosts are fetched at the same time.
+ *
+ * A host may be fetched if fewer than the maximum number of its urls are being
+ * fetched and its crawl delay passed since its last url was handed out. With
+ * robots.txt enabled, the robots.txt of a host is fetched once, before any of
+ * its urls; urls it disallows are dropped, and its Crawl-delay is used if longer
+ * than the minimum delay. A robots.txt that cannot be fetched is tried again a
+ * few times, waiting longer each time, while the urls of its host wait; after
+ * that they are dropped, and the next url of the host tries again.
+ */
+public class HostScheduler {
+
+	/**
+	 * The time to wait before fetching a robots.txt again, doubled every attempt,
+	 * in milliseconds
+	 */
+	public static final long ROBOTS_RETRY = 1000;
+
+	/**
+	 * The number of times a robots.txt is fetched before its urls are dropped
+	 */
+	public static final int ROBOTS_ATTEMPTS = 4;
+
+	/**
+	 * maximum number of urls of one host being fetched at once
+	 */
+	private final int maxPerHost;
+
+	/**
+	 * minimum time between two urls of one host, in milliseconds
+	 */
+	private final long minDelay;
+
+	/**
+	 * true to fetch and respect the robots.txt of every host
+	 */
+	private final boolean robots;
+
+	/**
+	 * fetches a url handed out
+	 */
+	private final Consumer<URL> dispatcher;
+
+	/**
+	 * told about a url disallowed by robots.txt
+	 */
+	private final Consumer<URL> dropped;
+
+	/**
+	 * fetches the robots.txt files
+	 */
+	private final Executor robotsExecutor;
+
+	/**
+	 * every host, by scheme, host and port, guarded by this scheduler
+	 */
+	private final HashMap<String, Host> hosts;
+
+	/**
+	 * hosts with urls that may be fetched now, in turn order
+	 */
+	private final ArrayDeque<Host> ready;
+
+	/**
+	 * hands out urls once a crawl delay passes
+	 */
+	private final ScheduledThreadPoolExecutor timer;
+
+	/**
+	 * the next time the timer hands out urls, or null if not set
+	 */
+	private ScheduledFuture<?> wakeup;
+
+	/**
+	 * when the timer hands out urls next, in milliseconds
+	 */
+	private long wakeupTime;
+
+	/**
+	 * Initializes a scheduler
+	 *
+	 * @param maxPerHost     maximum number of urls of one host being fetched at
+	 *                       once
+	 * @param minDelay       minimum time between two urls of one host, in
+	 *                       milliseconds
+	 * @param robots         true to fetch and respect the robots.txt of every host
+	 * @param robotsExecutor fetches the robots.txt files
+	 * @param dispatcher     fetches a url handed out, and calls
+	 *                       {@link #done(URL)} once it was fetched
+	 * @param dropped        told about a url disallowed by robots.txt
+	 */
+	public HostScheduler(int maxPerHost, long minDelay, boolean robots, Executor robotsExecutor,
+			Consumer<URL> dispatcher, Consumer<URL> dropped) {
+		this.maxPerHost = Math.max(1, maxPerHost);
+		this.minDelay = Math.max(0, minDelay);
+		this.robots = robots;
+		this.robotsExecutor = robotsExecutor;
+		this.dispatcher = dispatcher;
+		this.dropped = dropped;
+		this.hosts = new HashMap<String, Host>();
+		this.ready = new ArrayDeque<Host>();
+		this.timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "HostScheduler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.timer.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Return the key of the host of the url
+	 *
+	 * @param url the url
+	 * @return scheme, host and port
+	 */
+	private static String key(URL url) {
+		int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+		return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + port;
+	}
+
+	/**
+	 * Adds a url to the queue of its host
+	 *
+	 * @param url the url
+	 */
+	public void add(URL url) {
+		boolean fetchRobots = false;
+		boolean allowed = true;
+		Host host;
+		synchronized (this) {
+			host = hosts.computeIfAbsent(key(url), k -> new Host());
+			if (robots && host.rules != null && host.rules.isTemporary()
+					&& System.currentTimeMillis() >= host.retryAt) {
+				// the robots.txt could not be fetched, try again for this url
+				host.rules = null;
+				host.loading = false;
+			}
+			if (robots && host.rules == null) {
+				host.queue.add(url);
+				fetchRobots = !host.loading;
+				host.loading = true;
+			} else if (robots && !host.rules.allows(url)) {
+				allowed = false;
+			} else {
+				host.queue.add(url);
+				makeReady(host);
+			}
+		}
+
+		if (fetchRobots) {
+			robotsExecutor.execute(() -> loaded(host, url, RobotsTxt.fetch(url)));
+		} else if (!allowed) {
+			dropped.accept(url);
+		} else {
+			dispatch();
+		}
+	}
+
+	/**
+	 * Applies the robots.txt of a host to its queued urls, or fetches it again
+	 * later if it could not be fetched
+	 *
+	 * @param host  the host
+	 * @param any   any url of the host
+	 * @param rules its robots.txt
+	 */
+	private void loaded(Host host, URL any, RobotsTxt rules) {
+		ArrayList<URL> disallowed = new ArrayList<URL>();
+		synchronized (this) {
+			long wait = ROBOTS_RETRY << Math.min(host.attempts, 20);
+			if (rules.isTemporary() && ++host.attempts < ROBOTS_ATTEMPTS) {
+				try {
+					// the urls keep waiting for the robots.txt
+					timer.schedule(() -> robotsExecutor.execute(() -> loaded(host, any, RobotsTxt.fetch(any))), wait,
+							TimeUnit.MILLISECONDS);
+					return;
+				} catch (RejectedExecutionException e) {
+					// shut down, drop the urls
+				}
+			}
+			if (rules.isTemporary()) {
+				host.retryAt = System.currentTimeMillis() + wait;
+			}
+			host.attempts = 0;
+			host.rules = rules;
+			host.delay = Math.max(minDelay, rules.getCrawlDelay());
+			host.queue.removeIf(url -> {
+				if (rules.allows(url)) {
+					return false;
+				}
+				disallowed.add(url);
+				return true;
+			});
+			makeReady(host);
+		}
+		for (URL url : disallowed) {
+			dropped.accept(url);
+		}
+		dispatch();
+	}
+
+	/**
+	 * Tells the scheduler a url handed out was fetched, so another url of its
+	 * host may be fetched
+	 *
+	 * @param url the url
+	 */
+	public void done(URL url) {
+		synchronized (this) {
+			Host host = hosts.get(key(url));
+			host.active--;
+			makeReady(host);
+		}
+		dispatch();
+	}
+
+	/**
+	 * Puts the host in line for a turn, if it has urls and is not in line already
+	 *
+	 * @param host the host
+	 */
+	private void makeReady(Host host) {
+		if (!host.ready && !host.queue.isEmpty() && (!robots || host.rules != null)) {
+			host.ready = true;
+			ready.add(host);
+		}
+	}
+
+	/**
+	 * Hands out the urls that may be fetched now, one of every host a turn, and
+	 * sets the timer for the next host waiting for its crawl delay
+	 */
+	private void dispatch() {
+		ArrayList<URL> urls = new ArrayList<URL>();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			long next = Long.MAX_VALUE;
+			boolean handedOut = true;
+			while (handedOut && !ready.isEmpty()) {
+				handedOut = false;
+				for (int turns = ready.size(); turns > 0; turns--) {
+					Host host = ready.poll();
+					if (host.queue.isEmpty() || host.active >= maxPerHost || (robots && host.rules == null)) {
+						// back in line once it gets urls or a url is done
+						host.ready = false;
+						continue;
+					}
+					if (host.next > now) {
+						next = Math.min(next, host.next);
+						ready.add(host);
+						continue;
+					}
+					urls.add(host.queue.poll());
+					host.active++;
+					host.next = now + host.delay;
+					handedOut = true;
+					ready.add(host);
+				}
+			}
+
+			if (next != Long.MAX_VALUE && (wakeup == null || next < wakeupTime)) {
+				if (wakeup != null) {
+					wakeup.cancel(false);
+				}
+				wakeupTime = next;
+				wakeup = timer.schedule(this::wake, Math.max(1, next - now), TimeUnit.MILLISECONDS);
+			}
+		}
+
+		// outside the lock, the dispatcher may wait for a full work queue
+		for (URL url : urls) {
+			dispatcher.accept(url);
+		}
+	}
+
+	/**
+	 * Hands out the urls whose host waited for its crawl delay, on the timer
+	 */
+	private void wake() {
+		synchronized (this) {
+			// so the hand out sets the timer again for the hosts still waiting
+			wakeup = null;
+		}
+		dispatch();
+	}
+
+	/**
+	 * Return the number of hosts seen
+	 *
+	 * @return the number of hosts
+	 */
+	public synchronized int getHostCount() {
+		return hosts.size();
+	}
+
+	/**
+	 * Stops the timer
+	 */
+	public void shutdown() {
+		timer.shutdownNow();
+	}
+
+	/**
+	 * The queue and politeness state of one host
+	 */
+	private static class Host {
+
+		/**
+		 * urls not handed out yet, oldest first
+		 */
+		private final ArrayDeque<URL> queue = new ArrayDeque<URL>();
+
+		/**
+		 * number of urls handed out and not done
+		 */
+		private int active = 0;
+
+		/**
+		 * the earliest time the next url may be handed out, in milliseconds
+		 */
+		private long next = 0;
+
+		/**
+		 * time between two urls, in milliseconds
+		 */
+		private long delay = 0;
+
+		/**
+		 * the robots.txt of the host, or null if not fetched yet
+		 */
+		private RobotsTxt rules = null;
+
+		/**
+		 * true once the robots.txt is being fetched
+		 */
+		private boolean loading = false;
+
+		/**
+		 * number of times in a row the robots.txt could not be fetched
+		 */
+		private int attempts = 0;
+
+		/**
+		 * when a robots.txt that could not be fetched is fetched again, in
+		 * milliseconds
+		 */
+		private long retryAt = 0;
+
+		/**
+		 * true while in line for a turn
+		 */
+		private boolean ready = false;
+	}
+}
@@ -41,36 +41,38 @@ public class HtmlCleaner {
 	public final List<URL> urls;
 
 	/**
-	 * Given a base URL and its HTML content, removes the comments and non-HTML
-	 * elements, parses the remaining links from the anchor tags, and then removes
-	 * all remaining HTML tags and entities.
+	 * Given a base URL and its HTML content, parses the links from the anchor tags
+	 * of the raw HTML, as {@link #listLinks(URL, String)} does, and removes the
+	 * comments, non-HTML elements, tags and entities, all in a single pass with
+	 * {@link HtmlTokenizer}.
 	 *
 	 * @param base the base URL
 	 * @param html the HTML content of that base URL
-	 * @throws MalformedURLException
 	 */
-	public HtmlCleaner(URL base, String html) throws MalformedURLException {
+	public HtmlCleaner(URL base, String html) {
 		this.base = base;
 		this.html = html;
 
 		if (html != null) {
-			// remove comments
-			html = stripComments(html);
-
-			// remove elements that should not be parsed
-			html = stripElement(html, "head");
-			html = stripElement(html, "style");
-			html = stripElement(html, "script");
-			html = stripElement(html, "noscript");
-			html = stripElement(html, "svg");
-
-			// should happen after elements are removed but before tags are removed
-			this.urls = Collections.unmodifiableList(listLinks(base, html));
-
-			html = stripTags(html);
-			html = stripEntities(html);
+			// one pass finds both the links and the text
+			ArrayList<URL> links = new ArrayList<URL>();
+			StringBuilder text = new StringBuilder(html.length());
+			HtmlTokenizer.tokenize(html, new HtmlTokenizer.Handler() {
+				@Override
+				public void text(char[] chars, int offset, int length) {
+					text.append(chars, offset, length);
+				}
 
-			this.text = html;
+				@Override
+				public void link(String href) {
+					URL link = resolveLink(base, href);
+					if (link != null) {
+						links.add(link);
+					}
+				}
+			});
+			this.urls = Collections.unmodifiableList(links);
+			this.text = text.toString();
 		} else {
 			this.urls = null;
 			this.text = null;
@@ -78,9 +80,8 @@ public class HtmlCleaner {
 	}
 
 	/**
-	 * Given a base URL, fetches its HTML content, removes the comments and non-HTML
-	 * elements, parses the remaining links from the anchor tags, and then removes
-	 * all remaining HTML tags and entities.
+	 * Given a base URL, fetches its HTML content, parses the links from the anchor
+	 * tags, and removes the comments, non-HTML elements, tags and entities.
 	 *
 	 * @param base the base URL
 	 * @throws IOException
@@ -93,24 +94,17 @@ public class HtmlCleaner {
 
 	/**
 	 * Removes all HTML tags and certain block elements from the provided text. The
-	 * block elements removed include: head, style, script, noscript, and svg.
+	 * block elements removed include: head, style, script, noscript, and svg. The
+	 * result is the same as removing comments, elements, tags and entities one
+	 * after the other, but found in a single pass.
 	 *
 	 * @param html the HTML to strip tags and elements from
 	 * @return text clean of any HTML tags and certain block elements
 	 */
 	public static String stripHtml(String html) {
-		html = stripComments(html);
-
-		html = stripElement(html, "head");
-		html = stripElement(html, "style");
-		html = stripElement(html, "script");
-		html = stripElement(html, "noscript");
-		html = stripElement(html, "svg");
-
-		html = stripTags(html);
-		html = stripEntities(html);
-
-		return html;
+		StringBuilder text = new StringBuilder(html.length());
+		HtmlTokenizer.tokenize(html, (chars, offset, length) -> text.append(chars, offset, length));
+		return text.toString();
 	}
 
 	/**
@@ -129,58 +123,49 @@ public class HtmlCleaner {
 		}
 	}
 
+	/**
+	 * Converts the href of an anchor tag to an absolute, cleaned HTTP(S) link,
+	 * like {@link #listLinks(URL, String)} does for every link it finds.
+	 *
+	 * @param base the base url used to convert a relative link to absolute
+	 * @param href the href of the anchor tag
+	 * @return the cleaned link, or null if it is not a valid HTTP(S) link
+	 */
+	public static URL resolveLink(URL base, String href) {
+		try {
+			URL link = href.startsWith("http") ? new URL(href) : new URL(base, href);
+			return link.toString().startsWith("http") ? clean(link) : null;
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
 	/**
 	 * Returns a list of all the HTTP(S) links found in the href attribute of the
-	 * anchor tags in the provided HTML. The links will be converted to absolute
+	 * anchor tags in the provided HTML, including those inside comments and
+	 * elements such as scripts, which the text leaves out. The links will be converted to absolute
 	 * using the base URL and cleaned (removing fragments and encoding special
 	 * characters as necessary).
 	 *
-	 * @param base the base url used to convert relative links to absolute3
+	 * @param base the base url used to convert relative links to absolute
 	 * @param html the raw html associated with the base url
 	 * @return cleaned list of all http(s) links in the order they were found
-	 * @throws MalformedURLException
 	 */
-	public static ArrayList<URL> listLinks(URL base, String html) throws MalformedURLException {
-//		System.out.println("PATH -> " + base.getPath());
-//		System.out.println("HOST -> " + base.getHost());
-//		System.out.println(base);
-		try {
-			System.out.println(new URL(base, "testing.html"));
-		} catch (MalformedURLException e) {
-
-			e.printStackTrace();
-		}
-		// System.out.println(html);
-
+	public static ArrayList<URL> listLinks(URL base, String html) {
 		ArrayList<URL> links = new ArrayList<URL>();
-		int GROUP = 1;
-		String REGEX = "(?i)<a(?:[^<>]*?)href=\"([^\"]+?)\"";
-		URL link = null;
-		if (html == null) {
-			// System.out.println(base.toString());
-		}
-		Matcher match = Pattern.compile(REGEX).matcher(html.replaceAll("\\s", "").trim());
-
-		while (match.find()) {
-			try {
-				String site = match.group(GROUP);
-				if (!site.startsWith("http")) {
-					System.out.println("site:   ->" + site);
-					link = new URL(base, site);
+		HtmlTokenizer.tokenize(html, new HtmlTokenizer.Handler() {
+			@Override
+			public void text(char[] chars, int offset, int length) {
+			}
 
-				} else {
-					link = new URL(site);
+			@Override
+			public void link(String href) {
+				URL link = resolveLink(base, href);
+				if (link != null) {
+					links.add(link);
 				}
-				if (link.toString().startsWith("http")) {
-					links.add(clean(link));
-				}
-
-			} catch (MalformedURLException e) {
-				System.err.println("Illegal url:  please check your argument");
-
 			}
-
-		}
+		});
 		return links;
 	}
 
@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the single pass of {@link HtmlCleaner} with the chain of regular
+ * expressions it replaced, which removed comments, every element, tags and
+ * entities one after the other and listed the links of the whole raw page
+ * without white space, comments and elements included. Both must give the same text and links; pages where they do not
+ * are counted.
+ *
+ * Usage: java HtmlCleanerBenchmark [rounds] [html files...]
+ *
+ * Without files, generated pages with comments, scripts, styles, entities and
+ * links are used.
+ */
+public class HtmlCleanerBenchmark {
+
+	/**
+	 * the href of an anchor tag, as the regular expressions found it
+	 */
+	private static final Pattern LINK_REGEX = Pattern.compile("(?i)<a(?:[^<>]*?)href=\"([^\"]+?)\"");
+
+	/**
+	 * sink for the work done, so it is not optimized away
+	 */
+	private static long sink;
+
+	/**
+	 * Runs the benchmark and prints the time of both ways
+	 *
+	 * @param args rounds and html files, all optional
+	 * @throws IOException if a file cannot be read
+	 */
+	public static void main(String[] args) throws IOException {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		URL base = new URL("https://www.example.com/docs/index.html");
+
+		List<String> pages = new ArrayList<String>();
+		for (int i = 1; i < args.length; i++) {
+			pages.add(Files.readString(Paths.get(args[i]), StandardCharsets.UTF_8));
+		}
+		if (pages.isEmpty()) {
+			Random random = new Random(42);
+			for (int i = 0; i < 200; i++) {
+				pages.add(generate(random));
+			}
+		}
+
+		long bytes = 0;
+		int different = 0;
+		for (String html : pages) {
+			bytes += html.length();
+			HtmlCleaner cleaner = new HtmlCleaner(base, html);
+			if (!cleaner.text.equals(regexText(html)) || !cleaner.urls.equals(regexLinks(base, html))) {
+				different++;
+			}
+		}
+		System.out.println("pages: " + pages.size() + ", chars: " + bytes + ", different: " + different);
+
+		for (int round = 0; round <= rounds; round++) {
+			// round 0 warms up the JIT and is not printed
+			long regex = time(() -> {
+				for (String html : pages) {
+					sink += regexText(html).length() + regexLinks(base, html).size();
+				}
+			});
+			long single = time(() -> {
+				for (String html : pages) {
+					HtmlCleaner cleaner = new HtmlCleaner(base, html);
+					sink += cleaner.text.length() + cleaner.urls.size();
+				}
+			});
+			if (round > 0) {
+				System.out.printf("round %d  regex %6d ms (%6.1f MB/s), single pass %6d ms (%6.1f MB/s)%n", round,
+						regex, rate(bytes, regex), single, rate(bytes, single));
+			}
+		}
+		System.out.println("done (" + sink + ")");
+	}
+
+	/**
+	 * Return the text of the page, the way the regular expressions found it
+	 *
+	 * @param html the page
+	 * @return the text
+	 */
+	private static String regexText(String html) {
+		html = HtmlCleaner.stripComments(html);
+		html = HtmlCleaner.stripElement(html, "head");
+		html = HtmlCleaner.stripElement(html, "style");
+		html = HtmlCleaner.stripElement(html, "script");
+		html = HtmlCleaner.stripElement(html, "noscript");
+		html = HtmlCleaner.stripElement(html, "svg");
+		html = HtmlCleaner.stripTags(html);
+		return HtmlCleaner.stripEntities(html);
+	}
+
+	/**
+	 * Return the links of the page, the way the regular expression found them in
+	 * the raw page
+	 *
+	 * @param base the base url of the page
+	 * @param html the page
+	 * @return the links
+	 */
+	private static List<URL> regexLinks(URL base, String html) {
+		List<URL> links = new ArrayList<URL>();
+		Matcher match = LINK_REGEX.matcher(html.replaceAll("\\s", ""));
+		while (match.find()) {
+			URL link = HtmlCleaner.resolveLink(base, match.group(1));
+			if (link != null) {
+				links.add(link);
+			}
+		}
+		return links;
+	}
+
+	/**
+	 * Return the milliseconds the work takes
+	 *
+	 * @param work the work
+	 * @return elapsed milliseconds
+	 */
+	private static long time(Runnable work) {
+		long start = System.nanoTime();
+		work.run();
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	/**
+	 * Return megabytes of characters per second
+	 *
+	 * @param chars  number of characters
+	 * @param millis elapsed milliseconds
+	 * @return the rate
+	 */
+	private static double rate(long chars, long millis) {
+		return millis == 0 ? 0 : chars / 1000.0 / millis;
+	}
+
+	/**
+	 * Return a page of about 50 KB like a crawled one
+	 *
+	 * @param random source of the words and markup
+	 * @return the page
+	 */
+	private static String generate(Random random) {
+		String[] words = { "search", "engine", "index", "the", "running", "café", "query", "crawler", "of",
+				"2010&ndash;2012", "a&amp;b", "stemming", " words" };
+		StringBuilder html = new StringBuilder();
+		html.append("<!DOCTYPE html>\n<html>\n<head>\n<title>Page</title>\n");
+		html.append("<style type=\"text/css\">body { font-size: 10pt; }</style>\n</head>\n<body>\n");
+		while (html.length() < 50000) {
+			switch (random.nextInt(8)) {
+			case 0:
+				html.append("<!-- comment ").append(random.nextInt()).append(" <a href=\"old.html\">old</a> -->\n");
+				break;
+			case 1:
+				html.append("<script>var x = \"<a href='no.html'>\";</script>\n");
+				break;
+			case 2:
+				html.append("<a class=\"link\"\n   href=\"page").append(random.nextInt(1000))
+						.append(".html#top\">link</a>\n");
+				break;
+			case 3:
+				html.append("<A HREF=\"https://www.example.org/q?x=").append(random.nextInt(100))
+						.append("&y=z\">other</A>\n");
+				break;
+			default:
+				html.append("<p>");
+				for (int i = 0; i < 20; i++) {
+					html.append(words[random.nextInt(words.length)]).append(' ');
+				}
+				html.append("</p>\n");
+			}
+		}
+		html.append("</body>\n</html>\n");
+		return html.toString();
+	}
+}
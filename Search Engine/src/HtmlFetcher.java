@@ -1,11 +1,20 @@
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.FilterInputStream;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -17,6 +26,38 @@ import java.util.regex.Pattern;
  */
 public class HtmlFetcher {
 
+	/** The default maximum size of a page streamed, in bytes. */
+	public static final long DEFAULT_MAX_PAGE_SIZE = 10L << 20;
+
+	/**
+	 * buffers to decode a page streamed, reused by every page of a thread
+	 */
+	private static final ThreadLocal<Decoder> DECODERS = ThreadLocal.withInitial(Decoder::new);
+
+	/**
+	 * pages fetched before, asked for again only if changed, or null
+	 */
+	private static volatile HttpCache cache = null;
+
+	/**
+	 * Keeps the html pages fetched in the cache, and asks for a page in the cache
+	 * only if it changed
+	 *
+	 * @param httpCache the cache, or null to fetch every page in full
+	 */
+	public static void setCache(HttpCache httpCache) {
+		cache = httpCache;
+	}
+
+	/**
+	 * Return the cache of the html pages fetched
+	 *
+	 * @return the cache, or null if none
+	 */
+	public static HttpCache getCache() {
+		return cache;
+	}
+
 	/**
 	 * Returns {@code true} if and only if there is a "Content-Type" header and the
 	 * first value of that header starts with the value "text/html"
@@ -83,6 +124,51 @@ public class HtmlFetcher {
 		return code >= 300 && code < 400 && headers.containsKey("Location") && !headers.get("Location").isEmpty();
 	}
 
+	/**
+	 * Return the url a redirect points to. A relative "Location" is resolved
+	 * against the url that was redirected, and the fragment is removed, so every
+	 * way of fetching follows a redirect to the same url.
+	 *
+	 * @param url     the url that was redirected
+	 * @param headers the HTTP/1.1 headers of a redirect, see
+	 *                {@link #isRedirect(Map)}
+	 * @return the url to fetch next, or {@code null} if the location is not a
+	 *         valid url
+	 */
+	public static URL getRedirect(URL url, Map<String, List<String>> headers) {
+		try {
+			return HtmlCleaner.clean(new URL(url, headers.get("Location").get(0).trim()));
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Fetches the resource at the URL like {@link #fetchHTML(URL, int)}, and
+	 * returns the url the page was found at after redirects along with its HTML
+	 *
+	 * @param url       the url to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @return the page or {@code null} if unable to fetch the resource or the
+	 *         resource is not html
+	 * @throws IOException
+	 */
+	public static Page fetchPage(URL url, int redirects) throws IOException {
+		HttpCache httpCache = cache;
+		if (httpCache != null) {
+			return fetchPage(url, redirects, httpCache);
+		}
+		var header = HttpsFetcher.fetchURL(url);
+		int statusCode = getStatusCode(header);
+		if (isHTML(header) && statusCode >= 200 && statusCode < 300) {
+			return new Page(url, String.join("\n", header.get("Content")));
+		} else if (isRedirect(header) && redirects > 0) {
+			URL location = getRedirect(url, header);
+			return location == null ? null : fetchPage(location, redirects - 1);
+		}
+		return null;
+	}
+
 	/**
 	 * Fetches the resource at the URL using HTTP/1.1 and sockets. If the status
 	 * code is 200 and the content type is HTML, returns the HTML as a single
@@ -106,19 +192,138 @@ public class HtmlFetcher {
 	 * @see #isRedirect(Map)
 	 */
 	public static String fetchHTML(URL url, int redirects) throws IOException {
-		var header = HttpsFetcher.fetchURL(url);
-//		System.out.println(header);
+		Page page = fetchPage(url, redirects);
+		return page == null ? null : page.html;
+	}
+
+	/**
+	 * Fetches the resource at the URL like {@link #fetchPage(URL, int)}, asking
+	 * for a page in the cache only if it changed, and keeping the page fetched in
+	 * the cache
+	 *
+	 * @param url       the url to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @param httpCache the cache
+	 * @return the page or {@code null} if unable to fetch the resource or the
+	 *         resource is not html
+	 * @throws IOException
+	 */
+	private static Page fetchPage(URL url, int redirects, HttpCache httpCache) throws IOException {
+		HttpCache.Entry cached = httpCache.get(url);
+		var header = HttpsFetcher.fetchURL(url, HttpCache.conditions(cached), (headers, body) -> {
+			byte[] bytes = body.readAllBytes();
+			int statusCode = getStatusCode(headers);
+			if (isHTML(headers) && statusCode >= 200 && statusCode < 300 && HttpCache.isCacheable(headers)) {
+				try {
+					httpCache.put(url, headers, bytes);
+				} catch (IOException e) {
+					System.err.println("Unable to cache " + url + ": " + e.getMessage());
+				}
+			}
+			headers.put("Content", HttpsFetcher.getContent(bytes));
+			return headers;
+		});
+		if (cached != null && getStatusCode(header) == 304) {
+			byte[] bytes = httpCache.read(cached);
+			if (bytes == null) {
+				// removed from the cache meanwhile, fetch it in full
+				return fetchPage(url, redirects, httpCache);
+			}
+			header = cached.headers(header);
+			header.put("Content", HttpsFetcher.getContent(bytes));
+		}
 		int statusCode = getStatusCode(header);
-//		System.out.println(statusCode);
 		if (isHTML(header) && statusCode >= 200 && statusCode < 300) {
-			return String.join("\n", header.get("Content"));
+			return new Page(url, String.join("\n", header.get("Content")));
 		} else if (isRedirect(header) && redirects > 0) {
-			var location = header.get("Location").toString();
-			return fetchHTML(location.substring(1, location.length() - 1), redirects - 1);
+			URL location = getRedirect(url, header);
+			return location == null ? null : fetchPage(location, redirects - 1, httpCache);
 		}
 		return null;
 	}
 
+	/**
+	 * Fetches the resource at the URL like {@link #fetchPage(URL, int)}, but
+	 * passes the HTML to a tokenizer while it arrives instead of returning it.
+	 * The bytes are decoded as UTF-8 into a buffer reused for every page, so the
+	 * page is never held in memory as a whole. Pages larger than the maximum size
+	 * are cut off at that size.
+	 *
+	 * The handler of the page is only created once the redirects are followed,
+	 * for the url the page is found at, so its relative links are resolved
+	 * against that url.
+	 *
+	 * @param <H>       type of the handler
+	 * @param url       the url to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @param maxBytes  maximum size of the page, after decompressing
+	 * @param handlers  creates the handler receiving the text and links of the
+	 *                  page, given the url the page was found at
+	 * @return the handler the page was passed to, or {@code null} if the resource
+	 *         is not html
+	 * @throws IOException
+	 *
+	 * @see HttpsFetcher#fetchURL(URL, HttpsFetcher.BodyReader)
+	 * @see HtmlTokenizer
+	 */
+	public static <H extends HtmlTokenizer.Handler> H fetchHTML(URL url, int redirects, long maxBytes,
+			Function<URL, H> handlers) throws IOException {
+		HttpCache httpCache = cache;
+		HttpCache.Entry cached = httpCache == null ? null : httpCache.get(url);
+		AtomicReference<H> handler = new AtomicReference<H>();
+		var header = HttpsFetcher.fetchURL(url, HttpCache.conditions(cached), (headers, body) -> {
+			int statusCode = getStatusCode(headers);
+			if (isHTML(headers) && statusCode >= 200 && statusCode < 300) {
+				handler.set(handlers.apply(url));
+				if (httpCache == null || !HttpCache.isCacheable(headers)) {
+					tokenize(body, maxBytes, handler.get());
+					return headers;
+				}
+				// keep a copy of the bytes while they arrive, if the whole page is read
+				try (CopyingInputStream copy = new CopyingInputStream(body, httpCache, url, headers)) {
+					tokenize(copy, maxBytes, handler.get());
+					copy.commit();
+				}
+			}
+			return headers;
+		});
+		if (cached != null && getStatusCode(header) == 304) {
+			InputStream body = httpCache.open(cached);
+			if (body == null) {
+				// removed from the cache meanwhile, fetch it in full
+				return fetchHTML(url, redirects, maxBytes, handlers);
+			}
+			H page = handlers.apply(url);
+			try (body) {
+				tokenize(body, maxBytes, page);
+			}
+			return page;
+		}
+		int statusCode = getStatusCode(header);
+		if (isHTML(header) && statusCode >= 200 && statusCode < 300) {
+			return handler.get();
+		} else if (isRedirect(header) && redirects > 0) {
+			URL location = getRedirect(url, header);
+			return location == null ? null : fetchHTML(location, redirects - 1, maxBytes, handlers);
+		}
+		return null;
+	}
+
+	/**
+	 * Decodes the html and passes it to a new tokenizer
+	 *
+	 * @param body     the html
+	 * @param maxBytes maximum size of the page, larger pages are cut off
+	 * @param handler  receives the text and links of the page
+	 * @throws IOException
+	 */
+	private static void tokenize(InputStream body, long maxBytes, HtmlTokenizer.Handler handler)
+			throws IOException {
+		HtmlTokenizer tokenizer = new HtmlTokenizer(handler);
+		DECODERS.get().decode(new LimitedInputStream(body, maxBytes), tokenizer);
+		tokenizer.finish();
+	}
+
 	/**
 	 * Converts the {@link String} url into a {@link URL} object and then calls
 	 * {@link #fetchHTML(URL, int)}.
@@ -165,4 +370,190 @@ public class HtmlFetcher {
 	public static String fetchHTML(URL url) throws IOException {
 		return fetchHTML(url, 0);
 	}
+
+	/**
+	 * An html page fetched, with the url it was found at after redirects
+	 */
+	public static class Page {
+
+		/**
+		 * The url of the page, after redirects. Relative links of the page are
+		 * relative to it.
+		 */
+		public final URL url;
+
+		/**
+		 * The HTML of the page.
+		 */
+		public final String html;
+
+		/**
+		 * @param url  the url of the page, after redirects
+		 * @param html the HTML of the page
+		 */
+		public Page(URL url, String html) {
+			this.url = url;
+			this.html = html;
+		}
+	}
+
+	/**
+	 * Copies the bytes of a page to the cache while they are read. A page that
+	 * cannot be copied is still read, just not kept.
+	 */
+	private static class CopyingInputStream extends FilterInputStream {
+
+		/**
+		 * the copy, or null once it failed
+		 */
+		private HttpCache.Writer writer;
+
+		/**
+		 * @param in        the body of the page
+		 * @param httpCache the cache
+		 * @param url       the url of the page
+		 * @param headers   the response headers
+		 */
+		private CopyingInputStream(InputStream in, HttpCache httpCache, URL url, Map<String, List<String>> headers) {
+			super(in);
+			try {
+				this.writer = httpCache.writer(url, headers);
+			} catch (IOException e) {
+				System.err.println("Unable to cache " + url + ": " + e.getMessage());
+				this.writer = null;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				copy(new byte[] { (byte) b }, 0, 1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			int read = in.read(bytes, offset, length);
+			if (read > 0) {
+				copy(bytes, offset, read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// skipped bytes are not copied, so the copy is not the whole page
+			abandon();
+			return in.skip(n);
+		}
+
+		/**
+		 * Writes bytes read to the copy
+		 *
+		 * @param bytes  the bytes
+		 * @param offset the offset of the first byte
+		 * @param length the number of bytes
+		 */
+		private void copy(byte[] bytes, int offset, int length) {
+			if (writer != null) {
+				try {
+					writer.write(bytes, offset, length);
+				} catch (IOException e) {
+					abandon();
+				}
+			}
+		}
+
+		/**
+		 * Keeps the copy if the whole page was read
+		 *
+		 * @throws IOException if unable to read the page
+		 */
+		private void commit() throws IOException {
+			if (writer != null && read() == -1) {
+				try {
+					writer.commit();
+				} catch (IOException e) {
+					System.err.println("Unable to cache a page: " + e.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * Throws the copy away
+		 */
+		private void abandon() {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					// the copy is thrown away anyway
+				}
+				writer = null;
+			}
+		}
+
+		/**
+		 * Throws the copy away unless it was kept, leaving the page open
+		 */
+		@Override
+		public void close() {
+			abandon();
+		}
+	}
+
+	/**
+	 * Decodes UTF-8 bytes into characters with buffers kept between pages
+	 */
+	private static class Decoder {
+
+		/**
+		 * the decoder, replacing malformed input like {@link String#String(byte[],
+		 * java.nio.charset.Charset)}
+		 */
+		private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+		/**
+		 * bytes read and not decoded yet
+		 */
+		private final ByteBuffer bytes = ByteBuffer.allocate(1 << 13);
+
+		/**
+		 * characters decoded
+		 */
+		private final CharBuffer chars = CharBuffer.allocate(1 << 13);
+
+		/**
+		 * Decodes the whole stream and passes the characters to the tokenizer
+		 *
+		 * @param in        the stream
+		 * @param tokenizer receives the characters
+		 * @throws IOException
+		 */
+		private void decode(InputStream in, HtmlTokenizer tokenizer) throws IOException {
+			decoder.reset();
+			bytes.clear();
+			boolean end = false;
+			while (!end) {
+				int read = in.read(bytes.array(), bytes.position(), bytes.remaining());
+				if (read < 0) {
+					end = true;
+				} else {
+					bytes.position(bytes.position() + read);
+				}
+				bytes.flip();
+				chars.clear();
+				decoder.decode(bytes, chars, end);
+				if (end) {
+					decoder.flush(chars);
+				}
+				bytes.compact();
+				chars.flip();
+				tokenizer.feed(chars.array(), 0, chars.limit());
+			}
+		}
+	}
 }
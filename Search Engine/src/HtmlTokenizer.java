@@ -0,0 +1,632 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Removes HTML comments, non-HTML elements, tags and entities from HTML while
+ * it arrives, and reports the remaining text and the links of the anchor tags
+ * to a {@link Handler}. The text is the same as from
+ * {@link HtmlCleaner#stripHtml(String)}, but it is found in a single pass over
+ * the characters and the whole page never has to be held in memory.
+ *
+ * Only a comment, element or tag that is not closed yet is kept. If the page
+ * ends before it is closed, it was not one; its characters are scanned again
+ * the way the regular expressions of {@link HtmlCleaner} would see them.
+ *
+ * Links are found in the raw HTML without white space, the way the regular
+ * expression of {@link HtmlCleaner#listLinks(java.net.URL, String)} always found them,
+ * so the anchor tags inside comments and removed elements are links too. They
+ * are matched as the characters arrive, before anything is removed.
+ */
+public class HtmlTokenizer {
+
+	/**
+	 * Receives the text and links of the HTML
+	 */
+	public interface Handler {
+
+		/**
+		 * Receives the next part of the text. The characters are only valid until
+		 * this method returns.
+		 *
+		 * @param chars  the characters
+		 * @param offset the index of the first character
+		 * @param length the number of characters
+		 */
+		void text(char[] chars, int offset, int length);
+
+		/**
+		 * Receives the href of an anchor tag, as found in the raw HTML without
+		 * white space, even inside a comment or removed element
+		 *
+		 * @param href the link, maybe relative
+		 */
+		default void link(String href) {
+		}
+	}
+
+	/**
+	 * elements removed with everything inside
+	 */
+	private static final String[] ELEMENTS = { "head", "style", "script", "noscript", "svg" };
+
+	/**
+	 * the start of the href of an anchor tag, in lower case
+	 */
+	private static final String HREF = "href=\"";
+
+	/**
+	 * inside a tag
+	 */
+	private static final int TAG = 0;
+
+	/**
+	 * inside a comment
+	 */
+	private static final int COMMENT = 1;
+
+	/**
+	 * inside an element removed with its content
+	 */
+	private static final int ELEMENT = 2;
+
+	/**
+	 * a '<' that did not start a comment or element, only a tag
+	 */
+	private static final int ONLY_TAG = 1;
+
+	/**
+	 * a '<' that did not start anything
+	 */
+	private static final int ONLY_TEXT = 2;
+
+	/**
+	 * looking for the '<' of an anchor tag
+	 */
+	private static final int LINK_NONE = 0;
+
+	/**
+	 * after a '<', looking for the 'a'
+	 */
+	private static final int LINK_OPEN = 1;
+
+	/**
+	 * inside an anchor tag, looking for the href
+	 */
+	private static final int LINK_ANCHOR = 2;
+
+	/**
+	 * inside the quotes of the href
+	 */
+	private static final int LINK_HREF = 3;
+
+	/**
+	 * receives the text and links
+	 */
+	private final Handler handler;
+
+	/**
+	 * characters of the comment, element or tag not closed yet
+	 */
+	private final StringBuilder pending;
+
+	/**
+	 * position of the first pending character
+	 */
+	private long pendingStart;
+
+	/**
+	 * position of the next character
+	 */
+	private long position;
+
+	/**
+	 * positions of a '<' found not to start a comment, element or tag
+	 */
+	private final HashMap<Long, Integer> failed;
+
+	/**
+	 * number of comments, elements and tags open, each inside the one before;
+	 * the regular expressions remove comments first, then elements in the order
+	 * of {@link #ELEMENTS}, then tags, so each can only be inside a later one
+	 */
+	private int depth;
+
+	/**
+	 * what each open one is
+	 */
+	private int[] type;
+
+	/**
+	 * where each open one starts in the pending characters
+	 */
+	private int[] start;
+
+	/**
+	 * index of the name of each open element
+	 */
+	private int[] element;
+
+	/**
+	 * number of characters of the element name matched, or -1 if the whole name
+	 * was matched and the element ends at the next '>'
+	 */
+	private int[] matched;
+
+	/**
+	 * what matched was before the last '<' of each open element
+	 */
+	private int[] matchedBefore;
+
+	/**
+	 * true if the last character of a comment was '-'
+	 */
+	private boolean dash;
+
+	/**
+	 * what the link being found is at, LINK_NONE to LINK_HREF
+	 */
+	private int linkState;
+
+	/**
+	 * number of characters of the start of the href matched
+	 */
+	private int hrefMatched;
+
+	/**
+	 * the href found so far
+	 */
+	private final StringBuilder href;
+
+	/**
+	 * a possible entity, from '&'
+	 */
+	private final StringBuilder entity;
+
+	/**
+	 * true if the possible entity has its optional '.'
+	 */
+	private boolean entityDot;
+
+	/**
+	 * text not reported yet
+	 */
+	private final char[] text;
+
+	/**
+	 * number of characters in text
+	 */
+	private int length;
+
+	/**
+	 * Initializes a tokenizer
+	 *
+	 * @param handler receives the text and links
+	 */
+	public HtmlTokenizer(Handler handler) {
+		this.handler = handler;
+		this.depth = 0;
+		this.type = new int[4];
+		this.start = new int[4];
+		this.element = new int[4];
+		this.matched = new int[4];
+		this.matchedBefore = new int[4];
+		this.pending = new StringBuilder();
+		this.failed = new HashMap<Long, Integer>();
+		this.linkState = LINK_NONE;
+		this.hrefMatched = 0;
+		this.href = new StringBuilder();
+		this.entity = new StringBuilder();
+		this.text = new char[1 << 12];
+		this.length = 0;
+		this.position = 0;
+	}
+
+	/**
+	 * Scans the next characters of the HTML
+	 *
+	 * @param chars  the characters
+	 * @param offset the index of the first character
+	 * @param count  the number of characters
+	 */
+	public void feed(char[] chars, int offset, int count) {
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			link(chars[i]);
+			scan(chars[i], position++);
+		}
+		flush();
+	}
+
+	/**
+	 * Scans the next characters of the HTML
+	 *
+	 * @param chars the characters
+	 */
+	public void feed(CharSequence chars) {
+		for (int i = 0; i < chars.length(); i++) {
+			link(chars.charAt(i));
+			scan(chars.charAt(i), position++);
+		}
+		flush();
+	}
+
+	/**
+	 * Scans what is left at the end of the HTML and reports the rest of the text
+	 */
+	public void finish() {
+		while (depth > 0) {
+			// the innermost one open was not one after all
+			int top = depth - 1;
+			failed.put(pendingStart + start[top], type[top] == TAG ? ONLY_TEXT : ONLY_TAG);
+
+			String rescan = pending.toString();
+			long first = pendingStart;
+			depth = 0;
+			pending.setLength(0);
+			for (int i = 0; i < rescan.length(); i++) {
+				scan(rescan.charAt(i), first + i);
+			}
+		}
+		flushEntity();
+		flush();
+	}
+
+	/**
+	 * Removes the HTML of a whole page, see {@link HtmlCleaner#stripHtml(String)}
+	 *
+	 * @param html    the HTML
+	 * @param handler receives the text and links
+	 */
+	public static void tokenize(CharSequence html, Handler handler) {
+		HtmlTokenizer tokenizer = new HtmlTokenizer(handler);
+		tokenizer.feed(html);
+		tokenizer.finish();
+	}
+
+	/**
+	 * Return what a '<' was found to start
+	 *
+	 * @param position position of the '<'
+	 * @return 0, ONLY_TAG or ONLY_TEXT
+	 */
+	private int failed(long position) {
+		if (failed.isEmpty()) {
+			return 0;
+		}
+		return failed.getOrDefault(position, 0);
+	}
+
+	/**
+	 * Scans one character
+	 *
+	 * @param c        the character
+	 * @param position position of the character
+	 */
+	private void scan(char c, long position) {
+		if (depth == 0) {
+			if (c == '<' && failed(position) != ONLY_TEXT) {
+				pending.setLength(0);
+				pending.append(c);
+				pendingStart = position;
+				push(TAG, 0, 0);
+			} else {
+				text(c);
+			}
+			return;
+		}
+
+		pending.append(c);
+		int top = depth - 1;
+		switch (type[top]) {
+		case COMMENT:
+			if (dash && c == '>') {
+				pop();
+			} else {
+				dash = c == '-';
+			}
+			return;
+
+		case TAG:
+			if (c == '>') {
+				pop();
+				return;
+			}
+			break;
+
+		case ELEMENT:
+			if (c == '<') {
+				matchedBefore[top] = matched[top];
+			}
+			if (match(top, c)) {
+				pop();
+				return;
+			}
+			break;
+		}
+		open(top);
+	}
+
+	/**
+	 * Opens a comment or element ending with the last pending character, if it
+	 * can be inside the innermost one open
+	 *
+	 * @param top the innermost one open
+	 */
+	private void open(int top) {
+		int n = pending.length();
+		char c = pending.charAt(n - 1);
+		if (c == '-') {
+			int at = n - 3;
+			if (at >= start[top] && pending.charAt(at) == '<' && pending.charAt(at + 1) == '!'
+					&& failed(pendingStart + at) == 0) {
+				dash = false;
+				nest(top, at, COMMENT, 0);
+			}
+			return;
+		}
+		if (c != 'd' && c != 'e' && c != 't' && c != 'g' && c != 'D' && c != 'E' && c != 'T' && c != 'G') {
+			return;
+		}
+		int names = type[top] == TAG ? ELEMENTS.length : element[top];
+		for (int i = 0; i < names; i++) {
+			int at = n - ELEMENTS[i].length() - 1;
+			if (at >= start[top] && startsElement(at, ELEMENTS[i]) && failed(pendingStart + at) == 0) {
+				nest(top, at, ELEMENT, i);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Opens a comment or element inside the innermost one open, or turns the
+	 * innermost tag into it if they start at the same '<'
+	 *
+	 * @param top  the innermost one open
+	 * @param at   where it starts in the pending characters
+	 * @param kind COMMENT or ELEMENT
+	 * @param name index of the element name
+	 */
+	private void nest(int top, int at, int kind, int name) {
+		if (type[top] == TAG && at == start[top]) {
+			depth--;
+		} else if (type[top] == ELEMENT) {
+			// the characters from the '<' are not part of the outer element
+			matched[top] = matchedBefore[top];
+		}
+		push(kind, at, name);
+	}
+
+	/**
+	 * Opens a comment, element or tag
+	 *
+	 * @param kind COMMENT, ELEMENT or TAG
+	 * @param at   where it starts in the pending characters
+	 * @param name index of the element name
+	 */
+	private void push(int kind, int at, int name) {
+		if (depth == type.length) {
+			type = Arrays.copyOf(type, depth * 2);
+			start = Arrays.copyOf(start, depth * 2);
+			element = Arrays.copyOf(element, depth * 2);
+			matched = Arrays.copyOf(matched, depth * 2);
+			matchedBefore = Arrays.copyOf(matchedBefore, depth * 2);
+		}
+		type[depth] = kind;
+		start[depth] = at;
+		element[depth] = name;
+		matched[depth] = 0;
+		depth++;
+	}
+
+	/**
+	 * Closes the innermost one open. A comment or element becomes a single space,
+	 * a tag nothing.
+	 */
+	private void pop() {
+		depth--;
+		if (depth == 0) {
+			if (type[0] != TAG) {
+				text(' ');
+			}
+		} else if (type[depth - 1] == ELEMENT) {
+			match(depth - 1, ' ');
+		}
+	}
+
+	/**
+	 * Matches the next character against the end of an element, the name
+	 * followed by optional white space and '>'
+	 *
+	 * @param top the element
+	 * @param c   the character
+	 * @return true if the element ends
+	 */
+	private boolean match(int top, char c) {
+		String name = ELEMENTS[element[top]];
+		if (matched[top] < 0) {
+			if (c == '>') {
+				return true;
+			}
+			if (isSpace(c)) {
+				return false;
+			}
+			matched[top] = 0;
+		}
+		char lower = lower(c);
+		if (lower == name.charAt(matched[top])) {
+			matched[top]++;
+		} else {
+			matched[top] = lower == name.charAt(0) ? 1 : 0;
+		}
+		if (matched[top] == name.length()) {
+			matched[top] = -1;
+		}
+		return false;
+	}
+
+	/**
+	 * Return whether the pending characters from the index are '&lt;' and the
+	 * element name
+	 *
+	 * @param at   the index
+	 * @param name the element name
+	 * @return true if the element starts
+	 */
+	private boolean startsElement(int at, String name) {
+		if (pending.charAt(at) != '<') {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			if (lower(pending.charAt(at + i + 1)) != name.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Looks for links in the next character of the raw HTML, the way
+	 * {@code (?i)<a(?:[^<>]*?)href="([^"]+?)"} finds them with the white space
+	 * removed, and reports every link found
+	 *
+	 * @param c the character
+	 */
+	private void link(char c) {
+		if (isSpace(c)) {
+			return;
+		}
+		switch (linkState) {
+		case LINK_HREF:
+			if (c != '"') {
+				href.append(c);
+			} else if (href.length() > 0) {
+				handler.link(href.toString());
+				href.setLength(0);
+				linkState = LINK_NONE;
+			} else {
+				// an empty href, look for another one in the same tag
+				linkState = LINK_ANCHOR;
+				hrefMatched = 0;
+			}
+			return;
+
+		case LINK_ANCHOR:
+			if (c != '<' && c != '>') {
+				char lower = lower(c);
+				if (lower == HREF.charAt(hrefMatched)) {
+					if (++hrefMatched == HREF.length()) {
+						linkState = LINK_HREF;
+					}
+				} else {
+					hrefMatched = lower == HREF.charAt(0) ? 1 : 0;
+				}
+				return;
+			}
+			break;
+
+		case LINK_OPEN:
+			if (lower(c) == 'a') {
+				linkState = LINK_ANCHOR;
+				hrefMatched = 0;
+				return;
+			}
+			break;
+		}
+		linkState = c == '<' ? LINK_OPEN : LINK_NONE;
+	}
+
+	/**
+	 * Adds a character of the text, removing entities
+	 *
+	 * @param c the character
+	 */
+	private void text(char c) {
+		if (entity.length() > 0) {
+			if (!entityDot && isEntity(c)) {
+				entity.append(c);
+				return;
+			}
+			if (!entityDot && c == '.' && entity.length() > 1) {
+				entity.append(c);
+				entityDot = true;
+				return;
+			}
+			if (c == ';' && entity.length() > 1) {
+				entity.setLength(0);
+				entityDot = false;
+				return;
+			}
+			flushEntity();
+		}
+		if (c == '&') {
+			entity.append(c);
+		} else {
+			append(c);
+		}
+	}
+
+	/**
+	 * Adds a possible entity that turned out not to be one to the text
+	 */
+	private void flushEntity() {
+		for (int i = 0; i < entity.length(); i++) {
+			append(entity.charAt(i));
+		}
+		entity.setLength(0);
+		entityDot = false;
+	}
+
+	/**
+	 * Adds a character to the text not reported yet
+	 *
+	 * @param c the character
+	 */
+	private void append(char c) {
+		if (length == text.length) {
+			flush();
+		}
+		text[length++] = c;
+	}
+
+	/**
+	 * Reports the text so far to the handler
+	 */
+	private void flush() {
+		if (length > 0) {
+			handler.text(text, 0, length);
+			length = 0;
+		}
+	}
+
+	/**
+	 * Return whether the character can be part of an entity, same as
+	 * {@link HtmlCleaner#stripEntities(String)}
+	 *
+	 * @param c the character
+	 * @return true if part of an entity
+	 */
+	private static boolean isEntity(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '|' || c == '<'
+				|| c == '>' || c == '{' || c == '}' || c == '#';
+	}
+
+	/**
+	 * Return whether the character is white space in a regular expression
+	 *
+	 * @param c the character
+	 * @return true if white space
+	 */
+	private static boolean isSpace(char c) {
+		return c == ' ' || (c >= '\t' && c <= '\r');
+	}
+
+	/**
+	 * Return the character in lower case, for ASCII letters only
+	 *
+	 * @param c the character
+	 * @return the lower case character
+	 */
+	private static char lower(char c) {
+		return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+	}
+}
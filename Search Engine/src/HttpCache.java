@@ -0,0 +1,533 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of fetched pages on disk, so a later crawl only asks the server
+ * whether a page changed instead of fetching it again. Every page is kept with
+ * its ETag and Last-Modified header; the next request for it sends them as
+ * If-None-Match and If-Modified-Since, and a 304 Not Modified response means
+ * the page on disk is used.
+ *
+ * Pages are kept by their normalized url, one file a page. When the pages take
+ * more than the maximum size, the least recently used are removed. The order of
+ * use is kept in the modification time of the files, so it lasts between
+ * crawls.
+ */
+public class HttpCache {
+
+	/** The default maximum size of the pages kept, in bytes. */
+	public static final long DEFAULT_MAX_SIZE = 256L << 20;
+
+	/**
+	 * marks the start of a file of the cache, and its format
+	 */
+	private static final int MAGIC = 0x48434331;
+
+	/**
+	 * directory of the files
+	 */
+	private final Path directory;
+
+	/**
+	 * maximum size of the pages kept, in bytes
+	 */
+	private final long maxSize;
+
+	/**
+	 * pages kept, by normalized url, least recently used first, guarded by this
+	 * cache
+	 */
+	private final LinkedHashMap<String, Entry> entries;
+
+	/**
+	 * size of the pages kept, in bytes, guarded by this cache
+	 */
+	private long size;
+
+	/**
+	 * number of pages not changed since they were kept
+	 */
+	private final AtomicLong revalidated;
+
+	/**
+	 * number of pages kept or replaced
+	 */
+	private final AtomicLong stored;
+
+	/**
+	 * number of pages removed to make room
+	 */
+	private final AtomicLong evicted;
+
+	/**
+	 * Opens the cache in the directory, creating it if needed, and reads the
+	 * pages kept by earlier crawls
+	 *
+	 * @param directory directory of the files
+	 * @param maxSize   maximum size of the pages kept, in bytes
+	 * @throws IOException if unable to create or read the directory
+	 */
+	public HttpCache(Path directory, long maxSize) throws IOException {
+		this.directory = directory;
+		this.maxSize = Math.max(0, maxSize);
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		this.size = 0;
+		this.revalidated = new AtomicLong();
+		this.stored = new AtomicLong();
+		this.evicted = new AtomicLong();
+
+		Files.createDirectories(directory);
+		ArrayList<Entry> found = new ArrayList<Entry>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.page")) {
+			for (Path file : files) {
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+					Entry entry = readEntry(in, file);
+					entry.used = Files.getLastModifiedTime(file).toMillis();
+					found.add(entry);
+				} catch (IOException e) {
+					// unreadable or from an unfinished write
+					Files.deleteIfExists(file);
+				}
+			}
+		}
+		found.sort((a, b) -> Long.compare(a.used, b.used));
+		synchronized (this) {
+			for (Entry entry : found) {
+				entries.put(entry.key, entry);
+				size += entry.length;
+			}
+			evict();
+		}
+	}
+
+	/**
+	 * Return the page kept for the url
+	 *
+	 * @param url the url
+	 * @return the page, or null if none
+	 */
+	public synchronized Entry get(URL url) {
+		return entries.get(UrlFrontier.normalize(url));
+	}
+
+	/**
+	 * Return the headers asking the server to send the page only if it changed
+	 *
+	 * @param entry the page kept, or null
+	 * @return the If-None-Match and If-Modified-Since headers, empty if the page
+	 *         is null
+	 */
+	public static Map<String, String> conditions(Entry entry) {
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		if (entry != null) {
+			if (!entry.etag.isEmpty()) {
+				headers.put("If-None-Match", entry.etag);
+			}
+			if (!entry.lastModified.isEmpty()) {
+				headers.put("If-Modified-Since", entry.lastModified);
+			}
+		}
+		return headers;
+	}
+
+	/**
+	 * Return whether a page can be asked for again with the headers of its
+	 * response
+	 *
+	 * @param headers the response headers
+	 * @return true if the response has an ETag or Last-Modified header
+	 */
+	public static boolean isCacheable(Map<String, List<String>> headers) {
+		String control = HttpsFetcher.getHeader(headers, "Cache-Control");
+		if (control != null && control.toLowerCase(Locale.ROOT).contains("no-store")) {
+			return false;
+		}
+		return HttpsFetcher.getHeader(headers, "ETag") != null
+				|| HttpsFetcher.getHeader(headers, "Last-Modified") != null;
+	}
+
+	/**
+	 * Opens the body of a page kept, after a 304 Not Modified response, and marks
+	 * it as used
+	 *
+	 * @param entry the page
+	 * @return the body, or null if the page was removed meanwhile
+	 * @throws IOException if unable to read the file
+	 */
+	public InputStream open(Entry entry) throws IOException {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry.file), 1 << 13));
+		} catch (NoSuchFileException e) {
+			remove(entry);
+			return null;
+		}
+		try {
+			readEntry(in, entry.file);
+		} catch (IOException e) {
+			in.close();
+			remove(entry);
+			return null;
+		}
+		revalidated.incrementAndGet();
+		synchronized (this) {
+			// move it to the end of the order of use
+			entries.get(entry.key);
+		}
+		try {
+			Files.setLastModifiedTime(entry.file, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			// only the order of use after a restart is off
+		}
+		return in;
+	}
+
+	/**
+	 * Reads the whole body of a page kept, after a 304 Not Modified response
+	 *
+	 * @param entry the page
+	 * @return the body, or null if the page was removed meanwhile
+	 * @throws IOException if unable to read the file
+	 */
+	public byte[] read(Entry entry) throws IOException {
+		InputStream in = open(entry);
+		if (in == null) {
+			return null;
+		}
+		try (in) {
+			return in.readAllBytes();
+		}
+	}
+
+	/**
+	 * Keeps the body of a page, replacing the one kept before
+	 *
+	 * @param url     the url
+	 * @param headers the response headers
+	 * @param body    the body, without transfer and content encoding
+	 * @throws IOException if unable to write the file
+	 */
+	public void put(URL url, Map<String, List<String>> headers, byte[] body) throws IOException {
+		try (Writer writer = writer(url, headers)) {
+			writer.write(body);
+			writer.commit();
+		}
+	}
+
+	/**
+	 * Starts keeping the body of a page while it is read. The page replaces the
+	 * one kept before only once {@link Writer#commit()} is called; closing the
+	 * writer without it throws the page away.
+	 *
+	 * @param url     the url
+	 * @param headers the response headers
+	 * @return the writer of the body
+	 * @throws IOException if unable to create the file
+	 */
+	public Writer writer(URL url, Map<String, List<String>> headers) throws IOException {
+		String key = UrlFrontier.normalize(url);
+		String etag = HttpsFetcher.getHeader(headers, "ETag");
+		String lastModified = HttpsFetcher.getHeader(headers, "Last-Modified");
+		String type = HttpsFetcher.getHeader(headers, "Content-Type");
+		Entry entry = new Entry(key, directory.resolve(fileName(key)), etag == null ? "" : etag,
+				lastModified == null ? "" : lastModified, type == null ? "" : type);
+		return new Writer(entry);
+	}
+
+	/**
+	 * Removes the page, if it is the one kept
+	 *
+	 * @param entry the page
+	 */
+	private synchronized void remove(Entry entry) {
+		if (entries.remove(entry.key, entry)) {
+			size -= entry.length;
+		}
+	}
+
+	/**
+	 * Adds a page just written, replacing the one kept before, and makes room
+	 *
+	 * @param entry the page
+	 */
+	private synchronized void added(Entry entry) {
+		Entry old = entries.put(entry.key, entry);
+		if (old != null) {
+			size -= old.length;
+		}
+		size += entry.length;
+		stored.incrementAndGet();
+		evict();
+	}
+
+	/**
+	 * Removes the least recently used pages until the pages fit in the maximum
+	 * size
+	 */
+	private synchronized void evict() {
+		Iterator<Entry> oldest = entries.values().iterator();
+		while (size > maxSize && oldest.hasNext()) {
+			Entry entry = oldest.next();
+			oldest.remove();
+			size -= entry.length;
+			evicted.incrementAndGet();
+			try {
+				Files.deleteIfExists(entry.file);
+			} catch (IOException e) {
+				System.err.println("Unable to remove " + entry.file + " from the cache: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Return the number of pages kept
+	 *
+	 * @return the number of pages
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Return a summary of how often pages were found unchanged
+	 *
+	 * @return the report
+	 */
+	public String report() {
+		long hits = revalidated.get();
+		long fetched = stored.get();
+		long total = hits + fetched;
+		synchronized (this) {
+			return String.format(Locale.ROOT, "cache: %d not modified, %d fetched (%.1f%% not modified), "
+					+ "%d evicted, %d pages, %d bytes%n", hits, fetched, total == 0 ? 0.0 : 100.0 * hits / total,
+					evicted.get(), entries.size(), size);
+		}
+	}
+
+	/**
+	 * Return the name of the file of a normalized url
+	 *
+	 * @param key the normalized url
+	 * @return the file name
+	 */
+	private static String fileName(String key) {
+		// two different hashes, so a collision of one does not mix pages up
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return String.format(Locale.ROOT, "%016x%08x.page", hash, key.hashCode());
+	}
+
+	/**
+	 * Reads the header of a file, leaving the stream at the start of the body
+	 *
+	 * @param in   the file
+	 * @param file the path of the file
+	 * @return the page
+	 * @throws IOException if the file is not a page of the cache
+	 */
+	private static Entry readEntry(DataInputStream in, Path file) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a cached page: " + file);
+		}
+		Entry entry = new Entry(in.readUTF(), file, in.readUTF(), in.readUTF(), in.readUTF());
+		entry.length = in.readLong();
+		return entry;
+	}
+
+	/**
+	 * A page kept
+	 */
+	public static class Entry {
+
+		/**
+		 * the normalized url
+		 */
+		private final String key;
+
+		/**
+		 * the file of the page
+		 */
+		private final Path file;
+
+		/**
+		 * the ETag of the page, or empty
+		 */
+		private final String etag;
+
+		/**
+		 * the Last-Modified time of the page, or empty
+		 */
+		private final String lastModified;
+
+		/**
+		 * the Content-Type of the page, or empty
+		 */
+		private final String contentType;
+
+		/**
+		 * size of the body, in bytes
+		 */
+		private long length;
+
+		/**
+		 * when the page was last used, in milliseconds, while reading the directory
+		 */
+		private long used;
+
+		/**
+		 * @param key          the normalized url
+		 * @param file         the file of the page
+		 * @param etag         the ETag of the page, or empty
+		 * @param lastModified the Last-Modified time of the page, or empty
+		 * @param contentType  the Content-Type of the page, or empty
+		 */
+		private Entry(String key, Path file, String etag, String lastModified, String contentType) {
+			this.key = key;
+			this.file = file;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.contentType = contentType;
+		}
+
+		/**
+		 * Return the response headers to use for the page instead of a 304 Not
+		 * Modified response
+		 *
+		 * @param headers the headers of the 304 response
+		 * @return the headers with a 200 status and the kept Content-Type
+		 */
+		public Map<String, List<String>> headers(Map<String, List<String>> headers) {
+			Map<String, List<String>> merged = new HashMap<String, List<String>>(headers);
+			merged.put(null, List.of("HTTP/1.1 200 OK"));
+			merged.put("Content-Type", List.of(contentType));
+			return merged;
+		}
+	}
+
+	/**
+	 * Writes the body of a page to a new file, which replaces the page kept
+	 * before once committed
+	 */
+	public class Writer extends OutputStream {
+
+		/**
+		 * the page written
+		 */
+		private final Entry entry;
+
+		/**
+		 * the new file, moved over the page kept once committed
+		 */
+		private final Path temp;
+
+		/**
+		 * the new file
+		 */
+		private final DataOutputStream out;
+
+		/**
+		 * size of the body written, in bytes
+		 */
+		private long length;
+
+		/**
+		 * true once committed or thrown away
+		 */
+		private boolean closed;
+
+		/**
+		 * @param entry the page written
+		 * @throws IOException if unable to create the file
+		 */
+		private Writer(Entry entry) throws IOException {
+			this.entry = entry;
+			this.temp = Files.createTempFile(directory, "page", ".tmp");
+			this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 13));
+			this.length = 0;
+			this.closed = false;
+			try {
+				out.writeInt(MAGIC);
+				out.writeUTF(entry.key);
+				out.writeUTF(entry.etag);
+				out.writeUTF(entry.lastModified);
+				out.writeUTF(entry.contentType);
+				// the body size, written once known
+				out.writeLong(0);
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			length++;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int count) throws IOException {
+			out.write(bytes, offset, count);
+			length += count;
+		}
+
+		/**
+		 * Keeps the page written, replacing the one kept before
+		 *
+		 * @throws IOException if unable to write the file
+		 */
+		public void commit() throws IOException {
+			out.close();
+			try (SeekableByteChannel file = Files.newByteChannel(temp, StandardOpenOption.WRITE)) {
+				file.position(Files.size(temp) - length - Long.BYTES);
+				file.write(ByteBuffer.allocate(Long.BYTES).putLong(0, length));
+			}
+			Files.move(temp, entry.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			closed = true;
+			entry.length = length;
+			added(entry);
+		}
+
+		/**
+		 * Throws the page away unless it was committed
+		 */
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				try {
+					out.close();
+				} finally {
+					Files.deleteIfExists(temp);
+				}
+			}
+		}
+	}
+}
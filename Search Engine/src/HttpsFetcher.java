@@ -1,9 +1,16 @@
 import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.io.PrintWriter;
+import java.io.StringReader;
 import java.net.MalformedURLException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.UnknownHostException;
@@ -12,7 +19,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
@@ -20,29 +31,571 @@ import javax.net.ssl.SSLSocketFactory;
 /**
  * An alternative to using {@link Socket} connections instead of a
  * {@link URLConnection} to fetch the headers and content from a URL on the web.
+ *
+ * Connections are kept open with HTTP/1.1 keep-alive and reused through a
+ * {@link ConnectionPool}, which needs the end of every response body to be
+ * known from its Content-Length or chunked transfer encoding.
  */
 public class HttpsFetcher {
 
+	/**
+	 * connections kept open between requests
+	 */
+	private static volatile ConnectionPool pool = new ConnectionPool();
+
+	/**
+	 * most bytes skipped after a partly read body to keep its connection open
+	 */
+	private static final int MAX_SKIP = 1 << 16;
+
+	/** The default time a whole request may take, in milliseconds. */
+	public static final long DEFAULT_REQUEST_TIMEOUT = 30_000;
+
+	/**
+	 * time a whole request may take, in milliseconds, or 0 for no limit
+	 */
+	private static volatile long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+
+	/**
+	 * latency and errors of every host, backing off the slow ones
+	 */
+	private static volatile HostMonitor monitor = new HostMonitor();
+
+	/**
+	 * closes the connections of requests past their time
+	 */
+	private static final ScheduledThreadPoolExecutor DEADLINES = new ScheduledThreadPoolExecutor(1, runnable -> {
+		Thread thread = new Thread(runnable, "HttpsFetcher deadlines");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	static {
+		DEADLINES.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Replaces the connection pool, closing the idle connections of the old one
+	 *
+	 * @param connectionPool the new connection pool
+	 */
+	public static void setConnectionPool(ConnectionPool connectionPool) {
+		ConnectionPool old = pool;
+		pool = connectionPool;
+		old.close();
+	}
+
+	/**
+	 * Returns the connection pool used by {@link #fetchURL(URL)}.
+	 *
+	 * @return the connection pool
+	 */
+	public static ConnectionPool getConnectionPool() {
+		return pool;
+	}
+
+	/**
+	 * Sets the time a whole request may take, from asking for a connection until
+	 * the body is received. Time the reader of the body spends between reads, like
+	 * indexing a page as it streams in, is not counted.
+	 *
+	 * @param timeout the time, in milliseconds, or 0 for no limit
+	 */
+	public static void setRequestTimeout(long timeout) {
+		requestTimeout = Math.max(0, timeout);
+	}
+
+	/**
+	 * Returns the time a whole request may take.
+	 *
+	 * @return the time, in milliseconds, or 0 for no limit
+	 */
+	public static long getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	/**
+	 * Replaces the monitor of the hosts
+	 *
+	 * @param hostMonitor the new monitor
+	 */
+	public static void setHostMonitor(HostMonitor hostMonitor) {
+		monitor = hostMonitor;
+	}
+
+	/**
+	 * Returns the monitor of the latency and errors of every host.
+	 *
+	 * @return the host monitor
+	 */
+	public static HostMonitor getHostMonitor() {
+		return monitor;
+	}
+
+	/**
+	 * Reads the body of a response as it arrives
+	 *
+	 * @param <T> the result of reading the response
+	 */
+	public interface BodyReader<T> {
+
+		/**
+		 * Reads the body of a response. The body may be read only in part; the
+		 * rest is skipped or the connection closed.
+		 *
+		 * @param headers the header fields, with the status line under the
+		 *                {@code null} key
+		 * @param body    the body, without transfer and content encoding
+		 * @return the result
+		 * @throws IOException if unable to read the body
+		 */
+		T read(Map<String, List<String>> headers, InputStream body) throws IOException;
+	}
+
 	/**
 	 * Fetches the headers and content for the specified URL. The content is placed
 	 * as a list of all the lines fetched under the "Content" key.
 	 *
+	 * The connection is taken from the connection pool and given back once the
+	 * response is read, unless the server closes it. A request on a reused
+	 * connection the server has closed meanwhile is retried once on a new one.
+	 *
 	 * @param url the url to fetch
 	 * @return a map with the headers and content
 	 * @throws IOException if unable to fetch headers and content
 	 */
 	public static Map<String, List<String>> fetchURL(URL url) throws IOException {
-		try (Socket socket = openConnection(url);
-				PrintWriter request = new PrintWriter(socket.getOutputStream());
-				InputStreamReader input = new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8);
-				BufferedReader response = new BufferedReader(input);) {
-			printGetRequest(request, url);
-			Map<String, List<String>> headers = getHeaderFields(response);
-			List<String> content = getContent(response);
-			headers.put("Content", content);
-
+		return fetchURL(url, (headers, body) -> {
+			headers.put("Content", getContent(body.readAllBytes()));
 			return headers;
+		});
+	}
+
+	/**
+	 * Fetches the specified URL and passes the body to the reader while it
+	 * arrives, so the body never has to be held in memory. Chunked transfer
+	 * encoding and gzip content encoding are decoded on the way.
+	 *
+	 * The connection is taken from the connection pool and given back once the
+	 * reader returns, if the rest of the body is short enough to skip. A request
+	 * on a reused connection the server has closed meanwhile is retried once on a
+	 * new one, as long as the reader was not called yet.
+	 *
+	 * The connection is closed if the whole request takes longer than the request
+	 * timeout, on top of the connect and read timeouts of the pool. Every request
+	 * is recorded by the host monitor; a host it backs off fails at once.
+	 *
+	 * @param <T>    the result of reading the response
+	 * @param url    the url to fetch
+	 * @param reader reads the headers and body
+	 * @return the result of the reader
+	 * @throws IOException if unable to fetch headers and content, for example a
+	 *                     {@link SocketTimeoutException} or a
+	 *                     {@link HostMonitor.BackoffException}
+	 */
+	public static <T> T fetchURL(URL url, BodyReader<T> reader) throws IOException {
+		return fetchURL(url, Map.of(), reader);
+	}
+
+	/**
+	 * Fetches the specified URL like {@link #fetchURL(URL, BodyReader)}, sending
+	 * extra header fields with the request, for example to ask for the body only
+	 * if it changed
+	 *
+	 * @param <T>            the result of reading the response
+	 * @param url            the url to fetch
+	 * @param requestHeaders extra header fields of the request, by name
+	 * @param reader         reads the headers and body
+	 * @return the result of the reader
+	 * @throws IOException if unable to fetch headers and content
+	 */
+	public static <T> T fetchURL(URL url, Map<String, String> requestHeaders, BodyReader<T> reader)
+			throws IOException {
+		ConnectionPool connections = pool;
+		HostMonitor hosts = monitor;
+		hosts.acquire(url.getHost());
+
+		long timeout = requestTimeout;
+		Clock clock = new Clock(timeout);
+		boolean success = false;
+		try {
+			while (true) {
+				ConnectionPool.Connection connection = connections.acquire(url);
+				clock.watch(connection);
+				boolean reusable = false;
+				boolean reading = false;
+				try {
+					OutputStream out = connection.getOutputStream();
+					out.write(getRequest(url, true, true, requestHeaders).getBytes(StandardCharsets.ISO_8859_1));
+					out.flush();
+
+					InputStream in = connection.getInputStream();
+					String status = readLine(in);
+					if (status == null) {
+						throw new EOFException("Connection closed by " + url.getHost());
+					}
+					Map<String, List<String>> headers = readHeaderFields(in, status);
+					InputStream body = openBody(in, headers);
+
+					reading = true;
+					String encoding = getHeader(headers, "Content-Encoding");
+					boolean gzip = encoding != null && encoding.toLowerCase().contains("gzip");
+					InputStream timed = clock.time(body);
+					T result = reader.read(headers, gzip ? gunzip(timed) : timed);
+					clock.resume();
+					reusable = body != in && keepAlive(headers) && skip(body);
+					success = true;
+					return result;
+				} catch (IOException e) {
+					if (connection.isAborted()) {
+						throw new SocketTimeoutException(
+								"Request to " + url.getHost() + " took longer than " + timeout + " ms");
+					}
+					if (reading || !connection.isReused()) {
+						throw e;
+					}
+					// stale keep-alive connection, try again on a new one
+				} finally {
+					clock.cancel();
+					if (reusable && !connection.isAborted()) {
+						connections.release(connection);
+					} else {
+						connections.discard(connection);
+					}
+				}
+			}
+		} finally {
+			hosts.record(url.getHost(), clock.elapsed(), success);
+		}
+	}
+
+	/**
+	 * Measures the time of a request until its body is received, and aborts its
+	 * connection once that takes longer than the request timeout. The clock is
+	 * stopped while the reader of the body works between two reads.
+	 */
+	private static class Clock {
+
+		/**
+		 * time the request may take, in milliseconds, or 0 for no limit
+		 */
+		private final long timeout;
+
+		/**
+		 * when the request started, in milliseconds
+		 */
+		private final long start;
+
+		/**
+		 * time the clock was stopped, in milliseconds
+		 */
+		private long stopped;
+
+		/**
+		 * when the clock was stopped, or 0 while it runs
+		 */
+		private long stoppedSince;
+
+		/**
+		 * the connection of the current attempt
+		 */
+		private ConnectionPool.Connection connection;
+
+		/**
+		 * aborts the connection of the current attempt, or null
+		 */
+		private ScheduledFuture<?> deadline;
+
+		/**
+		 * @param timeout time the request may take, in milliseconds, or 0 for no
+		 *                limit
+		 */
+		private Clock(long timeout) {
+			this.timeout = timeout;
+			this.start = System.currentTimeMillis();
+			this.stopped = 0;
+			this.stoppedSince = 0;
+		}
+
+		/**
+		 * Return the time the request took so far, without the time the clock was
+		 * stopped
+		 *
+		 * @return the time, in milliseconds
+		 */
+		private synchronized long elapsed() {
+			long now = System.currentTimeMillis();
+			return now - start - stopped - (stoppedSince > 0 ? now - stoppedSince : 0);
+		}
+
+		/**
+		 * Starts watching the connection of an attempt
+		 *
+		 * @param watched the connection
+		 */
+		private synchronized void watch(ConnectionPool.Connection watched) {
+			connection = watched;
+			schedule();
+		}
+
+		/**
+		 * Aborts the connection if the request is out of time, or checks again when
+		 * it would be. While the clock is stopped the time cannot run out, so the
+		 * check is left to {@link #resume()}.
+		 */
+		private synchronized void schedule() {
+			deadline = null;
+			if (timeout <= 0 || connection == null || stoppedSince > 0) {
+				return;
+			}
+			long left = timeout - elapsed();
+			if (left <= 0) {
+				connection.abort();
+			} else {
+				deadline = DEADLINES.schedule(this::schedule, left, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		/**
+		 * Stops watching the connection of the attempt
+		 */
+		private synchronized void cancel() {
+			connection = null;
+			resume();
+			if (deadline != null) {
+				deadline.cancel(false);
+				deadline = null;
+			}
+		}
+
+		/**
+		 * Stops the clock while the reader works
+		 */
+		private synchronized void stop() {
+			if (stoppedSince == 0) {
+				stoppedSince = System.currentTimeMillis();
+			}
+		}
+
+		/**
+		 * Starts the clock again before waiting for the server, checking the time
+		 * left if no check is pending
+		 */
+		private synchronized void resume() {
+			if (stoppedSince > 0) {
+				stopped += System.currentTimeMillis() - stoppedSince;
+				stoppedSince = 0;
+				if (deadline == null) {
+					schedule();
+				}
+			}
+		}
+
+		/**
+		 * Return the body, stopping the clock between its reads
+		 *
+		 * @param body the body
+		 * @return the timed body
+		 */
+		private InputStream time(InputStream body) {
+			return new FilterInputStream(body) {
+				@Override
+				public int read() throws IOException {
+					resume();
+					try {
+						return super.read();
+					} finally {
+						stop();
+					}
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					resume();
+					try {
+						return super.read(b, off, len);
+					} finally {
+						stop();
+					}
+				}
+
+				@Override
+				public long skip(long n) throws IOException {
+					resume();
+					try {
+						return super.skip(n);
+					} finally {
+						stop();
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * Return the gzip compressed body uncompressed. An empty body, like the body of
+	 * a redirect or a 304 response that still names its encoding, stays empty
+	 * instead of failing for lack of a gzip header.
+	 *
+	 * @param body the compressed body
+	 * @return the uncompressed body
+	 * @throws IOException if the body is not valid gzip
+	 */
+	private static InputStream gunzip(InputStream body) throws IOException {
+		PushbackInputStream peek = new PushbackInputStream(body, 1);
+		int first = peek.read();
+		if (first < 0) {
+			return InputStream.nullInputStream();
+		}
+		peek.unread(first);
+		return new GZIPInputStream(peek, 1 << 13);
+	}
+
+	/**
+	 * Return the body of the response, delimited by its Content-Length or chunked
+	 * encoding
+	 *
+	 * @param in      the response stream
+	 * @param headers the header fields of the response
+	 * @return the body, or the response stream itself if the end of the body is
+	 *         only marked by closing the connection
+	 */
+	private static InputStream openBody(InputStream in, Map<String, List<String>> headers) {
+		int status = HtmlFetcher.getStatusCode(headers);
+		if (status == 204 || status == 304 || (status >= 100 && status < 200)) {
+			return InputStream.nullInputStream();
+		}
+
+		String encoding = getHeader(headers, "Transfer-Encoding");
+		if (encoding != null && encoding.toLowerCase().contains("chunked")) {
+			return new ChunkedInputStream(in);
 		}
+
+		String length = getHeader(headers, "Content-Length");
+		if (length != null) {
+			try {
+				return new LimitedInputStream(in, Long.parseLong(length.trim()));
+			} catch (NumberFormatException e) {
+				return in;
+			}
+		}
+		return in;
+	}
+
+	/**
+	 * Skips the rest of a body the reader did not read, if it is short
+	 *
+	 * @param body the body
+	 * @return true if the whole body was read
+	 * @throws IOException
+	 */
+	private static boolean skip(InputStream body) throws IOException {
+		byte[] buffer = new byte[1 << 12];
+		long skipped = 0;
+		int read;
+		while (skipped < MAX_SKIP && (read = body.read(buffer)) != -1) {
+			skipped += read;
+		}
+		if (body instanceof LimitedInputStream && ((LimitedInputStream) body).remaining() > 0) {
+			// the server closed the connection early
+			return false;
+		}
+		return body.read() == -1;
+	}
+
+	/**
+	 * Reads one header line, ending with CRLF or LF, as ISO-8859-1
+	 *
+	 * @param in the response stream
+	 * @return the line without its end, or null at the end of the stream
+	 * @throws IOException
+	 */
+	static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r') {
+					line.setLength(length - 1);
+				}
+				return line.toString();
+			}
+			line.append((char) b);
+		}
+		return line.length() == 0 ? null : line.toString();
+	}
+
+	/**
+	 * Reads the header fields following the status line
+	 *
+	 * @param in     the response stream
+	 * @param status the status line, stored under the {@code null} key
+	 * @return a map of header fields to a list of header values
+	 * @throws IOException
+	 *
+	 * @see #getHeaderFields(BufferedReader)
+	 */
+	static Map<String, List<String>> readHeaderFields(InputStream in, String status) throws IOException {
+		Map<String, List<String>> results = new HashMap<>();
+		results.put(null, List.of(status));
+
+		String line;
+		while ((line = readLine(in)) != null && !line.isBlank()) {
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				results.computeIfAbsent(line.substring(0, colon), k -> new ArrayList<>())
+						.add(line.substring(colon + 1).trim());
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Decodes a body as UTF-8 and splits it into lines
+	 *
+	 * @param body the body
+	 * @return a list of the lines of the body
+	 * @throws IOException
+	 *
+	 * @see #getContent(BufferedReader)
+	 */
+	static List<String> getContent(byte[] body) throws IOException {
+		return getContent(new BufferedReader(new StringReader(new String(body, StandardCharsets.UTF_8))));
+	}
+
+	/**
+	 * Return the first value of the header, ignoring the case of its name
+	 *
+	 * @param headers the header fields
+	 * @param name    the header name
+	 * @return the value, or null if missing
+	 */
+	static String getHeader(Map<String, List<String>> headers, String name) {
+		for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+			if (entry.getKey() != null && entry.getKey().equalsIgnoreCase(name) && !entry.getValue().isEmpty()) {
+				return entry.getValue().get(0);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Return whether the server keeps the connection open after the response
+	 *
+	 * @param headers the header fields of the response
+	 * @return true if the connection can be reused
+	 */
+	private static boolean keepAlive(Map<String, List<String>> headers) {
+		String connection = getHeader(headers, "Connection");
+		if (connection != null && connection.toLowerCase().contains("close")) {
+			return false;
+		}
+		String status = headers.get(null).get(0);
+		if (status.startsWith("HTTP/1.0")) {
+			return connection != null && connection.toLowerCase().contains("keep-alive");
+		}
+		return true;
 	}
 
 	/**
@@ -61,7 +614,8 @@ public class HttpsFetcher {
 
 	/**
 	 * Uses a {@link Socket} to open a connection to the web server associated with
-	 * the provided URL. Supports HTTP and HTTPS connections.
+	 * the provided URL. Supports HTTP and HTTPS connections. Uses the connect and
+	 * read timeouts of the connection pool.
 	 *
 	 * @param url the url to connect
 	 * @return a socket connection for that url
@@ -78,8 +632,17 @@ public class HttpsFetcher {
 		int defaultPort = https ? 443 : 80;
 		int port = url.getPort() < 0 ? defaultPort : url.getPort();
 
-		return https ? SSLSocketFactory.getDefault().createSocket(host, port)
-				: SocketFactory.getDefault().createSocket(host, port);
+		ConnectionPool connections = pool;
+		Socket socket = SocketFactory.getDefault().createSocket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), connections.getConnectTimeout());
+			socket.setSoTimeout(connections.getReadTimeout());
+			return https ? ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(socket, host, port, true)
+					: socket;
+		} catch (IOException | RuntimeException e) {
+			socket.close();
+			throw e;
+		}
 	}
 
 	/**
@@ -90,14 +653,53 @@ public class HttpsFetcher {
 	 * @throws IOException
 	 */
 	public static void printGetRequest(PrintWriter writer, URL url) throws IOException {
+		writer.print(getRequest(url, false));
+		writer.flush();
+	}
+
+	/**
+	 * Return a simple HTTP GET request
+	 *
+	 * @param url       the url to fetch
+	 * @param keepAlive true to ask the server to keep the connection open
+	 * @return the request
+	 */
+	static String getRequest(URL url, boolean keepAlive) {
+		return getRequest(url, keepAlive, false);
+	}
+
+	/**
+	 * Return a simple HTTP GET request
+	 *
+	 * @param url       the url to fetch
+	 * @param keepAlive true to ask the server to keep the connection open
+	 * @param gzip      true to accept a gzip compressed body
+	 * @return the request
+	 */
+	static String getRequest(URL url, boolean keepAlive, boolean gzip) {
+		return getRequest(url, keepAlive, gzip, Map.of());
+	}
+
+	/**
+	 * Return a simple HTTP GET request
+	 *
+	 * @param url            the url to fetch
+	 * @param keepAlive      true to ask the server to keep the connection open
+	 * @param gzip           true to accept a gzip compressed body
+	 * @param requestHeaders extra header fields, by name
+	 * @return the request
+	 */
+	static String getRequest(URL url, boolean keepAlive, boolean gzip, Map<String, String> requestHeaders) {
 		String host = url.getHost();
 		String resource = url.getFile().isEmpty() ? "/" : url.getFile();
 
-		writer.printf("GET %s HTTP/1.1\r\n", resource);
-		writer.printf("Host: %s\r\n", host);
-		writer.printf("Connection: close\r\n");
-		writer.printf("\r\n");
-		writer.flush();
+		StringBuilder extra = new StringBuilder();
+		for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+			extra.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		}
+		return String.format("GET %s HTTP/1.1\r\n", resource) + String.format("Host: %s\r\n", host)
+				+ (gzip ? "Accept-Encoding: gzip\r\n" : "") + extra
+				+ (keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n") + "\r\n";
 	}
 
 	/**
@@ -0,0 +1,374 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Frozen inverted index stored in a compact binary segment file. Opening a
+ * segment maps the file into memory and only reads the locations table and the
+ * term dictionary, so it takes memory and time in proportion to the number of
+ * words, not of postings. The postings of a word are decoded into arrays of
+ * their own the first time the word is accessed.
+ *
+ * <pre>
+ * header      magic, version, #documents, #terms, #postings, #positions
+ * locations   for every document: word count, location
+ * dictionary  for every word: word, #documents, #positions, postings length
+ * postings    for every word: for every document: document id delta,
+ *             frequency, position deltas
+ * </pre>
+ *
+ * All counts, lengths and deltas in the dictionary and postings are variable
+ * length ints (7 bits per byte). Strings are a length followed by UTF-8 bytes.
+ * Segments are limited to 2 GB, the size of one mapped buffer.
+ */
+public class IndexSegment extends FrozenInvertedIndex {
+
+	/**
+	 * first bytes of every segment file
+	 */
+	private static final int MAGIC = 0x53454731;
+
+	/**
+	 * version of the segment format
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * the mapped segment file
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * offset in the file of the postings of every word
+	 */
+	private final int[] blockOffsets;
+
+	/**
+	 * number of postings of every word
+	 */
+	private final int[] postingCounts;
+
+	/**
+	 * number of positions of every word
+	 */
+	private final int[] positionCounts;
+
+	/**
+	 * total number of postings
+	 */
+	private final int totalPostings;
+
+	/**
+	 * total number of positions
+	 */
+	private final int totalPositions;
+
+	/**
+	 * the decoded postings of every word, null until first accessed
+	 */
+	private final AtomicReferenceArray<Block> blocks;
+
+	/**
+	 * Initializes the segment from the dictionary read out of the file
+	 *
+	 * @param buffer         the mapped segment file
+	 * @param blockOffsets   offset in the file of the postings of every word
+	 * @param terms          all words, sorted
+	 * @param postingCounts  number of postings of every word
+	 * @param positionCounts number of positions of every word
+	 * @param totalPostings  total number of postings
+	 * @param totalPositions total number of positions
+	 * @param locations      location of every document, sorted
+	 * @param count          total number of words of every document
+	 */
+	private IndexSegment(ByteBuffer buffer, int[] blockOffsets, String[] terms, int[] postingCounts,
+			int[] positionCounts, int totalPostings, int totalPositions, String[] locations, int[] count) {
+		super(terms, locations, count);
+		this.buffer = buffer;
+		this.blockOffsets = blockOffsets;
+		this.postingCounts = postingCounts;
+		this.positionCounts = positionCounts;
+		this.totalPostings = totalPostings;
+		this.totalPositions = totalPositions;
+		this.blocks = new AtomicReferenceArray<Block>(terms.length);
+	}
+
+	/**
+	 * Return the postings of the word, decoding them the first time. Two threads
+	 * may both decode the same word; they get equal postings, and one of them is
+	 * kept.
+	 */
+	@Override
+	protected Block block(int term) {
+		Block block = blocks.get(term);
+		if (block == null) {
+			block = decode(term);
+			blocks.set(term, block);
+		}
+		return block;
+	}
+
+	/**
+	 * Decodes the postings of the word from the mapped file
+	 *
+	 * @param term ordinal of the word
+	 * @return the postings, in arrays of their own
+	 */
+	private Block decode(int term) {
+		int size = postingCounts[term];
+		int[] documents = new int[size];
+		int[] frequencies = new int[size];
+		int[] positionOffsets = new int[size + 1];
+		int[] positions = new int[positionCounts[term]];
+
+		int[] offset = { blockOffsets[term] };
+		int position = 0;
+		int document = 0;
+		for (int p = 0; p < size; p++) {
+			document += readVarInt(buffer, offset);
+			int frequency = readVarInt(buffer, offset);
+			documents[p] = document;
+			frequencies[p] = frequency;
+			positionOffsets[p] = position;
+
+			int value = 0;
+			for (int i = 0; i < frequency; i++) {
+				value += readVarInt(buffer, offset);
+				positions[position++] = value;
+			}
+		}
+		positionOffsets[size] = position;
+		return new Block(documents, frequencies, positionOffsets, positions, 0, size);
+	}
+
+	@Override
+	protected int postingCount() {
+		return totalPostings;
+	}
+
+	@Override
+	protected int positionCount() {
+		return totalPositions;
+	}
+
+	/**
+	 * Opens a segment file written by {@link #write(FrozenInvertedIndex, Path)}.
+	 * Only the locations table and the term dictionary are read; postings are
+	 * decoded on first access.
+	 *
+	 * @param path the segment file
+	 * @return the index stored in the segment
+	 * @throws IOException if unable to read the file or the file is not a segment
+	 */
+	public static IndexSegment open(Path path) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer = mapped;
+		}
+
+		if (buffer.limit() < 24 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not an index segment: " + path);
+		}
+		int documentCount = buffer.getInt(8);
+		int termCount = buffer.getInt(12);
+		int totalPostings = buffer.getInt(16);
+		int totalPositions = buffer.getInt(20);
+		int[] offset = { 24 };
+
+		String[] locations = new String[documentCount];
+		int[] count = new int[documentCount];
+		for (int i = 0; i < documentCount; i++) {
+			count[i] = readVarInt(buffer, offset);
+			locations[i] = readString(buffer, offset);
+		}
+
+		String[] terms = new String[termCount];
+		int[] postingCounts = new int[termCount];
+		int[] positionCounts = new int[termCount];
+		int[] blockLengths = new int[termCount];
+		long postings = 0;
+		long positions = 0;
+		for (int t = 0; t < termCount; t++) {
+			terms[t] = readString(buffer, offset);
+			postingCounts[t] = readVarInt(buffer, offset);
+			positionCounts[t] = readVarInt(buffer, offset);
+			blockLengths[t] = readVarInt(buffer, offset);
+			postings += postingCounts[t];
+			positions += positionCounts[t];
+		}
+		if (postings != totalPostings || positions != totalPositions) {
+			throw new IOException("Corrupted index segment: " + path);
+		}
+
+		int[] blockOffsets = new int[termCount];
+		long block = offset[0];
+		for (int t = 0; t < termCount; t++) {
+			blockOffsets[t] = (int) block;
+			block += blockLengths[t];
+		}
+		if (block > buffer.limit()) {
+			throw new IOException("Truncated index segment: " + path);
+		}
+
+		return new IndexSegment(buffer, blockOffsets, terms, postingCounts, positionCounts, totalPostings,
+				totalPositions, locations, count);
+	}
+
+	/**
+	 * Writes the frozen index to a segment file
+	 *
+	 * @param index the index to write
+	 * @param path  the segment file
+	 * @throws IOException if unable to write the file
+	 */
+	public static void write(FrozenInvertedIndex index, Path path) throws IOException {
+		String[] terms = index.terms;
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(index.locations.length);
+			out.writeInt(terms.length);
+			out.writeInt(index.postingCount());
+			out.writeInt(index.positionCount());
+
+			for (int i = 0; i < index.locations.length; i++) {
+				writeVarInt(out, index.count[i]);
+				writeString(out, index.locations[i]);
+			}
+
+			for (int t = 0; t < terms.length; t++) {
+				Block block = index.block(t);
+				writeString(out, terms[t]);
+				writeVarInt(out, block.end - block.start);
+				writeVarInt(out, block.positionOffsets[block.end] - block.positionOffsets[block.start]);
+				writeVarInt(out, blockLength(block));
+			}
+
+			for (int t = 0; t < terms.length; t++) {
+				Block block = index.block(t);
+				int document = 0;
+				for (int p = block.start; p < block.end; p++) {
+					writeVarInt(out, block.documents[p] - document);
+					writeVarInt(out, block.frequencies[p]);
+					document = block.documents[p];
+
+					int value = 0;
+					for (int i = block.positionOffsets[p]; i < block.positionOffsets[p + 1]; i++) {
+						writeVarInt(out, block.positions[i] - value);
+						value = block.positions[i];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the number of bytes the postings of a word take in the file
+	 *
+	 * @param block the postings of the word
+	 * @return length of the postings in bytes
+	 */
+	private static int blockLength(Block block) {
+		int length = 0;
+		int document = 0;
+		for (int p = block.start; p < block.end; p++) {
+			length += varIntLength(block.documents[p] - document);
+			length += varIntLength(block.frequencies[p]);
+			document = block.documents[p];
+
+			int value = 0;
+			for (int i = block.positionOffsets[p]; i < block.positionOffsets[p + 1]; i++) {
+				length += varIntLength(block.positions[i] - value);
+				value = block.positions[i];
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Return the number of bytes of the variable length int
+	 *
+	 * @param value the value to write
+	 * @return number of bytes, 1 to 5
+	 */
+	private static int varIntLength(int value) {
+		int length = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * Writes a variable length int, 7 bits per byte, lowest bits first
+	 *
+	 * @param out   the stream to write to
+	 * @param value the value to write
+	 * @throws IOException
+	 */
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/**
+	 * Reads a variable length int
+	 *
+	 * @param buffer the buffer to read from
+	 * @param offset offset to read at, moved past the value
+	 * @return the value read
+	 */
+	private static int readVarInt(ByteBuffer buffer, int[] offset) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get(offset[0]++);
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+
+	/**
+	 * Writes a string as its length followed by its UTF-8 bytes
+	 *
+	 * @param out   the stream to write to
+	 * @param value the string to write
+	 * @throws IOException
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutputStream, String)}
+	 *
+	 * @param buffer the buffer to read from
+	 * @param offset offset to read at, moved past the string
+	 * @return the string read
+	 */
+	private static String readString(ByteBuffer buffer, int[] offset) {
+		byte[] bytes = new byte[readVarInt(buffer, offset)];
+		buffer.get(offset[0], bytes);
+		offset[0] += bytes.length;
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -1,9 +1,14 @@
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeMap;
@@ -12,60 +17,186 @@ import java.util.TreeSet;
 /**
  * InvertedMap class 2 main data structure to store the map
  *
+ * @see AbstractInvertedIndex
  */
-public class InvertedIndex {
+public class InvertedIndex extends AbstractInvertedIndex {
 	// Data structure
 	/**
-	 * index data structure to store the word, it's file location and word indexes
+	 * index data structure to store the word and the postings of the word. The
+	 * postings refer to documents by the ids of the {@link #documents} table.
 	 */
-	private final TreeMap<String, TreeMap<String, TreeSet<Integer>>> index;
+	protected final TreeMap<String, Postings> index;
 	/**
-	 * data structure to store file path and it's total word count
+	 * data structure to store file path, it's document id and total word count
 	 */
-	private final TreeMap<String, Integer> count;
+	protected final DocumentTable documents;
 
 	/**
 	 * Initializes the inverted index.
 	 */
 	public InvertedIndex() {
-		this.index = new TreeMap<String, TreeMap<String, TreeSet<Integer>>>();
-		this.count = new TreeMap<String, Integer>();
+		this(new DocumentTable());
 	}
 
 	/**
-	 * Return the total number of words for given path
+	 * Initializes an inverted index that uses the given document table, which may
+	 * be shared with other indexes
 	 * 
-	 * @param path key
-	 * @return total number of words
+	 * @param documents the document table to use
 	 */
+	protected InvertedIndex(DocumentTable documents) {
+		this.index = new TreeMap<String, Postings>();
+		this.documents = documents;
+	}
+
+	@Override
 	public int getTotalWords(String path) {
-		return count.get(path) != null ? count.get(path) : 0;
+		int id = documents.getId(path);
+		return id >= 0 ? documents.getCount(id) : 0;
+	}
+
+	@Override
+	public void toLocationsJSON(Path path) throws IOException {
+		PrettyJSONWriter.asObject(documents.toCountMap(), path);
+	}
+
+	@Override
+	public void toIndexJSON(Path path) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+			toIndexJSON(writer);
+		}
 	}
 
 	/**
-	 * Output the location map
+	 * Writes the inverted index as pretty JSON, the locations of every word sorted
+	 * by path
 	 * 
-	 * @param path output file location
+	 * @param writer the writer to use
 	 * @throws IOException
+	 */
+	private void toIndexJSON(Writer writer) throws IOException {
+		int[] order = documents.sortedIds();
+		int[] rank = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			rank[order[i]] = i;
+		}
+
+		writer.write("{");
+		writer.write("\n");
+		var iterator = index.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Postings> entry = iterator.next();
+			Postings postings = entry.getValue();
+			PrettyJSONWriter.indent(writer, 1);
+			writer.write("\"" + entry.getKey() + "\": ");
+
+			int[] sorted = sortByLocation(postings, rank);
+			writer.write("{");
+			writer.write("\n");
+			for (int j = 0; j < sorted.length; j++) {
+				int i = sorted[j];
+				PrettyJSONWriter.quote(documents.getLocation(postings.getDocument(i)), writer, 2);
+				writer.write(": ");
+				PrettyJSONWriter.asArray(postings.positions(i), 0, postings.getFrequency(i), writer, 2);
+				if (j < sorted.length - 1) {
+					writer.write(",");
+				}
+				writer.write("\n");
+			}
+			PrettyJSONWriter.indent(writer, 1);
+			writer.write("}");
+
+			if (iterator.hasNext()) {
+				writer.write(",");
+			}
+			writer.write(System.lineSeparator());
+		}
+		writer.write("}");
+	}
+
+	/**
+	 * Return the indexes of the postings ordered by the location of their document
 	 * 
+	 * @param postings postings of one word
+	 * @param rank     position of every document id in location order
+	 * @return indexes in the postings, sorted by location
 	 */
-	public void toLocationsJSON(Path path) throws IOException {
-		PrettyJSONWriter.asObject(count, path);
+	private static int[] sortByLocation(Postings postings, int[] rank) {
+		long[] keys = new long[postings.size()];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = ((long) rank[postings.getDocument(i)] << 32) | i;
+		}
+		Arrays.sort(keys);
+
+		int[] sorted = new int[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			sorted[i] = (int) keys[i];
+		}
+		return sorted;
 	}
 
 	/**
-	 * Outputs the inverted index as pretty JSON to file
+	 * Return an immutable, read-optimized copy of this index. Documents of the copy
+	 * are renumbered in location order, so the packed postings of every word are
+	 * already sorted by path.
 	 * 
-	 * @param path output file location
-	 * @throws IOException
+	 * @return frozen copy of this index
 	 * 
+	 * @see FrozenInvertedIndex
 	 */
-	public void toIndexJSON(Path path) throws IOException {
-		PrettyJSONWriter.asDoubleTreeMapNestedObject(index, path);
+	@Override
+	public FrozenInvertedIndex freeze() {
+		int[] order = documents.sortedIds();
+		int[] rank = new int[order.length];
+		String[] locations = new String[order.length];
+		int[] counts = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			rank[order[i]] = i;
+			locations[i] = documents.getLocation(order[i]);
+			counts[i] = documents.getCount(order[i]);
+		}
+
+		int totalPostings = 0;
+		int totalPositions = 0;
+		for (Postings postings : index.values()) {
+			totalPostings += postings.size();
+			for (int i = 0; i < postings.size(); i++) {
+				totalPositions += postings.getFrequency(i);
+			}
+		}
+
+		String[] terms = new String[index.size()];
+		int[] termOffsets = new int[terms.length + 1];
+		int[] docs = new int[totalPostings];
+		int[] frequencies = new int[totalPostings];
+		int[] positionOffsets = new int[totalPostings + 1];
+		int[] positions = new int[totalPositions];
+
+		int term = 0;
+		int posting = 0;
+		int position = 0;
+		for (Map.Entry<String, Postings> entry : index.entrySet()) {
+			Postings postings = entry.getValue();
+			terms[term] = entry.getKey();
+			termOffsets[term++] = posting;
+			for (int i : sortByLocation(postings, rank)) {
+				int frequency = postings.getFrequency(i);
+				docs[posting] = rank[postings.getDocument(i)];
+				frequencies[posting] = frequency;
+				positionOffsets[posting++] = position;
+				System.arraycopy(postings.positions(i), 0, positions, position, frequency);
+				position += frequency;
+			}
+		}
+		termOffsets[term] = posting;
+		positionOffsets[posting] = position;
+
+		return new FrozenInvertedIndex(terms, termOffsets, docs, frequencies, positionOffsets, positions, locations,
+				counts);
 	}
 
 	/**
-	 * Adding the word location and word positions to the nested treeMap index
+	 * Adding the word location and word positions to the index
 	 * 
 	 * @param word     word to add
 	 * @param location location of the file
@@ -74,208 +205,207 @@ public class InvertedIndex {
 	 *         false otherwise
 	 */
 	public boolean add(String word, String location, int position) {
-		index.putIfAbsent(word, new TreeMap<>());
-		index.get(word).putIfAbsent(location, new TreeSet<>());
-		boolean result = index.get(word).get(location).add(position);
+		int id = documents.add(location);
+		boolean result = addPosition(word, id, position);
 		if (result) {
-			Integer number = this.count.getOrDefault(location, 0);
-			this.count.put(location, number + 1);
+			documents.incrementCount(id);
 		}
+		changed();
 		return true;
 	}
 
+	/**
+	 * Adding one position of the word to the postings, without changing the total
+	 * word count of the document
+	 * 
+	 * @param word     word to add
+	 * @param id       document id of the location
+	 * @param position position index of the word
+	 * @return true if the position was not already in the index
+	 */
+	protected boolean addPosition(String word, int id, int position) {
+		Postings postings = index.get(word);
+		if (postings == null) {
+			postings = new Postings();
+			index.put(word, postings);
+		}
+		return postings.add(id, position);
+	}
+
 	/**
 	 * Add a temporary inverted index to this index
 	 * 
 	 * @param temp inverted index
 	 */
 	public void addAll(InvertedIndex temp) {
-		for (String word : temp.index.keySet()) {
-			if (this.index.containsKey(word)) {
-				for (String path : temp.index.get(word).keySet()) {
-					if (this.index.get(word).containsKey(path)) {
-						this.index.get(word).get(path).addAll(temp.index.get(word).get(path));
-					} else {
-						this.index.get(word).put(path, temp.index.get(word).get(path));
-					}
-				}
-			} else {
-				this.index.put(word, temp.index.get(word));
-			}
+		int[] remap = addDocuments(temp);
+		for (Map.Entry<String, Postings> entry : temp.index.entrySet()) {
+			addPostings(entry.getKey(), entry.getValue(), remap);
 		}
+		changed();
+	}
 
-		this.count.putAll(temp.count);
+	/**
+	 * Add the documents of a temporary index to the document table, copying their
+	 * total word count
+	 * 
+	 * @param temp inverted index
+	 * @return document id in this index of every document id of the temporary index
+	 */
+	protected int[] addDocuments(InvertedIndex temp) {
+		// document ids of the temporary index are local to it
+		int[] remap = new int[temp.documents.size()];
+		for (int id = 0; id < remap.length; id++) {
+			remap[id] = this.documents.add(temp.documents.getLocation(id));
+			if (temp.documents.getCount(id) > 0) {
+				this.documents.setCount(remap[id], temp.documents.getCount(id));
+			}
+		}
+		return remap;
 	}
 
 	/**
-	 * Return a set view of all word
+	 * Add the postings of one word of a temporary index to this index
 	 * 
-	 * @return Set<String>
+	 * @param word   word to add
+	 * @param source postings of the word in the temporary index
+	 * @param remap  document id in this index of every document id of the
+	 *               temporary index
 	 * 
-	 * @see Collections#unmodifiableSet(Set)
+	 * @see #addDocuments(InvertedIndex)
 	 */
+	protected void addPostings(String word, Postings source, int[] remap) {
+		Postings target = this.index.get(word);
+		if (target == null) {
+			target = new Postings();
+			this.index.put(word, target);
+		}
+		for (int i = 0; i < source.size(); i++) {
+			target.addAll(remap[source.getDocument(i)], source.positions(i), source.getFrequency(i));
+		}
+	}
+
+	@Override
 	public Set<String> getWordSet() {
 		Set<String> result = index.keySet();
 		return (result != null ? Collections.unmodifiableSet(result) : null);
 	}
 
-	/**
-	 * Return set view of all path key
-	 * 
-	 * @param word key
-	 * @return Set<String>
-	 * 
-	 * @see java.util.TreeMap#keySet()
-	 * @see Collections#unmodifiableSet(Set)
-	 */
+	@Override
 	public Set<String> getPathSet(String word) {
-		TreeMap<String, TreeSet<Integer>> result = index.get(word);
-		return (result != null ? Collections.unmodifiableSet(result.keySet()) : null);
+		Postings postings = index.get(word);
+		if (postings == null) {
+			return null;
+		}
+		TreeSet<String> result = new TreeSet<String>();
+		for (int i = 0; i < postings.size(); i++) {
+			result.add(documents.getLocation(postings.getDocument(i)));
+		}
+		return Collections.unmodifiableSet(result);
 	}
 
-	/**
-	 * Return the set of given key at given position
-	 * 
-	 * @param word key
-	 * @param path key
-	 * @return value of the given word at given position
-	 * 
-	 * @see Collections#unmodifiableSortedSet(SortedSet)
-	 */
+	@Override
 	public SortedSet<Integer> getPositionSet(String word, String path) {
-		TreeSet<Integer> result = getterPosition(word, path);
-		return (result != null ? Collections.unmodifiableSortedSet(result) : null);
+		Postings postings = index.get(word);
+		int i = getterPosition(postings, path);
+		if (i < 0) {
+			return null;
+		}
+		TreeSet<Integer> result = new TreeSet<Integer>();
+		int[] positions = postings.positions(i);
+		for (int j = 0; j < postings.getFrequency(i); j++) {
+			result.add(positions[j]);
+		}
+		return Collections.unmodifiableSortedSet(result);
 	}
 
 	/**
-	 * Helper method return a TreeSet of given word and path
+	 * Helper method return the index of the given path in the postings
 	 * 
-	 * @param word key for the TreeMap
-	 * @param path key for the TreeMap
-	 * @return TreeSet<Integer>
+	 * @param postings postings of a word, may be null
+	 * @param path     path of the file
+	 * @return index in the postings, or a negative number if not found
 	 */
-	private TreeSet<Integer> getterPosition(String word, String path) {
-		TreeMap<String, TreeSet<Integer>> result = index.get(word);
-		return (result != null ? result.get(path) : null);
+	private int getterPosition(Postings postings, String path) {
+		int id = documents.getId(path);
+		return (postings != null && id >= 0 ? postings.indexOf(id) : -1);
 	}
 
-	/**
-	 * Return true if the data structure is empty
-	 * 
-	 * @return true if the data structure is empty, false otherwise
-	 */
+	@Override
 	public boolean isEmpty() {
 		return index.isEmpty();
 	}
 
-	/**
-	 * Return whether the map contains a word
-	 * 
-	 * @param word key
-	 * @return true if the map contains a key, false otherwise
-	 */
+	@Override
 	public boolean containsWord(String word) {
 		return (!isEmpty() ? index.containsKey(word) : false);
 	}
 
-	/**
-	 * Check in the given word, is there a given path exist
-	 * 
-	 * @param word word in the file
-	 * @param path the path of the file
-	 * @return true if the path in the given word already exist, false otherwise
-	 */
+	@Override
 	public boolean containsPath(String word, String path) {
-		TreeMap<String, TreeSet<Integer>> result = index.get(word);
-		return (result != null ? result.containsKey(path) : false);
+		return getterPosition(index.get(word), path) >= 0;
 	}
 
-	/**
-	 * Check in the given word, given path, is there a given position
-	 * 
-	 * @param word     word in the file
-	 * @param path     the path of the file
-	 * @param position the position of the word in the file
-	 * @return true if the word in the given file and given position already exist,
-	 *         false otherwise
-	 */
+	@Override
 	public boolean containsPosition(String word, String path, int position) {
-		TreeSet<Integer> result = getterPosition(word, path);
-		return (result != null ? result.contains(position) : false);
+		Postings postings = index.get(word);
+		int i = getterPosition(postings, path);
+		return (i >= 0 ? postings.containsPosition(i, position) : false);
 	}
 
-	/**
-	 * Search method
-	 * 
-	 * @param queries words to search
-	 * @param exact   exact or partial search
-	 * @return the search result
-	 */
-	public ArrayList<SearchResult> search(Collection<String> queries, boolean exact) {
-
-		return exact ? exactSearch(queries) : partialSearch(queries);
+	@Override
+	protected ScoreAccumulator partialScores(Collection<String> oneLineQuery) {
+		PrefixCache cache = getPrefixCache();
+		if (cache != null) {
+			return cache.search(this, getGeneration(), documents.size(), oneLineQuery, this::expand, null);
+		}
+		ScoreAccumulator scores = ScoreAccumulator.get(documents.size());
+		for (String oneQuery : oneLineQuery) {
+			expand(scores, oneQuery);
+		}
+		return scores;
 	}
 
-	/**
-	 * Perform a partial search to the inverted index data structure
-	 * 
-	 * @param oneLineQuery a line of the query file
-	 * @return a sorted array list
-	 */
-	public ArrayList<SearchResult> partialSearch(Collection<String> oneLineQuery) {
-		HashMap<String, SearchResult> result = new HashMap<String, SearchResult>();
-		ArrayList<SearchResult> list = new ArrayList<>();
-		for (String oneQuery : oneLineQuery) {
-			for (String indexKey : index.tailMap(oneQuery).keySet()) {
-				if (indexKey.startsWith(oneQuery)) {
-					searchHelper(result, indexKey, list);
-				} else {
-					break;
-				}
-			}
+	@Override
+	protected void expand(ScoreAccumulator scores, String prefix) {
+		for (String indexKey : TermDictionary.prefixMap(index, prefix).keySet()) {
+			searchHelper(scores, indexKey);
 		}
-		Collections.sort(list);
-		return list;
 	}
 
-	/**
-	 * Perform a exact search to the inverted index data structure
-	 * 
-	 * @param oneLineQuery one line of query file
-	 * @return a sorted array list
-	 */
-	public ArrayList<SearchResult> exactSearch(Collection<String> oneLineQuery) {
-		HashMap<String, SearchResult> result = new HashMap<String, SearchResult>();
-		ArrayList<SearchResult> list = new ArrayList<>();
+	@Override
+	protected ScoreAccumulator exactScores(Collection<String> oneLineQuery) {
+		ScoreAccumulator scores = ScoreAccumulator.get(documents.size());
 		for (String oneQuery : oneLineQuery) {
-			searchHelper(result, oneQuery, list);
+			searchHelper(scores, oneQuery);
 		}
-		Collections.sort(list);
-		return list;
+		return scores;
 	}
 
 	/**
-	 * Search helper method
+	 * Search helper method, adding the matches of a word to the accumulator
 	 * 
-	 * @param result           hashMap to store the OneResult
-	 * @param oneQuery         index word, one query word
-	 * @param listOfOneResults returned array list
+	 * @param scores   the matches of every document so far
+	 * @param oneQuery index word, one query word
 	 */
-	private void searchHelper(HashMap<String, SearchResult> result, String oneQuery,
-			ArrayList<SearchResult> listOfOneResults) {
-		var pathTreeMap = index.get(oneQuery);
-		if (pathTreeMap != null) {
-			for (String path : pathTreeMap.keySet()) {
-				if (result.containsKey(path)) {
-					result.get(path).updateCount(this.index.get(oneQuery).get(path).size());
-				} else {
-					SearchResult oneResult = new SearchResult(path, this.count.get(path),
-							this.index.get(oneQuery).get(path).size());
-					result.put(path, oneResult);
-					listOfOneResults.add(oneResult);
-				}
+	protected void searchHelper(ScoreAccumulator scores, String oneQuery) {
+		Postings postings = index.get(oneQuery);
+		if (postings != null) {
+			for (int i = 0; i < postings.size(); i++) {
+				scores.add(postings.getDocument(i), postings.getFrequency(i));
 			}
 		}
 	}
 
+	@Override
+	protected ArrayList<SearchResult> results(ScoreAccumulator scores) {
+		return scores.drain(new ArrayList<SearchResult>(), documents::getLocation, documents::getCount);
+	}
+
+	@Override
+	protected ArrayList<SearchResult> page(ScoreAccumulator scores, int k, int offset) {
+		return scores.drainTop(new ArrayList<SearchResult>(), documents::getLocation, documents::getCount, k,
+				offset);
+	}
+
 }
\ No newline at end of file
@@ -6,8 +6,6 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Iterator;
 
-import opennlp.tools.stemmer.snowball.SnowballStemmer;
-
 /**
  * InvertedMapBuilder class processes files and strings and places them in an
  * inverted index data structure.
@@ -46,15 +44,17 @@ public class InvertedMapBuilder {
 	 * 
 	 */
 	public static void stemFile(Path inputFile, InvertedIndex index) throws IOException {
-		var stemmer = new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH);
+		StemCache stems = StemCache.get();
 		try (BufferedReader br = Files.newBufferedReader(inputFile, StandardCharsets.UTF_8)) {
 			String line;
-			int start = 1;
+			int[] start = { 1 };
 			String name = inputFile.toString();
+			// every line is parsed on its own, like TextParser.parse(line)
+			TextTokenizer tokenizer = new TextTokenizer(
+					word -> index.add(stems.stem(word), name, start[0]++));
 			while ((line = br.readLine()) != null) {
-				for (String word : TextParser.parse(line)) {
-					index.add(stemmer.stem(word).toString(), name, start++);
-				}
+				tokenizer.feed(line);
+				tokenizer.finish();
 			}
 		}
 	}
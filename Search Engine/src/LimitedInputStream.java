@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads at most a fixed number of bytes from another stream, for example a
+ * response body of known Content-Length, or the part of a page within the
+ * maximum page size. Closing this stream does not close the other stream, so
+ * the connection under it can be reused.
+ */
+public class LimitedInputStream extends InputStream {
+
+	/**
+	 * the stream to read from
+	 */
+	private final InputStream in;
+
+	/**
+	 * number of bytes left to read
+	 */
+	private long remaining;
+
+	/**
+	 * @param in    the stream to read from
+	 * @param limit maximum number of bytes to read
+	 */
+	public LimitedInputStream(InputStream in, long limit) {
+		this.in = in;
+		this.remaining = Math.max(0, limit);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (remaining <= 0) {
+			return -1;
+		}
+		int b = in.read();
+		if (b >= 0) {
+			remaining--;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (remaining <= 0) {
+			return -1;
+		}
+		int read = in.read(b, off, (int) Math.min(len, remaining));
+		if (read > 0) {
+			remaining -= read;
+		}
+		return read;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(in.available(), remaining);
+	}
+
+	/**
+	 * Returns the number of bytes left before the limit.
+	 *
+	 * @return number of bytes left to read
+	 */
+	public long remaining() {
+		return remaining;
+	}
+
+	@Override
+	public void close() {
+		// leave the other stream open
+	}
+}
@@ -19,7 +19,7 @@ public class MultiThreadInvertedMapBuilder extends InvertedMapBuilder {
 	 * @param worker queue of worker threads
 	 * @throws IOException when buffered reader cannot read the file
 	 */
-	public static void buildMap(Path file, ThreadSafeInvertedIndex index, WorkQueue worker) throws IOException {
+	public static void buildMap(Path file, ThreadSafeInvertedIndex index, AbstractWorkQueue worker) throws IOException {
 
 		buildMapHelper(file, index, worker);
 		worker.finish();
@@ -35,7 +35,7 @@ public class MultiThreadInvertedMapBuilder extends InvertedMapBuilder {
 	 * @throws IOException
 	 * 
 	 */
-	private static void buildMapHelper(Path file, ThreadSafeInvertedIndex index, WorkQueue worker) throws IOException {
+	private static void buildMapHelper(Path file, ThreadSafeInvertedIndex index, AbstractWorkQueue worker) throws IOException {
 
 		if (Files.isDirectory(file)) {
 			try (DirectoryStream<Path> list = Files.newDirectoryStream(file)) {
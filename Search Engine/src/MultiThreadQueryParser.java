@@ -4,10 +4,14 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
-
-import opennlp.tools.stemmer.snowball.SnowballStemmer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * MultiThreadQueryParser class perform a stem to the query file and add in a
@@ -19,7 +23,7 @@ public class MultiThreadQueryParser implements QueryParserInterface {
 	/**
 	 * queue of worker threads
 	 */
-	private final WorkQueue worker;
+	private final AbstractWorkQueue worker;
 	// key: one line of query file
 	// value: sorted array list
 	/**
@@ -27,31 +31,77 @@ public class MultiThreadQueryParser implements QueryParserInterface {
 	 */
 	private final TreeMap<String, ArrayList<SearchResult>> searchResult;
 	/**
-	 * inverted index data structure
+	 * inverted index data structure, must be safe to search from several threads
+	 */
+	private final AbstractInvertedIndex index;
+	/**
+	 * query lines already claimed by a search task
 	 */
-	private final ThreadSafeInvertedIndex index;
+	private final Set<String> claimed;
+	/**
+	 * maximum number of results of every query line, or 0 for all of them
+	 */
+	private volatile int top;
 
 	/**
 	 * Constructor initialize the data structure
 	 * 
 	 * @param wq    work queue
-	 * @param index data structure store word position, path
+	 * @param index data structure store word position, path; either a
+	 *              {@link ThreadSafeInvertedIndex} or a {@link FrozenInvertedIndex}
 	 */
-	public MultiThreadQueryParser(WorkQueue wq, ThreadSafeInvertedIndex index) {
+	public MultiThreadQueryParser(AbstractWorkQueue wq, AbstractInvertedIndex index) {
 		this.searchResult = new TreeMap<String, ArrayList<SearchResult>>();
 		this.index = index;
 		this.worker = wq;
+		this.claimed = ConcurrentHashMap.newKeySet();
+		this.top = 0;
 	}
 
+	@Override
+	public void setTop(int top) {
+		this.top = Math.max(0, top);
+	}
+
+	@Override
+	public void setPrefixCache(PrefixCache cache) {
+		index.setPrefixCache(cache);
+	}
+
+	/**
+	 * Stem every line of the query file and search it on the work queue. The
+	 * results are collected through futures, so only this thread writes the
+	 * search result map and the work queue does not need to be finished.
+	 */
 	@Override
 	public void stemQuery(Path queryFile, boolean exact) throws IOException {
+		ArrayList<Future<Map.Entry<String, ArrayList<SearchResult>>>> futures = new ArrayList<>();
 		try (BufferedReader br = Files.newBufferedReader(queryFile, StandardCharsets.UTF_8)) {
 			String line;
 			while ((line = br.readLine()) != null) {
-				worker.execute(new SearchTask(line, exact));
+				futures.add(worker.submit(new SearchTask(line, exact)));
+			}
+		}
+
+		// a failed line does not keep the results of the other lines from being kept
+		for (Future<Map.Entry<String, ArrayList<SearchResult>>> future : futures) {
+			Map.Entry<String, ArrayList<SearchResult>> entry;
+			try {
+				entry = future.get();
+			} catch (InterruptedException e) {
+				System.err.println("interrunpted exception catched!");
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				System.err.println("Search failed: " + e.getCause() + "\n\tplease check your argument");
+				continue;
+			}
+			if (entry != null) {
+				synchronized (searchResult) {
+					searchResult.put(entry.getKey(), entry.getValue());
+				}
 			}
 		}
-		worker.finish();
 	}
 
 	/**
@@ -65,10 +115,11 @@ public class MultiThreadQueryParser implements QueryParserInterface {
 	}
 
 	/**
-	 * Perform a partial or exact search to the inverted index
-	 *
+	 * Perform a partial or exact search to the inverted index, returning the
+	 * stemmed query line and its results, or null if the line is empty or already
+	 * searched by another task
 	 */
-	private class SearchTask implements Runnable {
+	private class SearchTask implements Callable<Map.Entry<String, ArrayList<SearchResult>>> {
 
 		/**
 		 * one line query
@@ -89,11 +140,11 @@ public class MultiThreadQueryParser implements QueryParserInterface {
 		}
 
 		@Override
-		public void run() {
+		public Map.Entry<String, ArrayList<SearchResult>> call() {
 			TreeSet<String> oneLineQuery = new TreeSet<String>();
-			var stemmer = new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH);
+			StemCache stems = StemCache.get();
 			for (String s : TextParser.parse(line)) {
-				String word = stemmer.stem(s).toString();
+				String word = stems.stem(s);
 				if (!word.isEmpty()) {
 					oneLineQuery.add(word);
 				}
@@ -101,23 +152,19 @@ public class MultiThreadQueryParser implements QueryParserInterface {
 
 			String queryLine = String.join(" ", oneLineQuery);
 
-			if (!oneLineQuery.isEmpty()) {
-				synchronized (searchResult) {
-					if (searchResult.containsKey(queryLine)) {
-						return;
-					}
-				}
+			if (oneLineQuery.isEmpty() || !claimed.add(queryLine)) {
+				return null;
+			}
 
-				ArrayList<SearchResult> result;
-				if (exact) {
-					result = index.exactSearch(oneLineQuery);
-				} else {
-					result = index.partialSearch(oneLineQuery);
-				}
-				synchronized (searchResult) {
-					searchResult.put(queryLine, result);
-				}
+			ArrayList<SearchResult> result;
+			if (top > 0) {
+				result = index.search(oneLineQuery, exact, top, 0);
+			} else if (exact) {
+				result = index.exactSearch(oneLineQuery);
+			} else {
+				result = index.partialSearch(oneLineQuery);
 			}
+			return Map.entry(queryLine, result);
 		}
 	}
 
@@ -0,0 +1,235 @@
+import java.util.Arrays;
+
+/**
+ * Postings list of one word. Stores the document ids the word was found in
+ * (sorted by id) and, for every document, the positions of the word in a
+ * growable int array (sorted, no duplicates).
+ *
+ * Documents and positions are normally emitted in increasing order, so both
+ * are appended to the end of their array. Out of order values are still
+ * accepted and inserted at their sorted place.
+ *
+ * Warning: This class is not thread-safe.
+ */
+public class Postings {
+
+	/**
+	 * document ids, sorted
+	 */
+	private int[] documents;
+
+	/**
+	 * positions of the word in every document
+	 */
+	private int[][] positions;
+
+	/**
+	 * number of positions used in every positions array
+	 */
+	private int[] frequencies;
+
+	/**
+	 * number of documents in this postings list
+	 */
+	private int size;
+
+	/**
+	 * Initializes an empty postings list.
+	 */
+	public Postings() {
+		this.documents = new int[2];
+		this.positions = new int[2][];
+		this.frequencies = new int[2];
+		this.size = 0;
+	}
+
+	/**
+	 * Add one position of the word in the document
+	 *
+	 * @param document document id
+	 * @param position position of the word in the document
+	 * @return true if the position was not already in the postings list
+	 */
+	public boolean add(int document, int position) {
+		int i = slot(document);
+		int frequency = frequencies[i];
+		int[] array = positions[i];
+
+		if (frequency == 0 || array[frequency - 1] < position) {
+			if (frequency == array.length) {
+				array = positions[i] = Arrays.copyOf(array, frequency * 2);
+			}
+			array[frequency] = position;
+			frequencies[i]++;
+			return true;
+		}
+
+		int found = Arrays.binarySearch(array, 0, frequency, position);
+		if (found >= 0) {
+			return false;
+		}
+		int insert = -found - 1;
+		if (frequency == array.length) {
+			array = positions[i] = Arrays.copyOf(array, frequency * 2);
+		}
+		System.arraycopy(array, insert, array, insert + 1, frequency - insert);
+		array[insert] = position;
+		frequencies[i]++;
+		return true;
+	}
+
+	/**
+	 * Add a sorted run of positions of the word in the document
+	 *
+	 * @param document document id
+	 * @param source   sorted positions to add
+	 * @param length   number of positions to read from the source
+	 */
+	public void addAll(int document, int[] source, int length) {
+		if (length == 0) {
+			return;
+		}
+		int i = slot(document);
+		int frequency = frequencies[i];
+
+		if (frequency == 0) {
+			positions[i] = Arrays.copyOf(source, length);
+			frequencies[i] = length;
+			return;
+		}
+
+		int[] array = positions[i];
+		if (array[frequency - 1] < source[0]) {
+			if (frequency + length > array.length) {
+				array = positions[i] = Arrays.copyOf(array, frequency + length);
+			}
+			System.arraycopy(source, 0, array, frequency, length);
+			frequencies[i] = frequency + length;
+			return;
+		}
+
+		int[] merged = new int[frequency + length];
+		int a = 0;
+		int b = 0;
+		int n = 0;
+		while (a < frequency && b < length) {
+			if (array[a] < source[b]) {
+				merged[n++] = array[a++];
+			} else if (array[a] > source[b]) {
+				merged[n++] = source[b++];
+			} else {
+				merged[n++] = array[a++];
+				b++;
+			}
+		}
+		while (a < frequency) {
+			merged[n++] = array[a++];
+		}
+		while (b < length) {
+			merged[n++] = source[b++];
+		}
+		positions[i] = merged;
+		frequencies[i] = n;
+	}
+
+	/**
+	 * Return the index of the document in this postings list, creating an empty
+	 * entry for it if needed
+	 *
+	 * @param document document id
+	 * @return index of the document
+	 */
+	private int slot(int document) {
+		if (size > 0 && documents[size - 1] == document) {
+			return size - 1;
+		}
+
+		int insert;
+		if (size == 0 || documents[size - 1] < document) {
+			insert = size;
+		} else {
+			int found = Arrays.binarySearch(documents, 0, size, document);
+			if (found >= 0) {
+				return found;
+			}
+			insert = -found - 1;
+		}
+
+		if (size == documents.length) {
+			int capacity = size * 2;
+			documents = Arrays.copyOf(documents, capacity);
+			positions = Arrays.copyOf(positions, capacity);
+			frequencies = Arrays.copyOf(frequencies, capacity);
+		}
+		System.arraycopy(documents, insert, documents, insert + 1, size - insert);
+		System.arraycopy(positions, insert, positions, insert + 1, size - insert);
+		System.arraycopy(frequencies, insert, frequencies, insert + 1, size - insert);
+		documents[insert] = document;
+		positions[insert] = new int[4];
+		frequencies[insert] = 0;
+		size++;
+		return insert;
+	}
+
+	/**
+	 * Return the index of the document in this postings list
+	 *
+	 * @param document document id
+	 * @return index of the document, or a negative number if not found
+	 */
+	public int indexOf(int document) {
+		return Arrays.binarySearch(documents, 0, size, document);
+	}
+
+	/**
+	 * Return whether the document at the given index contains the position
+	 *
+	 * @param index    index of the document in this postings list
+	 * @param position position of the word
+	 * @return true if the position exists, false otherwise
+	 */
+	public boolean containsPosition(int index, int position) {
+		return Arrays.binarySearch(positions[index], 0, frequencies[index], position) >= 0;
+	}
+
+	/**
+	 * Return the number of documents in this postings list
+	 *
+	 * @return number of documents
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Return the document id at the given index
+	 *
+	 * @param index index in this postings list
+	 * @return document id
+	 */
+	public int getDocument(int index) {
+		return documents[index];
+	}
+
+	/**
+	 * Return how many times the word was found in the document at the given index
+	 *
+	 * @param index index in this postings list
+	 * @return number of positions
+	 */
+	public int getFrequency(int index) {
+		return frequencies[index];
+	}
+
+	/**
+	 * Return the backing positions array of the document at the given index. Only
+	 * the first {@link #getFrequency(int)} values are used and the array must not
+	 * be modified.
+	 *
+	 * @param index index in this postings list
+	 * @return sorted positions
+	 */
+	int[] positions(int index) {
+		return positions[index];
+	}
+}
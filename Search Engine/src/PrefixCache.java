@@ -0,0 +1,337 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Remembers what the prefixes of partial searches expand into, so a prefix
+ * searched again, by another query line or another query file, adds up the
+ * matches of its words once instead of visiting every word again. Short
+ * prefixes match many words, and those are the expensive ones to expand.
+ *
+ * An expansion is kept as the number of matches of every document the words
+ * starting with the prefix are in, which is all a search needs from them. It
+ * belongs to one index, and is only used while the generation of the index is
+ * the one it was expanded in; every change to an index starts a new generation,
+ * see {@link InvertedIndex#getGeneration()}.
+ *
+ * The cache holds at most a fixed number of document counts over all its
+ * expansions, and forgets the least recently used ones first. Expansions are
+ * computed outside the lock, so the cache can be shared by the threads of
+ * {@link MultiThreadQueryParser}.
+ *
+ * Indexes are only weakly referenced, so a cached expansion never keeps an
+ * index in memory; the expansions of an index that was collected are dropped
+ * on the next use of the cache. An index that is replaced, like a merged
+ * segment, can drop its expansions at once with {@link #forget(Object)}.
+ */
+public class PrefixCache {
+
+	/**
+	 * The default number of document counts a cache holds
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 20;
+
+	/**
+	 * expansion of every index and prefix, least recently used first
+	 */
+	private final LinkedHashMap<Key, Expansion> cache;
+
+	/**
+	 * maximum number of document counts held
+	 */
+	private final long capacity;
+
+	/**
+	 * number of document counts held
+	 */
+	private long size;
+
+	/**
+	 * number of prefixes found in the cache
+	 */
+	private final LongAdder hits;
+
+	/**
+	 * number of prefixes expanded
+	 */
+	private final LongAdder misses;
+
+	/**
+	 * number of prefixes found, but expanded in an older generation of the index
+	 */
+	private final LongAdder stale;
+
+	/**
+	 * keys whose index was collected
+	 */
+	private final ReferenceQueue<Object> collected;
+
+	/**
+	 * Initializes an empty cache
+	 *
+	 * @param capacity maximum number of document counts held, or 0 to hold none
+	 */
+	public PrefixCache(int capacity) {
+		this.cache = new LinkedHashMap<Key, Expansion>(16, 0.75f, true);
+		this.capacity = Math.max(0, capacity);
+		this.size = 0;
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.stale = new LongAdder();
+		this.collected = new ReferenceQueue<Object>();
+	}
+
+	/**
+	 * Return the matches of the prefixes of one partial search, added up in the
+	 * accumulator of the current thread
+	 *
+	 * @param index      the index searched
+	 * @param generation the generation of the index
+	 * @param documents  number of documents of the index
+	 * @param prefixes   the prefixes
+	 * @param expander   adds the matches of the words starting with a prefix to an
+	 *                   accumulator
+	 * @param skipped    documents whose matches are left out, or null
+	 * @return the accumulator
+	 */
+	public ScoreAccumulator search(Object index, long generation, int documents, Collection<String> prefixes,
+			BiConsumer<ScoreAccumulator, String> expander, boolean[] skipped) {
+		// all expansions first, as an expansion not cached uses the same accumulator
+		Expansion[] expansions = new Expansion[prefixes.size()];
+		int i = 0;
+		for (String prefix : prefixes) {
+			expansions[i++] = expand(index, generation, documents, prefix, expander);
+		}
+
+		ScoreAccumulator scores = ScoreAccumulator.get(documents);
+		for (Expansion expansion : expansions) {
+			expansion.addTo(scores, skipped);
+		}
+		return scores;
+	}
+
+	/**
+	 * Return the expansion of a prefix, from the cache if it is there for this
+	 * generation of the index
+	 *
+	 * @param index      the index searched
+	 * @param generation the generation of the index
+	 * @param documents  number of documents of the index
+	 * @param prefix     the prefix
+	 * @param expander   adds the matches of the words starting with a prefix to an
+	 *                   accumulator
+	 * @return the expansion
+	 */
+	private Expansion expand(Object index, long generation, int documents, String prefix,
+			BiConsumer<ScoreAccumulator, String> expander) {
+		Key key = new Key(index, prefix, null);
+		synchronized (this) {
+			purge();
+			Expansion cached = cache.get(key);
+			if (cached != null) {
+				if (cached.generation == generation) {
+					hits.increment();
+					return cached;
+				}
+				stale.increment();
+				remove(key);
+			}
+		}
+
+		misses.increment();
+		ScoreAccumulator scores = ScoreAccumulator.get(documents);
+		expander.accept(scores, prefix);
+		Expansion expansion = new Expansion(generation, scores);
+
+		if (expansion.size() <= capacity) {
+			synchronized (this) {
+				remove(key);
+				key = new Key(index, prefix, collected);
+				cache.put(key, expansion);
+				size += expansion.size();
+				Iterator<Expansion> eldest = cache.values().iterator();
+				while (size > capacity) {
+					size -= eldest.next().size();
+					eldest.remove();
+				}
+			}
+		}
+		return expansion;
+	}
+
+	/**
+	 * Forgets the expansion of a prefix, if held. Must be called with the lock
+	 * held.
+	 *
+	 * @param key the index and the prefix
+	 */
+	private void remove(Key key) {
+		Expansion removed = cache.remove(key);
+		if (removed != null) {
+			size -= removed.size();
+		}
+	}
+
+	/**
+	 * Drops the expansions of indexes that were collected. Must be called with the
+	 * lock held.
+	 */
+	private void purge() {
+		Object key;
+		while ((key = collected.poll()) != null) {
+			remove((Key) key);
+		}
+	}
+
+	/**
+	 * Drops every expansion of an index, like a segment that was merged into
+	 * another one and is not searched any more
+	 *
+	 * @param index the index
+	 */
+	public synchronized void forget(Object index) {
+		purge();
+		Iterator<Map.Entry<Key, Expansion>> entries = cache.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Key, Expansion> entry = entries.next();
+			if (entry.getKey().get() == index) {
+				size -= entry.getValue().size();
+				entries.remove();
+			}
+		}
+	}
+
+	/**
+	 * Return a summary of the prefixes expanded
+	 *
+	 * @return the report
+	 */
+	public String report() {
+		long found = hits.sum();
+		long total = found + misses.sum();
+		int prefixes;
+		long held;
+		synchronized (this) {
+			purge();
+			prefixes = cache.size();
+			held = size;
+		}
+		return String.format(Locale.ROOT,
+				"prefix cache: %d of %d prefixes (%.1f%%) found, %d stale, %d prefixes holding %d of %d counts%n",
+				found, total, total == 0 ? 0.0 : 100.0 * found / total, stale.sum(), prefixes, held, capacity);
+	}
+
+	/**
+	 * One index, by identity and weakly referenced, and one prefix. A key whose
+	 * index was collected only equals itself.
+	 */
+	private static class Key extends WeakReference<Object> {
+
+		/**
+		 * the hash of the index and the prefix, kept after the index is collected
+		 */
+		private final int hash;
+
+		/**
+		 * the prefix
+		 */
+		private final String prefix;
+
+		/**
+		 * @param index     the index
+		 * @param prefix    the prefix
+		 * @param collected gets the key once the index is collected, or null for a
+		 *                  key only used to look up
+		 */
+		private Key(Object index, String prefix, ReferenceQueue<Object> collected) {
+			super(index, collected);
+			this.hash = 31 * System.identityHashCode(index) + prefix.hashCode();
+			this.prefix = prefix;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (this == other) {
+				return true;
+			}
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			Object index = get();
+			return index != null && index == key.get() && prefix.equals(key.prefix);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * The number of matches of every document the words starting with a prefix
+	 * are in
+	 */
+	private static class Expansion {
+
+		/**
+		 * the generation of the index it was expanded in
+		 */
+		private final long generation;
+
+		/**
+		 * ids of the documents, in the order they were first matched
+		 */
+		private final int[] documents;
+
+		/**
+		 * number of matches of every document
+		 */
+		private final int[] counts;
+
+		/**
+		 * Copies the matches of the accumulator, then clears it
+		 *
+		 * @param generation the generation of the index
+		 * @param scores     the matches of the words starting with the prefix
+		 */
+		private Expansion(long generation, ScoreAccumulator scores) {
+			this.generation = generation;
+			this.documents = scores.documents();
+			this.counts = new int[documents.length];
+			for (int i = 0; i < documents.length; i++) {
+				counts[i] = scores.count(documents[i]);
+			}
+			scores.clear();
+		}
+
+		/**
+		 * Return the number of document counts held
+		 *
+		 * @return the number of documents
+		 */
+		private int size() {
+			return documents.length;
+		}
+
+		/**
+		 * Adds the matches to an accumulator
+		 *
+		 * @param scores  the accumulator
+		 * @param skipped documents whose matches are left out, or null
+		 */
+		private void addTo(ScoreAccumulator scores, boolean[] skipped) {
+			for (int i = 0; i < documents.length; i++) {
+				if (skipped == null || !skipped[documents[i]]) {
+					scores.add(documents[i], counts[i]);
+				}
+			}
+		}
+	}
+}
@@ -71,6 +71,35 @@ public class PrettyJSONWriter {
 		writer.write("]");
 	}
 
+	/**
+	 * Writes a range of an int array as a pretty JSON array.
+	 *
+	 * @param elements the elements to write
+	 * @param from     the first index to write, inclusive
+	 * @param to       the last index to write, exclusive
+	 * @param writer   the writer to use
+	 * @param level    the initial indent level
+	 * @throws IOException
+	 */
+	public static void asArray(int[] elements, int from, int to, Writer writer, int level) throws IOException {
+		writer.write('[');
+		writer.write('\n');
+
+		if (from < to) {
+			for (int i = from; i < to - 1; i++) {
+				indent(writer, level + 1);
+				writer.write(Integer.toString(elements[i]));
+				writer.write(",");
+				writer.write("\n");
+			}
+			indent(writer, level + 1);
+			writer.write(Integer.toString(elements[to - 1]));
+			writer.write("\n");
+		}
+		indent(writer, level);
+		writer.write("]");
+	}
+
 	/**
 	 * Writes the elements as a pretty JSON array to file.
 	 *
@@ -7,8 +7,6 @@ import java.util.ArrayList;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
-import opennlp.tools.stemmer.snowball.SnowballStemmer;
-
 /**
  * Search class perform a stem for the query file and a partial or exact search
  * for the index passed in
@@ -23,16 +21,31 @@ public class QueryParser implements QueryParserInterface {
 	/**
 	 * inverted index data structure
 	 */
-	private final InvertedIndex index;
+	private final AbstractInvertedIndex index;
+	/**
+	 * maximum number of results of every query line, or 0 for all of them
+	 */
+	private int top;
 
 	/**
 	 * Constructor initialize the data structure
 	 * 
 	 * @param index inverted index data structure
 	 */
-	public QueryParser(InvertedIndex index) {
+	public QueryParser(AbstractInvertedIndex index) {
 		this.searchResult = new TreeMap<String, ArrayList<SearchResult>>();
 		this.index = index;
+		this.top = 0;
+	}
+
+	@Override
+	public void setTop(int top) {
+		this.top = Math.max(0, top);
+	}
+
+	@Override
+	public void setPrefixCache(PrefixCache cache) {
+		index.setPrefixCache(cache);
 	}
 
 	/**
@@ -46,13 +59,13 @@ public class QueryParser implements QueryParserInterface {
 
 	@Override
 	public void stemQuery(Path queryFile, boolean exact) throws IOException {
-		SnowballStemmer stemmer = new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH);
+		StemCache stems = StemCache.get();
 		try (BufferedReader br = Files.newBufferedReader(queryFile, StandardCharsets.UTF_8)) {
 			String line;
 			while ((line = br.readLine()) != null) {
 				TreeSet<String> oneLineQuery = new TreeSet<String>();
 				for (String queryWord : TextParser.parse(line)) {
-					String word = stemmer.stem(queryWord).toString();
+					String word = stems.stem(queryWord);
 					if (!word.isEmpty()) {
 						oneLineQuery.add(word);
 					}
@@ -60,7 +73,8 @@ public class QueryParser implements QueryParserInterface {
 				String queryLine = String.join(" ", oneLineQuery);
 				if (!searchResult.containsKey(queryLine)) {
 					if (!oneLineQuery.isEmpty()) {
-						searchResult.put(queryLine, index.search(oneLineQuery, exact));
+						searchResult.put(queryLine,
+								top > 0 ? index.search(oneLineQuery, exact, top, 0) : index.search(oneLineQuery, exact));
 					}
 				}
 			}
@@ -29,4 +29,20 @@ public interface QueryParserInterface {
 	 */
 	public void toSearchResult(Path resultPath) throws IOException;
 
+	/**
+	 * Set the maximum number of results kept for every query line, so only the
+	 * best ones are selected instead of sorting all of them
+	 * 
+	 * @param top the maximum number of results, or 0 to keep all of them
+	 */
+	public void setTop(int top);
+
+	/**
+	 * Set the cache of what the prefixes of partial searches expand into, so a
+	 * prefix in several query lines is only expanded once
+	 * 
+	 * @param cache the cache, or null to expand every prefix again
+	 */
+	public void setPrefixCache(PrefixCache cache);
+
 }
@@ -0,0 +1,279 @@
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The rules of a robots.txt file for this crawler: the paths it may not fetch
+ * and the time to wait between requests. The group of the crawler's own name is
+ * used if present, otherwise the group of "*". Of the Allow and Disallow rules
+ * matching a path, the longest wins, and Allow wins a tie. Rules may use '*' for
+ * any characters and end with '$' to match the end of the path.
+ */
+public class RobotsTxt {
+
+	/** The name of this crawler in robots.txt files. */
+	public static final String USER_AGENT = "SearchEngine";
+
+	/** Rules that allow every path. */
+	public static final RobotsTxt ALLOW_ALL = new RobotsTxt(new ArrayList<Rule>(), 0, false);
+
+	/**
+	 * Rules used while the robots.txt cannot be fetched: every path is disallowed
+	 * until it is fetched again.
+	 */
+	public static final RobotsTxt UNREACHABLE = new RobotsTxt(List.of(new Rule("/", false)), 0, true);
+
+	/** The number of redirects followed to the robots.txt. */
+	public static final int MAX_REDIRECTS = 5;
+
+	/**
+	 * the Allow and Disallow rules of the group used
+	 */
+	private final List<Rule> rules;
+
+	/**
+	 * the time to wait between requests, in milliseconds
+	 */
+	private final long crawlDelay;
+
+	/**
+	 * true if the robots.txt could not be fetched and should be fetched again
+	 */
+	private final boolean temporary;
+
+	/**
+	 * @param rules      the Allow and Disallow rules of the group used
+	 * @param crawlDelay the time to wait between requests, in milliseconds
+	 * @param temporary  true if the robots.txt could not be fetched
+	 */
+	private RobotsTxt(List<Rule> rules, long crawlDelay, boolean temporary) {
+		this.rules = rules;
+		this.crawlDelay = crawlDelay;
+		this.temporary = temporary;
+	}
+
+	/**
+	 * Fetches and parses the robots.txt of the host of the url, following up to
+	 * {@link #MAX_REDIRECTS} redirects. A missing file, like any other 4xx status
+	 * or too many redirects, allows every path. A server error, too many requests,
+	 * an unreachable host or a host backed off by the {@link HostMonitor} disallows every path
+	 * for now, see {@link #UNREACHABLE}.
+	 *
+	 * @param url any url of the host
+	 * @return the rules
+	 */
+	public static RobotsTxt fetch(URL url) {
+		try {
+			URL robots = new URL(url.getProtocol(), url.getHost(), url.getPort(), "/robots.txt");
+			for (int redirects = 0; redirects <= MAX_REDIRECTS; redirects++) {
+				Map<String, List<String>> headers = HttpsFetcher.fetchURL(robots);
+				int status = HtmlFetcher.getStatusCode(headers);
+				if (status >= 200 && status < 300) {
+					return parse(headers.get("Content"));
+				}
+				if (status >= 500 || status == 429 || status < 100) {
+					System.err.println("Unable to read robots.txt of " + url.getHost() + ": status " + status);
+					return UNREACHABLE;
+				}
+				if (!HtmlFetcher.isRedirect(headers)) {
+					break;
+				}
+				robots = new URL(robots, headers.get("Location").get(0));
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to read robots.txt of " + url.getHost() + ": " + e.getMessage());
+			return UNREACHABLE;
+		}
+		return ALLOW_ALL;
+	}
+
+	/**
+	 * Parses the lines of a robots.txt file
+	 *
+	 * @param lines the lines
+	 * @return the rules for this crawler
+	 */
+	public static RobotsTxt parse(List<String> lines) {
+		String agent = USER_AGENT.toLowerCase(Locale.ROOT);
+
+		ArrayList<Rule> own = null;
+		ArrayList<Rule> any = null;
+		long ownDelay = 0;
+		long anyDelay = 0;
+
+		// the group being read: whether its user agents include this crawler or *
+		boolean forOwn = false;
+		boolean forAny = false;
+		boolean readingAgents = false;
+
+		for (String line : lines) {
+			int comment = line.indexOf('#');
+			if (comment >= 0) {
+				line = line.substring(0, comment);
+			}
+			int colon = line.indexOf(':');
+			if (colon < 0) {
+				continue;
+			}
+			String field = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+			String value = line.substring(colon + 1).trim();
+
+			if (field.equals("user-agent")) {
+				if (!readingAgents) {
+					forOwn = false;
+					forAny = false;
+					readingAgents = true;
+				}
+				String name = value.toLowerCase(Locale.ROOT);
+				if (name.equals("*")) {
+					forAny = true;
+					any = any == null ? new ArrayList<Rule>() : any;
+				} else if (!name.isEmpty() && agent.startsWith(name)) {
+					forOwn = true;
+					own = own == null ? new ArrayList<Rule>() : own;
+				}
+				continue;
+			}
+			readingAgents = false;
+
+			if (field.equals("allow") || field.equals("disallow")) {
+				if (value.isEmpty()) {
+					// an empty Disallow allows everything, an empty Allow does nothing
+					continue;
+				}
+				Rule rule = new Rule(value, field.equals("allow"));
+				if (forOwn) {
+					own.add(rule);
+				}
+				if (forAny) {
+					any.add(rule);
+				}
+			} else if (field.equals("crawl-delay")) {
+				try {
+					long delay = Math.round(Double.parseDouble(value) * 1000);
+					if (forOwn) {
+						ownDelay = delay;
+					}
+					if (forAny) {
+						anyDelay = delay;
+					}
+				} catch (NumberFormatException e) {
+					// ignore a delay that is not a number
+				}
+			}
+		}
+
+		if (own != null) {
+			return new RobotsTxt(own, ownDelay, false);
+		}
+		if (any != null) {
+			return new RobotsTxt(any, anyDelay, false);
+		}
+		return ALLOW_ALL;
+	}
+
+	/**
+	 * Return whether this crawler may fetch the url
+	 *
+	 * @param url the url
+	 * @return true if allowed
+	 */
+	public boolean allows(URL url) {
+		String path = url.getPath().isEmpty() ? "/" : url.getPath();
+		if (url.getQuery() != null) {
+			path += "?" + url.getQuery();
+		}
+
+		Rule best = null;
+		for (Rule rule : rules) {
+			if (rule.matches(path) && (best == null || rule.pattern.length() > best.pattern.length()
+					|| (rule.pattern.length() == best.pattern.length() && rule.allow))) {
+				best = rule;
+			}
+		}
+		return best == null || best.allow;
+	}
+
+	/**
+	 * Returns the time to wait between requests.
+	 *
+	 * @return the crawl delay, in milliseconds, or 0 if none
+	 */
+	public long getCrawlDelay() {
+		return crawlDelay;
+	}
+
+	/**
+	 * Return whether the rules only hold until the robots.txt is fetched again,
+	 * because it could not be fetched
+	 *
+	 * @return true if temporary
+	 */
+	public boolean isTemporary() {
+		return temporary;
+	}
+
+	/**
+	 * An Allow or Disallow rule
+	 */
+	private static class Rule {
+
+		/**
+		 * the path pattern
+		 */
+		private final String pattern;
+
+		/**
+		 * true for Allow, false for Disallow
+		 */
+		private final boolean allow;
+
+		/**
+		 * @param pattern the path pattern
+		 * @param allow   true for Allow, false for Disallow
+		 */
+		private Rule(String pattern, boolean allow) {
+			this.pattern = pattern;
+			this.allow = allow;
+		}
+
+		/**
+		 * Return whether the rule matches the start of the path, or the whole path
+		 * if it ends with '$'
+		 *
+		 * @param path the path and query
+		 * @return true if the rule matches
+		 */
+		private boolean matches(String path) {
+			// a rule without '$' matches any path it is a prefix of
+			String glob = pattern.endsWith("$") ? pattern.substring(0, pattern.length() - 1) : pattern + "*";
+
+			// greedy match, going back to the last '*' on a mismatch
+			int p = 0;
+			int i = 0;
+			int star = -1;
+			int mark = 0;
+			while (i < path.length()) {
+				if (p < glob.length() && glob.charAt(p) == '*') {
+					star = p++;
+					mark = i;
+				} else if (p < glob.length() && glob.charAt(p) == path.charAt(i)) {
+					p++;
+					i++;
+				} else if (star >= 0) {
+					p = star + 1;
+					i = ++mark;
+				} else {
+					return false;
+				}
+			}
+			while (p < glob.length() && glob.charAt(p) == '*') {
+				p++;
+			}
+			return p == glob.length();
+		}
+	}
+}
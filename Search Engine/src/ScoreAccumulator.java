@@ -0,0 +1,262 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Adds up the matches of one search by document id in an int array, so the
+ * inner loop of a search is an array increment instead of a hash lookup of the
+ * location. The ids of the documents matched are listed in the order they were
+ * first matched, so only those are turned into {@link SearchResult}s and
+ * cleared for the next search. A search for one page of results ranks the
+ * documents by their counts, and only creates results for the page.
+ *
+ * Every thread reuses its own accumulator from {@link #get(int)}, so the arrays
+ * are only allocated again when an index has more documents.
+ *
+ * Warning: This class is not thread-safe.
+ */
+public class ScoreAccumulator {
+
+	/**
+	 * the accumulator of every thread
+	 */
+	private static final ThreadLocal<ScoreAccumulator> LOCAL = ThreadLocal.withInitial(ScoreAccumulator::new);
+
+	/**
+	 * number of matches of every document, 0 if not matched
+	 */
+	private int[] counts;
+
+	/**
+	 * ids of the documents matched, in the order they were first matched
+	 */
+	private int[] touched;
+
+	/**
+	 * number of documents matched
+	 */
+	private int size;
+
+	/**
+	 * Initializes an empty accumulator
+	 */
+	public ScoreAccumulator() {
+		this.counts = new int[16];
+		this.touched = new int[16];
+		this.size = 0;
+	}
+
+	/**
+	 * Return the accumulator of the current thread, cleared and large enough for
+	 * the document ids of an index
+	 *
+	 * @param documents number of documents of the index
+	 * @return the accumulator, only to be used by the current thread
+	 */
+	public static ScoreAccumulator get(int documents) {
+		ScoreAccumulator scores = LOCAL.get();
+		scores.clear();
+		if (scores.counts.length < documents) {
+			scores.counts = new int[Math.max(documents, scores.counts.length * 2)];
+		}
+		return scores;
+	}
+
+	/**
+	 * Adds the matches of a word in a document
+	 *
+	 * @param document  id of the document
+	 * @param frequency number of times the word is in the document
+	 */
+	public void add(int document, int frequency) {
+		if (counts[document] == 0) {
+			if (size == touched.length) {
+				touched = Arrays.copyOf(touched, size * 2);
+			}
+			touched[size++] = document;
+		}
+		counts[document] += frequency;
+	}
+
+	/**
+	 * Return the ids of the documents matched
+	 *
+	 * @return a copy of the ids, in the order they were first matched
+	 */
+	public int[] documents() {
+		return Arrays.copyOf(touched, size);
+	}
+
+	/**
+	 * Return the number of matches of a document
+	 *
+	 * @param document id of the document
+	 * @return the number of matches, 0 if not matched
+	 */
+	public int count(int document) {
+		return counts[document];
+	}
+
+	/**
+	 * Adds a search result for every document matched to the list, in the order
+	 * they were first matched, then clears the accumulator
+	 *
+	 * @param list     the list to add the results to
+	 * @param location the location of a document id
+	 * @param total    the total number of words of a document id
+	 * @return the list
+	 */
+	public ArrayList<SearchResult> drain(ArrayList<SearchResult> list, IntFunction<String> location,
+			IntUnaryOperator total) {
+		list.ensureCapacity(list.size() + size);
+		for (int i = 0; i < size; i++) {
+			int document = touched[i];
+			list.add(new SearchResult(location.apply(document), total.applyAsInt(document), counts[document]));
+		}
+		clear();
+		return list;
+	}
+
+	/**
+	 * Adds a search result for the documents from offset to offset + k in sorted
+	 * order to the list, then clears the accumulator. The best documents are
+	 * selected by their counts, so search results are only created for the page.
+	 * Documents that compare equal keep the order they were first matched in.
+	 *
+	 * @param list     the list to add the results to
+	 * @param location the location of a document id
+	 * @param total    the total number of words of a document id
+	 * @param k        maximum number of results
+	 * @param offset   number of best results to skip
+	 * @return the list
+	 */
+	public ArrayList<SearchResult> drainTop(ArrayList<SearchResult> list, IntFunction<String> location,
+			IntUnaryOperator total, int k, int offset) {
+		int[] best = select(size, (int) Math.min(Integer.MAX_VALUE, Math.max(0, (long) k) + Math.max(0, offset)),
+				(a, b) -> {
+					int first = touched[a];
+					int second = touched[b];
+					return SearchResult.compare((double) counts[first] / total.applyAsInt(first), counts[first],
+							location.apply(first), (double) counts[second] / total.applyAsInt(second),
+							counts[second], location.apply(second));
+				});
+		for (int i = Math.max(0, offset); i < best.length; i++) {
+			int document = touched[best[i]];
+			list.add(new SearchResult(location.apply(document), total.applyAsInt(document), counts[document]));
+		}
+		clear();
+		return list;
+	}
+
+	/**
+	 * Return the best n of a number of items in sorted order, keeping a heap of
+	 * the best n so far instead of sorting all of them. Items that compare equal
+	 * keep their order.
+	 *
+	 * @param size    number of items
+	 * @param n       maximum number of items to select
+	 * @param compare compares two items by their indices, negative if the first
+	 *                comes first
+	 * @return the indices of the best items, best first
+	 */
+	public static int[] select(int size, int n, IntBinaryOperator compare) {
+		n = Math.max(0, Math.min(size, n));
+
+		// a heap of the best n items so far, worst at the root
+		int[] heap = new int[n];
+		int count = 0;
+		for (int i = 0; i < size && n > 0; i++) {
+			if (count < n) {
+				heap[count] = i;
+				siftUp(heap, count++, compare);
+			} else if (better(i, heap[0], compare)) {
+				heap[0] = i;
+				siftDown(heap, count, compare);
+			}
+		}
+
+		// remove the worst one at a time, filling the selection from the back
+		int[] best = new int[n];
+		while (count > 0) {
+			best[count - 1] = heap[0];
+			heap[0] = heap[--count];
+			siftDown(heap, count, compare);
+		}
+		return best;
+	}
+
+	/**
+	 * Return whether an item comes before another one in sorted order
+	 *
+	 * @param a       index of one item
+	 * @param b       index of the other item
+	 * @param compare compares two items by their indices
+	 * @return true if item a comes first
+	 */
+	private static boolean better(int a, int b, IntBinaryOperator compare) {
+		int result = compare.applyAsInt(a, b);
+		return result < 0 || (result == 0 && a < b);
+	}
+
+	/**
+	 * Moves the last item added to the heap up to its place
+	 *
+	 * @param heap    indices of the items in the heap
+	 * @param i       position of the item in the heap
+	 * @param compare compares two items by their indices
+	 */
+	private static void siftUp(int[] heap, int i, IntBinaryOperator compare) {
+		int item = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!better(heap[parent], item, compare)) {
+				break;
+			}
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = item;
+	}
+
+	/**
+	 * Moves the item at the root of the heap down to its place
+	 *
+	 * @param heap    indices of the items in the heap
+	 * @param size    number of items in the heap
+	 * @param compare compares two items by their indices
+	 */
+	private static void siftDown(int[] heap, int size, IntBinaryOperator compare) {
+		if (size == 0) {
+			return;
+		}
+		int item = heap[0];
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && better(heap[child], heap[child + 1], compare)) {
+				child++;
+			}
+			if (!better(item, heap[child], compare)) {
+				break;
+			}
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = item;
+	}
+
+	/**
+	 * Forgets the documents matched
+	 */
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			counts[touched[i]] = 0;
+		}
+		size = 0;
+	}
+}
@@ -98,13 +98,32 @@ public class SearchResult implements Comparable<SearchResult> {
 	 */
 	@Override
 	public int compareTo(SearchResult other) {
-		if (Double.compare(this.getScore(), other.getScore()) == 0) {
-			if (Integer.compare(this.getCount(), other.getCount()) == 0) {
-				return String.CASE_INSENSITIVE_ORDER.compare(this.getPath(), other.getPath());
+		return compare(this.getScore(), this.getCount(), this.getPath(), other.getScore(), other.getCount(),
+				other.getPath());
+	}
+
+	/**
+	 * Compares two results by their parts, in the same order as
+	 * {@link #compareTo(SearchResult)}, so results can be ranked before they are
+	 * created
+	 * 
+	 * @param score      score of one result
+	 * @param count      count of one result
+	 * @param path       path of one result
+	 * @param otherScore score of the other result
+	 * @param otherCount count of the other result
+	 * @param otherPath  path of the other result
+	 * @return a negative number if the first result comes first
+	 */
+	public static int compare(double score, int count, String path, double otherScore, int otherCount,
+			String otherPath) {
+		if (Double.compare(score, otherScore) == 0) {
+			if (Integer.compare(count, otherCount) == 0) {
+				return String.CASE_INSENSITIVE_ORDER.compare(path, otherPath);
 			}
-			return Integer.compare(other.getCount(), this.getCount());
+			return Integer.compare(otherCount, count);
 		}
-		return Double.compare(other.getScore(), this.getScore());
+		return Double.compare(otherScore, score);
 	}
 
 }
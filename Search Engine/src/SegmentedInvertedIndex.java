@@ -0,0 +1,663 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index made of immutable segments, so new documents can be added
+ * without rebuilding everything.
+ *
+ * New words are collected in an in-memory buffer. {@link #flush()} freezes the
+ * buffer into a new segment, which is written to the segment directory (if
+ * there is one) and becomes searchable. Searches run over all segments
+ * together. A background thread merges windows of neighbouring segments of
+ * similar size, cheapest first. When the sizes are too uneven for any window to
+ * be similar, the cheapest window is merged anyway once there are more segments
+ * than a size-tiered index would have, so the number of segments stays
+ * logarithmic in the size of the index.
+ *
+ * A location indexed in more than one segment is only taken from the newest
+ * one. Otherwise the search results are the same as the results of a single
+ * index built from all the batches.
+ */
+public class SegmentedInvertedIndex extends ThreadSafeInvertedIndex {
+
+	/**
+	 * name of the segment files: first and last flush generation they contain
+	 */
+	private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)-(\\d+)\\.seg");
+
+	/** The default number of similar sized segments merged together. */
+	public static final int DEFAULT_MERGE_FACTOR = 4;
+
+	/**
+	 * directory of the segment files, or null to keep the segments in memory
+	 */
+	private final Path directory;
+
+	/**
+	 * number of neighbouring segments merged together, and the most their sizes
+	 * differ by for them to be similar
+	 */
+	private final int mergeFactor;
+
+	/**
+	 * single background thread running the merges
+	 */
+	private final WorkQueue merger;
+
+	/**
+	 * lets many threads add to the buffer, while flush swaps it exclusively
+	 */
+	private final SimpleReadWriteLock bufferLock;
+
+	/**
+	 * buffer of the words added since the last flush
+	 */
+	private ThreadSafeInvertedIndex buffer;
+
+	/**
+	 * the current segments; replaced, never modified
+	 */
+	private volatile Snapshot snapshot;
+
+	/**
+	 * generation of the next flush
+	 */
+	private long generation;
+
+	/**
+	 * Initializes an empty index that keeps its segments in memory
+	 */
+	public SegmentedInvertedIndex() {
+		this.directory = null;
+		this.mergeFactor = DEFAULT_MERGE_FACTOR;
+		this.merger = new WorkQueue(1);
+		this.bufferLock = new SimpleReadWriteLock();
+		this.buffer = new ThreadSafeInvertedIndex();
+		this.snapshot = new Snapshot(new ArrayList<Segment>());
+		this.generation = 0;
+	}
+
+	/**
+	 * Initializes the index from the segment files of the directory, creating the
+	 * directory if needed. New segments are written to the same directory.
+	 *
+	 * @param directory   directory of the segment files
+	 * @param mergeFactor number of similar sized segments merged together
+	 * @throws IOException if unable to read the directory or a segment
+	 */
+	public SegmentedInvertedIndex(Path directory, int mergeFactor) throws IOException {
+		this.directory = directory;
+		this.mergeFactor = Math.max(2, mergeFactor);
+		this.merger = new WorkQueue(1);
+		this.bufferLock = new SimpleReadWriteLock();
+		this.buffer = new ThreadSafeInvertedIndex();
+
+		Files.createDirectories(directory);
+		// a crash while writing a segment leaves its temporary file behind
+		try (DirectoryStream<Path> list = Files.newDirectoryStream(directory, "segment-*.seg.tmp")) {
+			for (Path file : list) {
+				Files.deleteIfExists(file);
+			}
+		}
+		ArrayList<Segment> found = new ArrayList<Segment>();
+		try (DirectoryStream<Path> list = Files.newDirectoryStream(directory, "segment-*.seg")) {
+			for (Path file : list) {
+				Matcher matcher = SEGMENT_NAME.matcher(file.getFileName().toString());
+				if (matcher.matches()) {
+					found.add(new Segment(null, Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2)),
+							file));
+				}
+			}
+		}
+		found.sort((a, b) -> a.first != b.first ? Long.compare(a.first, b.first) : Long.compare(b.last, a.last));
+
+		// a crash after a merge but before its inputs were deleted leaves segments
+		// covered by the merged one; those are dropped
+		ArrayList<Segment> segments = new ArrayList<Segment>();
+		long next = 0;
+		for (Segment segment : found) {
+			if (segment.first < next) {
+				Files.deleteIfExists(segment.file);
+			} else {
+				segments.add(new Segment(IndexSegment.open(segment.file), segment.first, segment.last, segment.file));
+				next = segment.last + 1;
+			}
+		}
+		this.generation = next;
+		this.snapshot = new Snapshot(segments);
+		scheduleMerge();
+	}
+
+	/**
+	 * Return the number of segments
+	 *
+	 * @return number of segments
+	 */
+	public int getSegmentCount() {
+		return snapshot.segments.size();
+	}
+
+	/**
+	 * Freezes the words added since the last flush into a new segment, which
+	 * becomes searchable, and schedules a merge check
+	 *
+	 * @throws IOException if unable to write the segment file
+	 */
+	public void flush() throws IOException {
+		ThreadSafeInvertedIndex full;
+		bufferLock.writeLock().lock();
+		try {
+			full = buffer;
+			buffer = new ThreadSafeInvertedIndex();
+		} finally {
+			bufferLock.writeLock().unlock();
+		}
+
+		if (full.isEmpty()) {
+			return;
+		}
+
+		synchronized (this) {
+			long flushed = generation++;
+			Segment segment = write(full.freeze(), flushed, flushed);
+			ArrayList<Segment> segments = new ArrayList<Segment>(snapshot.segments);
+			segments.add(segment);
+			snapshot = new Snapshot(segments);
+		}
+		scheduleMerge();
+	}
+
+	/**
+	 * Waits for the pending merges and stops the merge thread, and drops the
+	 * cached prefix expansions of the segments
+	 */
+	public void close() {
+		merger.finish();
+		merger.shutdown();
+		forget(snapshot.segments);
+	}
+
+	/**
+	 * Drops the cached prefix expansions of segments that are not searched any
+	 * more
+	 *
+	 * @param segments the segments
+	 */
+	private void forget(List<Segment> segments) {
+		PrefixCache cache = getPrefixCache();
+		if (cache != null) {
+			for (Segment segment : segments) {
+				cache.forget(segment.index);
+			}
+		}
+	}
+
+	/**
+	 * Stores a new segment, writing it to the segment directory if there is one
+	 *
+	 * @param index the segment to store
+	 * @param first first flush generation in the segment
+	 * @param last  last flush generation in the segment
+	 * @return the stored segment
+	 * @throws IOException if unable to write the segment file
+	 */
+	private Segment write(FrozenInvertedIndex index, long first, long last) throws IOException {
+		if (directory == null) {
+			return new Segment(index, first, last, null);
+		}
+		String name = String.format("segment-%08d-%08d.seg", first, last);
+		Path temp = directory.resolve(name + ".tmp");
+		Path file = directory.resolve(name);
+		IndexSegment.write(index, temp);
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return new Segment(IndexSegment.open(file), first, last, file);
+	}
+
+	/**
+	 * Asks the merge thread to check the size tiers
+	 */
+	private void scheduleMerge() {
+		merger.execute(new MergeTask());
+	}
+
+	/**
+	 * Return the size of the segment
+	 *
+	 * @param segment the segment
+	 * @return its number of positions, at least 1
+	 */
+	private static long size(Segment segment) {
+		return Math.max(1, segment.index.positionCount());
+	}
+
+	/**
+	 * Return the size tier of a size
+	 *
+	 * @param size the size
+	 * @return size tier, the log of the size in base merge factor
+	 */
+	private int tier(long size) {
+		int tier = 0;
+		while (size >= mergeFactor) {
+			size /= mergeFactor;
+			tier++;
+		}
+		return tier;
+	}
+
+	/**
+	 * Merges windows of {@link #mergeFactor} neighbouring segments until none is
+	 * left to merge. Only neighbours are merged, so the newer segment of a
+	 * location stays newer.
+	 */
+	private class MergeTask implements Runnable {
+
+		@Override
+		public void run() {
+			List<Segment> run;
+			while ((run = findRun(snapshot.segments)) != null) {
+				try {
+					merge(run);
+				} catch (IOException e) {
+					System.err.println("Unable to merge the index segments: " + e.getMessage());
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Return the cheapest window of neighbouring segments whose sizes are within
+		 * {@link #mergeFactor} of each other, or the cheapest window of any sizes if
+		 * there are more segments than a size-tiered index would have: one less than
+		 * {@link #mergeFactor} for every tier from the smallest segment up to the
+		 * whole index
+		 *
+		 * @param segments the current segments
+		 * @return the segments to merge, or null if there are none
+		 */
+		private List<Segment> findRun(List<Segment> segments) {
+			if (segments.size() < mergeFactor) {
+				return null;
+			}
+			long[] sizes = new long[segments.size()];
+			long total = 0;
+			long smallest = Long.MAX_VALUE;
+			for (int i = 0; i < sizes.length; i++) {
+				sizes[i] = size(segments.get(i));
+				total += sizes[i];
+				smallest = Math.min(smallest, sizes[i]);
+			}
+
+			int similar = -1;
+			int any = -1;
+			long similarCost = Long.MAX_VALUE;
+			long anyCost = Long.MAX_VALUE;
+			for (int start = 0; start + mergeFactor <= sizes.length; start++) {
+				long cost = 0;
+				long min = Long.MAX_VALUE;
+				long max = 0;
+				for (int i = start; i < start + mergeFactor; i++) {
+					cost += sizes[i];
+					min = Math.min(min, sizes[i]);
+					max = Math.max(max, sizes[i]);
+				}
+				if (max <= min * mergeFactor && cost < similarCost) {
+					similar = start;
+					similarCost = cost;
+				}
+				if (cost < anyCost) {
+					any = start;
+					anyCost = cost;
+				}
+			}
+
+			if (similar >= 0) {
+				return segments.subList(similar, similar + mergeFactor);
+			}
+			if (segments.size() > (mergeFactor - 1) * (tier(total / smallest) + 1)) {
+				return segments.subList(any, any + mergeFactor);
+			}
+			return null;
+		}
+
+		/**
+		 * Merges the run into one segment and swaps it in
+		 *
+		 * @param run the segments to merge
+		 * @throws IOException if unable to write the merged segment
+		 */
+		private void merge(List<Segment> run) throws IOException {
+			ArrayList<FrozenInvertedIndex> indexes = new ArrayList<FrozenInvertedIndex>();
+			for (Segment segment : run) {
+				indexes.add(segment.index);
+			}
+			Segment merged = write(FrozenInvertedIndex.merge(indexes), run.get(0).first,
+					run.get(run.size() - 1).last);
+
+			synchronized (SegmentedInvertedIndex.this) {
+				// flushes may have appended segments meanwhile, the run itself is unchanged
+				ArrayList<Segment> segments = new ArrayList<Segment>(snapshot.segments);
+				int start = segments.indexOf(run.get(0));
+				segments.subList(start, start + run.size()).clear();
+				segments.add(start, merged);
+				snapshot = new Snapshot(segments);
+			}
+			forget(run);
+
+			for (Segment segment : run) {
+				if (segment.file != null) {
+					Files.deleteIfExists(segment.file);
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean add(String word, String location, int position) {
+		bufferLock.readLock().lock();
+		try {
+			return buffer.add(word, location, position);
+		} finally {
+			bufferLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void addAll(InvertedIndex temp) {
+		bufferLock.readLock().lock();
+		try {
+			buffer.addAll(temp);
+		} finally {
+			bufferLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Return all flushed segments merged into one frozen index
+	 *
+	 * @see FrozenInvertedIndex#merge(List)
+	 */
+	@Override
+	public FrozenInvertedIndex freeze() {
+		return snapshot.merged();
+	}
+
+	@Override
+	public void toIndexJSON(Path path) throws IOException {
+		freeze().toIndexJSON(path);
+	}
+
+	@Override
+	public void toLocationsJSON(Path path) throws IOException {
+		freeze().toLocationsJSON(path);
+	}
+
+	@Override
+	public Set<String> getWordSet() {
+		return freeze().getWordSet();
+	}
+
+	@Override
+	public Set<String> getPathSet(String word) {
+		return freeze().getPathSet(word);
+	}
+
+	@Override
+	public SortedSet<Integer> getPositionSet(String word, String path) {
+		return freeze().getPositionSet(word, path);
+	}
+
+	@Override
+	public boolean containsPath(String word, String path) {
+		return freeze().containsPath(word, path);
+	}
+
+	@Override
+	public boolean containsPosition(String word, String path, int position) {
+		return freeze().containsPosition(word, path, position);
+	}
+
+	@Override
+	public int getTotalWords(String path) {
+		List<Segment> segments = snapshot.segments;
+		for (int s = segments.size() - 1; s >= 0; s--) {
+			FrozenInvertedIndex index = segments.get(s).index;
+			int document = Arrays.binarySearch(index.locations, path);
+			if (document >= 0) {
+				return index.count[document];
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (Segment segment : snapshot.segments) {
+			if (!segment.index.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean containsWord(String word) {
+		for (Segment segment : snapshot.segments) {
+			if (segment.index.containsWord(word)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public ArrayList<SearchResult> search(Collection<String> queries, boolean exact) {
+		return exact ? exactSearch(queries) : partialSearch(queries);
+	}
+
+	@Override
+	public ArrayList<SearchResult> search(Collection<String> queries, boolean exact, int k, int offset) {
+		// the best offset + k of all segments are among the best offset + k of each
+		int best = (int) Math.min(Integer.MAX_VALUE, Math.max(0, (long) k) + Math.max(0, offset));
+		return top(search(snapshot, queries, exact, getPrefixCache(), best), k, offset);
+	}
+
+	@Override
+	public ArrayList<SearchResult> exactSearch(Collection<String> oneLineQuery) {
+		return sorted(search(snapshot, oneLineQuery, true, getPrefixCache(), -1));
+	}
+
+	@Override
+	public ArrayList<SearchResult> partialSearch(Collection<String> oneLineQuery) {
+		return sorted(search(snapshot, oneLineQuery, false, getPrefixCache(), -1));
+	}
+
+	@Override
+	protected ArrayList<SearchResult> exactMatches(Collection<String> oneLineQuery) {
+		return search(snapshot, oneLineQuery, true, getPrefixCache(), -1);
+	}
+
+	@Override
+	protected ArrayList<SearchResult> partialMatches(Collection<String> oneLineQuery) {
+		return search(snapshot, oneLineQuery, false, getPrefixCache(), -1);
+	}
+
+	/**
+	 * Searches every segment of the snapshot, skipping the locations that a newer
+	 * segment replaces
+	 *
+	 * @param current      the segments to search
+	 * @param oneLineQuery one line of query file
+	 * @param exact        exact or partial search
+	 * @param cache        the expansions of the prefixes of partial searches in
+	 *                     every segment, or null
+	 * @param best         number of best results kept of each segment, or -1 to
+	 *                     keep all
+	 * @return the results in the order they were found, or the best results of
+	 *         each segment in sorted order
+	 */
+	private static ArrayList<SearchResult> search(Snapshot current, Collection<String> oneLineQuery,
+			boolean exact, PrefixCache cache, int best) {
+		ArrayList<SearchResult> list = new ArrayList<>();
+		for (int s = 0; s < current.segments.size(); s++) {
+			FrozenInvertedIndex index = current.segments.get(s).index;
+			boolean[] shadowed = current.shadowed[s];
+			// every location is only in the newest segment that has it, so the
+			// results of each segment are separate
+			ScoreAccumulator scores;
+			if (!exact && cache != null) {
+				// segments never change, so what a prefix expands into is kept with the
+				// shadowed documents and they are skipped when added up
+				scores = cache.search(index, index.getGeneration(), index.locations.length, oneLineQuery,
+						index::expand, shadowed);
+			} else {
+				scores = ScoreAccumulator.get(index.locations.length);
+				for (String oneQuery : oneLineQuery) {
+					if (exact) {
+						int term = index.ordinal(oneQuery);
+						if (term >= 0) {
+							searchHelper(index, shadowed, scores, term);
+						}
+					} else {
+						int end = index.dictionary.prefixEnd(oneQuery);
+						for (int term = index.dictionary.prefixStart(oneQuery); term < end; term++) {
+							searchHelper(index, shadowed, scores, term);
+						}
+					}
+				}
+			}
+			if (best < 0) {
+				index.results(scores, list);
+			} else {
+				index.page(scores, best, 0, list);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Search helper method, adding the matches of a word to the accumulator
+	 *
+	 * @param index    the segment
+	 * @param shadowed documents of the segment replaced by a newer segment
+	 * @param scores   the matches of every document of the segment so far
+	 * @param term     ordinal of the word in the segment
+	 */
+	private static void searchHelper(FrozenInvertedIndex index, boolean[] shadowed, ScoreAccumulator scores,
+			int term) {
+		FrozenInvertedIndex.Block block = index.block(term);
+		for (int p = block.start; p < block.end; p++) {
+			int document = block.documents[p];
+			if (!shadowed[document]) {
+				scores.add(document, block.frequencies[p]);
+			}
+		}
+	}
+
+	/**
+	 * One immutable segment and the flush generations it contains
+	 */
+	private static class Segment {
+
+		/**
+		 * the segment index
+		 */
+		private final FrozenInvertedIndex index;
+
+		/**
+		 * first flush generation in the segment
+		 */
+		private final long first;
+
+		/**
+		 * last flush generation in the segment
+		 */
+		private final long last;
+
+		/**
+		 * segment file, or null if only kept in memory
+		 */
+		private final Path file;
+
+		/**
+		 * @param index the segment index
+		 * @param first first flush generation in the segment
+		 * @param last  last flush generation in the segment
+		 * @param file  segment file, or null if only kept in memory
+		 */
+		public Segment(FrozenInvertedIndex index, long first, long last, Path file) {
+			this.index = index;
+			this.first = first;
+			this.last = last;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * The segments searched at one point in time, oldest first, and for every
+	 * segment the documents replaced by a newer segment
+	 */
+	private static class Snapshot {
+
+		/**
+		 * the segments, oldest first
+		 */
+		private final List<Segment> segments;
+
+		/**
+		 * for every segment, true for the documents found in a newer segment
+		 */
+		private final boolean[][] shadowed;
+
+		/**
+		 * all segments merged, created on first use
+		 */
+		private FrozenInvertedIndex merged;
+
+		/**
+		 * @param segments the segments, oldest first
+		 */
+		public Snapshot(List<Segment> segments) {
+			this.segments = Collections.unmodifiableList(segments);
+			this.shadowed = new boolean[segments.size()][];
+
+			HashSet<String> newer = new HashSet<String>();
+			for (int s = segments.size() - 1; s >= 0; s--) {
+				String[] locations = segments.get(s).index.locations;
+				shadowed[s] = new boolean[locations.length];
+				for (int d = 0; d < locations.length; d++) {
+					shadowed[s][d] = !newer.add(locations[d]);
+				}
+			}
+		}
+
+		/**
+		 * Return all segments merged into one frozen index
+		 *
+		 * @return the merged index
+		 */
+		public synchronized FrozenInvertedIndex merged() {
+			if (merged == null) {
+				ArrayList<FrozenInvertedIndex> indexes = new ArrayList<FrozenInvertedIndex>();
+				for (Segment segment : segments) {
+					indexes.add(segment.index);
+				}
+				merged = indexes.size() == 1 ? indexes.get(0) : FrozenInvertedIndex.merge(indexes);
+			}
+			return merged;
+		}
+	}
+}
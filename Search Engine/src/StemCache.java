@@ -0,0 +1,294 @@
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import opennlp.tools.stemmer.snowball.SnowballStemmer;
+
+/**
+ * Stems words with an English {@link SnowballStemmer}, remembering the stems of
+ * words seen before. Text repeats the same few thousand words over and over, so
+ * most words are stemmed only once per thread.
+ *
+ * Every thread gets its own cache from {@link #get()}, with its own stemmer, so
+ * neither is locked. The cache has a fixed number of slots; a word goes into
+ * the slot its hash picks and takes the place of the word there, so frequent
+ * words stay and the cache never grows. Virtual threads live for a single
+ * task, so they, or every thread once {@link #setShared(boolean)} is called,
+ * share one concurrent cache instead.
+ *
+ * The hits and misses of all caches are counted for {@link #report()}.
+ */
+public class StemCache {
+
+	/**
+	 * The default number of words a cache remembers
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 14;
+
+	/**
+	 * number of words the caches created from now on remember
+	 */
+	private static volatile int capacity = DEFAULT_CAPACITY;
+
+	/**
+	 * true if every thread uses the shared cache
+	 */
+	private static volatile boolean sharedOnly = false;
+
+	/**
+	 * the cache of the virtual threads, or of every thread, created when first
+	 * needed
+	 */
+	private static volatile Shared shared;
+
+	/**
+	 * the cache of every platform thread
+	 */
+	private static final ThreadLocal<StemCache> LOCAL = ThreadLocal.withInitial(() -> new StemCache(capacity));
+
+	/**
+	 * {@link Thread}'s isVirtual, or null on runtimes without virtual threads
+	 */
+	private static final Method IS_VIRTUAL = isVirtualMethod();
+
+	/**
+	 * number of words found in a cache
+	 */
+	private static final LongAdder HITS = new LongAdder();
+
+	/**
+	 * number of words stemmed
+	 */
+	private static final LongAdder MISSES = new LongAdder();
+
+	/**
+	 * stems the words not found, or null for the shared cache
+	 */
+	private final SnowballStemmer stemmer;
+
+	/**
+	 * the word in every slot, or null
+	 */
+	private final String[] words;
+
+	/**
+	 * the stem of the word in every slot
+	 */
+	private final String[] stems;
+
+	/**
+	 * Initializes a cache for one thread
+	 *
+	 * @param capacity number of words remembered, rounded up to a power of two,
+	 *                 or 0 to remember none
+	 */
+	public StemCache(int capacity) {
+		this(capacity, new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH));
+	}
+
+	/**
+	 * Initializes a cache
+	 *
+	 * @param capacity number of words remembered, rounded up to a power of two,
+	 *                 or 0 to remember none
+	 * @param stemmer  stems the words not found, or null if {@link #stem} is
+	 *                 overridden
+	 */
+	private StemCache(int capacity, SnowballStemmer stemmer) {
+		int slots = capacity <= 0 ? 0 : Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.stemmer = stemmer;
+		this.words = new String[slots];
+		this.stems = new String[slots];
+	}
+
+	/**
+	 * Return the cache of the current thread
+	 *
+	 * @return the cache, only to be used by the current thread
+	 */
+	public static StemCache get() {
+		if (sharedOnly || isVirtual()) {
+			Shared cache = shared;
+			if (cache == null) {
+				synchronized (StemCache.class) {
+					if (shared == null) {
+						shared = new Shared(capacity);
+					}
+					cache = shared;
+				}
+			}
+			return cache;
+		}
+		return LOCAL.get();
+	}
+
+	/**
+	 * Sets the number of words remembered by the caches created from now on
+	 *
+	 * @param capacity number of words, or 0 to remember none
+	 */
+	public static void setCapacity(int capacity) {
+		StemCache.capacity = Math.max(0, capacity);
+	}
+
+	/**
+	 * Sets whether every thread uses one shared cache, instead of a cache of its
+	 * own
+	 *
+	 * @param sharedOnly true to share one cache
+	 */
+	public static void setShared(boolean sharedOnly) {
+		StemCache.sharedOnly = sharedOnly;
+	}
+
+	/**
+	 * Return the stem of the word
+	 *
+	 * @param word the cleaned word
+	 * @return the stem
+	 */
+	public String stem(CharSequence word) {
+		if (words.length == 0) {
+			MISSES.increment();
+			return stemmer.stem(word).toString();
+		}
+
+		int slot = slot(word, words.length);
+		String cached = words[slot];
+		if (cached != null && cached.contentEquals(word)) {
+			HITS.increment();
+			return stems[slot];
+		}
+
+		MISSES.increment();
+		String stem = stemmer.stem(word).toString();
+		words[slot] = word.toString();
+		stems[slot] = stem;
+		return stem;
+	}
+
+	/**
+	 * Return a summary of the words stemmed
+	 *
+	 * @return the report
+	 */
+	public static String report() {
+		long hits = HITS.sum();
+		long total = hits + MISSES.sum();
+		return String.format(Locale.ROOT, "stem cache: %d of %d words (%.1f%%) found, %d words per %s%n", hits,
+				total, total == 0 ? 0.0 : 100.0 * hits / total, capacity, sharedOnly ? "process" : "thread");
+	}
+
+	/**
+	 * Return the slot of the word, from the same hash as {@link String#hashCode()}
+	 *
+	 * @param word  the word
+	 * @param slots number of slots, a power of two
+	 * @return the slot
+	 */
+	private static int slot(CharSequence word, int slots) {
+		int hash = 0;
+		for (int i = 0; i < word.length(); i++) {
+			hash = 31 * hash + word.charAt(i);
+		}
+		return (hash ^ (hash >>> 16)) & (slots - 1);
+	}
+
+	/**
+	 * Return whether the current thread is a virtual thread
+	 *
+	 * @return true if virtual
+	 */
+	private static boolean isVirtual() {
+		if (IS_VIRTUAL == null) {
+			return false;
+		}
+		try {
+			return (Boolean) IS_VIRTUAL.invoke(Thread.currentThread());
+		} catch (ReflectiveOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Return {@link Thread}'s isVirtual, looked up by reflection so the class
+	 * still compiles and runs on runtimes without virtual threads
+	 *
+	 * @return the method, or null if virtual threads are not available
+	 */
+	private static Method isVirtualMethod() {
+		try {
+			return Thread.class.getMethod("isVirtual");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * One cache shared by many threads. It remembers the first words up to its
+	 * capacity, which in text are mostly the frequent ones, and no more.
+	 *
+	 * A stemmer is not thread-safe, so the words not found are stemmed with one
+	 * taken from a pool and given back afterwards. The pool only grows to the
+	 * number of threads stemming at once, however many virtual threads come and
+	 * go.
+	 */
+	private static class Shared extends StemCache {
+
+		/**
+		 * stem of every word remembered
+		 */
+		private final ConcurrentHashMap<String, String> cache;
+
+		/**
+		 * maximum number of words remembered
+		 */
+		private final int capacity;
+
+		/**
+		 * number of words remembered
+		 */
+		private final AtomicInteger size;
+
+		/**
+		 * stemmers not in use
+		 */
+		private final ConcurrentLinkedQueue<SnowballStemmer> stemmers;
+
+		/**
+		 * @param capacity maximum number of words remembered
+		 */
+		private Shared(int capacity) {
+			super(0, null);
+			this.cache = new ConcurrentHashMap<String, String>();
+			this.capacity = capacity;
+			this.size = new AtomicInteger();
+			this.stemmers = new ConcurrentLinkedQueue<SnowballStemmer>();
+		}
+
+		@Override
+		public String stem(CharSequence word) {
+			String key = word.toString();
+			String stem = cache.get(key);
+			if (stem != null) {
+				HITS.increment();
+				return stem;
+			}
+
+			MISSES.increment();
+			SnowballStemmer stemmer = stemmers.poll();
+			if (stemmer == null) {
+				stemmer = new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH);
+			}
+			stem = stemmer.stem(key).toString();
+			stemmers.offer(stemmer);
+			if (size.get() < capacity && cache.putIfAbsent(key, stem) == null) {
+				size.incrementAndGet();
+			}
+			return stem;
+		}
+	}
+}
@@ -0,0 +1,415 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Thread safe inverted index whose words are split into hash stripes. Every
+ * stripe is a separate index with its own read write lock, so workers merging
+ * different files into the index only wait for each other on the stripes they
+ * both touch, and a search only locks the stripes of its query words.
+ *
+ * The stripes share one document table, guarded by its own lock, so document
+ * ids and total word counts are the same for every stripe.
+ */
+public class StripedInvertedIndex extends ThreadSafeInvertedIndex {
+
+	/** The default number of stripes. */
+	public static final int DEFAULT_STRIPES = 16;
+
+	/**
+	 * one index per stripe, all sharing the document table
+	 */
+	private final InvertedIndex[] stripes;
+
+	/**
+	 * lock of every stripe
+	 */
+	private final SimpleReadWriteLock[] locks;
+
+	/**
+	 * lock of the shared document table
+	 */
+	private final SimpleReadWriteLock documentLock;
+
+	/**
+	 * Initializes the index with the default number of stripes
+	 *
+	 * @see #StripedInvertedIndex(int)
+	 */
+	public StripedInvertedIndex() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Initializes the index with the specified number of stripes
+	 *
+	 * @param stripes number of stripes; should be greater than 1
+	 */
+	public StripedInvertedIndex(int stripes) {
+		super();
+		this.stripes = new InvertedIndex[Math.max(1, stripes)];
+		this.locks = new SimpleReadWriteLock[this.stripes.length];
+		this.documentLock = new SimpleReadWriteLock();
+		for (int i = 0; i < this.stripes.length; i++) {
+			this.stripes[i] = new InvertedIndex(documents);
+			this.locks[i] = new SimpleReadWriteLock();
+		}
+	}
+
+	/**
+	 * Return the stripe of the word
+	 *
+	 * @param word the word
+	 * @return stripe number
+	 */
+	private int stripe(String word) {
+		return (word.hashCode() & 0x7FFFFFFF) % stripes.length;
+	}
+
+	@Override
+	public boolean add(String word, String location, int position) {
+		int id;
+		documentLock.writeLock().lock();
+		try {
+			id = documents.add(location);
+		} finally {
+			documentLock.writeLock().unlock();
+		}
+
+		int i = stripe(word);
+		boolean result;
+		locks[i].writeLock().lock();
+		try {
+			result = stripes[i].addPosition(word, id, position);
+		} finally {
+			locks[i].writeLock().unlock();
+		}
+
+		if (result) {
+			documentLock.writeLock().lock();
+			try {
+				documents.incrementCount(id);
+			} finally {
+				documentLock.writeLock().unlock();
+			}
+		}
+		changed();
+		return true;
+	}
+
+	/**
+	 * Add a temporary inverted index to this index. Only the document table and
+	 * one stripe at a time are locked.
+	 *
+	 * @param temp inverted index
+	 */
+	@Override
+	public void addAll(InvertedIndex temp) {
+		int[] remap;
+		documentLock.writeLock().lock();
+		try {
+			remap = addDocuments(temp);
+		} finally {
+			documentLock.writeLock().unlock();
+		}
+
+		ArrayList<ArrayList<Map.Entry<String, Postings>>> buckets = new ArrayList<>(stripes.length);
+		for (int i = 0; i < stripes.length; i++) {
+			buckets.add(new ArrayList<Map.Entry<String, Postings>>());
+		}
+		for (Map.Entry<String, Postings> entry : temp.index.entrySet()) {
+			buckets.get(stripe(entry.getKey())).add(entry);
+		}
+
+		for (int i = 0; i < stripes.length; i++) {
+			if (!buckets.get(i).isEmpty()) {
+				locks[i].writeLock().lock();
+				try {
+					for (Map.Entry<String, Postings> entry : buckets.get(i)) {
+						stripes[i].addPostings(entry.getKey(), entry.getValue(), remap);
+					}
+				} finally {
+					locks[i].writeLock().unlock();
+				}
+			}
+		}
+		changed();
+	}
+
+	/**
+	 * Return an immutable, read-optimized copy of this index. Every stripe is read
+	 * locked while copying.
+	 *
+	 * @see InvertedIndex#freeze()
+	 */
+	@Override
+	public FrozenInvertedIndex freeze() {
+		documentLock.readLock().lock();
+		for (SimpleReadWriteLock lock : locks) {
+			lock.readLock().lock();
+		}
+		try {
+			// the stripes hold disjoint words, so their maps can simply be joined
+			InvertedIndex joined = new InvertedIndex(documents);
+			for (InvertedIndex stripe : stripes) {
+				joined.index.putAll(stripe.index);
+			}
+			return joined.freeze();
+		} finally {
+			for (SimpleReadWriteLock lock : locks) {
+				lock.readLock().unlock();
+			}
+			documentLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void toIndexJSON(Path path) throws IOException {
+		freeze().toIndexJSON(path);
+	}
+
+	@Override
+	public void toLocationsJSON(Path path) throws IOException {
+		documentLock.readLock().lock();
+		try {
+			PrettyJSONWriter.asObject(documents.toCountMap(), path);
+		} finally {
+			documentLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int getTotalWords(String path) {
+		documentLock.readLock().lock();
+		try {
+			int id = documents.getId(path);
+			return id >= 0 ? documents.getCount(id) : 0;
+		} finally {
+			documentLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Set<String> getWordSet() {
+		TreeSet<String> result = new TreeSet<String>();
+		for (int i = 0; i < stripes.length; i++) {
+			locks[i].readLock().lock();
+			try {
+				result.addAll(stripes[i].index.keySet());
+			} finally {
+				locks[i].readLock().unlock();
+			}
+		}
+		return Collections.unmodifiableSet(result);
+	}
+
+	@Override
+	public Set<String> getPathSet(String word) {
+		int i = stripe(word);
+		documentLock.readLock().lock();
+		locks[i].readLock().lock();
+		try {
+			return stripes[i].getPathSet(word);
+		} finally {
+			locks[i].readLock().unlock();
+			documentLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public SortedSet<Integer> getPositionSet(String word, String path) {
+		int i = stripe(word);
+		documentLock.readLock().lock();
+		locks[i].readLock().lock();
+		try {
+			return stripes[i].getPositionSet(word, path);
+		} finally {
+			locks[i].readLock().unlock();
+			documentLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (int i = 0; i < stripes.length; i++) {
+			locks[i].readLock().lock();
+			try {
+				if (!stripes[i].index.isEmpty()) {
+					return false;
+				}
+			} finally {
+				locks[i].readLock().unlock();
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean containsWord(String word) {
+		int i = stripe(word);
+		locks[i].readLock().lock();
+		try {
+			return stripes[i].index.containsKey(word);
+		} finally {
+			locks[i].readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean containsPath(String word, String path) {
+		int i = stripe(word);
+		documentLock.readLock().lock();
+		locks[i].readLock().lock();
+		try {
+			return stripes[i].containsPath(word, path);
+		} finally {
+			locks[i].readLock().unlock();
+			documentLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean containsPosition(String word, String path, int position) {
+		int i = stripe(word);
+		documentLock.readLock().lock();
+		locks[i].readLock().lock();
+		try {
+			return stripes[i].containsPosition(word, path, position);
+		} finally {
+			locks[i].readLock().unlock();
+			documentLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ArrayList<SearchResult> search(Collection<String> queries, boolean exact) {
+		return exact ? exactSearch(queries) : partialSearch(queries);
+	}
+
+	@Override
+	public ArrayList<SearchResult> search(Collection<String> queries, boolean exact, int k, int offset) {
+		documentLock.readLock().lock();
+		try {
+			return page(exact ? exactScores(queries) : partialScores(queries), k, offset);
+		} finally {
+			documentLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ArrayList<SearchResult> exactSearch(Collection<String> oneLineQuery) {
+		return sorted(exactMatches(oneLineQuery));
+	}
+
+	@Override
+	public ArrayList<SearchResult> partialSearch(Collection<String> oneLineQuery) {
+		return sorted(partialMatches(oneLineQuery));
+	}
+
+	/**
+	 * Perform a exact search, read locking only the stripes of the query words
+	 *
+	 * @param oneLineQuery one line of query file
+	 * @return the results in the order they were found
+	 */
+	@Override
+	protected ArrayList<SearchResult> exactMatches(Collection<String> oneLineQuery) {
+		documentLock.readLock().lock();
+		try {
+			return results(exactScores(oneLineQuery));
+		} finally {
+			documentLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Return the matches of every document for an exact search. Must be called
+	 * with the document lock read locked.
+	 *
+	 * @param oneLineQuery one line of query file
+	 * @return the accumulator of the current thread
+	 */
+	@Override
+	protected ScoreAccumulator exactScores(Collection<String> oneLineQuery) {
+		ScoreAccumulator scores = ScoreAccumulator.get(documents.size());
+		for (String oneQuery : oneLineQuery) {
+			int i = stripe(oneQuery);
+			locks[i].readLock().lock();
+			try {
+				stripes[i].searchHelper(scores, oneQuery);
+			} finally {
+				locks[i].readLock().unlock();
+			}
+		}
+		return scores;
+	}
+
+	/**
+	 * Perform a partial search. Words sharing a prefix are spread over all
+	 * stripes, so every stripe is read locked in turn.
+	 *
+	 * @param oneLineQuery a line of the query file
+	 * @return the results in the order they were found
+	 */
+	@Override
+	protected ArrayList<SearchResult> partialMatches(Collection<String> oneLineQuery) {
+		documentLock.readLock().lock();
+		try {
+			return results(partialScores(oneLineQuery));
+		} finally {
+			documentLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Return the matches of every document for a partial search. Must be called
+	 * with the document lock read locked.
+	 *
+	 * @param oneLineQuery a line of the query file
+	 * @return the accumulator of the current thread
+	 */
+	@Override
+	protected ScoreAccumulator partialScores(Collection<String> oneLineQuery) {
+		PrefixCache cache = getPrefixCache();
+		if (cache != null) {
+			return cache.search(this, getGeneration(), documents.size(), oneLineQuery, this::expand, null);
+		}
+		ScoreAccumulator scores = ScoreAccumulator.get(documents.size());
+		for (int i = 0; i < stripes.length; i++) {
+			locks[i].readLock().lock();
+			try {
+				for (String oneQuery : oneLineQuery) {
+					stripes[i].expand(scores, oneQuery);
+				}
+			} finally {
+				locks[i].readLock().unlock();
+			}
+		}
+		return scores;
+	}
+
+	/**
+	 * Adds the matches of every word starting with a prefix to the accumulator,
+	 * read locking every stripe in turn
+	 *
+	 * @param scores the matches of every document so far
+	 * @param prefix one query word
+	 */
+	@Override
+	protected void expand(ScoreAccumulator scores, String prefix) {
+		for (int i = 0; i < stripes.length; i++) {
+			locks[i].readLock().lock();
+			try {
+				stripes[i].expand(scores, prefix);
+			} finally {
+				locks[i].readLock().unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,153 @@
+import java.util.Arrays;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+
+/**
+ * Dictionary of the sorted words of an index, answering a prefix with the range
+ * of ordinals of the words starting with it, so a partial search visits only
+ * the words that match instead of comparing every word after the prefix.
+ *
+ * The words starting with a prefix are the words from the prefix up to its
+ * {@link #successor(String)}, found with two binary searches. A table of where
+ * the words of every ASCII first character start narrows both searches to the
+ * words with the same first character, and answers a single-character prefix
+ * without searching at all.
+ *
+ * The same ranges are used for the sorted maps of the indexes still being
+ * built, with {@link #prefixMap(NavigableMap, String)}.
+ */
+public class TermDictionary {
+
+	/**
+	 * number of first characters with their own range in the table
+	 */
+	private static final int ASCII = 128;
+
+	/**
+	 * all words, sorted
+	 */
+	private final String[] terms;
+
+	/**
+	 * ordinal of the first word with every ASCII first character or a later one,
+	 * then of the first word with a non-ASCII first character, then the number of
+	 * words
+	 */
+	private final int[] starts;
+
+	/**
+	 * Initializes the dictionary of the words
+	 *
+	 * @param terms all words, sorted; not copied
+	 */
+	public TermDictionary(String[] terms) {
+		this.terms = terms;
+		this.starts = new int[ASCII + 2];
+		int term = 0;
+		while (term < terms.length && terms[term].isEmpty()) {
+			term++;
+		}
+		for (int c = 0; c <= ASCII; c++) {
+			while (term < terms.length && terms[term].charAt(0) < c) {
+				term++;
+			}
+			starts[c] = term;
+		}
+		starts[ASCII + 1] = terms.length;
+	}
+
+	/**
+	 * Return the number of words
+	 *
+	 * @return the number of words
+	 */
+	public int size() {
+		return terms.length;
+	}
+
+	/**
+	 * Return the ordinal of the word
+	 *
+	 * @param word word to find
+	 * @return ordinal of the word, or (-(insertion point) - 1) if not found, like
+	 *         {@link Arrays#binarySearch(Object[], Object)}
+	 */
+	public int ordinal(String word) {
+		if (word.isEmpty()) {
+			return Arrays.binarySearch(terms, 0, starts[0], word);
+		}
+		char c = word.charAt(0);
+		int bucket = Math.min(c, ASCII);
+		return Arrays.binarySearch(terms, starts[bucket], starts[bucket + 1], word);
+	}
+
+	/**
+	 * Return the ordinal of the first word starting with the prefix
+	 *
+	 * @param prefix the prefix
+	 * @return the ordinal, or where such a word would be
+	 */
+	public int prefixStart(String prefix) {
+		return lowerBound(prefix);
+	}
+
+	/**
+	 * Return the ordinal after the last word starting with the prefix
+	 *
+	 * @param prefix the prefix
+	 * @return the ordinal
+	 */
+	public int prefixEnd(String prefix) {
+		String successor = successor(prefix);
+		return successor == null ? terms.length : lowerBound(successor);
+	}
+
+	/**
+	 * Return the ordinal of the first word not less than the word
+	 *
+	 * @param word the word
+	 * @return the ordinal
+	 */
+	private int lowerBound(String word) {
+		if (word.length() == 1 && word.charAt(0) < ASCII) {
+			// the smallest word with that first character
+			return starts[word.charAt(0)];
+		}
+		int ordinal = ordinal(word);
+		return ordinal >= 0 ? ordinal : -ordinal - 1;
+	}
+
+	/**
+	 * Return the words starting with the prefix of a sorted map
+	 *
+	 * @param <V>    the type of the values
+	 * @param map    the map, sorted by the natural order of the words
+	 * @param prefix the prefix
+	 * @return a view of the words starting with the prefix
+	 */
+	public static <V> SortedMap<String, V> prefixMap(NavigableMap<String, V> map, String prefix) {
+		String successor = successor(prefix);
+		return successor == null ? map.tailMap(prefix, true) : map.subMap(prefix, true, successor, false);
+	}
+
+	/**
+	 * Return the smallest word after all words starting with the prefix: the
+	 * prefix without its trailing {@link Character#MAX_VALUE} characters and its
+	 * last character incremented
+	 *
+	 * @param prefix the prefix
+	 * @return the word, or null if every word after the prefix starts with it
+	 */
+	public static String successor(String prefix) {
+		int end = prefix.length();
+		while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+			end--;
+		}
+		if (end == 0) {
+			return null;
+		}
+		char[] chars = prefix.substring(0, end).toCharArray();
+		chars[end - 1]++;
+		return new String(chars);
+	}
+}
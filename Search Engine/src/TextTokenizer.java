@@ -0,0 +1,311 @@
+import java.util.Arrays;
+
+/**
+ * Cleans and splits text into words in a single pass over its characters,
+ * giving the same words as {@link TextParser#parse(String)} without building a
+ * normalized copy of the text, a cleaned copy and an array of words.
+ *
+ * Words are made of the characters between white space. Most characters are
+ * folded with a table: removed if not a letter, else turned into their lower
+ * case letter without diacritical marks. A word with a character the table does
+ * not cover, like one from a script other than Latin, is cleaned with
+ * {@link TextParser#clean(String)} instead, so only such words allocate.
+ *
+ * The words are reported to a {@link Handler} as a view that is reused for the
+ * next word. Text fed before {@link #finish()} is one text for
+ * {@link TextParser#parse(String)}, so for a file read a line at a time,
+ * finish every line.
+ */
+public class TextTokenizer {
+
+	/**
+	 * Receives the cleaned words of the text
+	 */
+	public interface Handler {
+
+		/**
+		 * Receives the next word. The characters are only valid until this method
+		 * returns.
+		 *
+		 * @param word the cleaned word
+		 */
+		void word(CharSequence word);
+	}
+
+	/**
+	 * the characters folded with the table, all before the combining diacritical
+	 * marks so none of them reorders with another when normalized
+	 */
+	private static final int FOLDED = 0x300;
+
+	/**
+	 * the character a character folds into, REMOVED if it is removed, or
+	 * UNFOLDED if the word is to be cleaned by {@link TextParser#clean(String)}
+	 */
+	private static final char[] FOLD = new char[FOLDED];
+
+	/**
+	 * a character that is removed from the word
+	 */
+	private static final char REMOVED = '\0';
+
+	/**
+	 * a character that does not fold into a single letter
+	 */
+	private static final char UNFOLDED = '\uffff';
+
+	static {
+		// folded with the same cleaning, so both agree by construction
+		for (char c = 0; c < FOLDED; c++) {
+			if (isSpace(c)) {
+				FOLD[c] = UNFOLDED;
+				continue;
+			}
+			String cleaned = TextParser.clean(String.valueOf(c));
+			if (cleaned.isEmpty()) {
+				FOLD[c] = REMOVED;
+			} else if (cleaned.length() == 1 && cleaned.charAt(0) != REMOVED && cleaned.charAt(0) != UNFOLDED) {
+				FOLD[c] = cleaned.charAt(0);
+			} else {
+				FOLD[c] = UNFOLDED;
+			}
+		}
+	}
+
+	/**
+	 * receives the words
+	 */
+	private final Handler handler;
+
+	/**
+	 * the characters of the word not finished yet, as they were in the text
+	 */
+	private final StringBuilder raw;
+
+	/**
+	 * the cleaned characters of the word not finished yet
+	 */
+	private final Word word;
+
+	/**
+	 * true if a character of the word not finished yet is not in the table
+	 */
+	private boolean unfolded;
+
+	/**
+	 * true once white space was seen in the text
+	 */
+	private boolean spaced;
+
+	/**
+	 * true once a character that stays after cleaning and stripping was seen in
+	 * the text
+	 */
+	private boolean started;
+
+	/**
+	 * true if the first such character was white space that
+	 * {@link String#strip()} keeps, like a no-break space
+	 */
+	private boolean leadingSpace;
+
+	/**
+	 * true once a word was reported for the text
+	 */
+	private boolean reported;
+
+	/**
+	 * Initializes a tokenizer
+	 *
+	 * @param handler receives the words
+	 */
+	public TextTokenizer(Handler handler) {
+		this.handler = handler;
+		this.raw = new StringBuilder();
+		this.word = new Word();
+		reset();
+	}
+
+	/**
+	 * Cleans and splits the next characters of the text
+	 *
+	 * @param chars  the characters
+	 * @param offset the index of the first character
+	 * @param count  the number of characters
+	 */
+	public void feed(char[] chars, int offset, int count) {
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			scan(chars[i]);
+		}
+	}
+
+	/**
+	 * Cleans and splits the next characters of the text
+	 *
+	 * @param chars the characters
+	 */
+	public void feed(CharSequence chars) {
+		for (int i = 0; i < chars.length(); i++) {
+			scan(chars.charAt(i));
+		}
+	}
+
+	/**
+	 * Reports the last word of the text, then starts a new text
+	 */
+	public void finish() {
+		endWord();
+		reset();
+	}
+
+	/**
+	 * Cleans and splits a whole text, see {@link TextParser#parse(String)}
+	 *
+	 * @param text    the text
+	 * @param handler receives the words
+	 */
+	public static void tokenize(CharSequence text, Handler handler) {
+		TextTokenizer tokenizer = new TextTokenizer(handler);
+		tokenizer.feed(text);
+		tokenizer.finish();
+	}
+
+	/**
+	 * Forgets the start of the text
+	 */
+	private void reset() {
+		raw.setLength(0);
+		word.length = 0;
+		unfolded = false;
+		started = false;
+		spaced = false;
+		leadingSpace = false;
+		reported = false;
+	}
+
+	/**
+	 * Scans one character
+	 *
+	 * @param c the character
+	 */
+	private void scan(char c) {
+		if (isSpace(c)) {
+			endWord();
+			spaced = true;
+			if (!started && !Character.isWhitespace(c)) {
+				// split, but not stripped, so the text starts with an empty word
+				started = true;
+				leadingSpace = true;
+			}
+			return;
+		}
+
+		raw.append(c);
+		if (unfolded) {
+			return;
+		}
+		char folded = c < FOLDED ? FOLD[c] : UNFOLDED;
+		if (folded == UNFOLDED) {
+			unfolded = true;
+		} else if (folded != REMOVED) {
+			word.append(folded);
+		}
+	}
+
+	/**
+	 * Reports the word not finished yet, if any of it is left after cleaning
+	 */
+	private void endWord() {
+		if (raw.length() == 0) {
+			return;
+		}
+		CharSequence cleaned = word;
+		if (unfolded) {
+			if (spaced) {
+				// not at the start of the text, which changes how String#toLowerCase()
+				// finds a final sigma after a supplementary character
+				raw.insert(0, ' ');
+				cleaned = TextParser.clean(raw.toString()).substring(1);
+			} else {
+				cleaned = TextParser.clean(raw.toString());
+			}
+		}
+		raw.setLength(0);
+		unfolded = false;
+
+		if (cleaned.length() > 0) {
+			started = true;
+			if (leadingSpace && !reported) {
+				handler.word("");
+			}
+			reported = true;
+			handler.word(cleaned);
+		}
+		word.length = 0;
+	}
+
+	/**
+	 * Return whether the character is white space like in
+	 * {@link TextParser#SPLIT_REGEX}
+	 *
+	 * @param c the character
+	 * @return true if white space
+	 */
+	public static boolean isSpace(char c) {
+		if (c < 0x80) {
+			return c == ' ' || (c >= '\t' && c <= '\r');
+		}
+		int type = Character.getType(c);
+		return type == Character.SPACE_SEPARATOR || type == Character.LINE_SEPARATOR
+				|| type == Character.PARAGRAPH_SEPARATOR || c == '\u0085';
+	}
+
+	/**
+	 * The cleaned characters of a word, reused for every word
+	 */
+	private static class Word implements CharSequence {
+
+		/**
+		 * the characters
+		 */
+		private char[] chars = new char[32];
+
+		/**
+		 * the number of characters
+		 */
+		private int length;
+
+		/**
+		 * Adds a character
+		 *
+		 * @param c the character
+		 */
+		private void append(char c) {
+			if (length == chars.length) {
+				chars = Arrays.copyOf(chars, length * 2);
+			}
+			chars[length++] = c;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return chars[index];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new String(chars, start, end - start);
+		}
+
+		@Override
+		public String toString() {
+			return new String(chars, 0, length);
+		}
+	}
+}
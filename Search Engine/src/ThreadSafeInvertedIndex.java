@@ -36,7 +36,7 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 		try {
 			return super.getWordSet();
 		} finally {
-			lock.readLock().lock();
+			lock.readLock().unlock();
 		}
 	}
 
@@ -219,6 +219,21 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 		}
 	}
 
+	/**
+	 * Return an immutable, read-optimized copy of this index
+	 * 
+	 * @see InvertedIndex#freeze()
+	 */
+	@Override
+	public FrozenInvertedIndex freeze() {
+		lock.readLock().lock();
+		try {
+			return super.freeze();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
 	/**
 	 * Search method
 	 * 
@@ -237,6 +252,16 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 		}
 	}
 
+	@Override
+	public ArrayList<SearchResult> search(Collection<String> queries, boolean exact, int k, int offset) {
+		lock.readLock().lock();
+		try {
+			return super.search(queries, exact, k, offset);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
 	/**
 	 * Perform a exact search to the inverted index data structure
 	 * 
@@ -0,0 +1,379 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The urls admitted to a crawl: which urls were seen and how many more may be
+ * crawled. The order the admitted urls are fetched in is up to the
+ * {@link HostScheduler}. Every part is safe to use from many threads.
+ *
+ * Urls are compared by their normalized string, never with
+ * {@link URL#equals(Object)} or {@link URL#hashCode()}, which may resolve the
+ * host name. The seen urls are kept either as strings, or in compact mode as
+ * 64-bit fingerprints of the strings in an open addressing table, 8 bytes a
+ * slot. The table is sized for the budget, but budget given back with
+ * {@link #refund()} lets more urls be seen, so it doubles once three quarters
+ * full. Urls are added to the table without locking each other out; only
+ * doubling it locks them out for a moment.
+ */
+public class UrlFrontier {
+
+	/**
+	 * urls that may still be added to the crawl
+	 */
+	private final AtomicInteger budget;
+
+	/**
+	 * normalized urls seen, or null in compact mode
+	 */
+	private final Set<String> seen;
+
+	/**
+	 * the largest number of slots of the fingerprint table
+	 */
+	private static final int MAX_SLOTS = 1 << 30;
+
+	/**
+	 * fingerprints of the normalized urls seen, 0 for an empty slot, or null if
+	 * not in compact mode
+	 */
+	private volatile AtomicLongArray fingerprints;
+
+	/**
+	 * shared while fingerprints are added to the table, exclusive while it grows
+	 */
+	private final ReentrantReadWriteLock tableLock;
+
+	/**
+	 * number of urls seen
+	 */
+	private final AtomicInteger size;
+
+	/**
+	 * Initializes a frontier keeping the seen urls as strings
+	 *
+	 * @param budget the maximum number of urls to crawl
+	 */
+	public UrlFrontier(int budget) {
+		this(budget, false);
+	}
+
+	/**
+	 * Initializes a frontier
+	 *
+	 * @param budget  the maximum number of urls to crawl
+	 * @param compact true to keep fingerprints of the seen urls instead of the
+	 *                strings
+	 */
+	public UrlFrontier(int budget, boolean compact) {
+		this(budget, compact ? tableLength(budget) : 0);
+	}
+
+	/**
+	 * Initializes a frontier
+	 *
+	 * @param budget the maximum number of urls to crawl
+	 * @param slots  number of slots of the fingerprint table, or 0 to keep the
+	 *               seen urls as strings
+	 */
+	private UrlFrontier(int budget, int slots) {
+		this.budget = new AtomicInteger(Math.max(0, budget));
+		this.size = new AtomicInteger();
+		this.tableLock = new ReentrantReadWriteLock();
+		if (slots > 0) {
+			this.fingerprints = new AtomicLongArray(slots);
+			this.seen = null;
+		} else {
+			this.fingerprints = null;
+			this.seen = ConcurrentHashMap.newKeySet();
+		}
+	}
+
+	/**
+	 * Return the initial number of slots of the fingerprint table for a budget,
+	 * enough for the budget without growing if no budget is given back
+	 *
+	 * @param budget the maximum number of urls to crawl
+	 * @return a power of 2
+	 */
+	private static int tableLength(int budget) {
+		long slots = Math.max(0, budget) * 4L / 3 + 1024;
+		return (int) Math.min(MAX_SLOTS, Long.highestOneBit(slots) << 1);
+	}
+
+	/**
+	 * Admits the url to the crawl if it was not seen before and the budget is not
+	 * used up
+	 *
+	 * @param url the url
+	 * @return true if the url was admitted and is to be fetched
+	 */
+	public boolean offer(URL url) {
+		// the budget is taken first, so a url is never seen without being admitted
+		int left;
+		do {
+			left = budget.get();
+			if (left <= 0) {
+				return false;
+			}
+		} while (!budget.compareAndSet(left, left - 1));
+
+		if (!markSeen(normalize(url))) {
+			budget.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Gives back the budget of a url admitted but never fetched, for example one
+	 * disallowed by robots.txt. The url stays seen.
+	 */
+	public void refund() {
+		budget.incrementAndGet();
+	}
+
+	/**
+	 * Return whether no more urls may be added
+	 *
+	 * @return true if the budget is used up
+	 */
+	public boolean isExhausted() {
+		return budget.get() <= 0;
+	}
+
+	/**
+	 * Returns the number of urls seen.
+	 *
+	 * @return number of urls seen
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Return whether the url was seen
+	 *
+	 * @param url the url
+	 * @return true if the url was seen
+	 */
+	public boolean contains(URL url) {
+		String key = normalize(url);
+		if (seen != null) {
+			return seen.contains(key);
+		}
+		long fingerprint = fingerprint(key);
+		tableLock.readLock().lock();
+		try {
+			AtomicLongArray table = fingerprints;
+			int mask = table.length() - 1;
+			int i = (int) fingerprint & mask;
+			for (int probes = 0; probes < table.length(); probes++) {
+				long slot = table.get(i);
+				if (slot == fingerprint) {
+					return true;
+				}
+				if (slot == 0) {
+					return false;
+				}
+				i = (i + 1) & mask;
+			}
+			return false;
+		} finally {
+			tableLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Marks the normalized url as seen
+	 *
+	 * @param key the normalized url
+	 * @return true if it was not seen before
+	 */
+	private boolean markSeen(String key) {
+		if (seen != null) {
+			if (seen.add(key)) {
+				size.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+
+		return markSeen(fingerprint(key));
+	}
+
+	/**
+	 * Marks the fingerprint of a normalized url as seen, in compact mode, and
+	 * doubles the table once it is three quarters full
+	 *
+	 * @param fingerprint the fingerprint
+	 * @return true if it was not seen before
+	 * @throws IllegalStateException if the table is full and cannot grow
+	 */
+	private boolean markSeen(long fingerprint) {
+		boolean added;
+		tableLock.readLock().lock();
+		try {
+			added = insert(fingerprints, fingerprint);
+		} finally {
+			tableLock.readLock().unlock();
+		}
+		if (added && size.incrementAndGet() > fingerprints.length() / 4 * 3) {
+			grow();
+		}
+		return added;
+	}
+
+	/**
+	 * Adds a fingerprint to a table
+	 *
+	 * @param table       the table
+	 * @param fingerprint the fingerprint
+	 * @return true if it was not in the table before
+	 * @throws IllegalStateException if the table is full
+	 */
+	private static boolean insert(AtomicLongArray table, long fingerprint) {
+		int mask = table.length() - 1;
+		int i = (int) fingerprint & mask;
+		int probes = 0;
+		while (probes < table.length()) {
+			long slot = table.get(i);
+			if (slot == fingerprint) {
+				return false;
+			}
+			if (slot == 0) {
+				if (table.compareAndSet(i, 0, fingerprint)) {
+					return true;
+				}
+				// another thread took the slot, look at it again
+				continue;
+			}
+			i = (i + 1) & mask;
+			probes++;
+		}
+		throw new IllegalStateException("The table of seen urls is full: " + table.length() + " urls.");
+	}
+
+	/**
+	 * Doubles the fingerprint table, unless another thread already did or it is
+	 * as large as it gets
+	 */
+	private void grow() {
+		tableLock.writeLock().lock();
+		try {
+			AtomicLongArray old = fingerprints;
+			if (size.get() <= old.length() / 4 * 3 || old.length() >= MAX_SLOTS) {
+				return;
+			}
+			AtomicLongArray table = new AtomicLongArray(old.length() * 2);
+			for (int i = 0; i < old.length(); i++) {
+				long slot = old.get(i);
+				if (slot != 0) {
+					insert(table, slot);
+				}
+			}
+			fingerprints = table;
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes the budget left and the urls seen, while no url is offered
+	 *
+	 * @param out the stream
+	 * @throws IOException if unable to write
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(budget.get());
+		out.writeInt(fingerprints == null ? 0 : fingerprints.length());
+		out.writeInt(size.get());
+		if (seen != null) {
+			for (String key : seen) {
+				out.writeUTF(key);
+			}
+			return;
+		}
+		AtomicLongArray table = fingerprints;
+		for (int i = 0; i < table.length(); i++) {
+			long slot = table.get(i);
+			if (slot != 0) {
+				out.writeLong(slot);
+			}
+		}
+	}
+
+	/**
+	 * Reads a frontier written by {@link #write(DataOutputStream)}
+	 *
+	 * @param in the stream
+	 * @return the frontier
+	 * @throws IOException if unable to read
+	 */
+	public static UrlFrontier read(DataInputStream in) throws IOException {
+		UrlFrontier frontier = new UrlFrontier(in.readInt(), in.readInt());
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			if (frontier.seen != null) {
+				frontier.markSeen(in.readUTF());
+			} else {
+				frontier.markSeen(in.readLong());
+			}
+		}
+		return frontier;
+	}
+
+	/**
+	 * Return a 64-bit fingerprint of the string, never 0
+	 *
+	 * @param key the string
+	 * @return the fingerprint
+	 */
+	private static long fingerprint(String key) {
+		// FNV-1a over the bytes, then mixed so the low bits spread well
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash == 0 ? 1 : hash;
+	}
+
+	/**
+	 * Return the url as a string that is the same for urls of the same page: the
+	 * scheme and host in lower case, without the default port or the fragment,
+	 * and with "/" for an empty path. The host name is not resolved.
+	 *
+	 * @param url the url
+	 * @return the normalized url
+	 */
+	public static String normalize(URL url) {
+		String protocol = url.getProtocol().toLowerCase();
+		StringBuilder key = new StringBuilder(protocol.length() + url.getHost().length() + url.getFile().length() + 8);
+		key.append(protocol).append("://");
+		if (url.getUserInfo() != null) {
+			key.append(url.getUserInfo()).append('@');
+		}
+		key.append(url.getHost().toLowerCase());
+		if (url.getPort() >= 0 && url.getPort() != url.getDefaultPort()) {
+			key.append(':').append(url.getPort());
+		}
+		key.append(url.getPath().isEmpty() ? "/" : url.getPath());
+		if (url.getQuery() != null) {
+			key.append('?').append(url.getQuery());
+		}
+		return key.toString();
+	}
+}
@@ -0,0 +1,152 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A work queue for blocking work such as fetching web pages. Every work
+ * request runs on its own virtual thread when the runtime supports them (Java
+ * 21 and later), so thousands of requests can wait on the network at once
+ * without as many operating system threads. At most a fixed number of requests
+ * run at the same time.
+ *
+ * On older runtimes the requests run on a pool of that many platform threads
+ * instead, which is the same as a plain {@link WorkQueue} of that size.
+ */
+public class VirtualThreadQueue extends AbstractWorkQueue {
+
+	/** The default maximum number of requests running at the same time. */
+	public static final int DEFAULT_IN_FLIGHT = 1000;
+
+	/**
+	 * most platform threads to start when virtual threads are not available
+	 */
+	private static final int MAX_PLATFORM_THREADS = 256;
+
+	/**
+	 * runs the work requests
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * limits the number of requests running at the same time
+	 */
+	private final Semaphore permits;
+
+	/**
+	 * maximum number of requests running at the same time
+	 */
+	private final int inFlight;
+
+	/**
+	 * true if the requests run on virtual threads
+	 */
+	private final boolean virtual;
+
+	/**
+	 * Starts a work queue allowing the default number of requests at once
+	 *
+	 * @see #VirtualThreadQueue(int)
+	 */
+	public VirtualThreadQueue() {
+		this(DEFAULT_IN_FLIGHT);
+	}
+
+	/**
+	 * Starts a work queue allowing the specified number of requests at once
+	 *
+	 * @param inFlight maximum number of requests running at the same time
+	 */
+	public VirtualThreadQueue(int inFlight) {
+		ExecutorService service = newVirtualThreadExecutor();
+		this.virtual = service != null;
+		if (service == null) {
+			inFlight = Math.min(inFlight, MAX_PLATFORM_THREADS);
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(inFlight, inFlight, 30, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>());
+			pool.allowCoreThreadTimeOut(true);
+			service = pool;
+		}
+		this.inFlight = Math.max(1, inFlight);
+		this.executor = service;
+		this.permits = new Semaphore(this.inFlight);
+	}
+
+	/**
+	 * Return an executor starting a virtual thread per request, looked up by
+	 * reflection so the class still compiles and runs on runtimes without them
+	 *
+	 * @return the executor, or null if virtual threads are not available
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Adds a work request to the queue. It starts as soon as fewer than the
+	 * maximum number of requests are running.
+	 *
+	 * @param r work request (in the form of a {@link Runnable} object)
+	 */
+	@Override
+	public void execute(Runnable r) {
+		incrementPending();
+		try {
+			executor.execute(() -> {
+				try {
+					permits.acquire();
+				} catch (InterruptedException e) {
+					decrementPending();
+					return;
+				}
+				try {
+					r.run();
+				} catch (RuntimeException ex) {
+					// catch runtime exceptions to avoid leaking threads
+					System.out.println("Warning: Work queue encountered an exception while running.");
+				} finally {
+					permits.release();
+					decrementPending();
+				}
+			});
+		} catch (RuntimeException e) {
+			// rejected after shutdown
+			decrementPending();
+		}
+	}
+
+	/**
+	 * Asks the queue to shutdown. Requests already added will still run, later
+	 * requests are ignored.
+	 */
+	@Override
+	public void shutdown() {
+		super.shutdown();
+		executor.shutdown();
+	}
+
+	/**
+	 * Returns the maximum number of requests running at the same time.
+	 *
+	 * @return maximum number of requests in flight
+	 */
+	@Override
+	public int size() {
+		return inFlight;
+	}
+
+	/**
+	 * Returns whether the requests run on virtual threads.
+	 *
+	 * @return true if virtual threads are used
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+}
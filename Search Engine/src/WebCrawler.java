@@ -1,9 +1,7 @@
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.HashSet;
-
-import opennlp.tools.stemmer.snowball.SnowballStemmer;
+import java.util.List;
 
 /**
  * Craw the seed url base on given limit number
@@ -16,42 +14,382 @@ import opennlp.tools.stemmer.snowball.SnowballStemmer;
 public class WebCrawler {
 
 	/**
-	 * all url links
+	 * the number of times to follow redirects
+	 */
+	private static final int REDIRECTS = 3;
+
+	/**
+	 * urls seen in the current crawl
+	 */
+	private volatile UrlFrontier frontier;
+	/**
+	 * urls waiting to be fetched in the current crawl, by host
+	 */
+	private volatile HostScheduler hosts;
+	/**
+	 * true to fetch and respect the robots.txt of every host
 	 */
-	private final HashSet<URL> allLink;
+	private volatile boolean robots;
 	/**
-	 * work queue
+	 * minimum time between two requests to one host, in milliseconds
 	 */
-	private final WorkQueue worker;
+	private volatile long minDelay;
+	/**
+	 * saves the crawl while it runs, or null
+	 */
+	private volatile CrawlCheckpoint checkpoint;
+	/**
+	 * true to continue the crawl saved by the checkpoint
+	 */
+	private volatile boolean resume;
+	/**
+	 * finds pages duplicating a page already indexed, or null to index every page
+	 */
+	private volatile DuplicateDetector duplicates;
+	/**
+	 * true to follow the links of a duplicate page skipped
+	 */
+	private volatile boolean followDuplicateLinks;
+	/**
+	 * true to keep fingerprints of the seen urls instead of the strings
+	 */
+	private volatile boolean compactFrontier;
+	/**
+	 * work queue for stemming pages and adding them to the index
+	 */
+	private final AbstractWorkQueue worker;
+	/**
+	 * work queue for fetching pages, may be the same as the worker queue
+	 */
+	private final AbstractWorkQueue fetcher;
+	/**
+	 * non-blocking fetcher, or null to fetch on the fetcher queue
+	 */
+	private final AsyncFetcher async;
 	/**
 	 * inverted index data structure
 	 */
 	private final ThreadSafeInvertedIndex sharedInvertedIndex;
+	/**
+	 * pages fetched or being processed, guarded by this crawler
+	 */
+	private int pending;
+	/**
+	 * maximum size of a page streamed, or 0 to fetch whole pages first
+	 */
+	private volatile long maxPageSize;
 
 	/**
+	 * Crawler fetching and indexing pages on the same work queue
+	 * 
 	 * @param worker
 	 * @param sharedInvertedIndex
 	 */
-	public WebCrawler(WorkQueue worker, ThreadSafeInvertedIndex sharedInvertedIndex) {
+	public WebCrawler(AbstractWorkQueue worker, ThreadSafeInvertedIndex sharedInvertedIndex) {
+		this(worker, worker, sharedInvertedIndex);
+	}
+
+	/**
+	 * Crawler fetching pages on one work queue, for example a
+	 * {@link VirtualThreadQueue} allowing many fetches at once, and stemming and
+	 * indexing them on another, sized for the CPU
+	 * 
+	 * @param worker              queue for stemming and indexing
+	 * @param fetcher             queue for fetching
+	 * @param sharedInvertedIndex inverted index data structure
+	 */
+	public WebCrawler(AbstractWorkQueue worker, AbstractWorkQueue fetcher, ThreadSafeInvertedIndex sharedInvertedIndex) {
+		this(worker, fetcher, null, sharedInvertedIndex);
+	}
+
+	/**
+	 * Crawler fetching pages with non-blocking sockets, and stemming and indexing
+	 * them on the work queue
+	 * 
+	 * @param worker              queue for stemming and indexing
+	 * @param async               non-blocking fetcher
+	 * @param sharedInvertedIndex inverted index data structure
+	 */
+	public WebCrawler(AbstractWorkQueue worker, AsyncFetcher async, ThreadSafeInvertedIndex sharedInvertedIndex) {
+		this(worker, worker, async, sharedInvertedIndex);
+	}
+
+	/**
+	 * @param worker              queue for stemming and indexing
+	 * @param fetcher             queue for fetching
+	 * @param async               non-blocking fetcher, or null
+	 * @param sharedInvertedIndex inverted index data structure
+	 */
+	private WebCrawler(AbstractWorkQueue worker, AbstractWorkQueue fetcher, AsyncFetcher async,
+			ThreadSafeInvertedIndex sharedInvertedIndex) {
 		this.worker = worker;
-		this.allLink = new HashSet<URL>();
+		this.fetcher = fetcher;
+		this.async = async;
+		this.frontier = null;
+		this.hosts = null;
+		this.robots = false;
+		this.minDelay = 0;
+		this.checkpoint = null;
+		this.resume = false;
+		this.duplicates = null;
+		this.followDuplicateLinks = true;
+		this.compactFrontier = false;
 		this.sharedInvertedIndex = sharedInvertedIndex;
+		this.pending = 0;
+		this.maxPageSize = 0;
+	}
+
+	/**
+	 * Stream the pages instead of fetching each page as a whole first: the
+	 * bytes are decoded, cleaned, stemmed and indexed while they arrive, on the
+	 * fetcher queue. Not used with the non-blocking fetcher.
+	 * 
+	 * @param maxPageSize maximum size of a page, larger pages are cut off; 0 to
+	 *                    fetch whole pages first
+	 */
+	public void setStreaming(long maxPageSize) {
+		this.maxPageSize = Math.max(0, maxPageSize);
+	}
+
+	/**
+	 * Keep 64-bit fingerprints of the seen urls instead of the strings, for
+	 * crawls of many millions of urls
+	 * 
+	 * @param compact true to keep fingerprints
+	 * @see UrlFrontier
+	 */
+	public void setCompactFrontier(boolean compact) {
+		this.compactFrontier = compact;
+	}
+
+	/**
+	 * Crawl politely: fetch the robots.txt of every host first and skip the
+	 * pages it disallows, and wait between two requests to one host for its
+	 * Crawl-delay or the minimum delay, whichever is longer
+	 * 
+	 * @param minDelay minimum time between two requests to one host, in
+	 *                 milliseconds
+	 * @see HostScheduler
+	 */
+	public void setPolite(long minDelay) {
+		this.robots = true;
+		this.minDelay = Math.max(0, minDelay);
+	}
+
+	/**
+	 * Save the crawl while it runs, so it can be continued if it dies
+	 * 
+	 * @param checkpoint saves the crawl, or null
+	 * @param resume     true to continue the crawl saved by the checkpoint instead
+	 *                   of starting from the seed, if there is one
+	 * @see CrawlCheckpoint
+	 */
+	public void setCheckpoint(CrawlCheckpoint checkpoint, boolean resume) {
+		this.checkpoint = checkpoint;
+		this.resume = resume;
 	}
 
 	/**
-	 * Craw the given seed
+	 * Skip pages whose text is the same as, or nearly the same as, a page already
+	 * indexed. Their words are not stemmed or indexed.
+	 * 
+	 * @param duplicates  finds the duplicate pages, or null to index every page
+	 * @param followLinks true to still follow the links of a duplicate page
+	 * @see DuplicateDetector
+	 */
+	public void setDuplicateDetector(DuplicateDetector duplicates, boolean followLinks) {
+		this.duplicates = duplicates;
+		this.followDuplicateLinks = followLinks;
+	}
+
+	/**
+	 * Craw the given seed, breadth first within each host. Hosts take turns, and
+	 * at most as many pages of one host are fetched at once as the connection
+	 * pool keeps connections to it.
 	 * 
 	 * @param seed  url seed
 	 * @param limit the maximum number of url to craw
 	 */
 	public void craw(URL seed, int limit) {
-		allLink.add(seed);
-		worker.execute(new WebCrawlerTask(seed, limit));
+		CrawlCheckpoint saved = checkpoint;
+		UrlFrontier restored = null;
+		if (saved != null && resume) {
+			try {
+				restored = saved.restore(sharedInvertedIndex, duplicates);
+			} catch (IOException e) {
+				System.err.println("Unable to resume the crawl: " + e.getMessage());
+			}
+		}
+
+		// the seed is crawled even with no limit
+		frontier = restored != null ? restored : new UrlFrontier(Math.max(1, limit), compactFrontier);
+		hosts = new HostScheduler(HttpsFetcher.getConnectionPool().getMaxPerHost(), minDelay, robots, fetcher::execute,
+				this::fetch, this::drop);
+		if (saved != null) {
+			try {
+				saved.start(frontier, sharedInvertedIndex, duplicates);
+			} catch (IOException e) {
+				System.err.println("Unable to save the crawl: " + e.getMessage());
+			}
+		}
+		List<URL> urls;
+		if (restored != null) {
+			// the pages not finished when the crawl was saved are fetched again
+			urls = saved.getPending();
+			synchronized (this) {
+				pending += urls.size();
+			}
+		} else {
+			urls = admit(List.of(seed));
+		}
+		for (URL url : urls) {
+			hosts.add(url);
+		}
+
+		// the page tasks move between the two queues, so wait for the pages rather
+		// than for either queue
+		synchronized (this) {
+			try {
+				while (pending > 0) {
+					this.wait();
+				}
+			} catch (InterruptedException e) {
+				System.err.println("interrunpted exception catched!");
+				Thread.currentThread().interrupt();
+			}
+		}
+		fetcher.finish();
 		worker.finish();
+		hosts.shutdown();
+		if (saved != null) {
+			try {
+				saved.close();
+			} catch (IOException e) {
+				System.err.println("Unable to save the crawl: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Fetch a url handed out by the host scheduler
+	 * 
+	 * @param url the url
+	 */
+	private void fetch(URL url) {
+		if (async != null) {
+			new WebCrawlerTask(url).fetchAsync();
+		} else {
+			fetcher.execute(new WebCrawlerTask(url));
+		}
+	}
+
+	/**
+	 * Admit the links of a page to the crawl if the limit has not exceeded. The
+	 * admitted links are pending until their pages are done.
+	 * 
+	 * @param links the links of the page
+	 * @return the links admitted, to add to the host scheduler
+	 */
+	private ArrayList<URL> admit(List<URL> links) {
+		UrlFrontier urls = frontier;
+		CrawlCheckpoint saved = checkpoint;
+		ArrayList<URL> admitted = new ArrayList<URL>();
+		for (URL link : links) {
+			if (urls.isExhausted()) {
+				break;
+			}
+			if (urls.offer(link)) {
+				admitted.add(link);
+				if (saved != null) {
+					saved.seen(link);
+				}
+			}
+		}
+		synchronized (this) {
+			pending += admitted.size();
+		}
+		return admitted;
+	}
+
+	/**
+	 * Return the url a page fetched is indexed under. A page found at another url
+	 * after redirects is indexed under that url, and its relative links resolved
+	 * against it, but only if that url is admitted to the crawl now, as if it was
+	 * a link of the page redirected. A url seen before is indexed once it is
+	 * fetched itself, if not already.
+	 * 
+	 * @param url      the url fetched
+	 * @param location the url the page was found at after redirects
+	 * @return the url to index the page under, or null to skip the page
+	 */
+	private URL locate(URL url, URL location) {
+		if (UrlFrontier.normalize(location).equals(UrlFrontier.normalize(url))) {
+			return url;
+		}
+		return admit(List.of(location)).isEmpty() ? null : location;
+	}
+
+	/**
+	 * Finish a page: add its links to the crawl and the page to the index, saving
+	 * both to the checkpoint, then mark the page as done
+	 * 
+	 * @param url   url of the page
+	 * @param links links of the page
+	 * @param page        words of the page, or null if the page failed
+	 * @param words       stemmed words of the page in order, or null if not saved
+	 * @param fingerprint fingerprint of the page kept by the duplicate detector,
+	 *                    or null
+	 */
+	private void finish(URL url, List<URL> links, InvertedIndex page, List<String> words,
+			DuplicateDetector.Fingerprint fingerprint) {
+		ArrayList<URL> admitted = new ArrayList<URL>();
+		Runnable changes = () -> {
+			admitted.addAll(admit(links));
+			if (page != null) {
+				sharedInvertedIndex.addAll(page);
+			}
+		};
+		CrawlCheckpoint saved = checkpoint;
+		if (saved == null) {
+			changes.run();
+		} else {
+			saved.finish(url, words == null ? List.of() : words, fingerprint, changes);
+		}
+		// outside the checkpoint, the host scheduler may wait for a full work queue
+		for (URL link : admitted) {
+			hosts.add(link);
+		}
+		done();
 	}
 
 	/**
-	 * Craw the url and the link in this url if the limit has not exceeded
+	 * Drop a url disallowed by robots.txt, so another url may take its place
+	 * 
+	 * @param url the url
+	 */
+	private void drop(URL url) {
+		CrawlCheckpoint saved = checkpoint;
+		if (saved == null) {
+			frontier.refund();
+		} else {
+			saved.drop(url, frontier::refund);
+		}
+		done();
+	}
+
+	/**
+	 * Mark a page as done, fetched and indexed, failed or dropped
+	 */
+	private synchronized void done() {
+		pending--;
+		if (pending == 0) {
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * Fetch a url, then hand the page to the worker queue to add its links and
+	 * index it
 	 * 
 	 */
 	private class WebCrawlerTask implements Runnable {
@@ -60,59 +398,278 @@ public class WebCrawler {
 		 * eachURL
 		 */
 		private final URL urlToProcess;
-		/**
-		 * the maximum number of url to craw
-		 */
-		private final int limit;
 
 		/**
-		 * @param url
-		 * @param limit
+		 * @param urlToProcess the url to fetch
 		 */
-		public WebCrawlerTask(URL url, int limit) {
-			this.urlToProcess = url;
-			this.limit = limit;
+		public WebCrawlerTask(URL urlToProcess) {
+			this.urlToProcess = urlToProcess;
 		}
 
 		@Override
 		public void run() {
+			boolean handedOff = false;
+			boolean fetched = false;
 			try {
 				System.out.println("Processing: " + urlToProcess);
-				int redirects = 3;
-				var html = HtmlFetcher.fetchHTML(urlToProcess, redirects);
-				if (html == null) {
-					return;
-				}
-
-				if (allLink.size() < limit) {
-					ArrayList<URL> links = HtmlCleaner.listLinks(urlToProcess, html);
-					for (URL link : links) {
-						if (allLink.size() >= limit) {
-							break;
-						} else {
-							if (allLink.contains(link) == false) {
-								allLink.add(link);
-								worker.execute(new WebCrawlerTask(link, limit));
-
-							}
-						}
+				long maxBytes = maxPageSize;
+				if (maxBytes > 0) {
+					DuplicateDetector detector = duplicates;
+					boolean keepWords = checkpoint != null;
+					PageIndexer page = HtmlFetcher.fetchHTML(urlToProcess, REDIRECTS, maxBytes,
+							location -> new PageIndexer(location, keepWords, detector != null));
+					fetched = true;
+					hosts.done(urlToProcess);
+					URL location = page == null ? null : locate(urlToProcess, page.url);
+					if (location == null) {
+						return;
+					}
+					if (location != urlToProcess) {
+						// the page is done under the url it redirected to
+						finish(urlToProcess, List.of(), null, null, null);
 					}
+					page.finish();
+					handedOff = true;
+					if (detector != null && detector.check(page.location, page.fingerprint) != null) {
+						finish(page.url, followDuplicateLinks ? page.links : List.of(), null, null, null);
+					} else {
+						page.stem();
+						finish(page.url, page.links, page.index, page.words, page.fingerprint);
+					}
+					return;
 				}
-
-				InvertedIndex temp = new InvertedIndex();
-				var stemmer = new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH);
-				int start = 1;
-				for (String s : TextParser.parse(HtmlCleaner.stripHtml(html))) {
-					temp.add(stemmer.stem(s).toString(), urlToProcess.toString(), start++);
+				HtmlFetcher.Page page = HtmlFetcher.fetchPage(urlToProcess, REDIRECTS);
+				fetched = true;
+				hosts.done(urlToProcess);
+				if (page == null) {
+					return;
 				}
-				sharedInvertedIndex.addAll(temp);
+				handedOff = handOff(page);
+			} catch (HostMonitor.BackoffException e) {
+				System.err.println("Skipping " + urlToProcess.toString() + ": " + e.getMessage());
 			} catch (IOException e) {
 
 				e.printStackTrace();
 				System.err.println("Unable to read the page: " + urlToProcess.toString());
+			} finally {
+				if (!fetched) {
+					hosts.done(urlToProcess);
+				}
+				if (!handedOff) {
+					finish(urlToProcess, List.of(), null, null, null);
+				}
+			}
+
+		}
+
+		/**
+		 * Fetch the url with the non-blocking fetcher, handing the page to the worker
+		 * queue once it arrives
+		 */
+		public void fetchAsync() {
+			System.out.println("Processing: " + urlToProcess);
+			async.fetchPage(urlToProcess, REDIRECTS).whenComplete((page, error) -> {
+				hosts.done(urlToProcess);
+				if (error != null) {
+					System.err.println("Unable to read the page: " + urlToProcess.toString());
+					finish(urlToProcess, List.of(), null, null, null);
+				} else if (page == null || !handOff(page)) {
+					finish(urlToProcess, List.of(), null, null, null);
+				}
+			});
+		}
+
+		/**
+		 * Hand a page fetched to the worker queue, to be indexed under the url it
+		 * was found at after redirects
+		 * 
+		 * @param page the page
+		 * @return true if handed off, false if the page is skipped and the url is
+		 *         still to be finished
+		 * @see #locate(URL, URL)
+		 */
+		private boolean handOff(HtmlFetcher.Page page) {
+			URL location = locate(urlToProcess, page.url);
+			if (location == null) {
+				return false;
+			}
+			if (location != urlToProcess) {
+				// the page is done under the url it redirected to
+				finish(urlToProcess, List.of(), null, null, null);
+			}
+			worker.execute(new IndexTask(location, page.html));
+			return true;
+		}
+
+	}
+
+	/**
+	 * Add the links of a fetched page to the crawl if the limit has not exceeded,
+	 * then stem the page and add it to the index
+	 * 
+	 */
+	private class IndexTask implements Runnable {
+
+		/**
+		 * url of the page
+		 */
+		private final URL url;
+		/**
+		 * html of the page
+		 */
+		private final String html;
+
+		/**
+		 * @param url  url of the page
+		 * @param html html of the page
+		 */
+		public IndexTask(URL url, String html) {
+			this.url = url;
+			this.html = html;
+		}
+
+		@Override
+		public void run() {
+			DuplicateDetector detector = duplicates;
+			PageIndexer page = new PageIndexer(url, checkpoint != null, detector != null);
+			HtmlTokenizer.tokenize(html, page);
+			page.finish();
+			if (detector != null && detector.check(page.location, page.fingerprint) != null) {
+				finish(url, followDuplicateLinks ? page.links : List.of(), null, null, null);
+				return;
 			}
+			page.stem();
+			finish(url, page.links, page.index, page.words, page.fingerprint);
+		}
+	}
+
+	/**
+	 * Cleans and splits the text of a page into words with a
+	 * {@link TextTokenizer} while it is scanned, the same way as
+	 * {@link TextParser#parse(String)}, then stems and indexes every word
+	 */
+	private static class PageIndexer implements HtmlTokenizer.Handler {
+
+		/**
+		 * url of the page
+		 */
+		private final URL url;
+		/**
+		 * location of the page in the index
+		 */
+		private final String location;
+		/**
+		 * links of the page
+		 */
+		private final ArrayList<URL> links;
+		/**
+		 * words of the page
+		 */
+		private final InvertedIndex index;
+		/**
+		 * stemmed words of the page in order, or null if not kept
+		 */
+		private final ArrayList<String> words;
+		/**
+		 * fingerprint of the cleaned words, or null if not checked for duplicates
+		 */
+		private final DuplicateDetector.Fingerprint fingerprint;
+		/**
+		 * cleaned words not stemmed yet, kept until the page is known not to be a
+		 * duplicate, or null to stem every word at once
+		 */
+		private final ArrayList<String> cleanedWords;
+		/**
+		 * stem cache of the thread scanning the page
+		 */
+		private final StemCache stems;
+		/**
+		 * cleans and splits the text into words
+		 */
+		private final TextTokenizer tokenizer;
+		/**
+		 * position of the next word
+		 */
+		private int position;
 
+		/**
+		 * @param url         url of the page
+		 * @param keepWords   true to keep the stemmed words in order
+		 * @param fingerprint true to fingerprint the page and stem it only once
+		 *                    {@link #stem()} is called
+		 */
+		public PageIndexer(URL url, boolean keepWords, boolean fingerprint) {
+			this.url = url;
+			this.location = url.toString();
+			this.links = new ArrayList<URL>();
+			this.index = new InvertedIndex();
+			this.words = keepWords ? new ArrayList<String>() : null;
+			this.fingerprint = fingerprint ? new DuplicateDetector.Fingerprint() : null;
+			this.cleanedWords = fingerprint ? new ArrayList<String>() : null;
+			this.stems = StemCache.get();
+			this.tokenizer = new TextTokenizer(this::addWord);
+			this.position = 1;
+		}
+
+		@Override
+		public void text(char[] chars, int offset, int length) {
+			tokenizer.feed(chars, offset, length);
+		}
+
+		@Override
+		public void link(String href) {
+			URL link = HtmlCleaner.resolveLink(url, href);
+			if (link != null) {
+				links.add(link);
+			}
+		}
+
+		/**
+		 * Adds the last word once the page ended
+		 */
+		public void finish() {
+			tokenizer.finish();
+		}
+
+		/**
+		 * Stems and indexes the words kept for the fingerprint, once the page is
+		 * known not to be a duplicate
+		 */
+		public void stem() {
+			if (cleanedWords != null) {
+				for (String cleaned : cleanedWords) {
+					addStem(cleaned);
+				}
+				cleanedWords.clear();
+			}
+		}
+
+		/**
+		 * Stems and indexes a cleaned word, or keeps it for the fingerprint
+		 * 
+		 * @param cleaned the cleaned word
+		 */
+		private void addWord(CharSequence cleaned) {
+			if (fingerprint != null) {
+				String kept = cleaned.toString();
+				fingerprint.add(kept);
+				cleanedWords.add(kept);
+			} else {
+				addStem(cleaned);
+			}
 		}
 
+		/**
+		 * Stems and indexes a cleaned word
+		 * 
+		 * @param cleaned the cleaned word
+		 */
+		private void addStem(CharSequence cleaned) {
+			String stem = stems.stem(cleaned);
+			index.add(stem, location, position++);
+			if (words != null) {
+				words.add(stem);
+			}
+		}
 	}
 }
@@ -1,30 +1,71 @@
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A simple work queue implementation.
  * 
+ * The queue is unbounded by default. A bounded queue holds at most a fixed
+ * number of waiting work requests; when it is full, {@link #execute(Runnable)}
+ * either blocks until a worker takes work or runs the work in the calling
+ * thread, depending on the {@link Policy}. Work added by a worker of a full
+ * queue is run in the worker, since blocking it could deadlock the pool; once
+ * a worker is running {@link #MAX_INLINE_DEPTH} such requests inside each
+ * other, its work is queued past the capacity instead. A producer blocked on a
+ * full queue that is shut down runs its work itself, so it is never left in a
+ * queue no worker takes from.
  */
-public class WorkQueue {
+public class WorkQueue extends AbstractWorkQueue {
 
 	/**
 	 * Pool of worker threads that will wait in the background until work is
-	 * available.
+	 * available. Guarded by the queue lock.
+	 */
+	private final ArrayList<PoolWorker> workers;
+
+	/**
+	 * number of workers asked to exit, guarded by the queue lock
 	 */
-	private final PoolWorker[] workers;
+	private int retiring;
 
 	/** Queue of pending work requests. */
 	private final LinkedList<Runnable> queue;
 
-	/** Used to signal the queue should be shutdown. */
-	private volatile boolean shutdown;
+	/**
+	 * The maximum number of work requests a worker runs inside each other when
+	 * the queue is full.
+	 */
+	public static final int MAX_INLINE_DEPTH = 8;
+
+	/**
+	 * What to do with new work when a bounded queue is full
+	 */
+	public enum Policy {
+		/** wait until a worker takes work from the queue */
+		BLOCK,
+		/** run the work in the calling thread */
+		CALLER_RUNS
+	}
 
-	/** The default number of threads to use when not specified. */
-	public static final int DEFAULT = 5;
+	/**
+	 * maximum number of waiting work requests, 0 if unbounded
+	 */
+	private final int capacity;
 
 	/**
-	 * work pending
+	 * what to do with new work when the queue is full
 	 */
-	private int pending;
+	private final Policy policy;
+
+	/**
+	 * number of times new work found the queue full
+	 */
+	private final AtomicLong rejected;
+
+	/**
+	 * largest number of waiting work requests seen
+	 */
+	private int maxDepth;
 
 	/**
 	 * Starts a work queue with the default number of threads.
@@ -41,15 +82,65 @@ public class WorkQueue {
 	 * @param threads number of worker threads; should be greater than 1
 	 */
 	public WorkQueue(int threads) {
+		this(threads, 0, Policy.BLOCK);
+	}
+
+	/**
+	 * Starts a bounded work queue with the specified number of threads.
+	 *
+	 * @param threads  number of worker threads; should be greater than 1
+	 * @param capacity maximum number of waiting work requests, 0 or less for an
+	 *                 unbounded queue
+	 * @param policy   what to do with new work when the queue is full
+	 */
+	public WorkQueue(int threads, int capacity, Policy policy) {
+		this.capacity = Math.max(0, capacity);
+		this.policy = policy;
+		this.rejected = new AtomicLong();
+		this.maxDepth = 0;
 		this.queue = new LinkedList<Runnable>();
-		this.workers = new PoolWorker[threads];
-		this.pending = 0;
-		this.shutdown = false;
+		this.workers = new ArrayList<PoolWorker>(threads);
+		this.retiring = 0;
 
 		// start the threads so they are waiting in the background
 		for (int i = 0; i < threads; i++) {
-			this.workers[i] = new PoolWorker();
-			this.workers[i].start();
+			addWorker();
+		}
+	}
+
+	/**
+	 * Starts one more worker thread, unless the queue is shutting down.
+	 */
+	protected void addWorker() {
+		synchronized (queue) {
+			if (isShutdown()) {
+				return;
+			}
+			if (retiring > 0) {
+				// keep a worker that was about to exit instead
+				retiring--;
+				return;
+			}
+			PoolWorker worker = new PoolWorker();
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Asks one worker thread to exit once it finishes its current work. The last
+	 * worker is never removed.
+	 *
+	 * @return true if a worker will exit
+	 */
+	protected boolean removeWorker() {
+		synchronized (queue) {
+			if (workers.size() - retiring <= 1) {
+				return false;
+			}
+			retiring++;
+			queue.notifyAll();
+			return true;
 		}
 	}
 
@@ -59,54 +150,167 @@ public class WorkQueue {
 	 *
 	 * @param r work request (in the form of a {@link Runnable} object)
 	 */
+	@Override
 	public void execute(Runnable r) {
-		// TODO synchronized (this) { pending++; }
+		if (capacity > 0) {
+			boolean inline = false;
+			PoolWorker worker = currentWorker();
+			synchronized (queue) {
+				if (queue.size() >= capacity) {
+					rejected.incrementAndGet();
+					if (worker != null) {
+						// never block a worker; queue past the capacity once nested too deep
+						inline = worker.inlineDepth < MAX_INLINE_DEPTH;
+					} else {
+						inline = policy == Policy.CALLER_RUNS;
+						try {
+							while (!inline && queue.size() >= capacity && !isShutdown()) {
+								queue.wait();
+							}
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							inline = true;
+						}
+					}
+					if (isShutdown()) {
+						// no worker may take it from the queue any more
+						inline = true;
+					}
+				}
+				if (!inline) {
+					incrementPending();
+					enqueue(r);
+				}
+			}
+			if (inline) {
+				if (worker != null) {
+					worker.inlineDepth++;
+				}
+				try {
+					runSafely(r);
+				} finally {
+					if (worker != null) {
+						worker.inlineDepth--;
+					}
+				}
+			}
+			return;
+		}
+
+		incrementPending();
 		synchronized (queue) {
-			pending++; // TODO Remove
-			queue.addLast(r);
-			queue.notifyAll();
+			enqueue(r);
 		}
 	}
 
 	/**
-	 * Decrement pending variable
+	 * Adds work to the queue and wakes the workers; the caller holds the queue
+	 * lock
+	 *
+	 * @param r work request
 	 */
-	private void decrementPending() { // TODO Make method synchronized
-		synchronized (queue) { // TODO Remove
-			pending--;
-			if (pending == 0) {
-				queue.notifyAll(); // TODO this.notifyAll
-			}
+	private void enqueue(Runnable r) {
+		queue.addLast(r);
+		maxDepth = Math.max(maxDepth, queue.size());
+		queue.notifyAll();
+	}
+
+	/**
+	 * Return the calling thread if it is one of this queue's workers
+	 *
+	 * @return the worker, or null if not called from a worker of this queue
+	 */
+	private PoolWorker currentWorker() {
+		Thread current = Thread.currentThread();
+		if (current instanceof PoolWorker && ((PoolWorker) current).owner() == this) {
+			return (PoolWorker) current;
 		}
+		return null;
 	}
 
 	/**
-	 * Waits for all pending work to be finished.
+	 * Runs the work, catching runtime exceptions to avoid leaking threads
+	 *
+	 * @param r work request
 	 */
-	public void finish() { // TODO Make method synchronized
+	private static void runSafely(Runnable r) {
+		try {
+			r.run();
+		} catch (RuntimeException ex) {
+			System.out.println("Warning: Work queue encountered an exception while running.");
+		}
+	}
 
-		synchronized (queue) { // TODO Remove
-			try {
-				while (pending > 0) {
-					queue.wait(); // TODO this.wait()
-				}
-			} catch (InterruptedException e) {
-				System.err.println("interrunpted exception catched!");
-			}
+	/**
+	 * Returns the number of work requests waiting in the queue.
+	 *
+	 * @return number of queued work requests
+	 */
+	public int getQueueDepth() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+
+	/**
+	 * Return the work request that has waited longest in the queue
+	 *
+	 * @return oldest queued work request, or null if the queue is empty
+	 */
+	protected Runnable peekQueued() {
+		synchronized (queue) {
+			return queue.peekFirst();
+		}
+	}
+
+	/**
+	 * Returns the largest number of work requests that waited in the queue.
+	 *
+	 * @return largest queue depth seen
+	 */
+	public int getMaxQueueDepth() {
+		synchronized (queue) {
+			return maxDepth;
 		}
 	}
 
+	/**
+	 * Returns the number of times new work found a bounded queue full, and was
+	 * blocked or run by the caller.
+	 *
+	 * @return number of rejections
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Returns the maximum number of waiting work requests.
+	 *
+	 * @return capacity of the queue, 0 if unbounded
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
 	/**
 	 * Asks the queue to shutdown. Any unprocessed work will not be finished, but
-	 * threads in-progress will not be interrupted.
+	 * threads in-progress will not be interrupted. Work still waiting in the queue
+	 * is dropped, so {@link #finish()} does not wait for it.
 	 */
+	@Override
 	public void shutdown() {
-		// safe to do unsynchronized due to volatile keyword
-		shutdown = true;
+		super.shutdown();
 
+		int dropped;
 		synchronized (queue) {
+			dropped = queue.size();
+			queue.clear();
 			queue.notifyAll();
 		}
+		for (int i = 0; i < dropped; i++) {
+			decrementPending();
+		}
 	}
 
 	/**
@@ -114,8 +318,11 @@ public class WorkQueue {
 	 *
 	 * @return number of worker threads
 	 */
+	@Override
 	public int size() {
-		return workers.length;
+		synchronized (queue) {
+			return workers.size() - retiring;
+		}
 	}
 
 	/**
@@ -126,13 +333,26 @@ public class WorkQueue {
 	 */
 	private class PoolWorker extends Thread {
 
+		/**
+		 * number of work requests of a full queue this worker is running inside
+		 * each other
+		 */
+		private int inlineDepth = 0;
+
+		/**
+		 * @return the queue this worker belongs to
+		 */
+		public WorkQueue owner() {
+			return WorkQueue.this;
+		}
+
 		@Override
 		public void run() {
 			Runnable r = null;
 
 			while (true) {
 				synchronized (queue) {
-					while (queue.isEmpty() && !shutdown) {
+					while (queue.isEmpty() && !isShutdown() && retiring == 0) {
 						try {
 							queue.wait();
 						} catch (InterruptedException ex) {
@@ -142,22 +362,26 @@ public class WorkQueue {
 						}
 					}
 
-					// exit while for one of two reasons:
-					// (a) queue has work, or (b) shutdown has been called
+					// exit while for one of three reasons:
+					// (a) queue has work, (b) shutdown has been called, or
+					// (c) the pool is shrinking
 
-					if (shutdown) {
+					if (isShutdown()) {
+						break;
+					} else if (retiring > 0) {
+						retiring--;
+						workers.remove(this);
 						break;
 					} else {
 						r = queue.removeFirst();
-
+						if (capacity > 0) {
+							// wake producers blocked on a full queue
+							queue.notifyAll();
+						}
 					}
 				}
-				try {
-					r.run();
-				} catch (RuntimeException ex) {
-					// catch runtime exceptions to avoid leaking threads
-					System.out.println("Warning: Work queue encountered an exception while running.");
-				}
+				// catch runtime exceptions to avoid leaking threads
+				runSafely(r);
 				decrementPending();
 			}
 		}
@@ -0,0 +1,214 @@
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the work queue as it was before the pending count became atomic,
+ * the shared {@link WorkQueue} and the {@link WorkStealingQueue} on many tiny
+ * tasks, both added from outside the pool and fanned out from inside running
+ * tasks, the way the crawler adds links while processing a page.
+ *
+ * Usage: java WorkQueueBenchmark [threads] [tasks] [rounds]
+ */
+public class WorkQueueBenchmark {
+
+	/**
+	 * sink for the work done, so it is not optimized away
+	 */
+	private static final AtomicLong SINK = new AtomicLong();
+
+	/**
+	 * Runs the benchmark and prints the time of every queue
+	 *
+	 * @param args threads, tasks and rounds, all optional
+	 */
+	public static void main(String[] args) {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		int tasks = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		System.out.println("threads: " + threads + ", tasks: " + tasks + ", rounds: " + rounds);
+		for (int round = 0; round <= rounds; round++) {
+			// round 0 warms up the JIT and is not printed
+			long original = external(new OriginalWorkQueue(threads), tasks);
+			long shared = external(new WorkQueue(threads), tasks);
+			long stealing = external(new WorkStealingQueue(threads), tasks);
+			long originalFan = fanOut(new OriginalWorkQueue(threads), tasks);
+			long sharedFan = fanOut(new WorkQueue(threads), tasks);
+			long stealingFan = fanOut(new WorkStealingQueue(threads), tasks);
+			if (round > 0) {
+				System.out.printf(
+						"round %d  external: original %6d ms, shared %6d ms, stealing %6d ms  "
+								+ "fan-out: original %6d ms, shared %6d ms, stealing %6d ms%n",
+						round, original, shared, stealing, originalFan, sharedFan, stealingFan);
+			}
+		}
+		System.out.println("done (" + SINK.get() + ")");
+	}
+
+	/**
+	 * Adds all tasks from the main thread
+	 *
+	 * @param queue the queue to measure; shut down afterwards
+	 * @param tasks number of tasks
+	 * @return elapsed milliseconds
+	 */
+	private static long external(AbstractWorkQueue queue, int tasks) {
+		Instant start = Instant.now();
+		for (int i = 0; i < tasks; i++) {
+			final int seed = i;
+			queue.execute(() -> work(seed));
+		}
+		queue.finish();
+		long elapsed = Duration.between(start, Instant.now()).toMillis();
+		queue.shutdown();
+		return elapsed;
+	}
+
+	/**
+	 * Adds a few tasks from the main thread, each adding the rest from inside the
+	 * pool
+	 *
+	 * @param queue the queue to measure; shut down afterwards
+	 * @param tasks number of tasks
+	 * @return elapsed milliseconds
+	 */
+	private static long fanOut(AbstractWorkQueue queue, int tasks) {
+		int parents = queue.size() * 4;
+		int children = Math.max(1, tasks / parents);
+		Instant start = Instant.now();
+		for (int i = 0; i < parents; i++) {
+			final int seed = i;
+			queue.execute(() -> {
+				for (int j = 0; j < children; j++) {
+					final int child = seed * children + j;
+					queue.execute(() -> work(child));
+				}
+			});
+		}
+		queue.finish();
+		long elapsed = Duration.between(start, Instant.now()).toMillis();
+		queue.shutdown();
+		return elapsed;
+	}
+
+	/**
+	 * A tiny amount of work
+	 *
+	 * @param seed input of the work
+	 */
+	private static void work(int seed) {
+		long x = seed;
+		for (int i = 0; i < 32; i++) {
+			x = x * 6364136223846793005L + 1442695040888963407L;
+		}
+		if (x == 0) {
+			SINK.incrementAndGet();
+		}
+	}
+
+	/**
+	 * The work queue as it was before the pending count became atomic: the
+	 * pending count, the queue and finishing all share the lock of the queue,
+	 * and every change of the count wakes every thread waiting on it.
+	 */
+	private static class OriginalWorkQueue extends AbstractWorkQueue {
+
+		/**
+		 * pool of worker threads
+		 */
+		private final Thread[] workers;
+
+		/**
+		 * queue of pending work requests
+		 */
+		private final LinkedList<Runnable> queue;
+
+		/**
+		 * work pending, guarded by the queue lock
+		 */
+		private int pending;
+
+		/**
+		 * @param threads number of worker threads
+		 */
+		private OriginalWorkQueue(int threads) {
+			this.queue = new LinkedList<Runnable>();
+			this.workers = new Thread[threads];
+			this.pending = 0;
+			for (int i = 0; i < threads; i++) {
+				workers[i] = new Thread(this::work);
+				workers[i].start();
+			}
+		}
+
+		@Override
+		public void execute(Runnable r) {
+			synchronized (queue) {
+				pending++;
+				queue.addLast(r);
+				queue.notifyAll();
+			}
+		}
+
+		@Override
+		public void finish() {
+			synchronized (queue) {
+				try {
+					while (pending > 0) {
+						queue.wait();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		@Override
+		public void shutdown() {
+			super.shutdown();
+			synchronized (queue) {
+				queue.notifyAll();
+			}
+		}
+
+		@Override
+		public int size() {
+			return workers.length;
+		}
+
+		/**
+		 * Runs work from the queue until the queue is shut down
+		 */
+		private void work() {
+			while (true) {
+				Runnable r;
+				synchronized (queue) {
+					while (queue.isEmpty() && !isShutdown()) {
+						try {
+							queue.wait();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+					if (isShutdown()) {
+						return;
+					}
+					r = queue.removeFirst();
+				}
+				try {
+					r.run();
+				} catch (RuntimeException e) {
+					System.out.println("Warning: Work queue encountered an exception while running.");
+				}
+				synchronized (queue) {
+					pending--;
+					if (pending == 0) {
+						queue.notifyAll();
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,232 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A work queue with one deque per worker thread instead of one shared list.
+ *
+ * Work added by a worker goes to the back of its own deque and is taken back
+ * from there (newest first), work added by any other thread is spread over the
+ * deques round robin. A worker whose deque is empty steals the oldest work of
+ * another deque. Idle workers park, and adding work unparks a single idle
+ * worker instead of waking every thread. The deques are unbounded.
+ *
+ * @see AbstractWorkQueue
+ */
+public class WorkStealingQueue extends AbstractWorkQueue {
+
+	/**
+	 * Pool of worker threads, each with its own deque.
+	 */
+	private final StealingWorker[] workers;
+
+	/**
+	 * next deque for work added from outside the pool
+	 */
+	private final AtomicInteger next;
+
+	/**
+	 * number of parked workers
+	 */
+	private final AtomicInteger idle;
+
+	/**
+	 * Starts a work queue with the default number of threads.
+	 *
+	 * @see #WorkStealingQueue(int)
+	 */
+	public WorkStealingQueue() {
+		this(DEFAULT);
+	}
+
+	/**
+	 * Starts a work queue with the specified number of threads.
+	 *
+	 * @param threads number of worker threads; should be greater than 1
+	 */
+	public WorkStealingQueue(int threads) {
+		this.workers = new StealingWorker[Math.max(1, threads)];
+		this.next = new AtomicInteger();
+		this.idle = new AtomicInteger();
+
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new StealingWorker(i);
+		}
+		for (StealingWorker worker : workers) {
+			worker.start();
+		}
+	}
+
+	/**
+	 * Adds a work request to the queue. A thread will process this request when
+	 * available.
+	 *
+	 * @param r work request (in the form of a {@link Runnable} object)
+	 */
+	@Override
+	public void execute(Runnable r) {
+		incrementPending();
+
+		ArrayDeque<Runnable> deque;
+		Thread current = Thread.currentThread();
+		if (current instanceof StealingWorker && ((StealingWorker) current).owner() == this) {
+			deque = ((StealingWorker) current).deque;
+		} else {
+			deque = workers[Math.floorMod(next.getAndIncrement(), workers.length)].deque;
+		}
+
+		synchronized (deque) {
+			deque.addLast(r);
+		}
+
+		if (idle.get() > 0) {
+			wakeOne();
+		}
+	}
+
+	/**
+	 * Unparks one parked worker, if any
+	 */
+	private void wakeOne() {
+		for (StealingWorker worker : workers) {
+			if (worker.parked.compareAndSet(true, false)) {
+				LockSupport.unpark(worker);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Asks the queue to shutdown. Any unprocessed work will not be finished, but
+	 * threads in-progress will not be interrupted.
+	 */
+	@Override
+	public void shutdown() {
+		super.shutdown();
+		for (StealingWorker worker : workers) {
+			LockSupport.unpark(worker);
+		}
+	}
+
+	/**
+	 * Returns the number of worker threads being used by the work queue.
+	 *
+	 * @return number of worker threads
+	 */
+	@Override
+	public int size() {
+		return workers.length;
+	}
+
+	/**
+	 * Returns the number of work requests waiting in the deques.
+	 *
+	 * @return number of queued work requests
+	 */
+	public int queued() {
+		int total = 0;
+		for (StealingWorker worker : workers) {
+			synchronized (worker.deque) {
+				total += worker.deque.size();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Takes work from the worker's own deque, or steals it from another one.
+	 *
+	 * @param worker the worker looking for work
+	 * @return work request, or null if every deque is empty
+	 */
+	private Runnable take(StealingWorker worker) {
+		Runnable r;
+		synchronized (worker.deque) {
+			r = worker.deque.pollLast();
+		}
+		if (r != null) {
+			return r;
+		}
+
+		int start = ThreadLocalRandom.current().nextInt(workers.length);
+		for (int i = 0; i < workers.length; i++) {
+			StealingWorker victim = workers[(start + i) % workers.length];
+			if (victim != worker) {
+				synchronized (victim.deque) {
+					r = victim.deque.pollFirst();
+				}
+				if (r != null) {
+					return r;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Runs work from its own deque or stolen from others, and parks when there is
+	 * none. These threads will continue running in the background until a shutdown
+	 * is requested.
+	 */
+	private class StealingWorker extends Thread {
+
+		/**
+		 * work added by this worker, or given to it round robin
+		 */
+		private final ArrayDeque<Runnable> deque;
+
+		/**
+		 * true while this worker is parked waiting for work
+		 */
+		private final AtomicBoolean parked;
+
+		/**
+		 * @param id number of the worker
+		 */
+		public StealingWorker(int id) {
+			super("WorkStealingQueue-" + id);
+			this.deque = new ArrayDeque<Runnable>();
+			this.parked = new AtomicBoolean();
+		}
+
+		/**
+		 * @return the queue this worker belongs to
+		 */
+		public WorkStealingQueue owner() {
+			return WorkStealingQueue.this;
+		}
+
+		@Override
+		public void run() {
+			while (!isShutdown()) {
+				Runnable r = take(this);
+				if (r == null) {
+					idle.incrementAndGet();
+					parked.set(true);
+
+					// check again after announcing, so work added meanwhile is not missed
+					r = take(this);
+					if (r == null && !isShutdown()) {
+						LockSupport.park(this);
+					}
+					parked.set(false);
+					idle.decrementAndGet();
+
+					if (r == null) {
+						continue;
+					}
+				}
+
+				try {
+					r.run();
+				} catch (RuntimeException ex) {
+					// catch runtime exceptions to avoid leaking threads
+					System.out.println("Warning: Work queue encountered an exception while running.");
+				}
+				decrementPending();
+			}
+		}
+	}
+}